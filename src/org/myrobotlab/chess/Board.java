@@ -51,6 +51,40 @@ final public class Board implements Constants {
   long oldPieceBits = 0;
   int kingSquare[] = { 60, 4 };
 
+  /*
+   * the Zobrist key of the position - the xor of a random number for each
+   * piece on its square, the side to move, the castle rights and the en
+   * passant square. It is kept up to date by makeMove() and takeBack().
+   */
+  long key;
+
+  final static long zobristPiece[][][] = new long[2][6][64];
+  final static long zobristCastle[] = new long[16];
+  final static long zobristEp[] = new long[64];
+  final static long zobristSide;
+
+  static {
+    // fixed seed - the same keys in every run
+    long seed = 0x2545F4914F6CDD1DL;
+    for (int c = 0; c < 2; ++c)
+      for (int p = 0; p < 6; ++p)
+        for (int sq = 0; sq < 64; ++sq)
+          zobristPiece[c][p][sq] = seed = nextRandom(seed);
+    for (int i = 0; i < 16; ++i)
+      zobristCastle[i] = seed = nextRandom(seed);
+    for (int i = 0; i < 64; ++i)
+      zobristEp[i] = seed = nextRandom(seed);
+    zobristSide = nextRandom(seed);
+  }
+
+  /* xorshift64* */
+  static long nextRandom(long x) {
+    x ^= x >>> 12;
+    x ^= x << 25;
+    x ^= x >>> 27;
+    return x * 0x2545F4914F6CDD1DL;
+  }
+
   final private static char pieceChar[] = { 'P', 'N', 'B', 'R', 'Q', 'K' };
 
   final private static boolean slide[] = { false, false, true, true, true, false };
@@ -115,6 +149,126 @@ final public class Board implements Constants {
   }
 
   public Board() {
+    key = computeKey();
+  }
+
+  /**
+   * a copy of the board and its history - for a search on another thread
+   */
+  public Board(Board b) {
+    side = b.side;
+    xside = b.xside;
+    castle = b.castle;
+    ep = b.ep;
+    fifty = b.fifty;
+    hply = b.hply;
+    key = b.key;
+    for (int i = 0; i < hply; ++i) {
+      HistoryData h = b.histDat[i];
+      HistoryData copy = new HistoryData();
+      copy.m = h.m;
+      copy.capture = h.capture;
+      copy.castle = h.castle;
+      copy.ep = h.ep;
+      copy.fifty = h.fifty;
+      // takeBack() adopts these arrays and later moves change them
+      copy.pawnBits = h.pawnBits.clone();
+      copy.pieceBits = h.pieceBits.clone();
+      copy.key = h.key;
+      histDat[i] = copy;
+    }
+    pieceMat = b.pieceMat.clone();
+    color = b.color.clone();
+    piece = b.piece.clone();
+    pawnBits = b.pawnBits.clone();
+    pieceBits = b.pieceBits.clone();
+    kingSquare = b.kingSquare.clone();
+    oldPawnBits = -1;
+  }
+
+  /**
+   * @return the Zobrist key of the position from scratch
+   */
+  long computeKey() {
+    long k = 0;
+    for (int i = 0; i < 64; ++i)
+      if (color[i] != EMPTY)
+        k ^= zobristPiece[color[i]][piece[i]][i];
+    k ^= zobristCastle[castle];
+    if (ep != -1)
+      k ^= zobristEp[ep];
+    if (side == DARK)
+      k ^= zobristSide;
+    return k;
+  }
+
+  public long getKey() {
+    return key;
+  }
+
+  /**
+   * sets up a position in Forsyth-Edwards Notation, e.g.
+   * "rnbqkbnr/pppppppp/8/8/4P3/8/PPPP1PPP/RNBQKBNR b KQkq e3 0 1"
+   */
+  public void setFen(String fen) {
+    String[] fields = fen.trim().split("\\s+");
+    for (int i = 0; i < 64; ++i) {
+      color[i] = EMPTY;
+      piece[i] = EMPTY;
+    }
+    int sq = 0;
+    for (char c : fields[0].toCharArray()) {
+      if (c == '/')
+        continue;
+      if (c >= '1' && c <= '8') {
+        sq += c - '0';
+        continue;
+      }
+      int p = new String(pieceChar).indexOf(Character.toUpperCase(c));
+      if (p < 0 || sq > 63)
+        throw new IllegalArgumentException("bad fen " + fen);
+      color[sq] = Character.isUpperCase(c) ? LIGHT : DARK;
+      piece[sq] = p;
+      ++sq;
+    }
+    side = (fields.length > 1 && fields[1].equals("b")) ? DARK : LIGHT;
+    xside = side ^ 1;
+    castle = 0;
+    if (fields.length > 2) {
+      if (fields[2].indexOf('K') >= 0)
+        castle |= 1;
+      if (fields[2].indexOf('Q') >= 0)
+        castle |= 2;
+      if (fields[2].indexOf('k') >= 0)
+        castle |= 4;
+      if (fields[2].indexOf('q') >= 0)
+        castle |= 8;
+    }
+    ep = -1;
+    if (fields.length > 3 && !fields[3].equals("-"))
+      ep = (fields[3].charAt(0) - 'a') + 8 * ('8' - fields[3].charAt(1));
+    fifty = (fields.length > 4) ? Integer.parseInt(fields[4]) : 0;
+    hply = 0;
+
+    pawnBits = new long[2];
+    pieceBits = new long[2];
+    pieceMat = new int[2];
+    for (int i = 0; i < 64; ++i) {
+      if (color[i] == EMPTY)
+        continue;
+      pieceBits[color[i]] |= 1L << i;
+      if (piece[i] == PAWN)
+        pawnBits[color[i]] |= 1L << i;
+      else
+        pieceMat[color[i]] += pieceValue[piece[i]];
+      if (piece[i] == KING)
+        kingSquare[color[i]] = i;
+    }
+    oldPawnBits = -1;
+    for (int i = 0; i < 64; ++i)
+      for (int j = 0; j < 64; ++j)
+        history[i][j] = 0;
+    key = computeKey();
   }
 
   boolean attack(int sq, int s) {
@@ -726,6 +880,7 @@ final public class Board implements Constants {
 
   public boolean makeMove(HMove m) {
     long oldBits[] = { pieceBits[LIGHT], pieceBits[DARK] };
+    long oldKey = key;
 
     int from, to;
     /*
@@ -771,6 +926,7 @@ final public class Board implements Constants {
       color[from] = EMPTY;
       piece[from] = EMPTY;
       pieceBits[side] ^= (1L << from) | (1L << to);
+      key ^= zobristPiece[side][ROOK][from] ^ zobristPiece[side][ROOK][to];
     }
 
     /* back up information so we can take the move back later. */
@@ -784,8 +940,13 @@ final public class Board implements Constants {
     h.fifty = fifty;
     h.pawnBits = new long[] { pawnBits[LIGHT], pawnBits[DARK] };
     h.pieceBits = oldBits;
+    h.key = oldKey;
     histDat[hply++] = h;
 
+    key ^= zobristCastle[castle];
+    if (ep != -1)
+      key ^= zobristEp[ep];
+
     /*
      * update the castle, en passant, and fifty-move-draw variables
      */
@@ -801,6 +962,9 @@ final public class Board implements Constants {
       fifty = 0;
     else
       ++fifty;
+    key ^= zobristCastle[castle];
+    if (ep != -1)
+      key ^= zobristEp[ep];
 
     /* move the piece */
     int thePiece = piece[from];
@@ -814,6 +978,7 @@ final public class Board implements Constants {
       piece[to] = thePiece;
     color[from] = EMPTY;
     piece[from] = EMPTY;
+    key ^= zobristPiece[side][thePiece][from] ^ zobristPiece[side][piece[to]][to];
     long fromBits = 1L << from;
     long toBits = 1L << to;
     pieceBits[side] ^= fromBits | toBits;
@@ -824,6 +989,7 @@ final public class Board implements Constants {
     }
     int capture = h.capture;
     if (capture != EMPTY) {
+      key ^= zobristPiece[xside][capture][to];
       pieceBits[xside] ^= toBits;
       if (capture == PAWN)
         pawnBits[xside] ^= toBits;
@@ -838,11 +1004,13 @@ final public class Board implements Constants {
         piece[to + 8] = EMPTY;
         pieceBits[DARK] ^= (1L << (to + 8));
         pawnBits[DARK] ^= (1L << (to + 8));
+        key ^= zobristPiece[DARK][PAWN][to + 8];
       } else {
         color[to - 8] = EMPTY;
         piece[to - 8] = EMPTY;
         pieceBits[LIGHT] ^= (1L << (to - 8));
         pawnBits[LIGHT] ^= (1L << (to - 8));
+        key ^= zobristPiece[LIGHT][PAWN][to - 8];
       }
     }
 
@@ -852,6 +1020,7 @@ final public class Board implements Constants {
      */
     side ^= 1;
     xside ^= 1;
+    key ^= zobristSide;
     if (inCheck(xside)) {
       takeBack();
       return false;
@@ -870,8 +1039,11 @@ final public class Board implements Constants {
     if (fifty <= 3)
       return 0;
 
-    /* loop through the reversible moves */
-    for (int i = hply - 1; i >= hply - fifty - 1; --i) {
+    /*
+     * loop through the reversible moves - not before the first, when there
+     * were no captures or pawn moves yet, or the position was set up
+     */
+    for (int i = hply - 1; i >= Math.max(0, hply - fifty - 1); --i) {
       if (++b[histDat[i].m.getFrom()] == 0)
         --c;
       else
@@ -893,6 +1065,7 @@ final public class Board implements Constants {
     HistoryData h = histDat[--hply];
     pawnBits = h.pawnBits;
     pieceBits = h.pieceBits;
+    key = h.key;
     HMove m = h.m;
     castle = h.castle;
     ep = h.ep;
@@ -16,4 +16,5 @@ final class HistoryData {
   int fifty;
   long[] pawnBits;
   long[] pieceBits;
+  long key;
 }
@@ -15,11 +15,45 @@ import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 
+import org.myrobotlab.logging.LoggerFactory;
+import org.slf4j.Logger;
+
+/*
+ * Positions are stored by their Zobrist key in a transposition table, which
+ * orders the moves and cuts off the search of positions already searched
+ * deep enough. With more than one thread, helper searches on copies of the
+ * board fill the same table at the same time (Lazy SMP) - the main search
+ * finds more of its positions there and gets deeper in the same time.
+ */
 final public class Search {
+  public final static Logger log = LoggerFactory.getLogger(Search.class);
+
   final static int MAX_PLY = 32;
 
+  /* 2^20 entries of 16 bytes */
+  final static int TT_SIZE = 1 << 20;
+
   public Board board = new Board();
 
+  private TranspositionTable tt;
+
+  private int threads = Math.min(4, Runtime.getRuntime().availableProcessors());
+
+  private int maxDepth = MAX_PLY;
+
+  /* the depth the first iteration searches to */
+  private int startDepth = 3;
+
+  private Search helpers[] = new Search[0];
+
+  private Thread helperThreads[] = new Thread[0];
+
+  private int depth = 0;
+
+  private long totalNodes = 0;
+
+  private long thinkTime = 0;
+
   private HMove pv[][] = new HMove[MAX_PLY][MAX_PLY];
 
   private int pvLength[] = new int[MAX_PLY];
@@ -28,11 +62,19 @@ final public class Search {
 
   private int ply = 0;
 
-  private int nodes = 0;
+  private long nodes = 0;
 
-  private long stopTime = Long.MAX_VALUE;
+  private volatile long stopTime = Long.MAX_VALUE;
 
-  private boolean stop = false;
+  private volatile boolean stop = false;
+
+  public Search() {
+    this(new TranspositionTable(TT_SIZE));
+  }
+
+  Search(TranspositionTable tt) {
+    this.tt = tt;
+  }
 
   void checkup() throws StopSearchingException {
     /*
@@ -165,11 +207,25 @@ final public class Search {
      * if (hply >= HIST_STACK - 1) return board.eval(); FIXME!!! We could in
      * principle overflow the move history stack.
      */
+    /*
+     * has the position been searched deep enough? only outside the PV, so the
+     * PV stays complete
+     */
+    long entry = tt.probe(board.key);
+    if (entry != 0 && ply > 0 && beta - alpha == 1 && TranspositionTable.getDepth(entry) >= depth) {
+      int score = fromTT(TranspositionTable.getScore(entry));
+      int flag = TranspositionTable.getFlag(entry);
+      if (flag == TranspositionTable.EXACT || (flag == TranspositionTable.LOWER && score >= beta) || (flag == TranspositionTable.UPPER && score <= alpha))
+        return score;
+    }
+
     /* are we in check? if so, we want to search deeper */
     boolean check = board.inCheck(board.side);
     if (check)
       ++depth;
     List<HMove> validMoves = board.gen();
+    if (entry != 0) /* the best move found before goes first after the PV */
+      sortTT(validMoves, entry);
     if (followPV) /* are we following the PV? */
       sortPV(validMoves);
     Collections.sort(validMoves);
@@ -180,6 +236,7 @@ final public class Search {
     int a = alpha;
     int b = beta;
     boolean first = true;
+    HMove best = null;
     while (i.hasNext()) {
       HMove m = (HMove) i.next();
       if (!board.makeMove(m))
@@ -212,8 +269,11 @@ final public class Search {
          * ordered high next time we can search it
          */
         board.history[m.getFrom()][m.getTo()] += depth;
-        if (x >= beta)
+        best = m;
+        if (x >= beta) {
+          tt.store(board.key, depth, TranspositionTable.LOWER, toTT(beta), m);
           return beta;
+        }
 
         /* update the PV */
         pv[ply][ply] = m;
@@ -236,11 +296,48 @@ final public class Search {
     /* fifty move draw rule */
     if (board.fifty >= 100)
       return 0;
+    if (a > alpha)
+      tt.store(board.key, depth, (a >= beta) ? TranspositionTable.LOWER : TranspositionTable.EXACT, toTT(a), best);
+    else
+      tt.store(board.key, depth, TranspositionTable.UPPER, toTT(a), null);
     return a;
   }
 
+  /*
+   * mate scores count the plies from the root - in the table they count from
+   * the position
+   */
+  int toTT(int score) {
+    if (score > 9000)
+      return score + ply;
+    if (score < -9000)
+      return score - ply;
+    return score;
+  }
+
+  int fromTT(int score) {
+    if (score > 9000)
+      return score - ply;
+    if (score < -9000)
+      return score + ply;
+    return score;
+  }
+
+  void sortTT(Collection<HMove> moves, long entry) {
+    Iterator<HMove> i = moves.iterator();
+    while (i.hasNext()) {
+      HMove m = (HMove) i.next();
+      if (TranspositionTable.isMove(entry, m)) {
+        m.score += 5000000;
+        return;
+      }
+    }
+  }
+
   public void setStopTime(long stop) {
     stopTime = stop;
+    for (Search helper : helpers)
+      helper.stopTime = stop;
   }
 
   public void shiftPV() {
@@ -266,6 +363,58 @@ final public class Search {
 
   public void stopThinking() {
     stop = true;
+    for (Search helper : helpers)
+      helper.stop = true;
+  }
+
+  /**
+   * @param n
+   *          - threads searching at the same time, 1 for the main search alone
+   */
+  public void setThreads(int n) {
+    threads = Math.max(1, n);
+  }
+
+  public int getThreads() {
+    return threads;
+  }
+
+  /**
+   * @param depth
+   *          - the deepest iteration, for searches to a fixed depth
+   */
+  public void setMaxDepth(int depth) {
+    maxDepth = Math.max(1, Math.min(MAX_PLY, depth));
+  }
+
+  /**
+   * @param entries
+   *          - size of the transposition table, rounded down to a power of 2
+   */
+  public void setHashSize(int entries) {
+    tt = new TranspositionTable(entries);
+  }
+
+  public void clearHash() {
+    tt.clear();
+  }
+
+  /**
+   * @return the depth of the last completed iteration of the last think()
+   */
+  public int getDepth() {
+    return depth;
+  }
+
+  /**
+   * @return nodes searched by all threads in the last think()
+   */
+  public long getNodes() {
+    return totalNodes;
+  }
+
+  public long getNodesPerSecond() {
+    return totalNodes * 1000 / Math.max(1, thinkTime);
   }
 
   public void think() {
@@ -274,25 +423,43 @@ final public class Search {
 
   void think(ChessApp app) {
     stop = false;
+    long start = System.currentTimeMillis();
+    tt.nextAge();
+    startHelpers();
+    try {
+      deepen(true);
+    } finally {
+      totalNodes = nodes + stopHelpers();
+      thinkTime = System.currentTimeMillis() - start;
+    }
+    log.info("depth {} nodes searched {} - {} nodes/s with {} threads", depth, totalNodes, getNodesPerSecond(), threads);
+    return;
+  }
+
+  /* iterative deepening - until time is up or the depth is reached */
+  void deepen(boolean main) {
+    depth = 0;
     try {
       ply = 0;
       nodes = 0;
       for (int i = 0; i < 64; i++)
         for (int j = 0; j < 64; j++)
           board.history[i][j] = 0;
-      for (int i = 3; i <= MAX_PLY; ++i) {
+      for (int i = startDepth; i <= maxDepth; ++i) {
         followPV = true;
         int x = search(-10000, 10000, i);
-        System.out.println(i + " " + nodes + " " + x);
-        StringBuffer sb = new StringBuffer("[");
-        sb.append(x);
-        sb.append("]");
-        for (int j = 0; j < pvLength[0]; ++j) {
-          sb.append(" ");
-          sb.append(pv[0][j].toString());
+        depth = i;
+        if (main && log.isDebugEnabled()) {
+          StringBuffer sb = new StringBuffer("[");
+          sb.append(x);
+          sb.append("]");
+          for (int j = 0; j < pvLength[0]; ++j) {
+            sb.append(" ");
+            sb.append(pv[0][j].toString());
+          }
+          log.debug("{} {} {}", i, nodes, sb);
         }
         // app.setPrincipalVariation(sb.toString());
-        // log.info(sb.toString());
         if (x > 9000 || x < -9000)
           break;
       }
@@ -303,7 +470,48 @@ final public class Search {
         --ply;
       }
     }
-    System.out.println("Nodes searched: " + nodes);
-    return;
+  }
+
+  /*
+   * helpers search the same position on their own boards into the same table -
+   * every other one a ply deeper, so they get ahead of the main search
+   */
+  void startHelpers() {
+    helpers = new Search[threads - 1];
+    helperThreads = new Thread[threads - 1];
+    for (int n = 0; n < helpers.length; ++n) {
+      final Search helper = new Search(tt);
+      helper.board = new Board(board);
+      helper.stopTime = stopTime;
+      helper.maxDepth = maxDepth;
+      helper.startDepth = Math.min(maxDepth, startDepth + (n + 1) % 2);
+      helpers[n] = helper;
+      helperThreads[n] = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          helper.deepen(false);
+        }
+      }, "search-helper-" + n);
+      helperThreads[n].setDaemon(true);
+      helperThreads[n].start();
+    }
+  }
+
+  /* @return the nodes the helpers searched */
+  long stopHelpers() {
+    long n = 0;
+    for (Search helper : helpers)
+      helper.stop = true;
+    for (int i = 0; i < helpers.length; ++i) {
+      try {
+        helperThreads[i].join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      n += helpers[i].nodes;
+    }
+    helpers = new Search[0];
+    helperThreads = new Thread[0];
+    return n;
   }
 }
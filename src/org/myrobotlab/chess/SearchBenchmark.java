@@ -0,0 +1,63 @@
+package org.myrobotlab.chess;
+
+//
+//  SearchBenchmark.java
+//  ChessApp
+//
+//  Nodes and nodes per second of fixed depth searches of a standard set of
+//  test positions.
+//
+import org.myrobotlab.logging.Level;
+import org.myrobotlab.logging.LoggerFactory;
+import org.myrobotlab.logging.LoggingFactory;
+import org.slf4j.Logger;
+
+/**
+ * Searches each position to a fixed depth with a fresh transposition table,
+ * and logs nodes, time and nodes per second - per position and in total.
+ *
+ * <pre>
+ * java org.myrobotlab.chess.SearchBenchmark [depth] [threads]
+ * </pre>
+ */
+public class SearchBenchmark {
+
+  public final static Logger log = LoggerFactory.getLogger(SearchBenchmark.class);
+
+  /* the start position and the perft positions of the chess programming wiki */
+  public final static String POSITIONS[] = { "rnbqkbnr/pppppppp/8/8/8/8/PPPPPPPP/RNBQKBNR w KQkq - 0 1",
+      "r3k2r/p1ppqpb1/bn2pnp1/3PN3/1p2P3/2N2Q1p/PPPBBPPP/R3K2R w KQkq - 0 1", "8/2p5/3p4/KP5r/1R3p1k/8/4P1P1/8 w - - 0 1",
+      "r3k2r/Pppp1ppp/1b3nbN/nP6/BBP1P3/q4N2/Pp1P2PP/R2Q1RK1 w kq - 0 1", "rnbq1k1r/pp1Pbppp/2p5/8/2B5/8/PPP1NnPP/RNBQK2R w KQ - 1 8",
+      "r4rk1/1pp1qppp/p1np1n2/2b1p1B1/2B1P1b1/P1NP1N2/1PP1QPPP/R4RK1 w - - 0 10" };
+
+  /**
+   * @return nodes and milliseconds of all the positions
+   */
+  public static long[] run(int depth, int threads, boolean logPositions) {
+    long nodes = 0;
+    long time = 0;
+    for (String fen : POSITIONS) {
+      Search search = new Search();
+      search.setThreads(threads);
+      search.setMaxDepth(depth);
+      search.board.setFen(fen);
+      long start = System.currentTimeMillis();
+      search.think();
+      long ms = Math.max(1, System.currentTimeMillis() - start);
+      nodes += search.getNodes();
+      time += ms;
+      if (logPositions) {
+        log.info(String.format("%-70s %s %10d nodes %6d ms %9d nodes/s", fen, search.getBest(), search.getNodes(), ms, search.getNodes() * 1000 / ms));
+      }
+    }
+    return new long[] { nodes, time };
+  }
+
+  public static void main(String[] args) {
+    LoggingFactory.init(Level.INFO);
+    int depth = (args.length > 0) ? Integer.parseInt(args[0]) : 6;
+    int threads = (args.length > 1) ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+    long[] total = run(depth, threads, true);
+    log.info("depth {} threads {} - {} nodes {} ms {} nodes/s", depth, threads, total[0], total[1], total[0] * 1000 / total[1]);
+  }
+}
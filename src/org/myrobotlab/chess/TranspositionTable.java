@@ -0,0 +1,116 @@
+package org.myrobotlab.chess;
+
+//
+//  TranspositionTable.java
+//  ChessApp
+//
+//  Scores of searched positions by Zobrist key, shared by the search threads.
+//
+
+/**
+ * A fixed size table of search results - one entry per slot, the slot picked
+ * by the low bits of the key. Several threads read and write it without locks:
+ * an entry is two longs, the data and the key xor the data, so an entry torn
+ * by two threads writing at once does not match its key and is ignored.
+ *
+ * The data packs the score, the depth it was searched to, whether the score
+ * is exact or a bound, the best move and the search it came from:
+ *
+ * <pre>
+ * bits  0-31 score
+ * bits 32-39 depth
+ * bits 40-41 flag
+ * bits 42-47 from
+ * bits 48-53 to
+ * bits 54-56 promote
+ * bits 57-63 age
+ * </pre>
+ */
+final class TranspositionTable {
+  final static int EXACT = 1;
+  final static int LOWER = 2; // score >= beta
+  final static int UPPER = 3; // score <= alpha
+
+  final static int NO_MOVE = 0;
+
+  private final long keys[];
+  private final long data[];
+  private final int mask;
+  private int age = 0;
+
+  /**
+   * @param size
+   *          - entries, rounded down to a power of 2
+   */
+  TranspositionTable(int size) {
+    int n = Integer.highestOneBit(Math.max(2, size));
+    keys = new long[n];
+    data = new long[n];
+    mask = n - 1;
+  }
+
+  /**
+   * @return the data of the position, 0 if it isn't in the table
+   */
+  long probe(long key) {
+    int i = (int) key & mask;
+    long d = data[i];
+    if ((keys[i] ^ d) != key)
+      return 0;
+    return d;
+  }
+
+  void store(long key, int depth, int flag, int score, HMove best) {
+    int i = (int) key & mask;
+    long old = data[i];
+    // keep deeper results of this search for other positions
+    if (old != 0 && (keys[i] ^ old) != key && getAge(old) == age && getDepth(old) > depth)
+      return;
+    int move = (best == null) ? NO_MOVE : best.getFrom() | (best.getTo() << 6) | (best.promote << 12);
+    long d = (score & 0xffffffffL) | ((long) (depth & 0xff) << 32) | ((long) flag << 40) | ((long) move << 42) | ((long) (age & 0x7f) << 57);
+    data[i] = d;
+    keys[i] = key ^ d;
+  }
+
+  /**
+   * the next search - its entries replace the ones of older searches first
+   */
+  void nextAge() {
+    age = (age + 1) & 0x7f;
+  }
+
+  void clear() {
+    for (int i = 0; i < data.length; ++i) {
+      data[i] = 0;
+      keys[i] = 0;
+    }
+  }
+
+  int size() {
+    return data.length;
+  }
+
+  static int getScore(long d) {
+    return (int) d;
+  }
+
+  static int getDepth(long d) {
+    return (int) (d >>> 32) & 0xff;
+  }
+
+  static int getFlag(long d) {
+    return (int) (d >>> 40) & 3;
+  }
+
+  static int getAge(long d) {
+    return (int) (d >>> 57) & 0x7f;
+  }
+
+  /**
+   * @return true if the move is the best move of the entry
+   */
+  static boolean isMove(long d, HMove m) {
+    int move = (int) (d >>> 42) & 0x7fff;
+    return move != NO_MOVE && move == (m.getFrom() | (m.getTo() << 6) | (m.promote << 12));
+  }
+}
@@ -25,6 +25,8 @@ import org.slf4j.Logger;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.gson.JsonElement;
+import com.google.gson.stream.JsonReader;
 
 /**
  * handles all encoding and decoding of MRL messages or api(s) assumed context -
@@ -123,6 +125,14 @@ public class CodecUtils {
     return gson.fromJson(json, clazz);
   }
 
+  /**
+   * reads the next json value of a stream - several can follow each other,
+   * e.g. json lines
+   */
+  public final static <T extends Object> T fromJson(JsonReader reader, Class<T> clazz) {
+    return gson.fromJson(reader, clazz);
+  }
+
   static public final byte[] getBytes(Object o) throws IOException {
     ByteArrayOutputStream byteStream = new ByteArrayOutputStream(5000);
     ObjectOutputStream os = new ObjectOutputStream(new BufferedOutputStream(byteStream));
@@ -356,6 +366,13 @@ public class CodecUtils {
     return gson.toJson(o, clazz);
   }
 
+  /**
+   * @return o as a json tree - what toJson would encode, without the text
+   */
+  public final static JsonElement toJsonTree(Object o) {
+    return gson.toJsonTree(o);
+  }
+
   public static void toJsonFile(Object o, String filename) throws IOException {
     FileOutputStream fos = new FileOutputStream(new File(filename));
     fos.write(gson.toJson(o).getBytes());
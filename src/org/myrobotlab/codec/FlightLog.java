@@ -0,0 +1,446 @@
+package org.myrobotlab.codec;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.myrobotlab.framework.Message;
+import org.myrobotlab.logging.LoggerFactory;
+import org.myrobotlab.net.MsgCodec;
+import org.slf4j.Logger;
+
+/**
+ * FlightLog - reads a journal written by a FlightRecorder. Entries are read in
+ * the order they were recorded, from a time on, of some services only - the
+ * time index of each segment finds the block to start at and the service index
+ * skips the blocks in which none of the services took part.
+ *
+ * A segment without an index - the one being written, or the last one of a
+ * process which died - is scanned once when the log is opened.
+ */
+public class FlightLog {
+
+  public final static Logger log = LoggerFactory.getLogger(FlightLog.class);
+
+  final static Charset UTF8 = Charset.forName("UTF-8");
+
+  /**
+   * a recorded message
+   */
+  public static class Entry {
+    /**
+     * microseconds since the epoch
+     */
+    public final long time;
+    public final Message msg;
+
+    Entry(long time, Message msg) {
+      this.time = time;
+      this.msg = msg;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%d %s.%s -> %s.%s", time, msg.sender, msg.sendingMethod, msg.name, msg.method);
+    }
+  }
+
+  static class Segment {
+    File file;
+    ByteBuffer buffer;
+    int count;
+    int end;
+    long start;
+    long last;
+    long[] blockTimes;
+    int[] blockOffsets;
+    Map<String, BitSet> services = new HashMap<String, BitSet>();
+  }
+
+  final List<Segment> segments = new ArrayList<Segment>();
+
+  /**
+   * opens the segments of a journal
+   *
+   * @param dir
+   *          - directory of the journal
+   * @param name
+   *          - prefix of the segment files
+   */
+  public FlightLog(File dir, String name) throws IOException {
+    TreeMap<Integer, File> files = new TreeMap<Integer, File>();
+    File[] list = dir.listFiles();
+    if (list != null) {
+      for (File f : list) {
+        int n = FlightRecorder.segmentNumber(f.getName(), name);
+        if (n >= 0) {
+          files.put(n, f);
+        }
+      }
+    }
+    for (File f : files.values()) {
+      Segment s = open(f);
+      if (s != null) {
+        segments.add(s);
+      }
+    }
+  }
+
+  static Segment open(File file) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    Segment s = new Segment();
+    s.file = file;
+    try {
+      s.buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+    } finally {
+      raf.close();
+    }
+    if (s.buffer.limit() < FlightRecorder.HEADER || s.buffer.getInt(0) != FlightRecorder.MAGIC) {
+      log.warn("{} is not a journal segment", file);
+      return null;
+    }
+    s.start = s.buffer.getLong(8);
+    File index = FlightRecorder.indexFile(file);
+    if (index.exists()) {
+      try {
+        readIndex(s, index);
+        return s;
+      } catch (IOException e) {
+        log.warn("rebuilding bad index {}", index, e);
+        s.services.clear();
+      }
+    }
+    scan(s);
+    return s;
+  }
+
+  static void readIndex(Segment s, File file) throws IOException {
+    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+    try {
+      if (in.readInt() != FlightRecorder.INDEX_MAGIC || in.readInt() != FlightRecorder.VERSION) {
+        throw new IOException("not an index");
+      }
+      s.count = in.readInt();
+      s.end = in.readInt();
+      in.readLong();
+      s.last = in.readLong();
+      int blocks = in.readInt();
+      s.blockTimes = new long[blocks];
+      s.blockOffsets = new int[blocks];
+      for (int i = 0; i < blocks; ++i) {
+        s.blockTimes[i] = in.readLong();
+        s.blockOffsets[i] = in.readInt();
+      }
+      int services = in.readInt();
+      for (int i = 0; i < services; ++i) {
+        String name = in.readUTF();
+        long[] bits = new long[in.readInt()];
+        for (int j = 0; j < bits.length; ++j) {
+          bits[j] = in.readLong();
+        }
+        s.services.put(name, BitSet.valueOf(bits));
+      }
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * builds the index of a segment from its entries
+   */
+  static void scan(Segment s) {
+    List<long[]> blocks = new ArrayList<long[]>();
+    ByteBuffer b = s.buffer.duplicate();
+    int p = FlightRecorder.HEADER;
+    int count = 0;
+    while (p + FlightRecorder.ENTRY_HEADER <= b.limit()) {
+      long time = b.getLong(p);
+      if (time == 0) {
+        break;
+      }
+      int length = b.getInt(p + 8);
+      int next = p + FlightRecorder.ENTRY_HEADER + length;
+      if (length < 0 || next > b.limit()) {
+        break;
+      }
+      int block = count / FlightRecorder.BLOCK;
+      if (count % FlightRecorder.BLOCK == 0) {
+        blocks.add(new long[] { time, p });
+      }
+      // name and sender follow the msgId
+      b.limit(next).position(p + FlightRecorder.ENTRY_HEADER);
+      try {
+        skipVarLong(b);
+        mark(s, readString(b), block);
+        mark(s, readString(b), block);
+      } catch (RuntimeException e) {
+        log.warn("{} has a bad entry at {}", s.file, p);
+        b.limit(b.capacity());
+        break;
+      }
+      b.limit(b.capacity());
+      s.last = time;
+      ++count;
+      p = next;
+    }
+    s.count = count;
+    s.end = p;
+    s.blockTimes = new long[blocks.size()];
+    s.blockOffsets = new int[blocks.size()];
+    for (int i = 0; i < blocks.size(); ++i) {
+      s.blockTimes[i] = blocks.get(i)[0];
+      s.blockOffsets[i] = (int) blocks.get(i)[1];
+    }
+  }
+
+  static void mark(Segment s, String service, int block) {
+    if (service == null) {
+      return;
+    }
+    BitSet bits = s.services.get(service);
+    if (bits == null) {
+      bits = new BitSet();
+      s.services.put(service, bits);
+    }
+    bits.set(block);
+  }
+
+  // the start of a MsgCodec frame - see MsgCodec.writeString
+  static void skipVarLong(ByteBuffer b) {
+    while ((b.get() & 0x80) != 0) {
+    }
+  }
+
+  static int readVarInt(ByteBuffer b) {
+    int value = 0;
+    int shift = 0;
+    int v;
+    do {
+      v = b.get() & 0xff;
+      value |= (v & 0x7f) << shift;
+      shift += 7;
+    } while ((v & 0x80) != 0);
+    return value;
+  }
+
+  static String readString(ByteBuffer b) {
+    int code = readVarInt(b);
+    if (code == 0) {
+      return null;
+    }
+    // frames without interning only have literals
+    int length = readVarInt(b);
+    byte[] bytes = new byte[length];
+    b.get(bytes);
+    return new String(bytes, UTF8);
+  }
+
+  /**
+   * @return number of recorded messages
+   */
+  public long getCount() {
+    long count = 0;
+    for (Segment s : segments) {
+      count += s.count;
+    }
+    return count;
+  }
+
+  /**
+   * @return time of the first message, 0 if there is none
+   */
+  public long getStartTime() {
+    for (Segment s : segments) {
+      if (s.count > 0) {
+        return s.blockTimes[0];
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * @return time of the last message, 0 if there is none
+   */
+  public long getEndTime() {
+    for (int i = segments.size() - 1; i >= 0; --i) {
+      if (segments.get(i).count > 0) {
+        return segments.get(i).last;
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * @return the services which sent or received recorded messages
+   */
+  public Set<String> getServices() {
+    Set<String> services = new TreeSet<String>();
+    for (Segment s : segments) {
+      services.addAll(s.services.keySet());
+    }
+    return services;
+  }
+
+  public int getSegmentCount() {
+    return segments.size();
+  }
+
+  /**
+   * @return all entries
+   */
+  public Cursor read() {
+    return read(0, Long.MAX_VALUE, null);
+  }
+
+  /**
+   * @param from
+   *          - first time, microseconds since the epoch
+   * @param to
+   *          - last time
+   * @param services
+   *          - only messages these services sent or received, null for all
+   * @return the entries in the order they were recorded
+   */
+  public Cursor read(long from, long to, Collection<String> services) {
+    return new Cursor(from, to, (services == null) ? null : new TreeSet<String>(services));
+  }
+
+  /**
+   * iterates through entries - not thread safe
+   */
+  public class Cursor {
+    final long from;
+    final long to;
+    final Set<String> services;
+    final MsgCodec codec = new MsgCodec(false);
+
+    int segment = -1;
+    Segment s;
+    BitSet blocks;
+    ByteBuffer b;
+    int position;
+    int index;
+    boolean done = false;
+
+    Cursor(long from, long to, Set<String> services) {
+      this.from = from;
+      this.to = to;
+      this.services = services;
+    }
+
+    /**
+     * @return the next entry, null at the end
+     */
+    public Entry next() throws IOException {
+      while (!done) {
+        if (s == null || index >= s.count) {
+          if (!nextSegment()) {
+            done = true;
+            return null;
+          }
+          continue;
+        }
+        if (index % FlightRecorder.BLOCK == 0 && blocks != null && !blocks.get(index / FlightRecorder.BLOCK)) {
+          // none of the services in this block
+          int next = blocks.nextSetBit(index / FlightRecorder.BLOCK);
+          if (next < 0 || next >= s.blockOffsets.length) {
+            index = s.count;
+          } else {
+            index = next * FlightRecorder.BLOCK;
+            position = s.blockOffsets[next];
+          }
+          continue;
+        }
+        long time = b.getLong(position);
+        if (time == 0) {
+          index = s.count;
+          continue;
+        }
+        int length = b.getInt(position + 8);
+        int start = position + FlightRecorder.ENTRY_HEADER;
+        position = start + length;
+        ++index;
+        if (time < from) {
+          continue;
+        }
+        if (time > to) {
+          done = true;
+          return null;
+        }
+        b.limit(position).position(start);
+        Message msg = codec.decode(b);
+        b.limit(b.capacity());
+        if (services != null && !services.contains(msg.name) && !services.contains(msg.sender)) {
+          continue;
+        }
+        return new Entry(time, msg);
+      }
+      return null;
+    }
+
+    boolean nextSegment() {
+      while (++segment < segments.size()) {
+        s = segments.get(segment);
+        if (s.count == 0 || s.last < from) {
+          continue;
+        }
+        if (s.blockTimes[0] > to) {
+          return false;
+        }
+        blocks = null;
+        if (services != null) {
+          blocks = new BitSet();
+          for (String service : services) {
+            BitSet bits = s.services.get(service);
+            if (bits != null) {
+              blocks.or(bits);
+            }
+          }
+          if (blocks.isEmpty()) {
+            continue;
+          }
+        }
+        b = s.buffer.duplicate();
+        // the last block which starts before from
+        int block = 0;
+        int lo = 0;
+        int hi = s.blockTimes.length - 1;
+        while (lo <= hi) {
+          int mid = (lo + hi) >>> 1;
+          if (s.blockTimes[mid] <= from) {
+            block = mid;
+            lo = mid + 1;
+          } else {
+            hi = mid - 1;
+          }
+        }
+        index = block * FlightRecorder.BLOCK;
+        position = s.blockOffsets[block];
+        return true;
+      }
+      s = null;
+      return false;
+    }
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%d segments %d messages %d services", segments.size(), getCount(), getServices().size());
+  }
+
+}
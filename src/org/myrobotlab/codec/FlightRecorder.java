@@ -0,0 +1,461 @@
+package org.myrobotlab.codec;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.myrobotlab.framework.Message;
+import org.myrobotlab.framework.interfaces.NameProvider;
+import org.myrobotlab.logging.LoggerFactory;
+import org.myrobotlab.net.MsgCodec;
+import org.slf4j.Logger;
+
+/**
+ * FlightRecorder - records messages into a binary journal cheaply enough to be
+ * left on, so what happened before a failure can be looked at or replayed
+ * afterwards with FlightLog and FlightReplay.
+ *
+ * The journal is a directory of segments - memory mapped files of
+ * segmentSize bytes, named {name}-{number}.journal. When a segment is full the
+ * next one is started, and the oldest are deleted once there are more than
+ * maxSegments. Each segment starts with a HEADER byte header, followed by
+ * entries:
+ *
+ * <pre>
+ * long   time - microseconds since the epoch, 0 marks the end
+ * int    length of the frame
+ * byte[] the message - a MsgCodec frame without interning
+ * </pre>
+ *
+ * Messages are encoded on the calling thread with a codec of its own. Only
+ * reserving space in the segment is serialized, the copy into the mapping is
+ * not, and the time is written last so a reader never sees half an entry.
+ * Nothing is flushed per message - the mapped pages are written back by the
+ * OS, so the journal survives the process dying.
+ *
+ * Every BLOCK entries the time and offset are noted, and for each service the
+ * blocks it sent or received messages in - the index is written next to a
+ * segment when it is complete, as {name}-{number}.index. Readers rebuild the
+ * index of a segment without one.
+ */
+public class FlightRecorder implements Recorder {
+
+  public final static Logger log = LoggerFactory.getLogger(FlightRecorder.class);
+
+  public final static int MAGIC = 0x4D524C4A; // MRLJ
+  public final static int VERSION = 1;
+  public final static int HEADER = 64;
+  public final static int INDEX_MAGIC = 0x4D524C49; // MRLI
+
+  /**
+   * entries per index block
+   */
+  public final static int BLOCK = 256;
+
+  final static int ENTRY_HEADER = 12;
+
+  static class Segment {
+    final int number;
+    final File file;
+    final MappedByteBuffer buffer;
+    final long start;
+    int position = HEADER;
+    int count = 0;
+    long end;
+
+    // index
+    final List<long[]> blocks = new ArrayList<long[]>();
+    final Map<String, BitSet> services = new HashMap<String, BitSet>();
+
+    Segment(int number, File file, MappedByteBuffer buffer, long start) {
+      this.number = number;
+      this.file = file;
+      this.buffer = buffer;
+      this.start = start;
+    }
+
+    void mark(String service, int block) {
+      if (service == null) {
+        return;
+      }
+      BitSet bits = services.get(service);
+      if (bits == null) {
+        bits = new BitSet();
+        services.put(service, bits);
+      }
+      bits.set(block);
+    }
+  }
+
+  final File dir;
+  final String name;
+  int segmentSize = 64 * 1024 * 1024;
+  int maxSegments = 16;
+
+  // where the journal is written - from the constructor, or defaults
+  File activeDir;
+  String activeName;
+
+  Segment segment;
+  int nextNumber = 0;
+  final Object lock = new Object();
+
+  // wall clock of the journal - epoch micros from nanoTime
+  final long baseMicros = System.currentTimeMillis() * 1000;
+  final long baseNanos = System.nanoTime();
+  long lastTime = 0;
+
+  final ThreadLocal<MsgCodec> codecs = new ThreadLocal<MsgCodec>() {
+    @Override
+    protected MsgCodec initialValue() {
+      return new MsgCodec(false);
+    }
+  };
+
+  // index files and deletes are written off the recording threads
+  final ExecutorService background;
+
+  volatile boolean recording = false;
+
+  // stats
+  long recorded = 0;
+  long dropped = 0;
+  long degraded = 0;
+  long bytes = 0;
+
+  /**
+   * @param dir
+   *          - directory of the journal
+   * @param name
+   *          - prefix of the segment files
+   */
+  public FlightRecorder(File dir, String name) {
+    this.dir = dir;
+    this.name = name;
+    background = Executors.newSingleThreadExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "flight-recorder");
+        t.setDaemon(true);
+        return t;
+      }
+    });
+  }
+
+  /**
+   * a journal in the cfg dir named after the service
+   */
+  public FlightRecorder() {
+    this(null, null);
+  }
+
+  @Override
+  public void start(NameProvider service) throws IOException {
+    synchronized (lock) {
+      if (recording) {
+        return;
+      }
+      File d = (dir != null) ? dir : new File(String.format("%s%s.myrobotlab%sjournal", System.getProperty("user.dir"), File.separator, File.separator));
+      if (!d.exists() && !d.mkdirs()) {
+        throw new IOException(String.format("can not create %s", d));
+      }
+      activeDir = d;
+      activeName = (name != null) ? name : (service != null) ? service.getName() : "journal";
+      nextNumber = lastNumber(d, activeName) + 1;
+      segment = openSegment();
+      recording = true;
+      log.info("recording messages to {}", segment.file);
+    }
+  }
+
+  @Override
+  public void stop() throws IOException {
+    Segment last;
+    synchronized (lock) {
+      if (!recording) {
+        return;
+      }
+      recording = false;
+      last = segment;
+      segment = null;
+    }
+    complete(last);
+    log.info("stopped recording {}", this);
+  }
+
+  /**
+   * @return the highest segment number of a journal, -1 if it has none
+   */
+  static int lastNumber(File dir, String name) {
+    int last = -1;
+    File[] files = dir.listFiles();
+    if (files == null) {
+      return last;
+    }
+    for (File f : files) {
+      int n = segmentNumber(f.getName(), name);
+      last = Math.max(last, n);
+    }
+    return last;
+  }
+
+  static int segmentNumber(String filename, String name) {
+    String prefix = name + "-";
+    String suffix = ".journal";
+    if (!filename.startsWith(prefix) || !filename.endsWith(suffix)) {
+      return -1;
+    }
+    try {
+      return Integer.parseInt(filename.substring(prefix.length(), filename.length() - suffix.length()));
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  static File segmentFile(File dir, String name, int number) {
+    return new File(dir, String.format("%s-%06d.journal", name, number));
+  }
+
+  static File indexFile(File segment) {
+    String path = segment.getPath();
+    return new File(path.substring(0, path.length() - ".journal".length()) + ".index");
+  }
+
+  Segment openSegment() throws IOException {
+    int number = nextNumber++;
+    File file = segmentFile(activeDir, activeName, number);
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    MappedByteBuffer buffer;
+    try {
+      buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+    } finally {
+      // the mapping stays valid
+      raf.close();
+    }
+    long start = now();
+    buffer.putInt(0, MAGIC);
+    buffer.putInt(4, VERSION);
+    buffer.putLong(8, start);
+    buffer.putInt(16, segmentSize);
+
+    // keep maxSegments
+    final int oldest = number - maxSegments + 1;
+    if (oldest > 0) {
+      background.execute(new Runnable() {
+        @Override
+        public void run() {
+          for (int n = oldest - 1; n >= 0; --n) {
+            File old = segmentFile(activeDir, activeName, n);
+            if (!old.exists()) {
+              break;
+            }
+            old.delete();
+            indexFile(old).delete();
+          }
+        }
+      });
+    }
+    return new Segment(number, file, buffer, start);
+  }
+
+  long now() {
+    long t = baseMicros + (System.nanoTime() - baseNanos) / 1000;
+    // strictly increasing - and never 0
+    if (t <= lastTime) {
+      t = lastTime + 1;
+    }
+    lastTime = t;
+    return t;
+  }
+
+  @Override
+  public void write(Message msg) throws IOException {
+    if (!recording) {
+      return;
+    }
+    MsgCodec codec = codecs.get();
+    int length;
+    try {
+      length = codec.encode(msg);
+    } catch (IOException e) {
+      // keep what can be kept - the header and the data as strings
+      length = codec.encode(degrade(msg));
+      synchronized (lock) {
+        ++degraded;
+      }
+    }
+    byte[] frame = codec.getBuffer();
+    int size = ENTRY_HEADER + length - 4;
+
+    Segment s;
+    int p;
+    long time;
+    Segment full = null;
+    synchronized (lock) {
+      s = segment;
+      if (s == null) {
+        return;
+      }
+      if (s.position + size > s.buffer.capacity()) {
+        if (HEADER + size > segmentSize) {
+          ++dropped;
+          return;
+        }
+        full = s;
+        s = segment = openSegment();
+      }
+      p = s.position;
+      s.position += size;
+      time = now();
+      int block = s.count / BLOCK;
+      if (s.count % BLOCK == 0) {
+        s.blocks.add(new long[] { time, p });
+      }
+      s.mark(msg.name, block);
+      s.mark(msg.sender, block);
+      ++s.count;
+      s.end = time;
+      ++recorded;
+      bytes += size;
+    }
+    if (full != null) {
+      complete(full);
+    }
+
+    ByteBuffer b = s.buffer.duplicate();
+    b.position(p + 8);
+    b.put(frame, 0, length);
+    // the time commits the entry
+    s.buffer.putLong(p, time);
+  }
+
+  /**
+   * @return a copy of the message with data which can't be encoded replaced
+   *         by its string
+   */
+  static Message degrade(Message msg) {
+    Message copy = new Message(msg);
+    if (msg.data != null) {
+      copy.data = new Object[msg.data.length];
+      for (int i = 0; i < msg.data.length; ++i) {
+        Object d = msg.data[i];
+        copy.data[i] = (d == null || d instanceof String || d instanceof Number || d instanceof Boolean) ? d : String.valueOf(d);
+      }
+    }
+    return copy;
+  }
+
+  /**
+   * writes the index of a segment which takes no more entries
+   */
+  void complete(final Segment s) {
+    background.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          writeIndex(s);
+        } catch (IOException e) {
+          log.warn("could not write index of {}", s.file, e);
+        }
+      }
+    });
+  }
+
+  static void writeIndex(Segment s) throws IOException {
+    File file = indexFile(s.file);
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+    try {
+      out.writeInt(INDEX_MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(s.count);
+      out.writeInt(s.position);
+      out.writeLong(s.start);
+      out.writeLong(s.end);
+      out.writeInt(s.blocks.size());
+      for (long[] block : s.blocks) {
+        out.writeLong(block[0]);
+        out.writeInt((int) block[1]);
+      }
+      out.writeInt(s.services.size());
+      for (Map.Entry<String, BitSet> e : s.services.entrySet()) {
+        out.writeUTF(e.getKey());
+        long[] bits = e.getValue().toLongArray();
+        out.writeInt(bits.length);
+        for (long l : bits) {
+          out.writeLong(l);
+        }
+      }
+    } finally {
+      out.close();
+    }
+  }
+
+  /**
+   * waits until the index files of completed segments are written
+   */
+  public void sync() {
+    try {
+      background.submit(new Runnable() {
+        @Override
+        public void run() {
+        }
+      }).get();
+    } catch (Exception e) {
+      log.warn("sync interrupted", e);
+    }
+  }
+
+  /**
+   * @param bytes
+   *          - size of the segment files, applies to the next segment
+   */
+  public void setSegmentSize(int bytes) {
+    segmentSize = Math.max(HEADER + 1024, bytes);
+  }
+
+  /**
+   * @param count
+   *          - segments kept, the oldest are deleted
+   */
+  public void setMaxSegments(int count) {
+    maxSegments = Math.max(1, count);
+  }
+
+  public boolean isRecording() {
+    return recording;
+  }
+
+  /**
+   * @return the directory of the journal, null before start
+   */
+  public File getDir() {
+    return activeDir;
+  }
+
+  public String getName() {
+    return activeName;
+  }
+
+  @Override
+  public String toString() {
+    synchronized (lock) {
+      return String.format("%s recorded %d bytes %d degraded %d dropped %d segment %d", activeName, recorded, bytes, degraded, dropped,
+          (segment == null) ? nextNumber - 1 : segment.number);
+    }
+  }
+
+}
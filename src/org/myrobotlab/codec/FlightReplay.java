@@ -0,0 +1,177 @@
+package org.myrobotlab.codec;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.concurrent.locks.LockSupport;
+
+import org.myrobotlab.framework.Message;
+import org.myrobotlab.framework.interfaces.ServiceInterface;
+import org.myrobotlab.logging.LoggerFactory;
+import org.myrobotlab.service.Runtime;
+import org.slf4j.Logger;
+
+/**
+ * FlightReplay - sends the messages of a FlightLog again, with the time
+ * between them as they were recorded, scaled, or as fast as they can be sent.
+ *
+ * By default a message goes into the inbox of the service it was sent to -
+ * services which are not running are skipped.
+ */
+public class FlightReplay implements Runnable {
+
+  public final static Logger log = LoggerFactory.getLogger(FlightReplay.class);
+
+  /**
+   * where replayed messages go
+   */
+  public interface Target {
+    void inject(Message msg);
+  }
+
+  /**
+   * the inboxes of the running services
+   */
+  public final static Target SERVICES = new Target() {
+    @Override
+    public void inject(Message msg) {
+      ServiceInterface si = Runtime.getService(msg.name);
+      if (si == null) {
+        log.debug("{} is not running - skipping {}", msg.name, msg.method);
+        return;
+      }
+      si.in(msg);
+    }
+  };
+
+  final FlightLog flightLog;
+  Target target = SERVICES;
+  double speed = 1.0;
+  long from = 0;
+  long to = Long.MAX_VALUE;
+  Collection<String> services = null;
+
+  transient Thread worker = null;
+  volatile boolean replaying = false;
+
+  long replayed = 0;
+
+  public FlightReplay(FlightLog flightLog) {
+    this.flightLog = flightLog;
+  }
+
+  public void setTarget(Target target) {
+    this.target = target;
+  }
+
+  /**
+   * @param speed
+   *          - 1 as recorded, 2 twice as fast, 0 as fast as possible
+   */
+  public void setSpeed(double speed) {
+    this.speed = Math.max(0, speed);
+  }
+
+  /**
+   * @param from
+   *          - first time, microseconds since the epoch
+   * @param to
+   *          - last time
+   */
+  public void setRange(long from, long to) {
+    this.from = from;
+    this.to = to;
+  }
+
+  /**
+   * @param services
+   *          - only messages these services sent or received, null for all
+   */
+  public void setServices(Collection<String> services) {
+    this.services = services;
+  }
+
+  /**
+   * replays on the calling thread
+   *
+   * @return number of messages replayed
+   */
+  public long replay() throws IOException {
+    replaying = true;
+    return play();
+  }
+
+  long play() throws IOException {
+    replayed = 0;
+    try {
+      FlightLog.Cursor cursor = flightLog.read(from, to, services);
+      long first = -1;
+      long begin = System.nanoTime();
+      FlightLog.Entry entry;
+      while (replaying && (entry = cursor.next()) != null) {
+        if (first < 0) {
+          first = entry.time;
+        }
+        if (speed > 0) {
+          // when it's due - relative to the first message
+          long due = begin + (long) ((entry.time - first) * 1000 / speed);
+          long wait;
+          while (replaying && (wait = due - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(wait);
+          }
+        }
+        target.inject(entry.msg);
+        ++replayed;
+      }
+    } finally {
+      replaying = false;
+    }
+    log.info("replayed {} messages", replayed);
+    return replayed;
+  }
+
+  /**
+   * replays on a thread of its own
+   */
+  public synchronized void start() {
+    if (worker != null) {
+      return;
+    }
+    replaying = true;
+    worker = new Thread(this, "flight-replay");
+    worker.start();
+  }
+
+  /**
+   * stops a replay - the message due is not sent
+   */
+  public synchronized void stop() {
+    replaying = false;
+    if (worker != null) {
+      LockSupport.unpark(worker);
+      worker = null;
+    }
+  }
+
+  @Override
+  public void run() {
+    try {
+      play();
+    } catch (Exception e) {
+      log.error("replay failed", e);
+    }
+    synchronized (this) {
+      if (worker == Thread.currentThread()) {
+        worker = null;
+      }
+    }
+  }
+
+  public boolean isReplaying() {
+    return replaying;
+  }
+
+  public long getReplayed() {
+    return replayed;
+  }
+
+}
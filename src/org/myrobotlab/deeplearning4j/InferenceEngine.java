@@ -0,0 +1,409 @@
+package org.myrobotlab.deeplearning4j;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.datavec.image.loader.NativeImageLoader;
+import org.myrobotlab.logging.LoggerFactory;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.api.preprocessor.DataNormalization;
+import org.nd4j.linalg.factory.Nd4j;
+import org.slf4j.Logger;
+
+/**
+ * InferenceEngine - classifies images from any number of filters and services
+ * with one network. Requests are collected into micro batches - up to
+ * maxBatchSize images, or what arrived maxWait ms after the first one - and
+ * the network runs once per batch.
+ *
+ * Images are converted to the input of the network on a pool of preprocessing
+ * threads, into batch arrays which are allocated once and reused. Two sets of
+ * batch arrays are used in turn, so the next batch is prepared while the
+ * network runs on the current one. The network itself runs on one thread -
+ * the dl4j networks are not thread safe, nd4j parallelizes each batch on its
+ * own.
+ *
+ * Results are delivered asynchronously on the network thread, tagged with the
+ * source and frame index of the request. The request queue is bounded, when it
+ * is full the oldest request is dropped - for video a fresh frame is worth
+ * more than an old one.
+ */
+public class InferenceEngine {
+
+  public final static Logger log = LoggerFactory.getLogger(InferenceEngine.class);
+
+  /**
+   * the network - a MultiLayerNetwork or ComputationGraph
+   */
+  public interface Model {
+    INDArray output(INDArray batch);
+  }
+
+  /**
+   * converts row of the output of the network to labels and probabilities
+   */
+  public interface Decoder {
+    Map<String, Double> decode(INDArray output, int row);
+  }
+
+  public interface Listener {
+    void onResult(InferenceResult result);
+  }
+
+  static class Request {
+    final String source;
+    final long frameIndex;
+    final BufferedImage image;
+    final Listener listener;
+    final long submitted = System.nanoTime();
+    final CompletableFuture<InferenceResult> future = new CompletableFuture<InferenceResult>();
+    // set if the image could not be converted - the row is not decoded
+    Exception error;
+
+    Request(String source, long frameIndex, BufferedImage image, Listener listener) {
+      this.source = source;
+      this.frameIndex = frameIndex;
+      this.image = image;
+      this.listener = listener;
+    }
+  }
+
+  /**
+   * a set of batch arrays - one per batch size, allocated on first use
+   */
+  class Batch {
+    final Map<Integer, INDArray> buffers = new HashMap<Integer, INDArray>();
+    final List<Request> requests = new ArrayList<Request>();
+    INDArray input;
+
+    INDArray getBuffer(int size) {
+      INDArray buffer = buffers.get(size);
+      if (buffer == null) {
+        buffer = Nd4j.create(new int[] { size, channels, height, width });
+        buffers.put(size, buffer);
+      }
+      return buffer;
+    }
+  }
+
+  final String name;
+  final Model model;
+  final Decoder decoder;
+  final DataNormalization normalizer;
+  final int height;
+  final int width;
+  final int channels;
+
+  int maxBatchSize = 8;
+  // ms
+  int maxWait = 10;
+  int maxQueue = 64;
+
+  final LinkedBlockingDeque<Request> queue = new LinkedBlockingDeque<Request>();
+  final BlockingQueue<Batch> free = new ArrayBlockingQueue<Batch>(2);
+  final BlockingQueue<Batch> ready = new ArrayBlockingQueue<Batch>(2);
+
+  final ExecutorService preprocessors;
+  final ThreadLocal<NativeImageLoader> loaders;
+  Thread batcher;
+  Thread runner;
+  volatile boolean running = false;
+
+  // stats
+  final AtomicLong submitted = new AtomicLong();
+  final AtomicLong dropped = new AtomicLong();
+  final AtomicLong failed = new AtomicLong();
+  long classified = 0;
+  long batches = 0;
+  long networkNanos = 0;
+  double totalLatency = 0;
+  double maxLatency = 0;
+
+  public InferenceEngine(String name, Model model, Decoder decoder, DataNormalization normalizer, int height, int width, int channels, int threads) {
+    this.name = name;
+    this.model = model;
+    this.decoder = decoder;
+    this.normalizer = normalizer;
+    this.height = height;
+    this.width = width;
+    this.channels = channels;
+    final String prefix = name;
+    preprocessors = Executors.newFixedThreadPool(Math.max(1, threads), new ThreadFactory() {
+      final AtomicInteger count = new AtomicInteger();
+
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, prefix + "-preprocess-" + count.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+      }
+    });
+    loaders = new ThreadLocal<NativeImageLoader>() {
+      @Override
+      protected NativeImageLoader initialValue() {
+        return new NativeImageLoader(InferenceEngine.this.height, InferenceEngine.this.width, InferenceEngine.this.channels);
+      }
+    };
+    free.add(new Batch());
+    free.add(new Batch());
+  }
+
+  public synchronized void start() {
+    if (running) {
+      return;
+    }
+    running = true;
+    batcher = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        batch();
+      }
+    }, name + "-batcher");
+    batcher.setDaemon(true);
+    runner = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        runNetwork();
+      }
+    }, name + "-network");
+    runner.setDaemon(true);
+    batcher.start();
+    runner.start();
+  }
+
+  public synchronized void stop() {
+    running = false;
+    if (batcher != null) {
+      batcher.interrupt();
+      runner.interrupt();
+    }
+    preprocessors.shutdownNow();
+    for (Request request : queue) {
+      request.future.cancel(false);
+    }
+    queue.clear();
+  }
+
+  /**
+   * queues an image for classification
+   *
+   * @param source
+   *          - who submitted the image, returned with the result
+   * @param frameIndex
+   *          - index of the image, returned with the result
+   * @param image
+   *          - the image - it is read later, so it must not be reused by the
+   *          caller
+   * @param listener
+   *          - called with the result, may be null
+   * @return completes with the result
+   */
+  public CompletableFuture<InferenceResult> submit(String source, long frameIndex, BufferedImage image, Listener listener) {
+    Request request = new Request(source, frameIndex, image, listener);
+    submitted.incrementAndGet();
+    while (queue.size() >= maxQueue) {
+      Request old = queue.pollFirst();
+      if (old != null) {
+        dropped.incrementAndGet();
+        old.future.cancel(false);
+      }
+    }
+    queue.offerLast(request);
+    return request.future;
+  }
+
+  /**
+   * collects requests into batches and converts their images into the batch
+   * array
+   */
+  void batch() {
+    try {
+      while (running) {
+        Request first = queue.takeFirst();
+        Batch batch = free.take();
+        batch.requests.clear();
+        batch.requests.add(first);
+        long deadline = System.nanoTime() + maxWait * 1000000L;
+        while (batch.requests.size() < maxBatchSize) {
+          long remaining = deadline - System.nanoTime();
+          Request next = (remaining > 0) ? queue.pollFirst(remaining, TimeUnit.NANOSECONDS) : queue.pollFirst();
+          if (next == null) {
+            break;
+          }
+          batch.requests.add(next);
+        }
+        preprocess(batch);
+        ready.put(batch);
+      }
+    } catch (InterruptedException e) {
+      log.info("{} batcher stopped", name);
+    }
+  }
+
+  void preprocess(final Batch batch) throws InterruptedException {
+    final int size = batch.requests.size();
+    final INDArray buffer = batch.getBuffer(size);
+    final CountDownLatch latch = new CountDownLatch(size);
+    for (int i = 0; i < size; ++i) {
+      final int row = i;
+      preprocessors.execute(new Runnable() {
+        @Override
+        public void run() {
+          Request request = batch.requests.get(row);
+          try {
+            INDArray image = loaders.get().asMatrix(request.image);
+            buffer.slice(row).assign(image.slice(0));
+          } catch (Exception e) {
+            log.warn("{} could not convert image", name, e);
+            request.error = e;
+            // the buffer is reused - clear the previous image of this row
+            buffer.slice(row).assign(0);
+          } finally {
+            latch.countDown();
+          }
+        }
+      });
+    }
+    latch.await();
+    if (normalizer != null) {
+      normalizer.transform(buffer);
+    }
+    batch.input = buffer;
+  }
+
+  /**
+   * runs the network on prepared batches and delivers the results
+   */
+  void runNetwork() {
+    try {
+      while (running) {
+        Batch batch = ready.take();
+        try {
+          long start = System.nanoTime();
+          INDArray output = model.output(batch.input);
+          long end = System.nanoTime();
+          deliver(batch, output, end - start);
+        } catch (Exception e) {
+          failed.addAndGet(batch.requests.size());
+          log.error("{} network threw", name, e);
+          for (Request request : batch.requests) {
+            request.future.completeExceptionally(e);
+          }
+        } finally {
+          batch.requests.clear();
+          free.put(batch);
+        }
+      }
+    } catch (InterruptedException e) {
+      log.info("{} network thread stopped", name);
+    }
+  }
+
+  void deliver(Batch batch, INDArray output, long nanos) {
+    int size = batch.requests.size();
+    long now = System.nanoTime();
+    int errors = 0;
+    for (Request request : batch.requests) {
+      if (request.error != null) {
+        ++errors;
+      }
+    }
+    failed.addAndGet(errors);
+    synchronized (this) {
+      ++batches;
+      classified += size - errors;
+      networkNanos += nanos;
+    }
+    for (int i = 0; i < size; ++i) {
+      Request request = batch.requests.get(i);
+      if (request.error != null) {
+        request.future.completeExceptionally(request.error);
+        continue;
+      }
+      double latency = (now - request.submitted) / 1000000.0;
+      InferenceResult result = new InferenceResult(request.source, request.frameIndex, decoder.decode(output, i), size, latency);
+      synchronized (this) {
+        totalLatency += latency;
+        maxLatency = Math.max(maxLatency, latency);
+      }
+      request.future.complete(result);
+      if (request.listener != null) {
+        try {
+          request.listener.onResult(result);
+        } catch (Exception e) {
+          log.warn("{} result listener threw", name, e);
+        }
+      }
+    }
+  }
+
+  public void setMaxBatchSize(int maxBatchSize) {
+    this.maxBatchSize = Math.max(1, maxBatchSize);
+  }
+
+  public int getMaxBatchSize() {
+    return maxBatchSize;
+  }
+
+  /**
+   * @param ms
+   *          - how long a batch waits for more requests after the first one
+   */
+  public void setMaxWait(int ms) {
+    maxWait = ms;
+  }
+
+  public int getMaxWait() {
+    return maxWait;
+  }
+
+  public void setMaxQueue(int maxQueue) {
+    this.maxQueue = Math.max(1, maxQueue);
+  }
+
+  public int getQueueSize() {
+    return queue.size();
+  }
+
+  public long getDropped() {
+    return dropped.get();
+  }
+
+  public synchronized long getClassified() {
+    return classified;
+  }
+
+  public synchronized double getAverageLatency() {
+    return (classified == 0) ? 0 : totalLatency / classified;
+  }
+
+  public synchronized void resetStats() {
+    classified = batches = networkNanos = 0;
+    totalLatency = maxLatency = 0;
+    submitted.set(0);
+    dropped.set(0);
+    failed.set(0);
+  }
+
+  @Override
+  public synchronized String toString() {
+    return String.format("%s submitted %d classified %d dropped %d failed %d batches %d avg batch %.1f network %.1f ms/batch latency avg %.1f max %.1f ms", name,
+        submitted.get(), classified, dropped.get(), failed.get(), batches, (batches == 0) ? 0 : (double) classified / batches,
+        (batches == 0) ? 0 : networkNanos / 1000000.0 / batches, getAverageLatency(), maxLatency);
+  }
+
+}
@@ -0,0 +1,42 @@
+package org.myrobotlab.deeplearning4j;
+
+import java.io.Serializable;
+import java.util.Map;
+
+/**
+ * The classification of one image by an InferenceEngine - tagged with the
+ * source and frame index it was submitted with.
+ */
+public class InferenceResult implements Serializable {
+
+  private static final long serialVersionUID = 1L;
+
+  public String source;
+  public long frameIndex;
+  /**
+   * label to probability, highest first
+   */
+  public Map<String, Double> predictions;
+  /**
+   * size of the batch the image was classified in
+   */
+  public int batchSize;
+  /**
+   * ms from submit to result
+   */
+  public double latency;
+
+  public InferenceResult(String source, long frameIndex, Map<String, Double> predictions, int batchSize, double latency) {
+    this.source = source;
+    this.frameIndex = frameIndex;
+    this.predictions = predictions;
+    this.batchSize = batchSize;
+    this.latency = latency;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%s frame %d batch %d %.1f ms %s", source, frameIndex, batchSize, latency, predictions);
+  }
+
+}
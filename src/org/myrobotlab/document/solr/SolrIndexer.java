@@ -0,0 +1,322 @@
+package org.myrobotlab.document.solr;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.SolrInputDocument;
+import org.myrobotlab.logging.LoggerFactory;
+import org.slf4j.Logger;
+
+/**
+ * SolrIndexer - sends documents to solr in the background. Documents are
+ * collected into batches, a batch is sent when it is full or when its first
+ * document waited maxLatency ms. Up to maxInFlight batches are sent at the
+ * same time.
+ * 
+ * At most maxPending documents are buffered or in flight, add blocks when
+ * there are more - so a slow solr slows down the workflow threads adding
+ * documents, which in turn fills and blocks the workflow queue.
+ * 
+ * Failed requests are retried with an exponential backoff, except for
+ * requests solr rejected as bad (4xx). Every added document ends up either
+ * sent or failed.
+ *
+ */
+public class SolrIndexer {
+
+  public final static Logger log = LoggerFactory.getLogger(SolrIndexer.class);
+
+  private final SolrServer solrServer;
+
+  private int batchSize = 100;
+  // ms
+  private long maxLatency = 1000;
+  private int maxInFlight = 4;
+  private int maxPending = 1000;
+  private int maxRetries = 5;
+  // ms - doubled on each retry
+  private long retryDelay = 250;
+  private long maxRetryDelay = 30000;
+
+  // guarded by this
+  private List<SolrInputDocument> batch = new ArrayList<SolrInputDocument>();
+  private int pending = 0;
+  private boolean closed = false;
+
+  private final ThreadPoolExecutor senders;
+  private final ScheduledExecutorService timer;
+
+  private final AtomicLong added = new AtomicLong();
+  private final AtomicLong sent = new AtomicLong();
+  private final AtomicLong failed = new AtomicLong();
+  private final AtomicLong retries = new AtomicLong();
+  private final AtomicLong requests = new AtomicLong();
+
+  public SolrIndexer(SolrServer solrServer) {
+    this.solrServer = solrServer;
+    ThreadFactory factory = new ThreadFactory() {
+      final AtomicInteger count = new AtomicInteger();
+
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "SolrIndexer-" + count.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+      }
+    };
+    senders = new ThreadPoolExecutor(maxInFlight, maxInFlight, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), factory);
+    senders.allowCoreThreadTimeOut(true);
+    timer = Executors.newSingleThreadScheduledExecutor(factory);
+  }
+
+  /**
+   * queues a document - blocks while maxPending documents are buffered or in
+   * flight
+   * 
+   * @param doc
+   *          the document to index
+   * @throws InterruptedException
+   *           if interrupted while waiting for room
+   */
+  public void add(SolrInputDocument doc) throws InterruptedException {
+    List<SolrInputDocument> full = null;
+    synchronized (this) {
+      if (closed) {
+        throw new IllegalStateException("solr indexer is closed");
+      }
+      while (pending >= maxPending) {
+        wait();
+      }
+      ++pending;
+      added.incrementAndGet();
+      if (batch.isEmpty()) {
+        scheduleLatency(batch);
+      }
+      batch.add(doc);
+      if (batch.size() >= batchSize) {
+        full = takeBatch();
+      }
+    }
+    if (full != null) {
+      submit(full);
+    }
+  }
+
+  public void add(Collection<SolrInputDocument> docs) throws InterruptedException {
+    for (SolrInputDocument doc : docs) {
+      add(doc);
+    }
+  }
+
+  /**
+   * sends the current batch when its first document waited maxLatency ms -
+   * unless it was sent before because it got full
+   */
+  private void scheduleLatency(final List<SolrInputDocument> b) {
+    timer.schedule(new Runnable() {
+      @Override
+      public void run() {
+        List<SolrInputDocument> docs = null;
+        synchronized (SolrIndexer.this) {
+          if (batch == b && !b.isEmpty()) {
+            docs = takeBatch();
+          }
+        }
+        if (docs != null) {
+          submit(docs);
+        }
+      }
+    }, maxLatency, TimeUnit.MILLISECONDS);
+  }
+
+  private List<SolrInputDocument> takeBatch() {
+    List<SolrInputDocument> docs = batch;
+    batch = new ArrayList<SolrInputDocument>(batchSize);
+    return docs;
+  }
+
+  private void submit(final List<SolrInputDocument> docs) {
+    senders.execute(new Runnable() {
+      @Override
+      public void run() {
+        send(docs);
+      }
+    });
+  }
+
+  private void send(List<SolrInputDocument> docs) {
+    long delay = retryDelay;
+    try {
+      for (int attempt = 0;; ++attempt) {
+        try {
+          requests.incrementAndGet();
+          solrServer.add(docs);
+          sent.addAndGet(docs.size());
+          return;
+        } catch (Exception e) {
+          if (attempt >= maxRetries || !isRetryable(e)) {
+            failed.addAndGet(docs.size());
+            log.warn("could not send {} documents to solr after {} attempts", docs.size(), attempt + 1, e);
+            return;
+          }
+          retries.incrementAndGet();
+          log.info("sending {} documents to solr failed, retrying in {} ms - {}", docs.size(), delay, e.getMessage());
+          Thread.sleep(delay);
+          delay = Math.min(delay * 2, maxRetryDelay);
+        }
+      }
+    } catch (InterruptedException e) {
+      failed.addAndGet(docs.size());
+      log.warn("interrupted while retrying, dropped {} documents", docs.size());
+    } finally {
+      done(docs.size());
+    }
+  }
+
+  /**
+   * requests solr rejected - a bad document or schema mismatch - fail again
+   */
+  static boolean isRetryable(Exception e) {
+    if (e instanceof SolrException) {
+      int code = ((SolrException) e).code();
+      return code < 400 || code >= 500;
+    }
+    return true;
+  }
+
+  private synchronized void done(int count) {
+    pending -= count;
+    notifyAll();
+  }
+
+  /**
+   * sends the current batch and waits until all documents are sent or failed
+   * 
+   * @throws InterruptedException
+   *           if interrupted while waiting
+   */
+  public void flush() throws InterruptedException {
+    List<SolrInputDocument> docs = null;
+    synchronized (this) {
+      if (!batch.isEmpty()) {
+        docs = takeBatch();
+      }
+    }
+    if (docs != null) {
+      submit(docs);
+    }
+    synchronized (this) {
+      while (pending > 0) {
+        wait();
+      }
+    }
+  }
+
+  /**
+   * flushes and stops the sender threads, the solr server is not shut down
+   */
+  public void close() {
+    try {
+      flush();
+    } catch (InterruptedException e) {
+      log.warn("interrupted while flushing, {} documents not sent", getPending());
+    }
+    synchronized (this) {
+      closed = true;
+    }
+    senders.shutdown();
+    timer.shutdownNow();
+  }
+
+  public SolrServer getSolrServer() {
+    return solrServer;
+  }
+
+  public void setBatchSize(int batchSize) {
+    this.batchSize = Math.max(1, batchSize);
+  }
+
+  public int getBatchSize() {
+    return batchSize;
+  }
+
+  public void setMaxLatency(long ms) {
+    maxLatency = ms;
+  }
+
+  public long getMaxLatency() {
+    return maxLatency;
+  }
+
+  public void setMaxInFlight(int maxInFlight) {
+    this.maxInFlight = Math.max(1, maxInFlight);
+    if (this.maxInFlight > senders.getMaximumPoolSize()) {
+      senders.setMaximumPoolSize(this.maxInFlight);
+      senders.setCorePoolSize(this.maxInFlight);
+    } else {
+      senders.setCorePoolSize(this.maxInFlight);
+      senders.setMaximumPoolSize(this.maxInFlight);
+    }
+  }
+
+  public int getMaxInFlight() {
+    return maxInFlight;
+  }
+
+  public synchronized void setMaxPending(int maxPending) {
+    this.maxPending = Math.max(1, maxPending);
+    notifyAll();
+  }
+
+  public int getMaxPending() {
+    return maxPending;
+  }
+
+  public void setRetries(int maxRetries, long retryDelay, long maxRetryDelay) {
+    this.maxRetries = maxRetries;
+    this.retryDelay = retryDelay;
+    this.maxRetryDelay = maxRetryDelay;
+  }
+
+  public long getAdded() {
+    return added.get();
+  }
+
+  public long getSent() {
+    return sent.get();
+  }
+
+  public long getFailed() {
+    return failed.get();
+  }
+
+  public long getRetries() {
+    return retries.get();
+  }
+
+  public long getRequests() {
+    return requests.get();
+  }
+
+  public synchronized int getPending() {
+    return pending;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("added %d sent %d failed %d pending %d requests %d retries %d", getAdded(), getSent(), getFailed(), getPending(), getRequests(),
+        getRetries());
+  }
+
+}
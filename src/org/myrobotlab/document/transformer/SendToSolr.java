@@ -1,22 +1,25 @@
 package org.myrobotlab.document.transformer;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.apache.solr.client.solrj.SolrServer;
 import org.apache.solr.client.solrj.SolrServerException;
 import org.apache.solr.client.solrj.impl.HttpSolrServer;
 import org.apache.solr.common.SolrInputDocument;
 import org.myrobotlab.document.Document;
+import org.myrobotlab.document.solr.SolrIndexer;
 import org.myrobotlab.logging.LoggerFactory;
 import org.slf4j.Logger;
 
 /**
- * This stage will convert an MRL document to a solr document. It then batches
- * those documents and sends the batches to solr. Upon a flush call any partial
- * batches will be flushed.
+ * This stage will convert an MRL document to a solr document. It then hands
+ * the documents to a SolrIndexer which batches them and sends the batches to
+ * solr in the background. All stages (one per workflow worker) sending to the
+ * same solr url share one indexer. Upon a flush call any partial batches will
+ * be flushed.
  * 
  * @author kwatters
  *
@@ -24,53 +27,105 @@ import org.slf4j.Logger;
 public class SendToSolr extends AbstractStage {
 
   public final static Logger log = LoggerFactory.getLogger(SendToSolr.class);
+
+  // indexers by solr url
+  private static final Map<String, SolrIndexer> indexers = new HashMap<String, SolrIndexer>();
+  // started stages of each indexer - the last one to stop closes it
+  private static final Map<String, Integer> indexerStages = new HashMap<String, Integer>();
+
   private String idField = "id";
   private String fieldsField = "fields";
   private boolean addFieldsField = false;
   private SolrServer solrServer = null;
+  private SolrIndexer indexer = null;
   private String solrUrl = "http://localhost:8983/solr/collection1";
   private boolean issueCommit = true;
 
   private int batchSize = 100;
-  // private LinkedBlockingQueue<SolrInputDocument> batch = new
-  // LinkedBlockingQueue<SolrInputDocument>();
-  // Synchronized list. needed for thread safety.
-  private List<SolrInputDocument> batch = Collections.synchronizedList(new ArrayList<SolrInputDocument>());
+  // ms a partial batch waits before it is sent
+  private int maxLatency = 1000;
+  // concurrent requests to solr
+  private int maxInFlight = 4;
+  // documents buffered before processDocument blocks
+  private int maxPending = 1000;
+  private int maxRetries = 5;
 
   // private String basicAuthUser = null;
   // private String basicAuthPass = null;
 
-  // Batch size +/-
-
   @Override
   public void startStage(StageConfiguration config) {
     solrUrl = config.getProperty("solrUrl", solrUrl);
     issueCommit = config.getBoolParam("issueCommit", new Boolean(issueCommit));
     batchSize = Integer.valueOf(config.getIntegerParam("batchSize", batchSize));
+    maxLatency = Integer.valueOf(config.getIntegerParam("maxLatency", maxLatency));
+    maxInFlight = Integer.valueOf(config.getIntegerParam("maxInFlight", maxInFlight));
+    maxPending = Integer.valueOf(config.getIntegerParam("maxPending", maxPending));
+    maxRetries = Integer.valueOf(config.getIntegerParam("maxRetries", maxRetries));
 
     // basicAuthUser = config.getStringParam("basicAuthUser", basicAuthUser);
     // basicAuthPass = config.getStringParam("basicAuthPass", basicAuthPass);
 
     // Initialize a connection to the solr server on startup.
-    if (solrServer == null) {
-      // TODO: support an embeded solr instance
-      log.info("Connecting to Solr at {}", solrUrl);
-      // set credentials.
-
-      // if (basicAuthUser != null) {
-      // DefaultHttpClient httpClient = new DefaultHttpClient();
-      // httpClient.getCredentialsProvider().setCredentials(AuthScope.ANY, new
-      // UsernamePasswordCredentials(basicAuthUser, basicAuthPass));
-      // create solr server with client.
-      // solrServer = new HttpSolrServer( solrUrl , httpClient);
-      // } else {
-      solrServer = new HttpSolrServer(solrUrl);
-      // }
+    if (indexer == null) {
+      indexer = getIndexer();
+      solrServer = indexer.getSolrServer();
     } else {
       log.info("Solr instance already created.");
     }
   }
 
+  /**
+   * the indexer of the solr url - created by the first stage started, the
+   * other stages share its connection and batches until the last of them stops
+   */
+  private SolrIndexer getIndexer() {
+    synchronized (indexers) {
+      Integer stages = indexerStages.get(solrUrl);
+      indexerStages.put(solrUrl, (stages == null) ? 1 : stages + 1);
+      SolrIndexer shared = indexers.get(solrUrl);
+      if (shared == null) {
+        // TODO: support an embeded solr instance
+        log.info("Connecting to Solr at {}", solrUrl);
+        // set credentials.
+
+        // if (basicAuthUser != null) {
+        // DefaultHttpClient httpClient = new DefaultHttpClient();
+        // httpClient.getCredentialsProvider().setCredentials(AuthScope.ANY, new
+        // UsernamePasswordCredentials(basicAuthUser, basicAuthPass));
+        // create solr server with client.
+        // solrServer = new HttpSolrServer( solrUrl , httpClient);
+        // } else {
+        shared = new SolrIndexer(new HttpSolrServer(solrUrl));
+        // }
+        shared.setBatchSize(batchSize);
+        shared.setMaxLatency(maxLatency);
+        shared.setMaxInFlight(maxInFlight);
+        shared.setMaxPending(maxPending);
+        shared.setRetries(maxRetries, 250, 30000);
+        indexers.put(solrUrl, shared);
+      }
+      return shared;
+    }
+  }
+
+  private void releaseIndexer() {
+    SolrIndexer closing = null;
+    synchronized (indexers) {
+      Integer stages = indexerStages.get(solrUrl);
+      if (stages == null || stages <= 1) {
+        indexerStages.remove(solrUrl);
+        closing = indexers.remove(solrUrl);
+      } else {
+        indexerStages.put(solrUrl, stages - 1);
+      }
+    }
+    if (closing != null) {
+      log.info("Closing solr indexer {}", closing);
+      closing.close();
+    }
+  }
+
   @Override
   public List<Document> processDocument(Document doc) {
     SolrInputDocument solrDoc = new SolrInputDocument();
@@ -90,31 +145,13 @@ public class SendToSolr extends AbstractStage {
     solrDoc.removeField(idField);
     // make sure we add it back
     solrDoc.setField(idField, docId);
-    // I guess we have the full document, we should send it
-    // ArrayList<SolrInputDocument> solrDocs = new
-    // ArrayList<SolrInputDocument>();
-    // solrDocs.add(solrDoc);
     try {
-      synchronized (batch) {
-        batch.add(solrDoc);
-        if (batch.size() >= batchSize) {
-          // System.out.println("Solr Server Flush Batch...");
-          // you are blocking?
-          solrServer.add(batch);
-          log.info("Sending Batch to Solr. Size: {}", batch.size());
-          // System.out.println("Solr batch sent..");
-          // batch.clear();
-          batch = Collections.synchronizedList(new ArrayList<SolrInputDocument>());
-        } else {
-          // System.out.println("Batch Size " + batch.size());
-        }
-      }
-    } catch (SolrServerException e) {
-      // TODO Auto-generated catch block
-      e.printStackTrace();
-    } catch (IOException e) {
-      // TODO Auto-generated catch block
-      e.printStackTrace();
+      // blocks while the indexer is full - this is the back pressure on the
+      // workflow queue
+      indexer.add(solrDoc);
+    } catch (InterruptedException e) {
+      log.warn("Interrupted while sending document {} to solr", docId);
+      Thread.currentThread().interrupt();
     }
 
     // TODO: NO COMMITS HERE!
@@ -125,27 +162,26 @@ public class SendToSolr extends AbstractStage {
 
   @Override
   public void stopStage() {
-    // TODO Auto-generated method stub
     flush();
-
+    if (indexer != null) {
+      releaseIndexer();
+      indexer = null;
+      solrServer = null;
+    }
   }
 
   public synchronized void flush() {
 
-    // Is this where I should flush the last batch?
-    if (solrServer != null && batch.size() > 0) {
-      try {
-        log.info("flushing last batch. Size: {}", batch.size());
-        solrServer.add(batch);
-      } catch (SolrServerException e) {
-        // TODO Auto-generated catch block
-        e.printStackTrace();
-      } catch (IOException e) {
-        // TODO Auto-generated catch block
-        e.printStackTrace();
-      } finally {
-        batch.clear();
-      }
+    if (indexer == null) {
+      return;
+    }
+    try {
+      indexer.flush();
+      log.info("Solr flushed. {}", indexer);
+    } catch (InterruptedException e) {
+      log.warn("Interrupted while flushing solr. {}", indexer);
+      Thread.currentThread().interrupt();
+      return;
     }
 
     // TODO: should we commit on flush?
@@ -164,4 +200,4 @@ public class SendToSolr extends AbstractStage {
     // super.flush();
 
   }
-}
\ No newline at end of file
+}
@@ -132,6 +132,17 @@ public class Workflow {
 
   }
 
+  // flush and stop the worker threads and their stages
+  public void stop() {
+    flush();
+    for (WorkflowWorker worker : workers) {
+      if (worker != null) {
+        worker.shutdown();
+      }
+    }
+    log.info("Workflow {} stopped.", name);
+  }
+
   public String getName() {
     return name;
   }
@@ -31,10 +31,19 @@ public class WorkflowServer {
 
   public void addWorkflow(WorkflowConfiguration config) throws ClassNotFoundException {
     Workflow w = new Workflow(config);
+    // a restarted workflow replaces the old one - its stages are stopped
+    removeWorkflow(w.getName());
     w.initialize();
     workflowMap.put(w.getName(), w);
   }
 
+  public void removeWorkflow(String workflow) {
+    Workflow w = workflowMap.remove(workflow);
+    if (w != null) {
+      w.stop();
+    }
+  }
+
   public void processMessage(WorkflowMessage msg) throws InterruptedException {
     // Handle the message here!
     // Multi thread this here we should be putting the message on a queue
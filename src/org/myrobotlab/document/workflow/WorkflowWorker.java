@@ -20,6 +20,7 @@ import org.slf4j.Logger;
 public class WorkflowWorker extends Thread {
   public final static Logger log = LoggerFactory.getLogger(WorkflowWorker.class);
   boolean processing = false;
+  private volatile boolean running = true;
   private ArrayList<AbstractStage> stages;
 
   private final LinkedBlockingQueue<Document> queue;
@@ -50,7 +51,6 @@ public class WorkflowWorker extends Thread {
 
   public void run() {
     Document doc;
-    boolean running = true;
     while (running) {
       try {
         doc = queue.take();
@@ -65,6 +65,9 @@ public class WorkflowWorker extends Thread {
           processing = false;
         }
       } catch (InterruptedException e) {
+        if (!running) {
+          break;
+        }
         // TODO: handle these properly
         log.warn("Workflow Worker Died! {}", e.getMessage());
         e.printStackTrace();
@@ -109,4 +112,22 @@ public class WorkflowWorker extends Thread {
     }
   }
 
+  /**
+   * stops taking documents and stops the stages, so they can release their
+   * resources
+   */
+  public void shutdown() {
+    running = false;
+    interrupt();
+    try {
+      join();
+    } catch (InterruptedException e) {
+      log.warn("Interrupted while waiting for {} to stop", getName());
+      Thread.currentThread().interrupt();
+    }
+    for (AbstractStage s : stages) {
+      s.stopStage();
+    }
+  }
+
 }
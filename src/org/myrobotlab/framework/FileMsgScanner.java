@@ -1,8 +1,32 @@
 package org.myrobotlab.framework;
 
+import java.io.BufferedInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import org.myrobotlab.codec.CodecUtils;
 import org.myrobotlab.framework.interfaces.MessageSender;
@@ -10,60 +34,320 @@ import org.myrobotlab.logging.LoggerFactory;
 import org.myrobotlab.logging.Logging;
 import org.slf4j.Logger;
 
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+/**
+ * FileMsgScanner - sends messages dropped as files into the msgs directory.
+ * Files named {id}*.json hold one message, or several - one after the other,
+ * e.g. as json lines. They are deleted once sent.
+ *
+ * The directory is watched, so a file is picked up as soon as it appears -
+ * where the file system can't be watched it is listed every pollMs instead.
+ * Files are streamed, not read into a string. When several files arrive at
+ * once they are parsed in parallel, and their messages sent in the order of
+ * the files, so a service gets them in the order they were dropped.
+ *
+ * A file should be written under another name, e.g. .part, and renamed when
+ * complete. A file which can't be parsed yet is retried for SETTLE_MS after
+ * it was last modified, then renamed to .error. Files after it wait for it, so
+ * the order holds across files.
+ */
 public class FileMsgScanner extends Thread {
 
   public final static Logger log = LoggerFactory.getLogger(FileMsgScanner.class);
 
+  final static Charset UTF8 = Charset.forName("UTF-8");
+
   static String MSGS_DIR = "msgs";
-  transient static MessageSender sender = null;
 
-  public boolean scanning = false;
+  /**
+   * how long a file which does not parse may still be being written
+   */
+  final static long SETTLE_MS = 2000;
+
+  final static long RETRY_MS = 100;
+
+  public volatile boolean scanning = false;
 
-  static String id;
   static FileMsgScanner fileMsgScanner = null;
 
+  final File dir;
+  final String id;
+  transient MessageSender sender;
+
+  /**
+   * period of listing the directory when it can't be watched
+   */
+  long pollMs = 500;
+
+  transient WatchService watcher = null;
+  transient ExecutorService parsers = null;
+
+  // the first file which did not parse yet and the files after it
+  final Set<File> pending = new LinkedHashSet<File>();
+
+  // stats
+  long files = 0;
+  long msgs = 0;
+  long bytes = 0;
+  long errors = 0;
+  long totalLatency = 0;
+  long maxLatency = 0;
+  long start = System.currentTimeMillis();
+
   public FileMsgScanner(String id) {
+    this(new File(MSGS_DIR), id, null);
+  }
+
+  public FileMsgScanner(File dir, String id, MessageSender sender) {
     super(String.format("%s.%s", FileMsgScanner.class.getSimpleName().toLowerCase(), id));
-    FileMsgScanner.id = id;
+    this.dir = dir;
+    this.id = id;
+    this.sender = sender;
   }
 
+  @Override
   public void run() {
-    File folder = new File(MSGS_DIR);
-    folder.mkdirs();
-    log.info("enabling file msgs in {}", MSGS_DIR);
-    
+    dir.mkdirs();
+    log.info("enabling file msgs in {}", dir);
     scanning = true;
+
+    try {
+      watcher = FileSystems.getDefault().newWatchService();
+      dir.toPath().register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+    } catch (Exception e) {
+      log.warn("can not watch {} - listing it every {} ms", dir, pollMs);
+      close();
+    }
+
     try {
+      // files dropped before we started
+      ingest(scan());
       while (scanning) {
-        if (!scanForMsgs()) {
-          sleep(500);
+        if (watcher == null) {
+          sleep(pollMs);
+          ingest(scan());
+        } else {
+          ingest(await());
         }
       }
+    } catch (InterruptedException e) {
+      // stopped
     } catch (Exception e) {
+      log.error("file msgs stopped", e);
+    } finally {
+      close();
+      if (parsers != null) {
+        parsers.shutdownNow();
+      }
+      scanning = false;
     }
   }
 
-  public boolean scanForMsgs() {
-    File folder = new File(MSGS_DIR);
-    File[] listOfFiles = folder.listFiles();
-    boolean filesExist = false;
-    for (int i = 0; i < listOfFiles.length; i++) {
-      File json = listOfFiles[i];
-      if (json.isFile() && json.getName().endsWith(".json") && json.getName().startsWith(id)) {
-        // FIXME - more accurate is to split file from .json and compare for exact match
-        try {
-          String data = new String(toByteArray(json));
-          log.info("%s - %s", json, data);
-          Message msg = CodecUtils.fromJson(data, Message.class);
-          json.delete();
-          sender.send(msg);
-          filesExist = true;
-        } catch (Exception e) {
-          log.error("msgs/{} threw", json);
+  /**
+   * @return the files which changed, waiting for the first
+   */
+  List<File> await() throws InterruptedException {
+    Set<File> ready = new LinkedHashSet<File>();
+    WatchKey key = (pending.isEmpty()) ? watcher.take() : watcher.poll(RETRY_MS, TimeUnit.MILLISECONDS);
+    boolean rescan = false;
+    // take all that is there - a large drop is one batch
+    while (key != null) {
+      for (WatchEvent<?> event : key.pollEvents()) {
+        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+          rescan = true;
+          continue;
+        }
+        File file = new File(dir, ((Path) event.context()).toString());
+        if (matches(file.getName())) {
+          ready.add(file);
+        }
+      }
+      if (!key.reset()) {
+        log.warn("{} can no longer be watched - listing it every {} ms", dir, pollMs);
+        close();
+        rescan = true;
+        break;
+      }
+      key = watcher.poll();
+    }
+    // the files held back go first
+    Set<File> files = new LinkedHashSet<File>(pending);
+    pending.clear();
+    if (rescan) {
+      files.addAll(scan());
+    }
+    files.addAll(ready);
+    return new ArrayList<File>(files);
+  }
+
+  boolean matches(String name) {
+    // FIXME - more accurate is to split file from .json and compare for exact
+    // match
+    return name.endsWith(".json") && name.startsWith(id);
+  }
+
+  /**
+   * @return the files held back, then the message files in the directory by
+   *         name
+   */
+  List<File> scan() {
+    Set<File> ready = new LinkedHashSet<File>(pending);
+    pending.clear();
+    File[] list = dir.listFiles();
+    if (list != null) {
+      Arrays.sort(list);
+      for (File f : list) {
+        if (f.isFile() && matches(f.getName())) {
+          ready.add(f);
         }
       }
     }
-    return filesExist;
+    return new ArrayList<File>(ready);
+  }
+
+  /**
+   * parses the files - in parallel if there are several - and sends their
+   * messages in the order of the files. A file which is not written yet holds
+   * back the files after it until the next pass.
+   */
+  void ingest(List<File> ready) throws InterruptedException {
+    if (ready.isEmpty()) {
+      return;
+    }
+    List<Future<List<Message>>> parsed = new ArrayList<Future<List<Message>>>(ready.size());
+    if (ready.size() > 1) {
+      for (final File file : ready) {
+        parsed.add(getParsers().submit(new Callable<List<Message>>() {
+          @Override
+          public List<Message> call() throws Exception {
+            return parse(file);
+          }
+        }));
+      }
+    }
+    for (int i = 0; i < ready.size(); ++i) {
+      File file = ready.get(i);
+      long modified = file.lastModified();
+      long length = file.length();
+      List<Message> list;
+      try {
+        list = (parsed.isEmpty()) ? parse(file) : parsed.get(i).get();
+      } catch (ExecutionException e) {
+        if (failed(file, modified, e.getCause())) {
+          hold(ready, i, parsed);
+          return;
+        }
+        continue;
+      } catch (InterruptedException e) {
+        throw e;
+      } catch (Exception e) {
+        if (failed(file, modified, e)) {
+          hold(ready, i, parsed);
+          return;
+        }
+        continue;
+      }
+      if (list.isEmpty() && System.currentTimeMillis() - modified < SETTLE_MS) {
+        // just created - not written yet
+        hold(ready, i, parsed);
+        return;
+      }
+      file.delete();
+      send(list);
+      long latency = Math.max(0, System.currentTimeMillis() - modified);
+      synchronized (this) {
+        ++files;
+        msgs += list.size();
+        bytes += length;
+        totalLatency += latency;
+        maxLatency = Math.max(maxLatency, latency);
+      }
+    }
+  }
+
+  /**
+   * keeps the files from index on for the next pass
+   */
+  void hold(List<File> ready, int index, List<Future<List<Message>>> parsed) {
+    for (int i = index; i < ready.size(); ++i) {
+      pending.add(ready.get(i));
+      if (i > index && !parsed.isEmpty()) {
+        parsed.get(i).cancel(true);
+      }
+    }
+  }
+
+  /**
+   * @return true if the file may still be being written and is retried
+   */
+  boolean failed(File file, long modified, Throwable e) {
+    if (!file.exists()) {
+      // already sent - an event for a file which was deleted
+      return false;
+    }
+    if (System.currentTimeMillis() - modified < SETTLE_MS) {
+      return true;
+    }
+    log.error("{} threw", file, e);
+    file.renameTo(new File(file.getPath() + ".error"));
+    synchronized (this) {
+      ++errors;
+    }
+    return false;
+  }
+
+  void send(List<Message> list) {
+    if (sender == null) {
+      log.warn("no sender for {} file msgs", list.size());
+      return;
+    }
+    for (Message msg : list) {
+      sender.send(msg);
+    }
+  }
+
+  synchronized ExecutorService getParsers() {
+    if (parsers == null) {
+      parsers = Executors.newFixedThreadPool(Math.max(1, java.lang.Runtime.getRuntime().availableProcessors()), new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, String.format("%s.parser", getName()));
+          t.setDaemon(true);
+          return t;
+        }
+      });
+    }
+    return parsers;
+  }
+
+  void close() {
+    if (watcher != null) {
+      try {
+        watcher.close();
+      } catch (IOException e) {
+      }
+      watcher = null;
+    }
+  }
+
+  /**
+   * @return the messages of a file - one json message, or several one after
+   *         the other
+   */
+  static public List<Message> parse(File file) throws IOException {
+    List<Message> list = new ArrayList<Message>();
+    JsonReader reader = new JsonReader(new InputStreamReader(new BufferedInputStream(new FileInputStream(file)), UTF8));
+    try {
+      reader.setLenient(true);
+      while (reader.peek() != JsonToken.END_DOCUMENT) {
+        list.add(CodecUtils.fromJson(reader, Message.class));
+      }
+    } finally {
+      reader.close();
+    }
+    return list;
   }
 
   /**
@@ -94,11 +378,49 @@ public class FileMsgScanner extends Thread {
     return null;
   }
 
+  public boolean isWatching() {
+    return watcher != null;
+  }
+
+  public synchronized void resetStats() {
+    files = msgs = bytes = errors = totalLatency = maxLatency = 0;
+    start = System.currentTimeMillis();
+  }
+
+  /**
+   * @return files and messages per second, and the latency from a file being
+   *         written to its messages being sent
+   */
+  public synchronized Map<String, Double> getStats() {
+    double seconds = Math.max(1, System.currentTimeMillis() - start) / 1000.0;
+    Map<String, Double> stats = new HashMap<String, Double>();
+    stats.put("filesPerSecond", files / seconds);
+    stats.put("msgsPerSecond", msgs / seconds);
+    stats.put("bytesPerSecond", bytes / seconds);
+    stats.put("errors", (double) errors);
+    stats.put("averageLatencyMs", (files == 0) ? 0 : (double) totalLatency / files);
+    stats.put("maxLatencyMs", (double) maxLatency);
+    return stats;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return String.format("%s %s files %d msgs %d bytes %d errors %d latency avg %d ms max %d ms", dir, (watcher != null) ? "watched" : "polled", files, msgs, bytes,
+        errors, (files == 0) ? 0 : totalLatency / files, maxLatency);
+  }
+
   static public void enableFileMsgs(Boolean b, String id) {
+    enableFileMsgs(b, id, null);
+  }
+
+  static public void enableFileMsgs(Boolean b, String id, MessageSender sender) {
     if (b) {
-      fileMsgScanner = new FileMsgScanner(id);
+      if (fileMsgScanner != null) {
+        return;
+      }
+      fileMsgScanner = new FileMsgScanner(new File(MSGS_DIR), id, sender);
       fileMsgScanner.start();
-    } else {
+    } else if (fileMsgScanner != null) {
       fileMsgScanner.scanning = false;
       fileMsgScanner.interrupt();
       fileMsgScanner = null;
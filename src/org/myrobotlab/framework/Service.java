@@ -55,11 +55,13 @@ import java.util.TreeSet;
 
 import org.myrobotlab.cache.LRUMethodCache;
 import org.myrobotlab.codec.CodecUtils;
+import org.myrobotlab.codec.FlightRecorder;
 import org.myrobotlab.codec.Recorder;
 import org.myrobotlab.framework.interfaces.Attachable;
 import org.myrobotlab.framework.interfaces.Invoker;
 import org.myrobotlab.framework.interfaces.NameProvider;
 import org.myrobotlab.framework.interfaces.ServiceInterface;
+import org.myrobotlab.framework.repo.ServiceData;
 import org.myrobotlab.io.FileIO;
 import org.myrobotlab.logging.LoggerFactory;
 import org.myrobotlab.logging.Logging;
@@ -200,6 +202,12 @@ public abstract class Service extends MessageService implements Runnable, Serial
    */
   protected boolean isVirtual = false;
 
+  /**
+   * ms - broadcastState publishes at most once per interval, bursts are
+   * coalesced into one publish at the end of it
+   */
+  transient int statePublishInterval = 50;
+
   /**
    * Recursively builds Peer type information - which is not instance specific.
    * Which means it will not prefix any of the branches with a instance name
@@ -836,6 +844,11 @@ public abstract class Service extends MessageService implements Runnable, Serial
       log.debug(String.format("adding addListener from %s.%s to %s.%s", this.getName(), listener.topicMethod, listener.callbackName, listener.callbackMethod));
       outbox.notifyList.put(listener.topicMethod.toString(), notifyList);
     }
+    if (StatePublisher.PATCH_TOPIC.equals(topicMethod)) {
+      // a new subscriber starts with a full snapshot
+      StatePublisher.getInstance().resync(getName(), callbackName);
+      broadcastState();
+    }
   }
 
   public void addTask(int intervalMs, String method) {
@@ -923,8 +936,24 @@ public abstract class Service extends MessageService implements Runnable, Serial
   }
 
   // new state functions begin --------------------------
+  /**
+   * publishes the state of the service - rate limited, see StatePublisher
+   */
   public void broadcastState() {
-    invoke("publishState");
+    StatePublisher.getInstance().request(this);
+  }
+
+  /**
+   * @param ms
+   *          - min time between two publishes of the state, 0 publishes every
+   *          broadcastState
+   */
+  public void setStatePublishInterval(int ms) {
+    statePublishInterval = ms;
+  }
+
+  public int getStatePublishInterval() {
+    return statePublishInterval;
   }
 
   public String clearLastError() {
@@ -1045,6 +1074,12 @@ public abstract class Service extends MessageService implements Runnable, Serial
 
   // FIXME - use the method cache
   public Set<String> getMessageSet() {
+    // build time method table - avoids reflecting over the class
+    ServiceData sd = ServiceData.getLocalInstance();
+    Set<String> indexed = (sd == null) ? null : sd.getMethodNames(getClass().getName());
+    if (indexed != null) {
+      return indexed;
+    }
     Set<String> ret = new TreeSet<String>();
     Method[] methods = getMethods();
     log.info(String.format("getMessageSet loading %d non-sub-routable methods", methods.length));
@@ -1079,6 +1114,11 @@ public abstract class Service extends MessageService implements Runnable, Serial
   }
 
   public Map<String, String> getInterfaceSet() {
+    ServiceData sd = ServiceData.getLocalInstance();
+    Map<String, String> indexed = (sd == null) ? null : sd.getInterfaceNames(getClass().getName());
+    if (indexed != null) {
+      return indexed;
+    }
     Map<String, String> ret = new TreeMap<String, String>();
     Class<?>[] interfaces = this.getClass().getInterfaces();
     for (int i = 0; i < interfaces.length; ++i) {
@@ -1537,6 +1577,30 @@ public abstract class Service extends MessageService implements Runnable, Serial
     return this;
   }
 
+  /**
+   * publishing point for the changes of the state - subscribers get a full
+   * snapshot first, then only what changed
+   * 
+   * @param patch
+   *          the changes
+   * @return the changes
+   */
+  public StatePatch publishStatePatch(StatePatch patch) {
+    return patch;
+  }
+
+  /**
+   * the next patch the subscriber gets is a full snapshot - for a subscriber
+   * which lost its copy of the state or missed a version
+   * 
+   * @param callbackName
+   *          name of the subscriber
+   */
+  public void requestFullState(String callbackName) {
+    StatePublisher.getInstance().resync(getName(), callbackName);
+    broadcastState();
+  }
+
   /**
    * FIXME - implement This SHOULD NOT be called by the framework - since - the
    * framework does not know about dna mutation - or customizations which have
@@ -1591,6 +1655,8 @@ public abstract class Service extends MessageService implements Runnable, Serial
 
     purgeTasks();
 
+    StatePublisher.getInstance().remove(getName());
+
     Runtime.release(getName());
   }
 
@@ -1927,6 +1993,25 @@ public abstract class Service extends MessageService implements Runnable, Serial
   public void stopHeartbeat() {
   }
 
+  /**
+   * records the messages all services send into a FlightRecorder journal -
+   * read it back with FlightLog, replay it with FlightReplay
+   */
+  public void startMsgRecording() {
+    startMsgRecording(new FlightRecorder());
+  }
+
+  public void startMsgRecording(Recorder r) {
+    stopMsgRecording();
+    try {
+      r.start(this);
+      recorder = r;
+      log.info("started recording");
+    } catch (Exception e) {
+      Logging.logError(e);
+    }
+  }
+
   public void stopMsgRecording() {
     log.info("stopped recording");
     if (recorder != null) {
@@ -1935,6 +2020,7 @@ public abstract class Service extends MessageService implements Runnable, Serial
       } catch (Exception e) {
         Logging.logError(e);
       }
+      recorder = null;
     }
   }
 
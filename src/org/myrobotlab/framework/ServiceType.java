@@ -208,6 +208,18 @@ public class ServiceType implements Serializable, Comparator<ServiceType> {
   public void setCloudService(boolean b) {
     isCloudService = b;
   }
+
+  public boolean isCloudService() {
+    return isCloudService;
+  }
+
+  public String getSponsor() {
+    return sponsor;
+  }
+
+  public String getTodo() {
+    return todo;
+  }
   
 
 }
@@ -0,0 +1,218 @@
+package org.myrobotlab.framework;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.myrobotlab.codec.CodecUtils;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+/**
+ * StatePatch - the change of the state of a service since the last state a
+ * subscriber of publishStatePatch was sent, as a list of JSON patch (RFC 6902)
+ * operations - add, remove and replace - with JSON pointers as paths. A full
+ * snapshot is a single replace of the root, path "".
+ *
+ * Values are plain maps, lists, strings, numbers and booleans so a patch
+ * travels through any codec.
+ */
+public class StatePatch implements Serializable {
+
+  private static final long serialVersionUID = 1L;
+
+  public static class Op implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    public String op;
+    public String path;
+    public Object value;
+
+    public Op(String op, String path, Object value) {
+      this.op = op;
+      this.path = path;
+      this.value = value;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%s %s %s", op, path, value);
+    }
+  }
+
+  /**
+   * name of the service
+   */
+  public String name;
+
+  /**
+   * counts the changes of the state - a patch applies to version - 1, a
+   * subscriber which missed a version asks for a full snapshot with
+   * requestFullState
+   */
+  public long version;
+
+  /**
+   * true if this is a full snapshot
+   */
+  public boolean full;
+
+  public List<Op> ops = new ArrayList<Op>();
+
+  public StatePatch(String name, long version, boolean full) {
+    this.name = name;
+    this.version = version;
+    this.full = full;
+  }
+
+  /**
+   * @return a full snapshot of state
+   */
+  public static StatePatch full(String name, long version, JsonElement state) {
+    StatePatch patch = new StatePatch(name, version, true);
+    patch.ops.add(new Op("replace", "", toValue(state)));
+    return patch;
+  }
+
+  /**
+   * @return the operations which turn from into to
+   */
+  public static StatePatch diff(String name, long version, JsonElement from, JsonElement to) {
+    StatePatch patch = new StatePatch(name, version, false);
+    diff(from, to, "", patch.ops);
+    return patch;
+  }
+
+  static void diff(JsonElement from, JsonElement to, String path, List<Op> ops) {
+    if (from.isJsonObject() && to.isJsonObject()) {
+      JsonObject a = from.getAsJsonObject();
+      JsonObject b = to.getAsJsonObject();
+      for (Map.Entry<String, JsonElement> e : a.entrySet()) {
+        if (!b.has(e.getKey())) {
+          ops.add(new Op("remove", path + "/" + escape(e.getKey()), null));
+        }
+      }
+      for (Map.Entry<String, JsonElement> e : b.entrySet()) {
+        JsonElement old = a.get(e.getKey());
+        if (old == null) {
+          ops.add(new Op("add", path + "/" + escape(e.getKey()), toValue(e.getValue())));
+        } else {
+          diff(old, e.getValue(), path + "/" + escape(e.getKey()), ops);
+        }
+      }
+    } else if (from.isJsonArray() && to.isJsonArray() && from.getAsJsonArray().size() == to.getAsJsonArray().size()) {
+      // same length - element by element, otherwise the whole array
+      JsonArray a = from.getAsJsonArray();
+      JsonArray b = to.getAsJsonArray();
+      for (int i = 0; i < a.size(); ++i) {
+        diff(a.get(i), b.get(i), path + "/" + i, ops);
+      }
+    } else if (!from.equals(to)) {
+      ops.add(new Op("replace", path, toValue(to)));
+    }
+  }
+
+  /**
+   * JSON pointer escaping of a key
+   */
+  static String escape(String key) {
+    if (key.indexOf('~') < 0 && key.indexOf('/') < 0) {
+      return key;
+    }
+    return key.replace("~", "~0").replace("/", "~1");
+  }
+
+  static String unescape(String token) {
+    if (token.indexOf('~') < 0) {
+      return token;
+    }
+    return token.replace("~1", "/").replace("~0", "~");
+  }
+
+  /**
+   * @return the json tree as maps, lists and primitives
+   */
+  public static Object toValue(JsonElement e) {
+    if (e == null || e.isJsonNull()) {
+      return null;
+    }
+    if (e.isJsonObject()) {
+      Map<String, Object> map = new LinkedHashMap<String, Object>();
+      for (Map.Entry<String, JsonElement> entry : e.getAsJsonObject().entrySet()) {
+        map.put(entry.getKey(), toValue(entry.getValue()));
+      }
+      return map;
+    }
+    if (e.isJsonArray()) {
+      JsonArray array = e.getAsJsonArray();
+      List<Object> list = new ArrayList<Object>(array.size());
+      for (Iterator<JsonElement> it = array.iterator(); it.hasNext();) {
+        list.add(toValue(it.next()));
+      }
+      return list;
+    }
+    JsonPrimitive p = e.getAsJsonPrimitive();
+    if (p.isBoolean()) {
+      return p.getAsBoolean();
+    }
+    if (p.isNumber()) {
+      return p.getAsNumber();
+    }
+    return p.getAsString();
+  }
+
+  /**
+   * applies the patch to state - for subscribers which keep the state as a
+   * json tree
+   *
+   * @return the patched state, state itself unless the root was replaced
+   */
+  public JsonElement apply(JsonElement state) {
+    for (Op op : ops) {
+      JsonElement value = (op.value == null) ? JsonNull.INSTANCE : CodecUtils.toJsonTree(op.value);
+      if (op.path.length() == 0) {
+        state = value;
+        continue;
+      }
+      String[] tokens = op.path.substring(1).split("/", -1);
+      JsonElement parent = state;
+      for (int i = 0; i < tokens.length - 1; ++i) {
+        parent = child(parent, unescape(tokens[i]));
+      }
+      String last = unescape(tokens[tokens.length - 1]);
+      if (parent.isJsonArray()) {
+        JsonArray array = parent.getAsJsonArray();
+        array.set(Integer.parseInt(last), value);
+      } else if ("remove".equals(op.op)) {
+        parent.getAsJsonObject().remove(last);
+      } else {
+        parent.getAsJsonObject().add(last, value);
+      }
+    }
+    return state;
+  }
+
+  static JsonElement child(JsonElement parent, String token) {
+    if (parent.isJsonArray()) {
+      return parent.getAsJsonArray().get(Integer.parseInt(token));
+    }
+    return parent.getAsJsonObject().get(token);
+  }
+
+  public boolean isEmpty() {
+    return ops.isEmpty();
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%s version %d%s %s", name, version, (full) ? " full" : "", ops);
+  }
+
+}
@@ -0,0 +1,297 @@
+package org.myrobotlab.framework;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.myrobotlab.codec.CodecUtils;
+import org.myrobotlab.logging.LoggerFactory;
+import org.slf4j.Logger;
+
+import com.google.gson.JsonElement;
+
+/**
+ * StatePublisher - publishes the state of services for broadcastState.
+ *
+ * Bursts are coalesced - a service publishes its state at most once every
+ * statePublishInterval ms. The first broadcastState after a quiet period
+ * publishes right away, the ones which follow within the interval are
+ * collapsed into a single publish at the end of it, so the last state always
+ * goes out.
+ *
+ * publishState subscribers get the whole service as before. Subscribers of
+ * publishStatePatch get a StatePatch - only what changed since the state they
+ * were sent last, or a full snapshot when they subscribe. The service is
+ * serialized to a json tree once per publish, and subscribers which were sent
+ * the same state share the same patch.
+ */
+public class StatePublisher {
+
+  public final static Logger log = LoggerFactory.getLogger(StatePublisher.class);
+
+  public final static String PATCH_TOPIC = "publishStatePatch";
+
+  static class Entry {
+    final Service service;
+    long last = 0;
+    boolean pending = false;
+    // changes of the state - unchanged publishes keep the version
+    long version = 0;
+    // the state published last
+    JsonElement state = null;
+    // one publish at a time - in order
+    final Object publishing = new Object();
+    // subscriber name.method to the last state it was sent
+    final Map<String, JsonElement> snapshots = new HashMap<String, JsonElement>();
+
+    Entry(Service service) {
+      this.service = service;
+    }
+  }
+
+  private static StatePublisher instance;
+
+  final Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+  final ScheduledExecutorService scheduler;
+
+  /**
+   * count bytes of patches and full states - costs an extra encoding of both
+   */
+  boolean measure = false;
+
+  // stats
+  long requests = 0;
+  long published = 0;
+  long patches = 0;
+  long fulls = 0;
+  long patchBytes = 0;
+  long stateBytes = 0;
+  long start = System.currentTimeMillis();
+
+  public static synchronized StatePublisher getInstance() {
+    if (instance == null) {
+      instance = new StatePublisher();
+    }
+    return instance;
+  }
+
+  StatePublisher() {
+    scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "state-publisher");
+        t.setDaemon(true);
+        return t;
+      }
+    });
+  }
+
+  Entry getEntry(Service service) {
+    Entry entry = entries.get(service.getName());
+    if (entry == null || entry.service != service) {
+      entry = new Entry(service);
+      entries.put(service.getName(), entry);
+    }
+    return entry;
+  }
+
+  /**
+   * publishes the state of a service now, or at the end of its interval
+   */
+  public void request(Service service) {
+    final Entry entry = getEntry(service);
+    long now = System.currentTimeMillis();
+    synchronized (this) {
+      ++requests;
+    }
+    synchronized (entry) {
+      if (entry.pending) {
+        return;
+      }
+      long wait = entry.last + service.getStatePublishInterval() - now;
+      if (wait > 0) {
+        entry.pending = true;
+        scheduler.schedule(new Runnable() {
+          @Override
+          public void run() {
+            synchronized (entry) {
+              entry.pending = false;
+              entry.last = System.currentTimeMillis();
+            }
+            publish(entry);
+          }
+        }, wait, TimeUnit.MILLISECONDS);
+        return;
+      }
+      entry.last = now;
+    }
+    publish(entry);
+  }
+
+  void publish(Entry entry) {
+    synchronized (entry.publishing) {
+      publishState(entry);
+    }
+  }
+
+  void publishState(Entry entry) {
+    Service service = entry.service;
+    try {
+      service.invoke("publishState");
+      synchronized (this) {
+        ++published;
+      }
+
+      ArrayList<MRLListener> subscribers = service.getOutbox().notifyList.get(PATCH_TOPIC);
+      if (subscribers == null || subscribers.isEmpty()) {
+        synchronized (entry) {
+          entry.snapshots.clear();
+          entry.state = null;
+        }
+        return;
+      }
+      List<MRLListener> listeners = new ArrayList<MRLListener>(subscribers);
+      JsonElement state = CodecUtils.toJsonTree(service);
+
+      synchronized (entry) {
+        // subscribers were all sent the last state, so patches stay
+        // gapless when an unchanged state does not count as a version
+        if (entry.state == null || !entry.state.equals(state)) {
+          ++entry.version;
+          entry.state = state;
+        }
+        long version = entry.version;
+        // one patch per state the subscribers were sent last
+        Map<JsonElement, StatePatch> diffs = new IdentityHashMap<JsonElement, StatePatch>();
+        StatePatch full = null;
+        Set<String> current = new HashSet<String>();
+        for (MRLListener listener : listeners) {
+          String key = listener.callbackName + "." + listener.callbackMethod;
+          current.add(key);
+          JsonElement base = entry.snapshots.get(key);
+          StatePatch patch;
+          if (base == null) {
+            if (full == null) {
+              full = StatePatch.full(service.getName(), version, state);
+            }
+            patch = full;
+          } else {
+            patch = diffs.get(base);
+            if (patch == null) {
+              patch = StatePatch.diff(service.getName(), version, base, state);
+              diffs.put(base, patch);
+            }
+          }
+          entry.snapshots.put(key, state);
+          if (!patch.isEmpty()) {
+            service.send(listener.callbackName, listener.callbackMethod, patch);
+          }
+          count(patch, state);
+        }
+        // forget unsubscribed
+        for (Iterator<String> it = entry.snapshots.keySet().iterator(); it.hasNext();) {
+          if (!current.contains(it.next())) {
+            it.remove();
+          }
+        }
+      }
+    } catch (Exception e) {
+      log.error("{} publishing state threw", service.getName(), e);
+    }
+  }
+
+  /**
+   * counts a patch, and the full state the subscriber would have been sent
+   * instead
+   */
+  void count(StatePatch patch, JsonElement state) {
+    long bytes = 0;
+    long full = 0;
+    if (measure) {
+      bytes = (patch.isEmpty()) ? 0 : CodecUtils.toJsonTree(patch.ops).toString().length();
+      full = state.toString().length();
+    }
+    synchronized (this) {
+      if (patch.full) {
+        ++fulls;
+      } else if (!patch.isEmpty()) {
+        ++patches;
+      }
+      patchBytes += bytes;
+      stateBytes += full;
+    }
+  }
+
+  /**
+   * the next state sent to the subscriber will be a full snapshot - for a
+   * subscriber which lost the state, e.g. a browser which reconnected
+   *
+   * @param name
+   *          - name of the service to resync, null for all
+   * @param callbackName
+   *          - the subscriber
+   */
+  public void resync(String name, String callbackName) {
+    for (Entry entry : entries.values()) {
+      if (name != null && !name.equals(entry.service.getName())) {
+        continue;
+      }
+      synchronized (entry) {
+        for (Iterator<String> it = entry.snapshots.keySet().iterator(); it.hasNext();) {
+          if (it.next().startsWith(callbackName + ".")) {
+            it.remove();
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * forgets a released service
+   */
+  public void remove(String name) {
+    entries.remove(name);
+  }
+
+  public void setMeasure(boolean b) {
+    measure = b;
+  }
+
+  public synchronized void resetStats() {
+    requests = published = patches = fulls = patchBytes = stateBytes = 0;
+    start = System.currentTimeMillis();
+  }
+
+  /**
+   * @return requests, publishes, patches and bytes per second since the stats
+   *         were reset
+   */
+  public synchronized Map<String, Double> getStats() {
+    double seconds = Math.max(1, System.currentTimeMillis() - start) / 1000.0;
+    Map<String, Double> stats = new HashMap<String, Double>();
+    stats.put("requestsPerSecond", requests / seconds);
+    stats.put("publishedPerSecond", published / seconds);
+    stats.put("patchesPerSecond", patches / seconds);
+    stats.put("fullPerSecond", fulls / seconds);
+    stats.put("patchBytesPerSecond", patchBytes / seconds);
+    stats.put("stateBytesPerSecond", stateBytes / seconds);
+    return stats;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return String.format("state requests %d published %d (%.0f%% coalesced) patches %d full %d patch bytes %d vs %d full state bytes", requests, published,
+        (requests == 0) ? 0 : 100.0 * (requests - published) / requests, patches, fulls, patchBytes, stateBytes);
+  }
+
+}
@@ -15,6 +15,7 @@ import java.util.Set;
 import java.util.TreeMap;
 
 import org.myrobotlab.codec.CodecUtils;
+import org.myrobotlab.framework.Platform;
 import org.myrobotlab.framework.ServiceType;
 import org.myrobotlab.io.FileIO;
 import org.myrobotlab.logging.LoggerFactory;
@@ -37,6 +38,12 @@ import org.slf4j.Logger;
  * When MyRobotLab runs for the first time, it will extract this file into the
  * .myrobotlab directory.
  * 
+ * The build also creates serviceData.idx - a binary ServiceIndex of the same
+ * data with the method and interface tables of all services. When it exists
+ * and matches the running version it is used instead of the json. Types are
+ * then decoded from it on demand, so startup skips json parsing and
+ * reflection.
+ * 
  * @author GroG
  *
  */
@@ -60,9 +67,31 @@ public class ServiceData implements Serializable {
 
   static private String serviceDataCacheFileName = String.format("%s%sserviceData.json", FileIO.getCfgDir(), File.separator);
 
+  static private String serviceIndexCacheFileName = String.format("%s%sserviceData.idx", FileIO.getCfgDir(), File.separator);
+
+  /**
+   * binary index - if set, service types are decoded from it on demand until
+   * all of them are needed
+   */
+  transient ServiceIndex index = null;
+
+  /**
+   * true when serviceTypes and categoryTypes contain everything
+   */
+  transient volatile boolean loaded = true;
+
   static public ServiceData getLocalInstance() {
     if (localInstance == null) {
 
+      // step 0 - the binary index, in the .myrobotlab directory or
+      // extracted from the jar
+      long start = System.currentTimeMillis();
+      localInstance = loadIndex();
+      if (localInstance != null) {
+        log.info("loaded service index in {} ms", System.currentTimeMillis() - start);
+        return localInstance;
+      }
+
       // step 1 - try local file in the .myrobotlab directory
       // step 2 - extract the file from the jar
       // WE CAN NOT GENERATE THIS FILE DURING RUNTIME !!!
@@ -119,11 +148,87 @@ public class ServiceData implements Serializable {
       } catch (Exception e) {
         log.error("retrieving service data failed", e);
       }
-
+      log.info("loaded service data in {} ms", System.currentTimeMillis() - start);
     }
     return localInstance;
   }
 
+  static private ServiceData loadIndex() {
+    File indexFile = new File(serviceIndexCacheFileName);
+    try {
+      String version = Platform.getLocalInstance().getVersion();
+      String indexVersion = (indexFile.exists()) ? ServiceIndex.readVersion(indexFile) : null;
+      if (indexVersion == null || (version != null && !version.equals(indexVersion))) {
+        // missing or left by another version - the jar has the index of this
+        // version
+        log.info("service index is for version {} not {} - extracting it", indexVersion, version);
+        indexFile.getParentFile().mkdirs();
+        FileIO.extract("/resource/framework/serviceData.idx", indexFile.getAbsolutePath());
+        if (!indexFile.exists()) {
+          return null;
+        }
+        indexVersion = ServiceIndex.readVersion(indexFile);
+        if (version != null && !version.equals(indexVersion)) {
+          log.info("bundled service index is for version {} not {} - not using it", indexVersion, version);
+          return null;
+        }
+      }
+      ServiceIndex index = ServiceIndex.load(indexFile);
+      ServiceData sd = new ServiceData();
+      sd.index = index;
+      sd.loaded = false;
+      return sd;
+    } catch (Exception e) {
+      log.info("no service index {} - {}", indexFile, e.getMessage());
+    }
+    return null;
+  }
+
+  /**
+   * decodes all types and categories from the index - for the queries which
+   * need all of them
+   */
+  synchronized void loadAll() {
+    if (loaded) {
+      return;
+    }
+    for (String name : index.getServiceTypeNames()) {
+      if (!serviceTypes.containsKey(name)) {
+        serviceTypes.put(name, index.getServiceType(name));
+      }
+    }
+    for (String name : index.getCategoryNames()) {
+      categoryTypes.put(name, index.getCategory(name));
+    }
+    loaded = true;
+  }
+
+  /**
+   * @param fullTypeName
+   *          - full class name of a service
+   * @return the public method names of the service from the index, or null if
+   *         they have to be found with reflection
+   */
+  public Set<String> getMethodNames(String fullTypeName) {
+    if (index == null) {
+      return null;
+    }
+    return index.getMethodNames(fullTypeName);
+  }
+
+  /**
+   * @param fullTypeName
+   *          - full class name of a service
+   * @return the interfaces of the service from the index, or null if they have
+   *         to be found with reflection
+   */
+  public Map<String, String> getInterfaceNames(String fullTypeName) {
+    if (index == null) {
+      return null;
+    }
+    return index.getInterfaceNames(fullTypeName);
+  }
+
   /**
    * This method has to check the environment first in order to tell if its
    * Develop-Time or Run-Time because the method of generating a service list is
@@ -191,14 +296,19 @@ public class ServiceData implements Serializable {
   }
 
   public void add(ServiceType serviceType) {
+    loadAll();
     serviceTypes.put(serviceType.getName(), serviceType);
   }
 
   public boolean containsServiceType(String fullServiceName) {
+    if (!loaded) {
+      return index.containsServiceType(fullServiceName);
+    }
     return serviceTypes.containsKey(fullServiceName);
   }
 
   public List<ServiceType> getAvailableServiceTypes() {
+    loadAll();
     ArrayList<ServiceType> ret = new ArrayList<ServiceType>();
     for (Map.Entry<String, ServiceType> o : serviceTypes.entrySet()) {
       if (o.getValue().isAvailable()) {
@@ -212,6 +322,9 @@ public class ServiceData implements Serializable {
     if (filter == null) {
       return null;
     }
+    if (!loaded) {
+      return index.getCategory(filter);
+    }
     if (categoryTypes.containsKey(filter)) {
       return categoryTypes.get(filter);
     }
@@ -219,6 +332,9 @@ public class ServiceData implements Serializable {
   }
 
   public String[] getCategoryNames() {
+    if (!loaded) {
+      return index.getCategoryNames();
+    }
     String[] cat = new String[categoryTypes.size()];
 
     int i = 0;
@@ -230,6 +346,7 @@ public class ServiceData implements Serializable {
   }
 
   public HashSet<String> getServiceTypeDependencyKeys() {
+    loadAll();
     HashSet<String> uniqueKeys = new HashSet<String>();
     for (Map.Entry<String, ServiceType> o : serviceTypes.entrySet()) {
       ServiceType st = o.getValue();
@@ -249,6 +366,17 @@ public class ServiceData implements Serializable {
 
   public String[] getServiceTypeNames(String categoryFilterName) {
 
+    if (!loaded) {
+      if (categoryFilterName == null || categoryFilterName.length() == 0 || categoryFilterName.equals("all")) {
+        return index.getServiceTypeNames();
+      }
+      Category cat = index.getCategory(categoryFilterName);
+      if (cat == null) {
+        return new String[] {};
+      }
+      return cat.serviceTypes.toArray(new String[cat.serviceTypes.size()]);
+    }
+
     if (categoryFilterName == null || categoryFilterName.length() == 0 || categoryFilterName.equals("all")) {
       String[] ret = serviceTypes.keySet().toArray(new String[0]);
       Arrays.sort(ret);
@@ -265,6 +393,18 @@ public class ServiceData implements Serializable {
   }
 
   public ServiceType getServiceType(String fullTypeName) {
+    if (!loaded) {
+      synchronized (this) {
+        ServiceType st = serviceTypes.get(fullTypeName);
+        if (st == null) {
+          st = index.getServiceType(fullTypeName);
+          if (st != null) {
+            serviceTypes.put(fullTypeName, st);
+          }
+        }
+        return st;
+      }
+    }
     return serviceTypes.get(fullTypeName);
   }
 
@@ -273,6 +413,7 @@ public class ServiceData implements Serializable {
   }
   
   public ArrayList<ServiceType> getServiceTypes(boolean showUnavailable) {
+    loadAll();
     ArrayList<ServiceType> ret = new ArrayList<ServiceType>();
     for (Map.Entry<String, ServiceType> o : serviceTypes.entrySet()) {
       if (!o.getValue().isAvailable() && !showUnavailable)
@@ -295,6 +436,7 @@ public class ServiceData implements Serializable {
 
   public boolean save(String filename) {
     try {
+      loadAll();
 
       FileOutputStream fos = new FileOutputStream(filename);
       String json = CodecUtils.toJson(this);
@@ -319,6 +461,7 @@ public class ServiceData implements Serializable {
   // FIXME - TODO - FIND
 
   public ArrayList<Category> getCategories() {
+    loadAll();
     ArrayList<Category> categories = new ArrayList<Category>();
     for (Category category : categoryTypes.values()) {
       categories.add(category);
@@ -329,12 +472,12 @@ public class ServiceData implements Serializable {
   static public Set<String> getDependencyKeys(String fullTypeName) {
     HashSet<String> keys = new HashSet<String>();
     ServiceData sd = getLocalInstance();
-    if (!sd.serviceTypes.containsKey(fullTypeName)) {
-      log.error("{} not defined in service types");
+    ServiceType st = sd.getServiceType(fullTypeName);
+    if (st == null) {
+      log.error("{} not defined in service types", fullTypeName);
       return keys;
     }
 
-    ServiceType st = localInstance.serviceTypes.get(fullTypeName);
     return st.getDependencies();
   }
 
@@ -348,6 +491,12 @@ public class ServiceData implements Serializable {
       if (args.length > 0) {
         path = args[0];
       }
+      // the build passes the release version - there is no manifest to read
+      // it from in the classes directory
+      String version = Platform.getLocalInstance().getVersion();
+      if (args.length > 1) {
+        version = args[1];
+      }
 
       String filename = FileIO.gluePaths(path, "serviceData.json");
       log.info("generating {}", filename);
@@ -362,6 +511,20 @@ public class ServiceData implements Serializable {
       fos.close();
       // THIS IS FOR ANT BUILD - DO NOT CHANGE !!! - END ----
 
+      // binary index of the same data with the method tables
+      ServiceIndex.write(sd, version, new File(FileIO.gluePaths(path, "serviceData.idx")));
+
+      // cold start comparison - json parse vs index
+      long start = System.nanoTime();
+      CodecUtils.fromJson(FileIO.toString(filename), ServiceData.class);
+      long json = System.nanoTime() - start;
+      start = System.nanoTime();
+      ServiceIndex index = ServiceIndex.load(new File(FileIO.gluePaths(path, "serviceData.idx")));
+      index.getServiceTypeNames();
+      index.getCategoryNames();
+      long idx = System.nanoTime() - start;
+      log.info("serviceData.json {} us - serviceData.idx {} us", json / 1000, idx / 1000);
+
     } catch (Exception e) {
       Logging.logError(e);
     }
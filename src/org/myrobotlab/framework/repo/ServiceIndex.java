@@ -0,0 +1,450 @@
+package org.myrobotlab.framework.repo;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.myrobotlab.framework.ServiceReservation;
+import org.myrobotlab.framework.ServiceType;
+import org.myrobotlab.logging.LoggerFactory;
+import org.slf4j.Logger;
+
+/**
+ * ServiceIndex - binary, memory mapped form of the service meta data. It is
+ * generated at build time next to serviceData.json and contains the service
+ * types, categories, peers, dependencies and the method and interface tables
+ * of every service class.
+ *
+ * Reading it needs no json parsing or reflection. Only the string offsets are
+ * read when the index is opened - everything else is decoded on demand. The
+ * version is at the start, so it can be checked without opening the index.
+ *
+ * Layout (all big endian) :
+ *
+ * <pre>
+ * int magic, int format, version (short length, utf-8 bytes)
+ * int string count, strings (short length, utf-8 bytes)
+ * int type count, int[] type offsets, int category count, int[] category offsets
+ * type records, category records
+ * </pre>
+ *
+ * Types and categories are sorted by name, so they can be binary searched.
+ *
+ */
+public class ServiceIndex {
+
+  transient public final static Logger log = LoggerFactory.getLogger(ServiceIndex.class);
+
+  static final int MAGIC = 0x4d524c49; // "MRLI"
+  static final int FORMAT = 3;
+
+  static final int FLAG_AVAILABLE = 1;
+  static final int FLAG_CLOUD = 2;
+  // the class could not be loaded at build time - no method tables
+  static final int FLAG_UNINDEXED = 4;
+
+  static final Charset UTF8 = Charset.forName("UTF-8");
+
+  final ByteBuffer buffer;
+  final int[] stringOffsets;
+  final String[] strings;
+  final String version;
+  final int[] typeOffsets;
+  final int[] categoryOffsets;
+  // decoded names for binary search
+  final String[] typeNames;
+  final String[] categoryNames;
+
+  ServiceIndex(ByteBuffer buffer) throws IOException {
+    this.buffer = buffer;
+    if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != FORMAT) {
+      throw new IOException("not a service index");
+    }
+    int pos = 8;
+    byte[] versionBytes = new byte[buffer.getShort(pos) & 0xffff];
+    ByteBuffer b = buffer.duplicate();
+    b.position(pos + 2);
+    b.get(versionBytes);
+    version = new String(versionBytes, UTF8);
+    pos += 2 + versionBytes.length;
+    int count = buffer.getInt(pos);
+    pos += 4;
+    stringOffsets = new int[count];
+    strings = new String[count];
+    for (int i = 0; i < count; ++i) {
+      stringOffsets[i] = pos;
+      pos += 2 + (buffer.getShort(pos) & 0xffff);
+    }
+    typeOffsets = readTable(pos);
+    pos += 4 + typeOffsets.length * 4;
+    categoryOffsets = readTable(pos);
+
+    typeNames = new String[typeOffsets.length];
+    for (int i = 0; i < typeOffsets.length; ++i) {
+      typeNames[i] = getString(buffer.getInt(typeOffsets[i]));
+    }
+    categoryNames = new String[categoryOffsets.length];
+    for (int i = 0; i < categoryOffsets.length; ++i) {
+      categoryNames[i] = getString(buffer.getInt(categoryOffsets[i]));
+    }
+  }
+
+  /**
+   * memory maps an index file
+   *
+   * @param file
+   *          - the index
+   * @return the index
+   * @throws IOException
+   *           - if it can not be read or is not an index
+   */
+  static public ServiceIndex load(File file) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      return new ServiceIndex(raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length()));
+    } finally {
+      // the mapping stays valid after the channel is closed
+      raf.close();
+    }
+  }
+
+  /**
+   * reads only the version of an index file - without mapping it, so a stale
+   * file can still be replaced
+   *
+   * @param file
+   *          - the index
+   * @return the version, or null if it is not an index of this format
+   * @throws IOException
+   *           - if it can not be read
+   */
+  static public String readVersion(File file) throws IOException {
+    DataInputStream in = new DataInputStream(new FileInputStream(file));
+    try {
+      if (in.readInt() != MAGIC || in.readInt() != FORMAT) {
+        return null;
+      }
+      byte[] bytes = new byte[in.readUnsignedShort()];
+      in.readFully(bytes);
+      return new String(bytes, UTF8);
+    } finally {
+      in.close();
+    }
+  }
+
+  int[] readTable(int pos) {
+    int[] table = new int[buffer.getInt(pos)];
+    for (int i = 0; i < table.length; ++i) {
+      table[i] = buffer.getInt(pos + 4 + i * 4);
+    }
+    return table;
+  }
+
+  synchronized String getString(int id) {
+    if (id < 0) {
+      return null;
+    }
+    String s = strings[id];
+    if (s == null) {
+      int pos = stringOffsets[id];
+      byte[] bytes = new byte[buffer.getShort(pos) & 0xffff];
+      ByteBuffer b = buffer.duplicate();
+      b.position(pos + 2);
+      b.get(bytes);
+      s = new String(bytes, UTF8);
+      strings[id] = s;
+    }
+    return s;
+  }
+
+  String[] getStrings(int pos) {
+    String[] ret = new String[buffer.getInt(pos)];
+    for (int i = 0; i < ret.length; ++i) {
+      ret[i] = getString(buffer.getInt(pos + 4 + i * 4));
+    }
+    return ret;
+  }
+
+  /**
+   * @return mrl version the index was built for
+   */
+  public String getVersion() {
+    return version;
+  }
+
+  public int size() {
+    return typeNames.length;
+  }
+
+  public boolean containsServiceType(String fullTypeName) {
+    return Arrays.binarySearch(typeNames, fullTypeName) >= 0;
+  }
+
+  public String[] getServiceTypeNames() {
+    return typeNames.clone();
+  }
+
+  public String[] getCategoryNames() {
+    return categoryNames.clone();
+  }
+
+  public Category getCategory(String name) {
+    int i = Arrays.binarySearch(categoryNames, name);
+    if (i < 0) {
+      return null;
+    }
+    int pos = categoryOffsets[i];
+    Category category = new Category();
+    category.name = categoryNames[i];
+    category.description = getString(buffer.getInt(pos + 4));
+    category.serviceTypes.addAll(Arrays.asList(getStrings(pos + 8)));
+    return category;
+  }
+
+  /**
+   * @param fullTypeName
+   *          - full class name of the service
+   * @return names of the public methods, or null if the type or its methods
+   *         are not indexed
+   */
+  public Set<String> getMethodNames(String fullTypeName) {
+    int pos = skipToMethods(fullTypeName);
+    if (pos < 0) {
+      return null;
+    }
+    return new TreeSet<String>(Arrays.asList(getStrings(pos)));
+  }
+
+  /**
+   * @param fullTypeName
+   *          - full class name of the service
+   * @return names of the directly implemented interfaces, or null if the type
+   *         is not indexed
+   */
+  public Map<String, String> getInterfaceNames(String fullTypeName) {
+    int pos = skipToMethods(fullTypeName);
+    if (pos < 0) {
+      return null;
+    }
+    pos += 4 + buffer.getInt(pos) * 4;
+    Map<String, String> ret = new TreeMap<String, String>();
+    for (String name : getStrings(pos)) {
+      ret.put(name, name);
+    }
+    return ret;
+  }
+
+  /**
+   * decodes a full ServiceType
+   *
+   * @param fullTypeName
+   *          - full class name of the service
+   * @return the service type or null
+   */
+  public ServiceType getServiceType(String fullTypeName) {
+    int i = Arrays.binarySearch(typeNames, fullTypeName);
+    if (i < 0) {
+      return null;
+    }
+    int pos = typeOffsets[i] + 4;
+    ServiceType st = new ServiceType(fullTypeName);
+    int flags = buffer.getInt(pos);
+    st.setAvailable((flags & FLAG_AVAILABLE) != 0);
+    st.setCloudService((flags & FLAG_CLOUD) != 0);
+    st.addDescription(getString(buffer.getInt(pos + 4)));
+    st.setLink(getString(buffer.getInt(pos + 8)));
+    st.addLicense(getString(buffer.getInt(pos + 12)));
+    st.setSponsor(getString(buffer.getInt(pos + 16)));
+    st.addTodo(getString(buffer.getInt(pos + 20)));
+    pos += 24;
+    String[] categories = getStrings(pos);
+    st.addCategory(categories);
+    pos += 4 + categories.length * 4;
+    String[] dependencies = getStrings(pos);
+    st.dependencies.addAll(Arrays.asList(dependencies));
+    pos += 4 + dependencies.length * 4;
+    int peers = buffer.getInt(pos);
+    pos += 4;
+    for (int p = 0; p < peers; ++p) {
+      String key = getString(buffer.getInt(pos));
+      ServiceReservation sr = new ServiceReservation(key, getString(buffer.getInt(pos + 4)), getString(buffer.getInt(pos + 8)), getString(buffer.getInt(pos + 12)));
+      sr.isRoot = buffer.getInt(pos + 16) != 0;
+      st.peers.put(key, sr);
+      pos += 20;
+    }
+    return st;
+  }
+
+  int skipToMethods(String fullTypeName) {
+    int i = Arrays.binarySearch(typeNames, fullTypeName);
+    if (i < 0 || (buffer.getInt(typeOffsets[i] + 4) & FLAG_UNINDEXED) != 0) {
+      return -1;
+    }
+    int pos = typeOffsets[i] + 28;
+    pos += 4 + buffer.getInt(pos) * 4; // categories
+    pos += 4 + buffer.getInt(pos) * 4; // dependencies
+    pos += 4 + buffer.getInt(pos) * 20; // peers
+    return pos;
+  }
+
+  /**
+   * builds the index from service data - at build time, since the method
+   * tables are created with reflection
+   *
+   * @param sd
+   *          - the service data
+   * @param version
+   *          - the mrl version
+   * @param file
+   *          - the index file to write
+   * @throws IOException
+   *           - if it can not be written
+   */
+  static public void write(ServiceData sd, String version, File file) throws IOException {
+    Writer writer = new Writer();
+    byte[] data = writer.write(sd, version);
+    FileOutputStream fos = new FileOutputStream(file);
+    try {
+      fos.write(data);
+    } finally {
+      fos.close();
+    }
+    log.info("wrote service index {} - {} types {} bytes", file, sd.serviceTypes.size(), data.length);
+  }
+
+  static class Writer {
+    final Map<String, Integer> ids = new HashMap<String, Integer>();
+    final List<String> strings = new ArrayList<String>();
+
+    int id(String s) {
+      if (s == null) {
+        return -1;
+      }
+      Integer id = ids.get(s);
+      if (id == null) {
+        id = strings.size();
+        strings.add(s);
+        ids.put(s, id);
+      }
+      return id;
+    }
+
+    void writeString(DataOutputStream out, String s) throws IOException {
+      byte[] bytes = s.getBytes(UTF8);
+      if (bytes.length > 0xffff) {
+        bytes = Arrays.copyOf(bytes, 0xffff);
+      }
+      out.writeShort(bytes.length);
+      out.write(bytes);
+    }
+
+    void writeStrings(DataOutputStream out, String[] values) throws IOException {
+      out.writeInt(values.length);
+      for (String value : values) {
+        out.writeInt(id(value));
+      }
+    }
+
+    byte[] write(ServiceData sd, String version) throws IOException {
+      // records first - offsets are fixed up once the string table
+      // size is known
+      ByteArrayOutputStream records = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(records);
+
+      int[] typeOffsets = new int[sd.serviceTypes.size()];
+      int i = 0;
+      for (ServiceType st : sd.serviceTypes.values()) {
+        // method and interface tables
+        Set<String> methods = new TreeSet<String>();
+        Set<String> interfaces = new TreeSet<String>();
+        int flags = (st.isAvailable() ? FLAG_AVAILABLE : 0) | (st.isCloudService() ? FLAG_CLOUD : 0);
+        try {
+          Class<?> clazz = Class.forName(st.getName());
+          for (Method m : clazz.getMethods()) {
+            methods.add(m.getName());
+          }
+          for (Class<?> interfaze : clazz.getInterfaces()) {
+            interfaces.add(interfaze.getName());
+          }
+        } catch (Throwable e) {
+          // an empty table would hide every method - readers reflect instead
+          log.warn("no method table for {} - {}", st.getName(), e.getMessage());
+          methods.clear();
+          interfaces.clear();
+          flags |= FLAG_UNINDEXED;
+        }
+
+        typeOffsets[i++] = out.size();
+        out.writeInt(id(st.getName()));
+        out.writeInt(flags);
+        out.writeInt(id(st.getDescription()));
+        out.writeInt(id(st.getLink()));
+        out.writeInt(id(st.getLicense()));
+        out.writeInt(id(st.getSponsor()));
+        out.writeInt(id(st.getTodo()));
+        writeStrings(out, st.categories.toArray(new String[0]));
+        writeStrings(out, st.dependencies.toArray(new String[0]));
+        out.writeInt(st.peers.size());
+        for (ServiceReservation sr : st.peers.values()) {
+          out.writeInt(id(sr.key));
+          out.writeInt(id(sr.actualName));
+          out.writeInt(id(sr.fullTypeName));
+          out.writeInt(id(sr.comment));
+          out.writeInt(sr.isRoot ? 1 : 0);
+        }
+        writeStrings(out, methods.toArray(new String[0]));
+        writeStrings(out, interfaces.toArray(new String[0]));
+      }
+
+      int[] categoryOffsets = new int[sd.categoryTypes.size()];
+      i = 0;
+      for (Category category : sd.categoryTypes.values()) {
+        categoryOffsets[i++] = out.size();
+        out.writeInt(id(category.name));
+        out.writeInt(id(category.description));
+        writeStrings(out, category.serviceTypes.toArray(new String[0]));
+      }
+      out.flush();
+
+      ByteArrayOutputStream bos = new ByteArrayOutputStream();
+      DataOutputStream header = new DataOutputStream(bos);
+      header.writeInt(MAGIC);
+      header.writeInt(FORMAT);
+      writeString(header, (version == null) ? "" : version);
+      header.writeInt(strings.size());
+      for (String s : strings) {
+        writeString(header, s);
+      }
+      int base = header.size() + 4 + typeOffsets.length * 4 + 4 + categoryOffsets.length * 4;
+      header.writeInt(typeOffsets.length);
+      for (int offset : typeOffsets) {
+        header.writeInt(base + offset);
+      }
+      header.writeInt(categoryOffsets.length);
+      for (int offset : categoryOffsets) {
+        header.writeInt(base + offset);
+      }
+      header.write(records.toByteArray());
+      header.flush();
+      return bos.toByteArray();
+    }
+  }
+
+}
@@ -7,14 +7,13 @@ public class Chromosome {
   String genome;
   double fitness;
   ArrayList<Object> decodedGenome;
+  static final Random rand = new Random();
   Chromosome(int genomeSize) {
-    Random rand = new Random();
-    genome = new String();
+    char[] bits = new char[genomeSize];
     for (int i=0; i<genomeSize; i++){
-      int randomValue = rand.nextInt(2);
-      String catValue = ((Integer)randomValue).toString();
-      genome += catValue;
+      bits[i] = (rand.nextInt(2) == 1) ? '1' : '0';
     }
+    genome = new String(bits);
   }
   public Chromosome(Chromosome chromosome) {
     // TODO Auto-generated constructor stub
@@ -62,7 +61,6 @@ public class Chromosome {
   }
   public Chromosome recombine(Chromosome c, double recombinationRate) {
     // TODO Auto-generated method stub
-    Random rand = new Random();
     Chromosome chromosome = new Chromosome();
     if (rand.nextDouble() < recombinationRate){
       int randomNumber = rand.nextInt(genome.length()-1);
@@ -75,17 +73,15 @@ public class Chromosome {
   }
   public Chromosome mutate(double mutationRate) {
     // TODO Auto-generated method stub
-    Random rand = new Random();
-    String newGenome = new String();
-    for (int i = 0; i < genome.length(); i++){
+    char[] newGenome = genome.toCharArray();
+    for (int i = 0; i < newGenome.length; i++){
       if (rand.nextDouble() < mutationRate){
-        if(genome.charAt(i) == '1') newGenome += "0";
-        else newGenome += "1";
+        if(newGenome[i] == '1') newGenome[i] = '0';
+        else newGenome[i] = '1';
       }
-      else newGenome += genome.substring(i,i+1);
     }
     Chromosome ret = new Chromosome();
-    ret.setGenome(newGenome);
+    ret.setGenome(new String(newGenome));
     return ret;
   }
 }
\ No newline at end of file
@@ -1,6 +1,7 @@
 package org.myrobotlab.genetic;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Random;
 
 /**
@@ -27,6 +28,9 @@ import java.util.Random;
  *
  * The parameters are very empiric. They will influence how quick and precise the chromosome will evolve toward your best solution. 
  * 
+ * When the fitness is expensive and can be computed for each chromosome on its own, ParallelGeneticAlgorithm runs the same
+ * evolution on all cores.
+ * 
  * @author Christian/Calamity
  *
  */
@@ -40,6 +44,8 @@ public class GeneticAlgorithm {
   ArrayList<Chromosome> chromosomes = new ArrayList<Chromosome>();
   int geneSize = 8;
   private Genetic geneticClass;
+  private Random rand = new Random();
+  private double[] wheel = new double[0];
 
   public GeneticAlgorithm(Genetic geneticClass, int populationSize, int genomeSize, int geneSize, double recombinationRate, double mutationRate) {
     // TODO Auto-generated constructor stub
@@ -73,15 +79,20 @@ public class GeneticAlgorithm {
     for (int i = 0; i < generation; i++) {
       geneticClass.decode(chromosomes);
       geneticClass.calcFitness(chromosomes);
-      Double totalFitness=0.0;
-      for (Chromosome chromosome : chromosomes) {
+      double totalFitness=0.0;
+      if (wheel.length != chromosomes.size()) {
+        wheel = new double[chromosomes.size()];
+      }
+      for (int j = 0; j < chromosomes.size(); j++) {
+        Chromosome chromosome = chromosomes.get(j);
         totalFitness += chromosome.fitness;
+        wheel[j] = totalFitness;
         if (bestFit != null && chromosome.fitness > bestFit.fitness) {
           bestFit = chromosome;
         }
       }
       if (i != generation-1){ //last iteration, no need to mutate
-        ArrayList<Chromosome> newPool = new ArrayList<Chromosome>();
+        ArrayList<Chromosome> newPool = new ArrayList<Chromosome>(populationPoolSize + 1);
         newPool.add(bestFit);
         while (newPool.size() < populationPoolSize) {
           Chromosome c1 = new Chromosome(RandomWheel(chromosomes, totalFitness));
@@ -95,17 +106,20 @@ public class GeneticAlgorithm {
     return bestFit;
   }
   
-  private Chromosome RandomWheel(ArrayList<Chromosome> chromosomes, Double totalFitness) {
-    Random rand = new Random();
+  private Chromosome RandomWheel(ArrayList<Chromosome> chromosomes, double totalFitness) {
     double randomNumber = rand.nextDouble() * totalFitness;
-    Double fitnessCount = 0.0;
-    for (Chromosome chromosome : chromosomes) {
-      fitnessCount += chromosome.fitness;
-      if (randomNumber <= fitnessCount) {
-        return chromosome;
-      }
+    // first running total which reaches the number
+    int index = Arrays.binarySearch(wheel, 0, chromosomes.size(), randomNumber);
+    if (index < 0) {
+      index = -index - 1;
+    }
+    while (index > 0 && wheel[index - 1] == randomNumber) {
+      index--;
+    }
+    if (index >= chromosomes.size()) {
+      return null;
     }
-    return null;
+    return chromosomes.get(index);
   }
 
   public void setGeneticClass(Genetic geneticClass) {
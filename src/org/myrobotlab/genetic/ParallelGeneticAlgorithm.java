@@ -0,0 +1,418 @@
+package org.myrobotlab.genetic;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * ParallelGeneticAlgorithm - the same evolution as GeneticAlgorithm - fitness
+ * proportional selection, single point recombination, bit mutation and the
+ * best chromosome kept - for fitness functions which are expensive enough to
+ * be worth spreading over cores, like the forward kinematics of an arm.
+ *
+ * The fitness of each genome is computed on its own, in parallel on a
+ * ForkJoinPool, so the Fitness must be thread safe. Genomes are bits packed
+ * into one long[] per generation - the two generations are swapped, nothing
+ * is allocated per chromosome. Selection draws from an alias table, built once
+ * per generation, in constant time - or runs tournaments if a tournament size
+ * is set. Breeding is parallel too, with a random generator per range of
+ * children seeded from the seed, the generation and the range, so a run is
+ * repeatable whatever the number of threads.
+ *
+ * Usage:
+ *
+ * <pre>
+ * ParallelGeneticAlgorithm ga = new ParallelGeneticAlgorithm(fitness, 100, links * 13, 0.7, 0.01);
+ * ParallelGeneticAlgorithm.Genome best = ga.doGeneration(50);
+ * int gene = best.getBits(0, 13);
+ * </pre>
+ */
+public class ParallelGeneticAlgorithm {
+
+  /**
+   * scores a genome - the higher the better, negative is taken as 0
+   */
+  public interface Fitness {
+    /**
+     * called from several threads at once
+     */
+    double fitness(Genome genome);
+  }
+
+  /**
+   * a view on the bits of a genome of the population
+   */
+  public static class Genome {
+    final long[] words;
+    final int offset;
+    final int size;
+
+    Genome(long[] words, int offset, int size) {
+      this.words = words;
+      this.offset = offset;
+      this.size = size;
+    }
+
+    public int size() {
+      return size;
+    }
+
+    public boolean get(int bit) {
+      return (words[offset + (bit >>> 6)] & (1L << bit)) != 0;
+    }
+
+    /**
+     * @return count bits from bit from - the first is the lowest, like
+     *         Chromosome genomes are decoded
+     */
+    public int getBits(int from, int count) {
+      int value = 0;
+      int end = Math.min(size, from + count);
+      for (int i = from; i < end; ++i) {
+        if (get(i)) {
+          value |= 1 << (i - from);
+        }
+      }
+      return value;
+    }
+
+    /**
+     * @return the genome as a Chromosome genome string of 0 and 1
+     */
+    @Override
+    public String toString() {
+      char[] bits = new char[size];
+      for (int i = 0; i < size; ++i) {
+        bits[i] = get(i) ? '1' : '0';
+      }
+      return new String(bits);
+    }
+  }
+
+  // genomes evaluated or bred per task
+  final static int CHUNK = 8;
+
+  final Fitness fitness;
+  final int populationSize;
+  final int genomeSize;
+  final int words;
+  double recombinationRate;
+  double mutationRate;
+  int tournamentSize = 0;
+  long seed;
+  ForkJoinPool pool = ForkJoinPool.commonPool();
+
+  long[] population;
+  long[] next;
+  final double[] scores;
+
+  // alias table
+  final double[] probability;
+  final int[] alias;
+  final int[] small;
+  final int[] large;
+
+  final long[] best;
+  double bestFitness = Double.NEGATIVE_INFINITY;
+  int generation = 0;
+  long evaluations = 0;
+
+  public ParallelGeneticAlgorithm(Fitness fitness, int populationSize, int genomeSize, double recombinationRate, double mutationRate) {
+    this.fitness = fitness;
+    // children come in pairs after the best
+    this.populationSize = Math.max(3, populationSize | 1);
+    this.genomeSize = Math.max(2, genomeSize);
+    this.words = (this.genomeSize + 63) >>> 6;
+    this.recombinationRate = recombinationRate;
+    this.mutationRate = mutationRate;
+    population = new long[this.populationSize * words];
+    next = new long[this.populationSize * words];
+    scores = new double[this.populationSize];
+    probability = new double[this.populationSize];
+    alias = new int[this.populationSize];
+    small = new int[this.populationSize];
+    large = new int[this.populationSize];
+    best = new long[words];
+    setSeed(System.nanoTime());
+  }
+
+  public ParallelGeneticAlgorithm(Fitness fitness, int genomeSize, GeneticParameters param) {
+    this(fitness, param.getGeneticPoolSize(), genomeSize, param.getGeneticRecombinationRate(), param.getGeneticMutationRate());
+  }
+
+  /**
+   * a new random population
+   */
+  public void setSeed(long seed) {
+    this.seed = seed;
+    SplittableRandom random = new SplittableRandom(seed);
+    for (int i = 0; i < population.length; ++i) {
+      population[i] = random.nextLong();
+    }
+    for (int i = 0; i < populationSize; ++i) {
+      clearTail(population, i * words);
+    }
+    bestFitness = Double.NEGATIVE_INFINITY;
+    generation = 0;
+  }
+
+  /**
+   * @param size
+   *          - chromosomes per tournament, 0 for fitness proportional
+   *          selection
+   */
+  public void setTournamentSize(int size) {
+    tournamentSize = Math.max(0, size);
+  }
+
+  public void setPool(ForkJoinPool pool) {
+    this.pool = pool;
+  }
+
+  /**
+   * evolves the population
+   *
+   * @param generations
+   *          - number of times the population is evaluated - it is bred
+   *          between them
+   * @return the best genome found
+   */
+  public Genome doGeneration(int generations) {
+    for (int i = 0; i < generations; ++i) {
+      pool.invoke(new Evaluate(0, populationSize));
+      evaluations += populationSize;
+      int fittest = 0;
+      for (int j = 1; j < populationSize; ++j) {
+        if (scores[j] > scores[fittest]) {
+          fittest = j;
+        }
+      }
+      if (scores[fittest] > bestFitness) {
+        bestFitness = scores[fittest];
+        System.arraycopy(population, fittest * words, best, 0, words);
+      }
+      if (i != generations - 1) {
+        // last iteration, no need to mutate
+        breed();
+      }
+    }
+    return getBest();
+  }
+
+  void breed() {
+    if (tournamentSize == 0) {
+      buildAlias();
+    }
+    System.arraycopy(best, 0, next, 0, words);
+    pool.invoke(new Breed(0, (populationSize - 1) / 2));
+    long[] swap = population;
+    population = next;
+    next = swap;
+    ++generation;
+  }
+
+  class Evaluate extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+    final int from;
+    final int to;
+
+    Evaluate(int from, int to) {
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    protected void compute() {
+      if (to - from > CHUNK) {
+        int mid = (from + to) >>> 1;
+        invokeAll(new Evaluate(from, mid), new Evaluate(mid, to));
+        return;
+      }
+      for (int i = from; i < to; ++i) {
+        double f = fitness.fitness(new Genome(population, i * words, genomeSize));
+        // NaN and negative don't get picked
+        scores[i] = (f > 0) ? f : 0;
+      }
+    }
+  }
+
+  class Breed extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+    final int from;
+    final int to;
+
+    Breed(int from, int to) {
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    protected void compute() {
+      if (to - from > CHUNK) {
+        int mid = (from + to) >>> 1;
+        invokeAll(new Breed(from, mid), new Breed(mid, to));
+        return;
+      }
+      SplittableRandom random = new SplittableRandom(mix(seed, generation, from));
+      for (int pair = from; pair < to; ++pair) {
+        int a = select(random) * words;
+        int b = select(random) * words;
+        int c1 = (1 + pair * 2) * words;
+        int c2 = c1 + words;
+        if (random.nextDouble() < recombinationRate) {
+          // cut after the first bit at the earliest, before the last at the
+          // latest
+          int cut = 1 + random.nextInt(genomeSize - 1);
+          crossover(population, a, b, next, c1, cut);
+          crossover(population, b, a, next, c2, cut);
+        } else {
+          System.arraycopy(population, a, next, c1, words);
+          System.arraycopy(population, b, next, c2, words);
+        }
+        mutate(next, c1, random);
+        mutate(next, c2, random);
+      }
+    }
+  }
+
+  /**
+   * the bits before cut from a, the ones after from b
+   */
+  void crossover(long[] src, int a, int b, long[] dst, int child, int cut) {
+    int word = cut >>> 6;
+    System.arraycopy(src, a, dst, child, word);
+    if (word < words) {
+      long mask = (1L << (cut & 63)) - 1;
+      dst[child + word] = (src[a + word] & mask) | (src[b + word] & ~mask);
+      System.arraycopy(src, b + word + 1, dst, child + word + 1, words - word - 1);
+    }
+  }
+
+  /**
+   * flips each bit with mutationRate - jumps from flip to flip
+   */
+  void mutate(long[] genomes, int offset, SplittableRandom random) {
+    if (mutationRate <= 0) {
+      return;
+    }
+    if (mutationRate >= 1) {
+      for (int i = 0; i < words; ++i) {
+        genomes[offset + i] = ~genomes[offset + i];
+      }
+      clearTail(genomes, offset);
+      return;
+    }
+    double log = Math.log(1 - mutationRate);
+    long bit = (long) (Math.log(1 - random.nextDouble()) / log);
+    while (bit < genomeSize) {
+      genomes[offset + (int) (bit >>> 6)] ^= 1L << bit;
+      bit += 1 + (long) (Math.log(1 - random.nextDouble()) / log);
+    }
+  }
+
+  void clearTail(long[] genomes, int offset) {
+    int tail = genomeSize & 63;
+    if (tail != 0) {
+      genomes[offset + words - 1] &= (1L << tail) - 1;
+    }
+  }
+
+  int select(SplittableRandom random) {
+    if (tournamentSize > 0) {
+      int winner = random.nextInt(populationSize);
+      for (int i = 1; i < tournamentSize; ++i) {
+        int challenger = random.nextInt(populationSize);
+        if (scores[challenger] > scores[winner]) {
+          winner = challenger;
+        }
+      }
+      return winner;
+    }
+    int i = random.nextInt(populationSize);
+    return (random.nextDouble() < probability[i]) ? i : alias[i];
+  }
+
+  /**
+   * Vose's alias method - a chromosome is picked with a chance proportional to
+   * its fitness
+   */
+  void buildAlias() {
+    int n = populationSize;
+    double total = 0;
+    for (int i = 0; i < n; ++i) {
+      total += scores[i];
+    }
+    if (total <= 0 || Double.isInfinite(total)) {
+      // no fitness to go by - all the same
+      Arrays.fill(probability, 1.0);
+      for (int i = 0; i < n; ++i) {
+        alias[i] = i;
+      }
+      return;
+    }
+    int s = 0;
+    int l = 0;
+    for (int i = 0; i < n; ++i) {
+      probability[i] = scores[i] * n / total;
+      if (probability[i] < 1) {
+        small[s++] = i;
+      } else {
+        large[l++] = i;
+      }
+    }
+    while (s > 0 && l > 0) {
+      int less = small[--s];
+      int more = large[--l];
+      alias[less] = more;
+      probability[more] = probability[more] + probability[less] - 1;
+      if (probability[more] < 1) {
+        small[s++] = more;
+      } else {
+        large[l++] = more;
+      }
+    }
+    while (l > 0) {
+      probability[large[--l]] = 1;
+    }
+    while (s > 0) {
+      // rounding
+      probability[small[--s]] = 1;
+    }
+  }
+
+  static long mix(long seed, long generation, long range) {
+    long h = seed + 0x9E3779B97F4A7C15L * (generation + 1) + 0xC2B2AE3D27D4EB4FL * (range + 1);
+    h = (h ^ (h >>> 30)) * 0xBF58476D1CE4E5B9L;
+    h = (h ^ (h >>> 27)) * 0x94D049BB133111EBL;
+    return h ^ (h >>> 31);
+  }
+
+  /**
+   * @return the best genome found - a copy
+   */
+  public Genome getBest() {
+    return new Genome(Arrays.copyOf(best, words), 0, genomeSize);
+  }
+
+  public double getBestFitness() {
+    return bestFitness;
+  }
+
+  public int getPopulationSize() {
+    return populationSize;
+  }
+
+  /**
+   * @return number of fitness evaluations so far
+   */
+  public long getEvaluations() {
+    return evaluations;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("population %d genome %d bits generation %d best %f", populationSize, genomeSize, generation, bestFitness);
+  }
+
+}
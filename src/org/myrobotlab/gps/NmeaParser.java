@@ -0,0 +1,815 @@
+package org.myrobotlab.gps;
+
+import java.io.Serializable;
+import java.nio.charset.Charset;
+
+import org.myrobotlab.logging.LoggerFactory;
+import org.slf4j.Logger;
+
+/**
+ * NmeaParser - streaming parser of NMEA 0183 sentences. Bytes are fed in any
+ * chunks with parse, sentences are collected in a fixed line buffer, the
+ * checksum is validated and the fields are decoded in place into one reusable
+ * record per sentence type. The listener is called with the type of each
+ * valid sentence and reads the record of that type - the records are
+ * overwritten by the next sentence of the same type, so a listener which
+ * keeps one must copy it.
+ *
+ * Nothing is allocated per sentence - getSentence creates the string of the
+ * current sentence only when it is asked for.
+ *
+ */
+public class NmeaParser {
+
+  public final static Logger log = LoggerFactory.getLogger(NmeaParser.class);
+
+  public final static Charset ASCII = Charset.forName("US-ASCII");
+
+  // sentence types
+  public final static int UNKNOWN = 0;
+  public final static int GGA = 1;
+  public final static int RMC = 2;
+  public final static int VTG = 3;
+  public final static int GSA = 4;
+  public final static int GSV = 5;
+  public final static int ZDA = 6;
+  public final static int GLL = 7;
+  // beacon receiver signal status - recognized, but only available as tokens
+  public final static int MSS = 8;
+  public final static int TYPES = 9;
+
+  final static String[] TYPE_NAMES = { "UNKNOWN", "GGA", "RMC", "VTG", "GSA", "GSV", "ZDA", "GLL", "MSS" };
+
+  // 3 letter sentence formatters packed into an int
+  final static int CODE_GGA = ('G' << 16) | ('G' << 8) | 'A';
+  final static int CODE_RMC = ('R' << 16) | ('M' << 8) | 'C';
+  final static int CODE_VTG = ('V' << 16) | ('T' << 8) | 'G';
+  final static int CODE_GSA = ('G' << 16) | ('S' << 8) | 'A';
+  final static int CODE_GSV = ('G' << 16) | ('S' << 8) | 'V';
+  final static int CODE_ZDA = ('Z' << 16) | ('D' << 8) | 'A';
+  final static int CODE_GLL = ('G' << 16) | ('L' << 8) | 'L';
+  final static int CODE_MSS = ('M' << 16) | ('S' << 8) | 'S';
+
+  /**
+   * NMEA allows 82 characters - some receivers send longer proprietary
+   * sentences
+   */
+  public final static int MAX_SENTENCE = 256;
+
+  final static int MAX_FIELDS = 64;
+
+  public interface Listener {
+    /**
+     * called for every valid sentence
+     *
+     * @param parser
+     *          - the parser, its record of the type holds the sentence
+     * @param type
+     *          - GGA, RMC ... UNKNOWN for sentences which are not decoded
+     */
+    void onSentence(NmeaParser parser, int type);
+  }
+
+  /**
+   * fix data - time, position, quality
+   */
+  public static class Gga implements Serializable {
+    private static final long serialVersionUID = 1L;
+    public String talker;
+    /**
+     * UTC seconds since midnight
+     */
+    public double time;
+    /**
+     * degrees, negative south
+     */
+    public double latitude;
+    /**
+     * degrees, negative west
+     */
+    public double longitude;
+    /**
+     * 0 no fix, 1 gps, 2 dgps, 6 dead reckoning, 8 simulated
+     */
+    public int quality;
+    public int satellites;
+    public double hdop;
+    /**
+     * meters above mean sea level
+     */
+    public double altitude;
+    public double geoidSeparation;
+    /**
+     * seconds since the last dgps update
+     */
+    public double dgpsAge;
+    public int dgpsStation;
+
+    public Gga copy() {
+      Gga c = new Gga();
+      c.talker = talker;
+      c.time = time;
+      c.latitude = latitude;
+      c.longitude = longitude;
+      c.quality = quality;
+      c.satellites = satellites;
+      c.hdop = hdop;
+      c.altitude = altitude;
+      c.geoidSeparation = geoidSeparation;
+      c.dgpsAge = dgpsAge;
+      c.dgpsStation = dgpsStation;
+      return c;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("GGA %.2f %.6f %.6f quality %d satellites %d hdop %.1f altitude %.1f", time, latitude, longitude, quality, satellites, hdop, altitude);
+    }
+  }
+
+  /**
+   * recommended minimum - time, date, position, speed and course
+   */
+  public static class Rmc implements Serializable {
+    private static final long serialVersionUID = 1L;
+    public String talker;
+    public double time;
+    public boolean valid;
+    public double latitude;
+    public double longitude;
+    public double speedKnots;
+    /**
+     * degrees true
+     */
+    public double course;
+    /**
+     * ddmmyy
+     */
+    public int date;
+    /**
+     * degrees, negative west
+     */
+    public double magneticVariation;
+    /**
+     * A autonomous, D differential, E estimated, N not valid - 0 if not sent
+     */
+    public char mode;
+
+    public Rmc copy() {
+      Rmc c = new Rmc();
+      c.talker = talker;
+      c.time = time;
+      c.valid = valid;
+      c.latitude = latitude;
+      c.longitude = longitude;
+      c.speedKnots = speedKnots;
+      c.course = course;
+      c.date = date;
+      c.magneticVariation = magneticVariation;
+      c.mode = mode;
+      return c;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("RMC %.2f %06d %s %.6f %.6f %.2f kn %.1f deg", time, date, (valid) ? "valid" : "invalid", latitude, longitude, speedKnots, course);
+    }
+  }
+
+  /**
+   * course and speed over ground
+   */
+  public static class Vtg implements Serializable {
+    private static final long serialVersionUID = 1L;
+    public String talker;
+    public double courseTrue;
+    public double courseMagnetic;
+    public double speedKnots;
+    public double speedKmh;
+    public char mode;
+
+    public Vtg copy() {
+      Vtg c = new Vtg();
+      c.talker = talker;
+      c.courseTrue = courseTrue;
+      c.courseMagnetic = courseMagnetic;
+      c.speedKnots = speedKnots;
+      c.speedKmh = speedKmh;
+      c.mode = mode;
+      return c;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("VTG %.1f deg %.2f km/h", courseTrue, speedKmh);
+    }
+  }
+
+  /**
+   * dilution of precision and active satellites
+   */
+  public static class Gsa implements Serializable {
+    private static final long serialVersionUID = 1L;
+    public String talker;
+    /**
+     * M manual, A automatic
+     */
+    public char selection;
+    /**
+     * 1 no fix, 2 2D, 3 3D
+     */
+    public int fix;
+    /**
+     * prns of the used satellites - count of them are valid
+     */
+    public final int[] prns = new int[12];
+    public int count;
+    public double pdop;
+    public double hdop;
+    public double vdop;
+
+    public Gsa copy() {
+      Gsa c = new Gsa();
+      c.talker = talker;
+      c.selection = selection;
+      c.fix = fix;
+      System.arraycopy(prns, 0, c.prns, 0, prns.length);
+      c.count = count;
+      c.pdop = pdop;
+      c.hdop = hdop;
+      c.vdop = vdop;
+      return c;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("GSA fix %d satellites %d pdop %.1f hdop %.1f vdop %.1f", fix, count, pdop, hdop, vdop);
+    }
+  }
+
+  /**
+   * satellites in view - one of a sequence of messages with up to 4
+   * satellites each
+   */
+  public static class Gsv implements Serializable {
+    private static final long serialVersionUID = 1L;
+    public String talker;
+    public int messages;
+    public int number;
+    public int inView;
+    /**
+     * satellites in this message
+     */
+    public int count;
+    public final int[] prn = new int[4];
+    public final int[] elevation = new int[4];
+    public final int[] azimuth = new int[4];
+    /**
+     * dBHz, -1 if not tracked
+     */
+    public final int[] snr = new int[4];
+
+    public Gsv copy() {
+      Gsv c = new Gsv();
+      c.talker = talker;
+      c.messages = messages;
+      c.number = number;
+      c.inView = inView;
+      c.count = count;
+      System.arraycopy(prn, 0, c.prn, 0, 4);
+      System.arraycopy(elevation, 0, c.elevation, 0, 4);
+      System.arraycopy(azimuth, 0, c.azimuth, 0, 4);
+      System.arraycopy(snr, 0, c.snr, 0, 4);
+      return c;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("GSV %d/%d in view %d", number, messages, inView);
+    }
+  }
+
+  /**
+   * time and date
+   */
+  public static class Zda implements Serializable {
+    private static final long serialVersionUID = 1L;
+    public String talker;
+    public double time;
+    public int day;
+    public int month;
+    public int year;
+    public int zoneHours;
+    public int zoneMinutes;
+
+    public Zda copy() {
+      Zda c = new Zda();
+      c.talker = talker;
+      c.time = time;
+      c.day = day;
+      c.month = month;
+      c.year = year;
+      c.zoneHours = zoneHours;
+      c.zoneMinutes = zoneMinutes;
+      return c;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("ZDA %.2f %04d-%02d-%02d", time, year, month, day);
+    }
+  }
+
+  /**
+   * geographic position
+   */
+  public static class Gll implements Serializable {
+    private static final long serialVersionUID = 1L;
+    public String talker;
+    public double latitude;
+    public double longitude;
+    public double time;
+    public boolean valid;
+
+    public Gll copy() {
+      Gll c = new Gll();
+      c.talker = talker;
+      c.latitude = latitude;
+      c.longitude = longitude;
+      c.time = time;
+      c.valid = valid;
+      return c;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("GLL %.2f %.6f %.6f", time, latitude, longitude);
+    }
+  }
+
+  public final Gga gga = new Gga();
+  public final Rmc rmc = new Rmc();
+  public final Vtg vtg = new Vtg();
+  public final Gsa gsa = new Gsa();
+  public final Gsv gsv = new Gsv();
+  public final Zda zda = new Zda();
+  public final Gll gll = new Gll();
+
+  Listener listener;
+
+  /**
+   * sentences without a checksum are rejected
+   */
+  boolean requireChecksum = true;
+
+  // the sentence being collected - from $ to before the line end
+  final byte[] line = new byte[MAX_SENTENCE];
+  int length = 0;
+  boolean inSentence = false;
+
+  // field i is line[start[i]] to line[end[i]] exclusive, field 0 is the
+  // address
+  final int[] start = new int[MAX_FIELDS];
+  final int[] end = new int[MAX_FIELDS];
+  int fields = 0;
+
+  // talker ids are interned - there are only a few of them
+  String talker;
+  byte talker0;
+  byte talker1;
+
+  // stats
+  long bytes = 0;
+  long sentences = 0;
+  long checksumErrors = 0;
+  long missingChecksums = 0;
+  long overflows = 0;
+  long fieldErrors = 0;
+  final long[] counts = new long[TYPES];
+
+  public NmeaParser() {
+  }
+
+  public NmeaParser(Listener listener) {
+    this.listener = listener;
+  }
+
+  public void setListener(Listener listener) {
+    this.listener = listener;
+  }
+
+  public void setRequireChecksum(boolean b) {
+    requireChecksum = b;
+  }
+
+  public void parse(byte[] data) {
+    parse(data, 0, data.length);
+  }
+
+  public void parse(byte[] data, int offset, int len) {
+    int last = offset + len;
+    for (int i = offset; i < last; ++i) {
+      parse(data[i]);
+    }
+  }
+
+  public void parse(int b) {
+    ++bytes;
+    b &= 0xff;
+    if (b == '$' || b == '!') {
+      // a new sentence - anything collected before was cut off
+      inSentence = true;
+      line[0] = (byte) b;
+      length = 1;
+      return;
+    }
+    if (!inSentence) {
+      return;
+    }
+    if (b == '\r' || b == '\n') {
+      inSentence = false;
+      process();
+      return;
+    }
+    if (length == MAX_SENTENCE) {
+      inSentence = false;
+      ++overflows;
+      return;
+    }
+    line[length++] = (byte) b;
+  }
+
+  /**
+   * validates and decodes the collected sentence
+   */
+  void process() {
+    int star = -1;
+    int sum = 0;
+    fields = 0;
+    start[0] = 1;
+    for (int i = 1; i < length; ++i) {
+      byte c = line[i];
+      if (c == '*') {
+        star = i;
+        break;
+      }
+      sum ^= c;
+      if (c == ',' && fields < MAX_FIELDS - 1) {
+        end[fields++] = i;
+        start[fields] = i + 1;
+      }
+    }
+    end[fields++] = (star < 0) ? length : star;
+
+    if (star < 0) {
+      if (requireChecksum) {
+        if (missingChecksums++ == 0) {
+          log.warn("dropping sentences without checksum - setRequireChecksum(false) accepts them");
+        }
+        ++checksumErrors;
+        return;
+      }
+    } else {
+      if (star + 3 > length) {
+        ++checksumErrors;
+        return;
+      }
+      int h = hex(line[star + 1]);
+      int l = hex(line[star + 2]);
+      if (h < 0 || l < 0 || ((h << 4) | l) != sum) {
+        ++checksumErrors;
+        return;
+      }
+    }
+
+    int type = decode();
+    ++sentences;
+    ++counts[type];
+    if (listener != null) {
+      listener.onSentence(this, type);
+    }
+  }
+
+  /**
+   * decodes the fields into the record of the type
+   *
+   * @return the type
+   */
+  int decode() {
+    int addressLength = end[0] - start[0];
+    if (addressLength < 5 || line[start[0]] == 'P') {
+      // proprietary
+      return UNKNOWN;
+    }
+    int a = start[0] + addressLength - 3;
+    int code = ((line[a] & 0xff) << 16) | ((line[a + 1] & 0xff) << 8) | (line[a + 2] & 0xff);
+    try {
+      switch (code) {
+        case CODE_GGA:
+          decodeGga();
+          return GGA;
+        case CODE_RMC:
+          decodeRmc();
+          return RMC;
+        case CODE_VTG:
+          decodeVtg();
+          return VTG;
+        case CODE_GSA:
+          decodeGsa();
+          return GSA;
+        case CODE_GSV:
+          decodeGsv();
+          return GSV;
+        case CODE_ZDA:
+          decodeZda();
+          return ZDA;
+        case CODE_GLL:
+          decodeGll();
+          return GLL;
+        case CODE_MSS:
+          return MSS;
+        default:
+          return UNKNOWN;
+      }
+    } catch (NumberFormatException e) {
+      ++fieldErrors;
+      return UNKNOWN;
+    }
+  }
+
+  void decodeGga() {
+    gga.talker = talker();
+    gga.time = time(1);
+    gga.latitude = position(2, 3, 'S');
+    gga.longitude = position(4, 5, 'W');
+    gga.quality = integer(6, 0);
+    gga.satellites = integer(7, 0);
+    gga.hdop = number(8);
+    gga.altitude = number(9);
+    gga.geoidSeparation = number(11);
+    gga.dgpsAge = number(13);
+    gga.dgpsStation = integer(14, -1);
+  }
+
+  void decodeRmc() {
+    rmc.talker = talker();
+    rmc.time = time(1);
+    rmc.valid = character(2) == 'A';
+    rmc.latitude = position(3, 4, 'S');
+    rmc.longitude = position(5, 6, 'W');
+    rmc.speedKnots = number(7);
+    rmc.course = number(8);
+    rmc.date = integer(9, 0);
+    rmc.magneticVariation = number(10);
+    if (character(11) == 'W') {
+      rmc.magneticVariation = -rmc.magneticVariation;
+    }
+    rmc.mode = character(12);
+  }
+
+  void decodeVtg() {
+    vtg.talker = talker();
+    vtg.courseTrue = number(1);
+    vtg.courseMagnetic = number(3);
+    vtg.speedKnots = number(5);
+    vtg.speedKmh = number(7);
+    vtg.mode = character(9);
+  }
+
+  void decodeGsa() {
+    gsa.talker = talker();
+    gsa.selection = character(1);
+    gsa.fix = integer(2, 1);
+    gsa.count = 0;
+    for (int i = 0; i < 12; ++i) {
+      int prn = integer(3 + i, 0);
+      if (prn > 0) {
+        gsa.prns[gsa.count++] = prn;
+      }
+    }
+    gsa.pdop = number(15);
+    gsa.hdop = number(16);
+    gsa.vdop = number(17);
+  }
+
+  void decodeGsv() {
+    gsv.talker = talker();
+    gsv.messages = integer(1, 0);
+    gsv.number = integer(2, 0);
+    gsv.inView = integer(3, 0);
+    gsv.count = 0;
+    for (int i = 0; i < 4 && 4 + i * 4 < fields; ++i) {
+      int f = 4 + i * 4;
+      if (isEmpty(f)) {
+        continue;
+      }
+      int n = gsv.count++;
+      gsv.prn[n] = integer(f, 0);
+      gsv.elevation[n] = integer(f + 1, 0);
+      gsv.azimuth[n] = integer(f + 2, 0);
+      gsv.snr[n] = integer(f + 3, -1);
+    }
+  }
+
+  void decodeZda() {
+    zda.talker = talker();
+    zda.time = time(1);
+    zda.day = integer(2, 0);
+    zda.month = integer(3, 0);
+    zda.year = integer(4, 0);
+    zda.zoneHours = integer(5, 0);
+    zda.zoneMinutes = integer(6, 0);
+  }
+
+  void decodeGll() {
+    gll.talker = talker();
+    gll.latitude = position(1, 2, 'S');
+    gll.longitude = position(3, 4, 'W');
+    gll.time = time(5);
+    gll.valid = character(6) == 'A';
+  }
+
+  String talker() {
+    byte t0 = line[start[0]];
+    byte t1 = line[start[0] + 1];
+    if (talker == null || t0 != talker0 || t1 != talker1) {
+      talker0 = t0;
+      talker1 = t1;
+      talker = new String(new char[] { (char) t0, (char) t1 });
+    }
+    return talker;
+  }
+
+  boolean isEmpty(int field) {
+    return field >= fields || start[field] == end[field];
+  }
+
+  char character(int field) {
+    return isEmpty(field) ? 0 : (char) line[start[field]];
+  }
+
+  int integer(int field, int def) {
+    if (isEmpty(field)) {
+      return def;
+    }
+    int i = start[field];
+    int e = end[field];
+    boolean negative = false;
+    if (line[i] == '-') {
+      negative = true;
+      ++i;
+    }
+    int v = 0;
+    for (; i < e; ++i) {
+      int d = line[i] - '0';
+      if (d < 0 || d > 9) {
+        if (line[i] == '.') {
+          // some receivers send 08.0 satellites
+          break;
+        }
+        throw new NumberFormatException();
+      }
+      v = v * 10 + d;
+    }
+    return (negative) ? -v : v;
+  }
+
+  /**
+   * @return the decimal number of the field, NaN if it is empty
+   */
+  double number(int field) {
+    if (isEmpty(field)) {
+      return Double.NaN;
+    }
+    int i = start[field];
+    int e = end[field];
+    boolean negative = false;
+    if (line[i] == '-') {
+      negative = true;
+      ++i;
+    }
+    long mantissa = 0;
+    long scale = 1;
+    boolean fraction = false;
+    for (; i < e; ++i) {
+      byte c = line[i];
+      if (c == '.' && !fraction) {
+        fraction = true;
+        continue;
+      }
+      int d = c - '0';
+      if (d < 0 || d > 9) {
+        throw new NumberFormatException();
+      }
+      mantissa = mantissa * 10 + d;
+      if (fraction) {
+        scale *= 10;
+      }
+    }
+    double v = (double) mantissa / scale;
+    return (negative) ? -v : v;
+  }
+
+  /**
+   * @return hhmmss.ss as seconds since midnight
+   */
+  double time(int field) {
+    double t = number(field);
+    if (Double.isNaN(t)) {
+      return t;
+    }
+    int hhmmss = (int) t;
+    return (hhmmss / 10000) * 3600 + (hhmmss / 100 % 100) * 60 + (t - hhmmss / 100 * 100);
+  }
+
+  /**
+   * @return ddmm.mmmm or dddmm.mmmm as degrees, negative for the negative
+   *         hemisphere
+   */
+  double position(int field, int hemisphereField, char negative) {
+    double v = number(field);
+    if (Double.isNaN(v)) {
+      return v;
+    }
+    double degrees = (int) (v / 100);
+    double result = degrees + (v - degrees * 100) / 60;
+    return (character(hemisphereField) == negative) ? -result : result;
+  }
+
+  static int hex(byte c) {
+    if (c >= '0' && c <= '9') {
+      return c - '0';
+    }
+    if (c >= 'A' && c <= 'F') {
+      return c - 'A' + 10;
+    }
+    if (c >= 'a' && c <= 'f') {
+      return c - 'a' + 10;
+    }
+    return -1;
+  }
+
+  /**
+   * @return the current sentence - allocates, for logging and the string
+   *         based publishing methods
+   */
+  public String getSentence() {
+    return new String(line, 0, length, ASCII);
+  }
+
+  /**
+   * @param field
+   *          - index of the field, 0 is the address
+   * @return the field of the current sentence - allocates
+   */
+  public String getField(int field) {
+    if (field >= fields) {
+      return "";
+    }
+    return new String(line, start[field], end[field] - start[field], ASCII);
+  }
+
+  /**
+   * @return the fields of the current sentence split at , and * - the same as
+   *         String.split("[,*]")
+   */
+  public String[] getTokens() {
+    return getSentence().split("[,*]", -1);
+  }
+
+  public static String getTypeName(int type) {
+    return TYPE_NAMES[type];
+  }
+
+  public long getSentences() {
+    return sentences;
+  }
+
+  public long getChecksumErrors() {
+    return checksumErrors;
+  }
+
+  public long getCount(int type) {
+    return counts[type];
+  }
+
+  public void resetStats() {
+    bytes = sentences = checksumErrors = overflows = fieldErrors = 0;
+    for (int i = 0; i < counts.length; ++i) {
+      counts[i] = 0;
+    }
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder();
+    sb.append(String.format("bytes %d sentences %d checksum errors %d field errors %d overflows %d", bytes, sentences, checksumErrors, fieldErrors, overflows));
+    for (int i = 1; i < TYPES; ++i) {
+      if (counts[i] > 0) {
+        sb.append(String.format(" %s %d", TYPE_NAMES[i], counts[i]));
+      }
+    }
+    return sb.toString();
+  }
+
+}
@@ -0,0 +1,157 @@
+package org.myrobotlab.i2c;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * I2CRequest - a single outstanding i2c read on a bus. The caller either waits
+ * on it with get(timeout) or registers a listener which is called from the
+ * thread which received the data.
+ *
+ * @author Mats
+ *
+ */
+public class I2CRequest {
+
+  public interface Listener {
+    void onI2cRequest(I2CRequest request);
+  }
+
+  final long id;
+  final int busDeviceId;
+  final int deviceAddress;
+  final int size;
+  final CountDownLatch done = new CountDownLatch(1);
+
+  volatile byte[] data;
+  volatile boolean timedOut = false;
+  Listener listener;
+  boolean notified = false;
+
+  long sent;
+  long completed;
+
+  I2CRequest(long id, int busDeviceId, int deviceAddress, int size) {
+    this.id = id;
+    this.busDeviceId = busDeviceId;
+    this.deviceAddress = deviceAddress;
+    this.size = size;
+  }
+
+  /**
+   * waits for the data of the request
+   *
+   * @param buffer
+   *          - buffer which receives the data
+   * @param timeoutMs
+   *          - max time to wait
+   * @return number of bytes read or -1 on timeout or failure
+   */
+  public int get(byte[] buffer, long timeoutMs) {
+    try {
+      if (!done.await(timeoutMs, TimeUnit.MILLISECONDS)) {
+        timedOut = true;
+        return -1;
+      }
+    } catch (InterruptedException e) {
+      timedOut = true;
+      return -1;
+    }
+    byte[] d = data;
+    if (d == null) {
+      // failed
+      return -1;
+    }
+    int len = Math.min(d.length, buffer.length);
+    System.arraycopy(d, 0, buffer, 0, len);
+    return len;
+  }
+
+  /**
+   * @return the data read or null if the request is not complete
+   */
+  public byte[] getData() {
+    return data;
+  }
+
+  public boolean isDone() {
+    return done.getCount() == 0;
+  }
+
+  public boolean isTimedOut() {
+    return timedOut;
+  }
+
+  /**
+   * sets a listener which is called on completion - if the request is already
+   * complete it is called immediately
+   *
+   * @param listener
+   *          - the listener
+   */
+  public void setListener(Listener listener) {
+    synchronized (this) {
+      this.listener = listener;
+    }
+    if (isDone()) {
+      notifyListener();
+    }
+  }
+
+  public long getId() {
+    return id;
+  }
+
+  public int getDeviceAddress() {
+    return deviceAddress;
+  }
+
+  public int getSize() {
+    return size;
+  }
+
+  /**
+   * @return micro seconds from sending the request to receiving its data
+   */
+  public long getLatency() {
+    return (completed - sent) / 1000;
+  }
+
+  void complete(int[] rawData) {
+    byte[] d = new byte[rawData.length];
+    for (int i = 0; i < d.length; ++i) {
+      d[i] = (byte) (rawData[i] & 0xff);
+    }
+    completed = System.nanoTime();
+    data = d;
+    done.countDown();
+    notifyListener();
+  }
+
+  /**
+   * the data of the request is lost or was not for it - releases the waiting
+   * caller and listener without data
+   */
+  void fail() {
+    timedOut = true;
+    completed = System.nanoTime();
+    done.countDown();
+    notifyListener();
+  }
+
+  void notifyListener() {
+    Listener l;
+    synchronized (this) {
+      if (listener == null || notified) {
+        return;
+      }
+      notified = true;
+      l = listener;
+    }
+    l.onI2cRequest(this);
+  }
+
+  public String toString() {
+    return String.format("i2c request %d bus %d device 0x%02x size %d", id, busDeviceId, deviceAddress, size);
+  }
+}
@@ -0,0 +1,242 @@
+package org.myrobotlab.i2c;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.myrobotlab.logging.LoggerFactory;
+import org.slf4j.Logger;
+
+/**
+ * I2CTransactions - correlates i2c reads with the data returned by a
+ * controller. The MrlComm protocol has no request id, but a board processes
+ * the commands of a bus in order, so every bus keeps a fifo of its
+ * outstanding requests and returned data completes the oldest one. Many
+ * requests can be in flight on a bus at the same time.
+ *
+ * @author Mats
+ *
+ */
+public class I2CTransactions {
+
+  public final static Logger log = LoggerFactory.getLogger(I2CTransactions.class);
+
+  /**
+   * sends the command of a request to the bus
+   */
+  public interface Sender {
+    void send(I2CRequest request);
+  }
+
+  /**
+   * requests which have been waiting this long are assumed to be lost - not
+   * longer than callers wait, or data of later requests would go to the lost
+   * one after its caller gave up
+   */
+  long staleMs = 1000;
+
+  final Map<Integer, ArrayDeque<I2CRequest>> buses = new ConcurrentHashMap<Integer, ArrayDeque<I2CRequest>>();
+
+  final AtomicLong sequence = new AtomicLong();
+  final AtomicLong completedCount = new AtomicLong();
+  final AtomicLong lostCount = new AtomicLong();
+  final AtomicLong totalLatency = new AtomicLong();
+  final AtomicLong maxLatency = new AtomicLong();
+
+  ArrayDeque<I2CRequest> getBus(int busDeviceId) {
+    ArrayDeque<I2CRequest> pending = buses.get(busDeviceId);
+    if (pending == null) {
+      synchronized (buses) {
+        pending = buses.get(busDeviceId);
+        if (pending == null) {
+          pending = new ArrayDeque<I2CRequest>();
+          buses.put(busDeviceId, pending);
+        }
+      }
+    }
+    return pending;
+  }
+
+  /**
+   * queues a request and sends it - both happen under the bus lock so the
+   * order of the queue is the order on the wire
+   *
+   * @param busDeviceId
+   *          - device id of the i2c bus
+   * @param deviceAddress
+   *          - address of the i2c device
+   * @param size
+   *          - number of bytes to read
+   * @param sender
+   *          - sends the command
+   * @return the request
+   */
+  public I2CRequest submit(int busDeviceId, int deviceAddress, int size, Sender sender) {
+    I2CRequest request = new I2CRequest(sequence.incrementAndGet(), busDeviceId, deviceAddress, size);
+    ArrayDeque<I2CRequest> pending = getBus(busDeviceId);
+    synchronized (pending) {
+      purge(pending);
+      pending.add(request);
+      request.sent = System.nanoTime();
+      try {
+        sender.send(request);
+      } catch (RuntimeException e) {
+        pending.remove(request);
+        throw e;
+      }
+    }
+    return request;
+  }
+
+  /**
+   * completes the oldest request of a bus - if the data does not have the size
+   * of the request the fifo is out of step, the request fails instead
+   *
+   * @param busDeviceId
+   *          - device id of the i2c bus
+   * @param data
+   *          - the data returned
+   * @return the request or null if nothing was waiting
+   */
+  public I2CRequest complete(int busDeviceId, int[] data) {
+    ArrayDeque<I2CRequest> pending = buses.get(busDeviceId);
+    if (pending == null) {
+      log.warn("i2c data for bus {} without request", busDeviceId);
+      return null;
+    }
+    I2CRequest request;
+    synchronized (pending) {
+      purge(pending);
+      request = pending.poll();
+    }
+    if (request == null) {
+      log.warn("i2c data for bus {} without request", busDeviceId);
+      return null;
+    }
+    if (data.length != request.size) {
+      log.warn("{} got {} bytes - dropping it", request, data.length);
+      lostCount.incrementAndGet();
+      request.fail();
+      return request;
+    }
+    request.complete(data);
+    long latency = request.getLatency();
+    completedCount.incrementAndGet();
+    totalLatency.addAndGet(latency);
+    long max = maxLatency.get();
+    while (latency > max && !maxLatency.compareAndSet(max, latency)) {
+      max = maxLatency.get();
+    }
+    return request;
+  }
+
+  /**
+   * completes the oldest request of any bus - for controllers which do not
+   * report the bus the data came from
+   *
+   * @param data
+   *          - the data returned
+   * @return the request or null if nothing was waiting
+   */
+  public I2CRequest complete(int[] data) {
+    I2CRequest oldest = null;
+    for (ArrayDeque<I2CRequest> pending : buses.values()) {
+      synchronized (pending) {
+        I2CRequest head = pending.peek();
+        if (head != null && (oldest == null || head.id < oldest.id)) {
+          oldest = head;
+        }
+      }
+    }
+    if (oldest == null) {
+      log.warn("i2c data without request");
+      return null;
+    }
+    return complete(oldest.busDeviceId, data);
+  }
+
+  /**
+   * drops requests at the head of a bus which have been waiting for longer
+   * than staleMs - their data is not coming anymore and would otherwise shift
+   * all following data to the wrong request
+   */
+  void purge(ArrayDeque<I2CRequest> pending) {
+    long now = System.nanoTime();
+    I2CRequest head = pending.peek();
+    while (head != null && (now - head.sent) / 1000000 > staleMs) {
+      pending.poll();
+      head.fail();
+      lostCount.incrementAndGet();
+      log.warn("dropping lost {}", head);
+      head = pending.peek();
+    }
+  }
+
+  /**
+   * @param ms
+   *          - time after which a request is assumed to be lost, should not be
+   *          longer than the time callers wait for data
+   */
+  public void setStaleTime(long ms) {
+    staleMs = ms;
+  }
+
+  /**
+   * @return number of requests waiting for data on all buses
+   */
+  public int getPending() {
+    int count = 0;
+    for (ArrayDeque<I2CRequest> pending : buses.values()) {
+      synchronized (pending) {
+        count += pending.size();
+      }
+    }
+    return count;
+  }
+
+  public long getCompleted() {
+    return completedCount.get();
+  }
+
+  public long getLost() {
+    return lostCount.get();
+  }
+
+  /**
+   * @return average micro seconds from request to data
+   */
+  public double getAverageLatency() {
+    long count = completedCount.get();
+    return (count == 0) ? 0 : (double) totalLatency.get() / count;
+  }
+
+  public long getMaxLatency() {
+    return maxLatency.get();
+  }
+
+  public void resetStats() {
+    completedCount.set(0);
+    lostCount.set(0);
+    totalLatency.set(0);
+    maxLatency.set(0);
+  }
+
+  /**
+   * releases everybody waiting - when the controller disconnects
+   */
+  public void clear() {
+    for (ArrayDeque<I2CRequest> pending : buses.values()) {
+      synchronized (pending) {
+        for (I2CRequest request : pending) {
+          request.fail();
+        }
+        pending.clear();
+      }
+    }
+  }
+
+  public String toString() {
+    return String.format("i2c completed %d lost %d pending %d avg %.1f us max %d us", getCompleted(), getLost(), getPending(), getAverageLatency(), getMaxLatency());
+  }
+}
@@ -0,0 +1,554 @@
+package org.myrobotlab.kinematics;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.LockSupport;
+
+import org.myrobotlab.framework.interfaces.ServiceInterface;
+import org.myrobotlab.kinematics.GestureTimeline.Cue;
+import org.myrobotlab.kinematics.GestureTimeline.Key;
+import org.myrobotlab.kinematics.GestureTimeline.Track;
+import org.myrobotlab.logging.LoggerFactory;
+import org.myrobotlab.service.Runtime;
+import org.myrobotlab.service.interfaces.ServoControl;
+import org.myrobotlab.service.interfaces.ServoController;
+import org.slf4j.Logger;
+
+/**
+ * GesturePlayer - plays gesture timelines without an interpreter or messages
+ * in the loop. When a gesture is started the trajectories of all its servos
+ * are computed and sampled at the tick rate, after that the clock thread only
+ * reads samples and writes them to the controllers, in one batch per
+ * controller if the controller can.
+ *
+ * The clock parks until shortly before a tick and then spins, so ticks are
+ * written with sub millisecond jitter. Samples are taken at the scheduled time
+ * of the tick, so a late tick writes the right positions anyway.
+ *
+ * Gestures are played on layers. Each servo starts from its rest pose and
+ * every gesture which moves it blends its own position over that, in layer
+ * order, by its weight. A gesture started on a layer which already plays one
+ * replaces it - cross fading over the blend time - and gestures on higher
+ * layers fade in and out over the lower ones.
+ *
+ */
+public class GesturePlayer implements Runnable {
+
+  public final static Logger log = LoggerFactory.getLogger(GesturePlayer.class);
+
+  static GesturePlayer instance;
+
+  /**
+   * a servo driven by the player
+   */
+  static class Channel {
+    final ServoControl servo;
+    /**
+     * position under all gestures - where the servo was when it was taken, or
+     * where the last finished gesture left it
+     */
+    double rest;
+    double value;
+    double last = Double.NaN;
+    int clips = 0;
+
+    Channel(ServoControl servo) {
+      this.servo = servo;
+      rest = servo.getPos();
+    }
+  }
+
+  /**
+   * a gesture being played - its sampled positions and where it is in time
+   */
+  static class Clip {
+    final GestureTimeline gesture;
+    final String prefix;
+    final int layer;
+    final double weight;
+    final double blend;
+    final long order;
+    final Channel[] channels;
+    /**
+     * positions [frame][channel], frame n is at n ticks after the start
+     */
+    final double[][] frames;
+    final double frameSeconds;
+    final double duration;
+    final List<Cue> cues;
+    int nextCue = 0;
+    long startNanos;
+    /**
+     * seconds after the start the fade out began, -1 if not fading out
+     */
+    double fadeOut = -1;
+    /**
+     * seconds to fade out - the blend time of the gesture which replaced this
+     * one, or its own
+     */
+    double fadeTime;
+    boolean result = true;
+    final CompletableFuture<Boolean> done = new CompletableFuture<Boolean>();
+
+    Clip(GestureTimeline gesture, String prefix, int layer, double weight, double blend, long order, Channel[] channels, double[][] frames, double frameSeconds,
+        double duration) {
+      this.gesture = gesture;
+      this.prefix = prefix;
+      this.layer = layer;
+      this.weight = weight;
+      this.blend = blend;
+      this.order = order;
+      this.channels = channels;
+      this.frames = frames;
+      this.frameSeconds = frameSeconds;
+      this.duration = duration;
+      fadeTime = blend;
+      cues = new ArrayList<Cue>(gesture.cues);
+      Collections.sort(cues, new Comparator<Cue>() {
+        @Override
+        public int compare(Cue a, Cue b) {
+          return Double.compare(a.time, b.time);
+        }
+      });
+    }
+
+    double weightAt(double t) {
+      double w = weight;
+      if (blend > 0 && t < blend) {
+        w *= t / blend;
+      }
+      if (fadeOut >= 0) {
+        w *= (fadeTime > 0) ? Math.max(0, 1 - (t - fadeOut) / fadeTime) : 0;
+      }
+      return w;
+    }
+
+    double valueAt(int channel, double t) {
+      double f = t / frameSeconds;
+      int i = (int) f;
+      if (i >= frames.length - 1) {
+        return frames[frames.length - 1][channel];
+      }
+      if (i < 0) {
+        return frames[0][channel];
+      }
+      double a = frames[i][channel];
+      return a + (frames[i + 1][channel] - a) * (f - i);
+    }
+  }
+
+  static final Comparator<Clip> LAYER_ORDER = new Comparator<Clip>() {
+    @Override
+    public int compare(Clip a, Clip b) {
+      if (a.layer != b.layer) {
+        return (a.layer < b.layer) ? -1 : 1;
+      }
+      return Long.compare(a.order, b.order);
+    }
+  };
+
+  final Map<String, Channel> channels = new HashMap<String, Channel>();
+
+  /**
+   * playing clips in layer order - replaced, never modified, so the clock
+   * thread can read it without a lock
+   */
+  volatile Clip[] clips = new Clip[0];
+
+  long clipCount = 0;
+
+  /**
+   * ms between two samples
+   */
+  int tick = 20;
+
+  /**
+   * the clock spins instead of parking this long before a tick
+   */
+  long spinNanos = 1000000;
+
+  /**
+   * smallest change of position which is written
+   */
+  double resolution = 0.1;
+
+  Thread thread;
+
+  // stats
+  long ticks = 0;
+  long writes = 0;
+  long batches = 0;
+  long overruns = 0;
+  long maxLateNanos = 0;
+  long totalLateNanos = 0;
+
+  public static synchronized GesturePlayer getInstance() {
+    if (instance == null) {
+      instance = new GesturePlayer();
+    }
+    return instance;
+  }
+
+  public CompletableFuture<Boolean> play(GestureTimeline gesture, String robot) {
+    return play(gesture, robot, 0, 1.0, 0);
+  }
+
+  /**
+   * starts a gesture
+   *
+   * @param gesture
+   *          - the timeline
+   * @param robot
+   *          - name of the robot, the servo names of the gesture are relative
+   *          to it
+   * @param layer
+   *          - higher layers are blended over lower ones, a gesture playing on
+   *          the same layer is replaced
+   * @param weight
+   *          - 0.0 - 1.0 how much the gesture moves its servos away from the
+   *          layers below
+   * @param blend
+   *          - seconds to fade in, to cross fade from the gesture it replaces
+   *          and - above layer 0 - to fade out at the end
+   * @return completes with true when the gesture finished, false if it was
+   *         replaced or stopped
+   */
+  public synchronized CompletableFuture<Boolean> play(GestureTimeline gesture, String robot, int layer, double weight, double blend) {
+    long now = System.nanoTime();
+    List<Clip> playing = new ArrayList<Clip>();
+    Collections.addAll(playing, clips);
+    for (Clip clip : playing.toArray(new Clip[0])) {
+      if (clip.layer == layer && clip.fadeOut < 0) {
+        clip.result = false;
+        if (blend > 0) {
+          // cross fades with the blend time of the replacing gesture
+          clip.fadeOut = seconds(now - clip.startNanos);
+          clip.fadeTime = blend;
+        } else {
+          playing.remove(clip);
+          release(clip);
+        }
+      }
+    }
+    Clip clip = compile(gesture, robot + ".", layer, weight, blend);
+    clip.startNanos = now;
+    playing.add(clip);
+    Collections.sort(playing, LAYER_ORDER);
+    clips = playing.toArray(new Clip[0]);
+    if (thread == null) {
+      thread = new Thread(this, "GesturePlayer");
+      thread.setDaemon(true);
+      thread.setPriority(Thread.MAX_PRIORITY);
+      thread.start();
+    }
+    notifyAll();
+    log.info("playing {} on layer {} - {} servos {} cues {} s", gesture.name, layer, clip.channels.length, clip.cues.size(), clip.duration);
+    return clip.done;
+  }
+
+  /**
+   * samples the trajectories of all servos of a gesture - the first move of
+   * each servo starts where the servo is now
+   */
+  Clip compile(GestureTimeline gesture, String prefix, int layer, double weight, double blend) {
+    double frameSeconds = tick / 1000.0;
+    List<Channel> used = new ArrayList<Channel>();
+    List<List<double[]>> segments = new ArrayList<List<double[]>>();
+    List<List<Trajectory>> trajectories = new ArrayList<List<Trajectory>>();
+    double duration = gesture.length;
+
+    for (Track track : gesture.tracks) {
+      ServiceInterface si = Runtime.getService(prefix + track.servo);
+      if (!(si instanceof ServoControl) || track.keys.isEmpty()) {
+        log.warn("{} - no servo {}{}", gesture.name, prefix, track.servo);
+        continue;
+      }
+      ServoControl servo = (ServoControl) si;
+      MotionScheduler.getInstance().stop(servo);
+      Channel channel = channels.get(servo.getName());
+      if (channel == null) {
+        channel = new Channel(servo);
+        channels.put(servo.getName(), channel);
+      }
+      double pos = Double.isNaN(channel.last) ? servo.getPos() : channel.last;
+
+      List<Key> keys = new ArrayList<Key>(track.keys);
+      Collections.sort(keys, new Comparator<Key>() {
+        @Override
+        public int compare(Key a, Key b) {
+          return Double.compare(a.time, b.time);
+        }
+      });
+
+      // start times and trajectories - a move starts where the previous one
+      // is at that time
+      List<double[]> starts = new ArrayList<double[]>();
+      List<Trajectory> moves = new ArrayList<Trajectory>();
+      for (Key key : keys) {
+        if (!moves.isEmpty()) {
+          Trajectory previous = moves.get(moves.size() - 1);
+          pos = previous.getPosition(key.time - starts.get(starts.size() - 1)[0]);
+        }
+        double velocity = key.velocity;
+        if (velocity == 0) {
+          velocity = servo.getMaxVelocity();
+        } else if (velocity < 0) {
+          velocity = servo.getVelocity();
+        }
+        double target = Math.max(servo.getMinInput(), Math.min(servo.getMaxInput(), key.pos));
+        Trajectory trajectory = new Trajectory(pos, target, velocity, servo.getAcceleration(), gesture.profile);
+        starts.add(new double[] { key.time });
+        moves.add(trajectory);
+        duration = Math.max(duration, key.time + trajectory.getDuration());
+      }
+      used.add(channel);
+      segments.add(starts);
+      trajectories.add(moves);
+    }
+
+    int count = (int) Math.ceil(duration / frameSeconds) + 1;
+    double[][] frames = new double[count][used.size()];
+    for (int c = 0; c < used.size(); ++c) {
+      List<double[]> starts = segments.get(c);
+      List<Trajectory> moves = trajectories.get(c);
+      int segment = 0;
+      double first = starts.get(0)[0];
+      for (int f = 0; f < count; ++f) {
+        double t = f * frameSeconds;
+        while (segment + 1 < moves.size() && starts.get(segment + 1)[0] <= t) {
+          ++segment;
+        }
+        if (t < first) {
+          // before the first key the servo stays where it is
+          frames[f][c] = moves.get(0).getStart();
+        } else {
+          frames[f][c] = moves.get(segment).getPosition(t - starts.get(segment)[0]);
+        }
+      }
+      used.get(c).clips++;
+    }
+
+    return new Clip(gesture, prefix, layer, weight, blend, ++clipCount, used.toArray(new Channel[0]), frames, frameSeconds, (count - 1) * frameSeconds);
+  }
+
+  /**
+   * stops all gestures - servos stay where they are
+   */
+  public synchronized void stop() {
+    for (Clip clip : clips) {
+      clip.result = false;
+      release(clip);
+    }
+    clips = new Clip[0];
+  }
+
+  /**
+   * stops a gesture
+   *
+   * @param name
+   *          - name of the gesture
+   * @return true if it was playing
+   */
+  public synchronized boolean stop(String name) {
+    List<Clip> playing = new ArrayList<Clip>();
+    boolean found = false;
+    for (Clip clip : clips) {
+      if (clip.gesture.name.equals(name)) {
+        clip.result = false;
+        release(clip);
+        found = true;
+      } else {
+        playing.add(clip);
+      }
+    }
+    clips = playing.toArray(new Clip[0]);
+    return found;
+  }
+
+  public boolean isPlaying() {
+    return clips.length > 0;
+  }
+
+  /**
+   * removes a clip from its servos - a servo no other clip drives stays at its
+   * last position, with a final moveTo so its state and events are as after
+   * any other move
+   */
+  void release(Clip clip) {
+    double t = seconds(System.nanoTime() - clip.startNanos);
+    for (int c = 0; c < clip.channels.length; ++c) {
+      Channel channel = clip.channels[c];
+      if (clip.result && clip.fadeOut < 0) {
+        // a finished gesture leaves its pose under the other layers
+        channel.rest += (clip.valueAt(c, t) - channel.rest) * clip.weight;
+      }
+      if (--channel.clips == 0) {
+        channels.remove(channel.servo.getName());
+        if (!Double.isNaN(channel.last)) {
+          // the last step may have been below the resolution
+          channel.servo.moveTo(channel.value);
+        }
+      }
+    }
+    clip.done.complete(clip.result);
+  }
+
+  synchronized void waitForClips() throws InterruptedException {
+    while (clips.length == 0) {
+      wait();
+    }
+  }
+
+  @Override
+  public void run() {
+    Map<ServoController, List<ServoControl>> batch = new HashMap<ServoController, List<ServoControl>>();
+    try {
+      long tickNanos = tick * 1000000L;
+      long next = System.nanoTime();
+      while (true) {
+        if (clips.length == 0) {
+          waitForClips();
+          tickNanos = tick * 1000000L;
+          next = System.nanoTime();
+        }
+        long now;
+        while ((now = System.nanoTime()) < next) {
+          long remaining = next - now;
+          if (remaining > spinNanos) {
+            LockSupport.parkNanos(remaining - spinNanos);
+          } else {
+            Thread.yield();
+          }
+        }
+        long late = now - next;
+        totalLateNanos += late;
+        if (late > maxLateNanos) {
+          maxLateNanos = late;
+        }
+        try {
+          step(next, batch);
+        } catch (Exception e) {
+          log.error("gesture player threw", e);
+        }
+        next += tickNanos;
+        if (System.nanoTime() - next > tickNanos) {
+          // more than a tick behind - skip instead of catching up in a burst
+          ++overruns;
+          next = System.nanoTime() + tickNanos;
+        }
+      }
+    } catch (InterruptedException e) {
+      log.info("gesture player stopped");
+    }
+  }
+
+  void step(long now, Map<ServoController, List<ServoControl>> batch) {
+    ++ticks;
+    Clip[] playing = clips;
+
+    for (Clip clip : playing) {
+      for (Channel channel : clip.channels) {
+        channel.value = channel.rest;
+      }
+    }
+
+    List<Clip> finished = null;
+    for (Clip clip : playing) {
+      double t = seconds(now - clip.startNanos);
+      double w = clip.weightAt(t);
+      for (int c = 0; c < clip.channels.length; ++c) {
+        Channel channel = clip.channels[c];
+        channel.value += (clip.valueAt(c, t) - channel.value) * w;
+      }
+      while (clip.nextCue < clip.cues.size() && clip.cues.get(clip.nextCue).time <= t) {
+        Cue cue = clip.cues.get(clip.nextCue++);
+        Runtime.getInstance().send(clip.prefix + cue.service, cue.method, cue.text);
+      }
+      boolean ended = false;
+      if (clip.fadeOut >= 0) {
+        ended = w <= 0;
+      } else if (t >= clip.duration) {
+        if (clip.layer > 0 && clip.blend > 0) {
+          // upper layers fade back to what is below them
+          clip.fadeOut = t;
+          clip.result = true;
+        } else {
+          ended = true;
+        }
+      }
+      if (ended) {
+        if (finished == null) {
+          finished = new ArrayList<Clip>();
+        }
+        finished.add(clip);
+      }
+    }
+
+    for (Clip clip : playing) {
+      for (Channel channel : clip.channels) {
+        if (Double.isNaN(channel.last) || Math.abs(channel.value - channel.last) >= resolution) {
+          channel.last = channel.value;
+          ++writes;
+          MotionScheduler.writeStep(channel.servo, channel.value, batch);
+        }
+      }
+    }
+    batches += MotionScheduler.flushBatch(batch);
+
+    if (finished != null) {
+      end(finished);
+    }
+  }
+
+  synchronized void end(List<Clip> finished) {
+    List<Clip> playing = new ArrayList<Clip>();
+    for (Clip clip : clips) {
+      if (!finished.contains(clip)) {
+        playing.add(clip);
+      }
+    }
+    clips = playing.toArray(new Clip[0]);
+    for (Clip clip : finished) {
+      release(clip);
+    }
+  }
+
+  static double seconds(long nanos) {
+    return nanos / 1000000000.0;
+  }
+
+  public void setTick(int ms) {
+    tick = ms;
+  }
+
+  public void setSpin(int us) {
+    spinNanos = us * 1000L;
+  }
+
+  public void setResolution(double degrees) {
+    resolution = degrees;
+  }
+
+  public double getMaxJitter() {
+    return maxLateNanos / 1000.0;
+  }
+
+  public double getAverageJitter() {
+    return (ticks == 0) ? 0 : totalLateNanos / 1000.0 / ticks;
+  }
+
+  public void resetStats() {
+    ticks = writes = batches = overruns = 0;
+    maxLateNanos = totalLateNanos = 0;
+  }
+
+  public String toString() {
+    return String.format("playing %d ticks %d writes %d batches %d overruns %d jitter avg %.1f us max %.1f us", clips.length, ticks, writes, batches, overruns,
+        getAverageJitter(), getMaxJitter());
+  }
+}
@@ -0,0 +1,392 @@
+package org.myrobotlab.kinematics;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.myrobotlab.codec.CodecUtils;
+import org.myrobotlab.io.FileIO;
+import org.myrobotlab.kinematics.Trajectory.Profile;
+import org.myrobotlab.logging.LoggerFactory;
+import org.myrobotlab.service.Servo;
+import org.slf4j.Logger;
+
+/**
+ * A gesture as a timeline of servo keyframes - the target position of a servo
+ * at a time, and the velocity to move there with - and of cues like speech.
+ * Servo names are relative to the robot (head.neck, leftHand.thumb ...) so a
+ * gesture can be played on any InMoov. Times are in seconds from the start of
+ * the gesture.
+ *
+ * Timelines are stored as json and can be converted from the python gesture
+ * scripts of the InMoovGestureCreator.
+ *
+ */
+public class GestureTimeline {
+
+  public final static Logger log = LoggerFactory.getLogger(GestureTimeline.class);
+
+  public static class Key {
+    public double time;
+    public double pos;
+    /**
+     * degrees per second, 0 is as fast as the servo can, -1 is the velocity
+     * the servo has when the gesture is played
+     */
+    public double velocity = -1;
+
+    public Key() {
+    }
+
+    public Key(double time, double pos, double velocity) {
+      this.time = time;
+      this.pos = pos;
+      this.velocity = velocity;
+    }
+  }
+
+  public static class Track {
+    public String servo;
+    public List<Key> keys = new ArrayList<Key>();
+
+    public Track() {
+    }
+
+    public Track(String servo) {
+      this.servo = servo;
+    }
+  }
+
+  /**
+   * a message sent to a peer of the robot at a time - mouth.speak ...
+   */
+  public static class Cue {
+    public double time;
+    public String service;
+    public String method;
+    public String text;
+
+    public Cue() {
+    }
+
+    public Cue(double time, String service, String method, String text) {
+      this.time = time;
+      this.service = service;
+      this.method = method;
+      this.text = text;
+    }
+  }
+
+  public String name;
+
+  public Profile profile = Profile.TRAPEZOID;
+
+  /**
+   * seconds - the end of the last sleep, moves still running then are
+   * finished by the player
+   */
+  public double length;
+
+  public List<Track> tracks = new ArrayList<Track>();
+
+  public List<Cue> cues = new ArrayList<Cue>();
+
+  public GestureTimeline() {
+  }
+
+  public GestureTimeline(String name) {
+    this.name = name;
+  }
+
+  public Track getTrack(String servo) {
+    for (Track track : tracks) {
+      if (track.servo.equals(servo)) {
+        return track;
+      }
+    }
+    Track track = new Track(servo);
+    tracks.add(track);
+    return track;
+  }
+
+  public void addKey(String servo, double time, double pos, double velocity) {
+    getTrack(servo).keys.add(new Key(time, pos, velocity));
+    length = Math.max(length, time);
+  }
+
+  public void addCue(double time, String service, String method, String text) {
+    cues.add(new Cue(time, service, method, text));
+    length = Math.max(length, time);
+  }
+
+  public int getKeyCount() {
+    int count = 0;
+    for (Track track : tracks) {
+      count += track.keys.size();
+    }
+    return count;
+  }
+
+  public String toJson() {
+    return CodecUtils.toJson(this);
+  }
+
+  public static GestureTimeline fromJson(String json) {
+    return CodecUtils.fromJson(json, GestureTimeline.class);
+  }
+
+  public void save(File file) throws IOException {
+    FileIO.toFile(file.getAbsolutePath(), toJson());
+  }
+
+  public static GestureTimeline load(File file) throws IOException {
+    return fromJson(FileIO.toString(file));
+  }
+
+  /**
+   * converts python gesture scripts - def blocks of move, speed, speak and
+   * sleep calls on the robot - to timelines. Lines which are not understood
+   * are logged and skipped.
+   *
+   * @param script
+   *          - python source with one or more gesture functions
+   * @param robot
+   *          - the name of the robot in the script, i01 ...
+   * @return one timeline per function
+   */
+  public static List<GestureTimeline> fromScript(String script, String robot) {
+    List<GestureTimeline> gestures = new ArrayList<GestureTimeline>();
+    ScriptConverter converter = null;
+    for (String line : script.split("\r?\n")) {
+      String trimmed = line.trim();
+      if (trimmed.isEmpty() || trimmed.startsWith("#")) {
+        continue;
+      }
+      if (trimmed.startsWith("def ")) {
+        String name = trimmed.substring(4, trimmed.indexOf('(')).trim();
+        converter = new ScriptConverter(new GestureTimeline(name), robot);
+        gestures.add(converter.gesture);
+        continue;
+      }
+      if (converter == null) {
+        // top level statements are not part of a gesture
+        continue;
+      }
+      if (!converter.convert(trimmed)) {
+        log.info("{} - skipping {}", converter.gesture.name, trimmed);
+      }
+    }
+    return gestures;
+  }
+
+  /**
+   * state of the conversion of one gesture function - the script time and
+   * the last known velocity and target of every servo
+   */
+  static class ScriptConverter {
+    final GestureTimeline gesture;
+    final String robot;
+    double time = 0;
+    final Map<String, Double> velocities = new HashMap<String, Double>();
+    final Map<String, Double> targets = new HashMap<String, Double>();
+
+    final static String[] HEAD = { "neck", "rothead", "eyeX", "eyeY", "jaw", "rollNeck" };
+    final static String[] HEAD_SPEED = { "rothead", "neck", "eyeX", "eyeY", "jaw", "rollNeck" };
+    final static String[] HAND = { "thumb", "index", "majeure", "ringFinger", "pinky", "wrist" };
+    final static String[] ARM = { "bicep", "rotate", "shoulder", "omoplate" };
+    final static String[] TORSO = { "topStom", "midStom", "lowStom" };
+    final static String[] EYES = { "eyeX", "eyeY" };
+    final static String[] EYELIDS = { "eyelidleft", "eyelidright" };
+
+    ScriptConverter(GestureTimeline gesture, String robot) {
+      this.gesture = gesture;
+      this.robot = robot;
+    }
+
+    boolean convert(String line) {
+      int open = line.indexOf('(');
+      int close = line.lastIndexOf(')');
+      if (open < 0 || close < open) {
+        return false;
+      }
+      String call = line.substring(0, open).trim();
+      List<Object> args = parseArgs(line.substring(open + 1, close));
+
+      if (call.equals("sleep") || call.equals("time.sleep")) {
+        time += number(args, 0, 0);
+        gesture.length = Math.max(gesture.length, time);
+        return true;
+      }
+
+      if (!call.startsWith(robot + ".")) {
+        return false;
+      }
+      call = call.substring(robot.length() + 1);
+
+      boolean blocking = call.endsWith("Blocking") && call.startsWith("move");
+      if (blocking) {
+        call = call.substring(0, call.length() - "Blocking".length());
+      }
+
+      if (call.equals("mouth.speak") || call.equals("mouth.speakBlocking")) {
+        gesture.addCue(time, "mouth", call.substring("mouth.".length()), (args.isEmpty()) ? "" : String.valueOf(args.get(0)));
+        return true;
+      }
+
+      String[] servos = null;
+      String part = null;
+      List<Object> values = args;
+      if (call.equals("moveHead")) {
+        part = "head";
+        if (args.size() == 3) {
+          // neck, rothead, rollNeck
+          servos = new String[] { "neck", "rothead", "rollNeck" };
+        } else {
+          servos = HEAD;
+        }
+      } else if (call.equals("moveHand") || call.equals("moveArm")) {
+        part = String.valueOf(args.get(0)) + ((call.equals("moveHand")) ? "Hand" : "Arm");
+        servos = (call.equals("moveHand")) ? HAND : ARM;
+        values = args.subList(1, args.size());
+      } else if (call.equals("moveTorso")) {
+        part = "torso";
+        servos = TORSO;
+      } else if (call.equals("moveEyes")) {
+        part = "head";
+        servos = EYES;
+      } else if (call.equals("moveEyelids")) {
+        part = "eyelids";
+        servos = EYELIDS;
+      } else if (call.endsWith(".moveTo")) {
+        part = call.substring(0, call.lastIndexOf('.'));
+        servos = new String[] { "" };
+      }
+
+      if (servos != null) {
+        move(part, servos, values, blocking);
+        return true;
+      }
+
+      boolean speed = call.endsWith("Speed");
+      boolean velocity = call.endsWith("Velocity");
+      if (!speed && !velocity) {
+        return false;
+      }
+      String setter = call.substring(0, call.length() - ((speed) ? "Speed".length() : "Velocity".length()));
+      values = args;
+      if (setter.equals("setHead")) {
+        part = "head";
+        servos = HEAD_SPEED;
+      } else if (setter.equals("setHand") || setter.equals("setArm")) {
+        part = String.valueOf(args.get(0)) + ((setter.equals("setHand")) ? "Hand" : "Arm");
+        servos = (setter.equals("setHand")) ? HAND : ARM;
+        values = args.subList(1, args.size());
+      } else if (setter.equals("setTorso")) {
+        part = "torso";
+        servos = TORSO;
+      } else if (setter.equals("setEyelids")) {
+        part = "eyelids";
+        servos = EYELIDS;
+      } else if (setter.endsWith(".set")) {
+        part = setter.substring(0, setter.lastIndexOf('.'));
+        servos = new String[] { "" };
+      } else {
+        return false;
+      }
+      for (int i = 0; i < servos.length && i < values.size(); ++i) {
+        if (values.get(i) instanceof Double) {
+          double v = (Double) values.get(i);
+          if (speed) {
+            // same mapping as Servo.setSpeed - 1.0 is full speed
+            v = (v >= 1.0) ? 0 : Servo.speedToVelocity(v);
+          }
+          velocities.put(servo(part, servos[i]), v);
+        }
+      }
+      return true;
+    }
+
+    void move(String part, String[] servos, List<Object> values, boolean blocking) {
+      double arrival = time;
+      for (int i = 0; i < servos.length && i < values.size(); ++i) {
+        if (!(values.get(i) instanceof Double)) {
+          // None - this servo is not moved
+          continue;
+        }
+        String servo = servo(part, servos[i]);
+        double pos = (Double) values.get(i);
+        Double velocity = velocities.get(servo);
+        double v = (velocity == null) ? -1 : velocity;
+        gesture.addKey(servo, time, pos, v);
+        Double previous = targets.get(servo);
+        if (previous != null && v > 0) {
+          arrival = Math.max(arrival, time + Math.abs(pos - previous) / v);
+        }
+        targets.put(servo, pos);
+      }
+      if (blocking) {
+        // only known for servos with a known start and velocity
+        time = arrival;
+        gesture.length = Math.max(gesture.length, time);
+      }
+    }
+
+    static String servo(String part, String servo) {
+      return (servo.isEmpty()) ? part : part + "." + servo;
+    }
+
+    static double number(List<Object> args, int index, double def) {
+      if (index < args.size() && args.get(index) instanceof Double) {
+        return (Double) args.get(index);
+      }
+      return def;
+    }
+
+    /**
+     * @return Double for numbers, null for None, String for anything else
+     *         with quotes removed
+     */
+    static List<Object> parseArgs(String s) {
+      List<Object> args = new ArrayList<Object>();
+      StringBuilder current = new StringBuilder();
+      char quote = 0;
+      for (int i = 0; i < s.length(); ++i) {
+        char c = s.charAt(i);
+        if (quote != 0) {
+          if (c == quote) {
+            quote = 0;
+          } else {
+            current.append(c);
+          }
+        } else if (c == '"' || c == '\'') {
+          quote = c;
+        } else if (c == ',') {
+          args.add(arg(current.toString()));
+          current.setLength(0);
+        } else {
+          current.append(c);
+        }
+      }
+      if (current.length() > 0 || !args.isEmpty()) {
+        args.add(arg(current.toString()));
+      }
+      return args;
+    }
+
+    static Object arg(String s) {
+      String t = s.trim();
+      if (t.equals("None")) {
+        return null;
+      }
+      try {
+        return Double.parseDouble(t);
+      } catch (NumberFormatException e) {
+        return t;
+      }
+    }
+  }
+
+}
@@ -7,7 +7,7 @@ import java.util.ArrayList;
 
 import org.myrobotlab.genetic.Chromosome;
 import org.myrobotlab.genetic.Genetic;
-import org.myrobotlab.genetic.GeneticAlgorithm;
+import org.myrobotlab.genetic.ParallelGeneticAlgorithm;
 import org.myrobotlab.kinematics.CollisionDectection.CollisionResults;
 import org.myrobotlab.math.Mapper;
 import org.myrobotlab.math.MathUtils;
@@ -293,17 +293,23 @@ public class IMEngine extends Thread implements Genetic {
         //if (numSteps >= maxIterations) return true;
         //Log.info(computeArm.getPalmPosition().toString() + "genetic");
         calcFitnessType = CalcFitnessType.POSITION;
-        GeneticAlgorithm GA = new GeneticAlgorithm(this, geneticPoolSize, arm.getNumLinks(), 12, geneticRecombinationRate, geneticMutationRate );
-        Chromosome bestFit = GA.doGeneration(geneticGeneration); // this is the number of time the chromosome pool will be recombined and mutate
+        // the fitness of a position only reads computeArm and target - it is computed on all cores
+        ParallelGeneticAlgorithm GA = new ParallelGeneticAlgorithm(new ParallelGeneticAlgorithm.Fitness() {
+          @Override
+          public double fitness(ParallelGeneticAlgorithm.Genome genome) {
+            return positionFitness(decodeGenome(genome.toString()));
+          }
+        }, geneticPoolSize, arm.getNumLinks() * 12, geneticRecombinationRate, geneticMutationRate);
+        ArrayList<Object> bestFit = decodeGenome(GA.doGeneration(geneticGeneration).toString()); // this is the number of time the chromosome pool will be recombined and mutate
         for (int i = 0; i < computeArm.getNumLinks(); i++) {
-          if (bestFit.getDecodedGenome().get(i) != null) {
+          if (bestFit.get(i) != null) {
             DHLink link = computeArm.getLink(i);
             double degrees = link.getPositionValueDeg();
-            double deltaDegree = java.lang.Math.abs(degrees - (double)bestFit.getDecodedGenome().get(i));
-            if (degrees > ((double)bestFit.getDecodedGenome().get(i))) {
+            double deltaDegree = java.lang.Math.abs(degrees - (double)bestFit.get(i));
+            if (degrees > ((double)bestFit.get(i))) {
               degrees -= deltaDegree;
             }
-            else if (degrees < ((double)bestFit.getDecodedGenome().get(i))) {
+            else if (degrees < ((double)bestFit.get(i))) {
               degrees += deltaDegree;
             }
             link.addPositionValue( degrees);
@@ -563,38 +569,41 @@ public class IMEngine extends Thread implements Genetic {
 		
 	}
 
+  /**
+   * @return the arm of computeArm moved to the decoded genome
+   */
+  private DHRobotArm armOf(ArrayList<Object> decodedGenome) {
+    DHRobotArm newArm = new DHRobotArm();
+    for (int i = 0; i < computeArm.getNumLinks(); i++){
+      //copy the value of the currentArm
+      DHLink newLink = new DHLink(computeArm.getLink(i));
+      if (decodedGenome.get(i) != null) {
+        newLink.addPositionValue((double)decodedGenome.get(i));
+      }
+      newArm.addLink(newLink);
+    }
+    return newArm;
+  }
+
+  /**
+   * @return how close the palm of the arm of the decoded genome gets to target
+   */
+  private double positionFitness(ArrayList<Object> decodedGenome) {
+    if (target == null) return 0;
+    double distance = armOf(decodedGenome).getPalmPosition().distanceTo(target);
+    //fitness is the score showing how close the results is to the target position
+    return Math.abs(1 / distance * 1000);
+  }
+
   @Override
   public void calcFitness(ArrayList<Chromosome> chromosomes) {
     for (Chromosome chromosome : chromosomes) {
-      DHRobotArm newArm = new DHRobotArm();
-      double fitnessMult = 1;
-      double fitnessTime = 0;
-      for (int i = 0; i < computeArm.getNumLinks(); i++){
-        //copy the value of the currentArm
-        DHLink newLink = new DHLink(computeArm.getLink(i));
-        if (chromosome.getDecodedGenome().get(i) != null) {
-          newLink.addPositionValue((double)chromosome.getDecodedGenome().get(i));
-          double delta = computeArm.getLink(i).getPositionValueDeg() - (double)chromosome.getDecodedGenome().get(i);
-          double timeOfMove = Math.abs(delta / newLink.getVelocity());
-          if (timeOfMove > fitnessTime) {
-            fitnessTime = timeOfMove;
-          }
-        }
-        newArm.addLink(newLink);
-      }
-      Point potLocation = newArm.getPalmPosition();
       if (calcFitnessType == CalcFitnessType.POSITION) {
         if (target == null) return;
-        Double distance = potLocation.distanceTo(target);
-        if (fitnessTime < 0.1) {
-          fitnessTime = 0.1;
-        }
-        //fitness is the score showing how close the results is to the target position
-        Double fitness = (fitnessMult/distance*1000);// + (1/fitnessTime*.01);
-        if (fitness < 0) fitness *=-1;
-        chromosome.setFitness(fitness);
+        chromosome.setFitness(positionFitness(chromosome.getDecodedGenome()));
       }
       else if (calcFitnessType == CalcFitnessType.COG) {
+        Point potLocation = armOf(chromosome.getDecodedGenome()).getPalmPosition();
         //compute the COG of this potiental arm
         CollisionDectection cd = new CollisionDectection(service.collisionItems);
         DHRobotArm checkArm = new DHRobotArm(arm);
@@ -651,40 +660,47 @@ public class IMEngine extends Thread implements Genetic {
   @Override
   public void decode(ArrayList<Chromosome> chromosomes) {
     for (Chromosome chromosome : chromosomes ){
-      int pos=0;
-      ArrayList<Object>decodedGenome = new ArrayList<Object>();
-      for (DHLink link: computeArm.getLinks()){
-        if (!link.hasServo) {
-          decodedGenome.add(null);
-          continue;
-        }
-        if (link.getState() == Servo.SERVO_EVENT_POSITION_UPDATE) {
-          decodedGenome.add(link.getTargetPos());
-          continue;
-        }
-        Mapper map = null;
-        if(link.servoMin == link.servoMax) {
-          decodedGenome.add(link.servoMin);
-          continue;
-        }
-        else {
-          map = new Mapper(0,8191,link.servoMin,link.servoMax);
-        }
-        Double value=0.0;
-        for (int i= pos; i< chromosome.getGenome().length() && i < pos+13; i++){
-          if(chromosome.getGenome().charAt(i) == '1') value += 1 << i-pos; 
-        }
-        pos += 13;
-        value = map.calcOutput(value);
-        if (value.isNaN()) {
-          value = link.getPositionValueDeg();
-        }
-        //if (value < MathUtils.radToDeg(link.getMin()-link.getInitialTheta())) value = link.getPositionValueDeg();
-        //if (value > MathUtils.radToDeg(link.getMax()-link.getInitialTheta())) value = link.getPositionValueDeg();
-        decodedGenome.add(value);
+      chromosome.setDecodedGenome(decodeGenome(chromosome.getGenome()));
+    }
+  }
+
+  /**
+   * @return the position of each link, null for links without a servo
+   */
+  private ArrayList<Object> decodeGenome(String genome) {
+    int pos=0;
+    ArrayList<Object>decodedGenome = new ArrayList<Object>();
+    for (DHLink link: computeArm.getLinks()){
+      if (!link.hasServo) {
+        decodedGenome.add(null);
+        continue;
+      }
+      if (link.getState() == Servo.SERVO_EVENT_POSITION_UPDATE) {
+        decodedGenome.add(link.getTargetPos());
+        continue;
+      }
+      Mapper map = null;
+      if(link.servoMin == link.servoMax) {
+        decodedGenome.add(link.servoMin);
+        continue;
+      }
+      else {
+        map = new Mapper(0,8191,link.servoMin,link.servoMax);
+      }
+      Double value=0.0;
+      for (int i= pos; i< genome.length() && i < pos+13; i++){
+        if(genome.charAt(i) == '1') value += 1 << i-pos; 
+      }
+      pos += 13;
+      value = map.calcOutput(value);
+      if (value.isNaN()) {
+        value = link.getPositionValueDeg();
       }
-      chromosome.setDecodedGenome(decodedGenome);
+      //if (value < MathUtils.radToDeg(link.getMin()-link.getInitialTheta())) value = link.getPositionValueDeg();
+      //if (value > MathUtils.radToDeg(link.getMax()-link.getInitialTheta())) value = link.getPositionValueDeg();
+      decodedGenome.add(value);
     }
+    return decodedGenome;
   }
 
   public double[][] createJointPositionMap() {
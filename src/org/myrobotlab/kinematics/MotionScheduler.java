@@ -0,0 +1,362 @@
+package org.myrobotlab.kinematics;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.myrobotlab.kinematics.Trajectory.Profile;
+import org.myrobotlab.logging.LoggerFactory;
+import org.myrobotlab.service.Servo;
+import org.myrobotlab.service.interfaces.ServoBatchController;
+import org.myrobotlab.service.interfaces.ServoControl;
+import org.myrobotlab.service.interfaces.ServoController;
+import org.slf4j.Logger;
+
+/**
+ * MotionScheduler - the one thread which moves all servos along their
+ * trajectories. Every tick it computes the position of every moving servo and
+ * writes the positions per controller, in one batch if the controller can.
+ * 
+ * A move of several servos is a segment - all of them start at the same time
+ * and finish together, the faster ones are slowed down to the slowest. The
+ * completion of a move is a future instead of a blocked thread.
+ *
+ */
+public class MotionScheduler implements Runnable {
+
+  public final static Logger log = LoggerFactory.getLogger(MotionScheduler.class);
+
+  static MotionScheduler instance;
+
+  /**
+   * servos which started and finish together - done completes with true when
+   * all of them arrived, or false if one was stopped or got a new move
+   */
+  static class Segment {
+    final CompletableFuture<Boolean> done = new CompletableFuture<Boolean>();
+    final AtomicInteger remaining;
+    volatile boolean arrived = true;
+
+    Segment(int count) {
+      remaining = new AtomicInteger(count);
+    }
+
+    void finish(boolean ok) {
+      if (!ok) {
+        arrived = false;
+      }
+      if (remaining.decrementAndGet() == 0) {
+        done.complete(arrived);
+      }
+    }
+  }
+
+  static class Move {
+    final ServoControl servo;
+    final Segment segment;
+    Trajectory trajectory;
+    long startNanos;
+    double last = Double.NaN;
+
+    // sweeping back and forth until stopped
+    boolean sweep = false;
+    double sweepVelocity;
+
+    Move(ServoControl servo, Trajectory trajectory, Segment segment, long startNanos) {
+      this.servo = servo;
+      this.trajectory = trajectory;
+      this.segment = segment;
+      this.startNanos = startNanos;
+    }
+  }
+
+  final Map<String, Move> moves = new ConcurrentHashMap<String, Move>();
+
+  /**
+   * ms between two positions
+   */
+  int tick = 20;
+
+  /**
+   * smallest change of position which is written
+   */
+  double resolution = 0.1;
+
+  Profile profile = Profile.TRAPEZOID;
+
+  Thread thread;
+
+  // ticks and servo positions written
+  long ticks = 0;
+  long writes = 0;
+  long batches = 0;
+
+  public static synchronized MotionScheduler getInstance() {
+    if (instance == null) {
+      instance = new MotionScheduler();
+    }
+    return instance;
+  }
+
+  /**
+   * moves a servo with its velocity and acceleration
+   * 
+   * @param servo
+   *          - the servo
+   * @param pos
+   *          - target position
+   * @return completes with true when the servo arrived
+   */
+  public CompletableFuture<Boolean> moveTo(ServoControl servo, double pos) {
+    Map<ServoControl, Double> targets = new HashMap<ServoControl, Double>();
+    targets.put(servo, pos);
+    return moveTo(targets, profile, 0);
+  }
+
+  public CompletableFuture<Boolean> moveTo(Map<ServoControl, Double> targets) {
+    return moveTo(targets, profile, 0);
+  }
+
+  /**
+   * moves several servos so they start and finish together
+   * 
+   * @param targets
+   *          - target position of each servo
+   * @param profile
+   *          - the velocity profile
+   * @param seconds
+   *          - min duration of the move, 0 is as fast as the slowest servo
+   *          can
+   * @return completes with true when all servos arrived
+   */
+  public CompletableFuture<Boolean> moveTo(Map<ServoControl, Double> targets, Profile profile, double seconds) {
+    Segment segment = new Segment(targets.size());
+    if (targets.isEmpty()) {
+      segment.done.complete(true);
+      return segment.done;
+    }
+    List<Move> segmentMoves = new ArrayList<Move>(targets.size());
+    double duration = seconds;
+    long now = System.nanoTime();
+    for (Map.Entry<ServoControl, Double> target : targets.entrySet()) {
+      ServoControl servo = target.getKey();
+      double pos = Math.max(servo.getMinInput(), Math.min(servo.getMaxInput(), target.getValue()));
+      Trajectory trajectory = new Trajectory(servo.getPos(), pos, servo.getVelocity(), servo.getAcceleration(), profile);
+      duration = Math.max(duration, trajectory.getDuration());
+      segmentMoves.add(new Move(servo, trajectory, segment, now));
+    }
+    for (Move move : segmentMoves) {
+      move.trajectory.setDuration(duration);
+      replace(move);
+    }
+    wake();
+    return segment.done;
+  }
+
+  /**
+   * sweeps a servo back and forth until it is stopped
+   * 
+   * @param servo
+   *          - the servo
+   * @param min
+   *          - one end
+   * @param max
+   *          - the other end
+   * @param velocity
+   *          - degrees per second
+   * @return completes when the sweep is stopped
+   */
+  public CompletableFuture<Boolean> sweep(ServoControl servo, double min, double max, double velocity) {
+    Segment segment = new Segment(1);
+    double pos = servo.getPos();
+    // start towards the end which is further away
+    double target = (Math.abs(max - pos) > Math.abs(min - pos)) ? max : min;
+    Move move = new Move(servo, new Trajectory(pos, target, velocity, servo.getAcceleration(), profile), segment, System.nanoTime());
+    move.sweep = true;
+    move.sweepVelocity = velocity;
+    replace(move);
+    wake();
+    return segment.done;
+  }
+
+  void replace(Move move) {
+    Move previous = moves.put(move.servo.getName(), move);
+    if (previous != null) {
+      previous.segment.finish(previous.sweep);
+    }
+  }
+
+  /**
+   * stops the move of a servo where it is
+   * 
+   * @param servo
+   *          - the servo
+   * @return true if it was moving
+   */
+  public boolean stop(ServoControl servo) {
+    Move move = moves.remove(servo.getName());
+    if (move == null) {
+      return false;
+    }
+    move.segment.finish(move.sweep);
+    return true;
+  }
+
+  public boolean isMoving(ServoControl servo) {
+    return moves.containsKey(servo.getName());
+  }
+
+  /**
+   * @param servo
+   *          - the servo
+   * @return the completion of its current move or null if it is not moving
+   */
+  public CompletableFuture<Boolean> getFuture(ServoControl servo) {
+    Move move = moves.get(servo.getName());
+    return (move == null) ? null : move.segment.done;
+  }
+
+  public void setTick(int ms) {
+    tick = ms;
+  }
+
+  public void setProfile(Profile profile) {
+    this.profile = profile;
+  }
+
+  public void setResolution(double degrees) {
+    resolution = degrees;
+  }
+
+  synchronized void wake() {
+    if (thread == null) {
+      thread = new Thread(this, "MotionScheduler");
+      thread.setDaemon(true);
+      thread.start();
+    }
+    notifyAll();
+  }
+
+  synchronized void waitForMoves() throws InterruptedException {
+    while (moves.isEmpty()) {
+      wait();
+    }
+  }
+
+  @Override
+  public void run() {
+    Map<ServoController, List<ServoControl>> batch = new HashMap<ServoController, List<ServoControl>>();
+    List<Move> arrived = new ArrayList<Move>();
+    try {
+      while (true) {
+        waitForMoves();
+        long now = System.nanoTime();
+        try {
+          step(now, batch, arrived);
+        } catch (Exception e) {
+          log.error("motion scheduler threw", e);
+        }
+        long sleep = tick - (System.nanoTime() - now) / 1000000;
+        if (sleep > 0) {
+          Thread.sleep(sleep);
+        }
+      }
+    } catch (InterruptedException e) {
+      log.info("motion scheduler stopped");
+    }
+  }
+
+  void step(long now, Map<ServoController, List<ServoControl>> batch, List<Move> arrived) {
+    ++ticks;
+    for (Move move : moves.values()) {
+      double t = (now - move.startNanos) / 1000000000.0;
+      Trajectory trajectory = move.trajectory;
+      double pos = trajectory.getPosition(t);
+      if (trajectory.isDone(t)) {
+        if (move.sweep) {
+          // turn around
+          move.trajectory = new Trajectory(trajectory.getEnd(), trajectory.getStart(), move.sweepVelocity, move.servo.getAcceleration(), trajectory.getProfile());
+          move.startNanos = now;
+        } else {
+          arrived.add(move);
+          continue;
+        }
+      }
+      if (!Double.isNaN(move.last) && Math.abs(pos - move.last) < resolution) {
+        continue;
+      }
+      move.last = pos;
+      ++writes;
+      writeStep(move.servo, pos, batch);
+    }
+    batches += flushBatch(batch);
+
+    // the last position goes through moveTo, so events, state and auto
+    // disable work as for any other move
+    for (Move move : arrived) {
+      if (moves.remove(move.servo.getName(), move)) {
+        move.servo.moveTo(move.trajectory.getEnd());
+        move.segment.finish(true);
+      }
+    }
+    arrived.clear();
+  }
+
+  /**
+   * writes an intermediate position - collected per controller if the
+   * controller can write a batch, directly otherwise
+   * 
+   * @param servo
+   *          - the servo
+   * @param pos
+   *          - the position
+   * @param batch
+   *          - servos to write per batch controller
+   */
+  static void writeStep(ServoControl servo, double pos, Map<ServoController, List<ServoControl>> batch) {
+    ServoController controller = (servo instanceof Servo) ? ((Servo) servo).getController() : null;
+    if (controller instanceof ServoBatchController && ((Servo) servo).prepareStep(pos)) {
+      List<ServoControl> servos = batch.get(controller);
+      if (servos == null) {
+        servos = new ArrayList<ServoControl>();
+        batch.put(controller, servos);
+      }
+      servos.add(servo);
+    } else {
+      servo.stepTo(pos);
+    }
+  }
+
+  /**
+   * @return number of batches written
+   */
+  static int flushBatch(Map<ServoController, List<ServoControl>> batch) {
+    int count = 0;
+    for (Map.Entry<ServoController, List<ServoControl>> entry : batch.entrySet()) {
+      if (!entry.getValue().isEmpty()) {
+        ((ServoBatchController) entry.getKey()).servoWriteBatch(entry.getValue());
+        entry.getValue().clear();
+        ++count;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * @return names of the servos which are moving
+   */
+  public List<String> getMoving() {
+    List<String> names = new ArrayList<String>(moves.keySet());
+    Collections.sort(names);
+    return names;
+  }
+
+  public String toString() {
+    return String.format("moving %d ticks %d writes %d batches %d", moves.size(), ticks, writes, batches);
+  }
+}
@@ -0,0 +1,207 @@
+package org.myrobotlab.kinematics;
+
+/**
+ * A time parameterized move of one joint from a start to an end position. The
+ * shape of the velocity over time is given by the profile, its duration is the
+ * shortest one which respects the max velocity and acceleration - or longer,
+ * when several joints have to start and finish together.
+ * 
+ * Positions are in degrees, velocities in degrees per second, accelerations in
+ * degrees per second squared and times in seconds.
+ *
+ */
+public class Trajectory {
+
+  public enum Profile {
+    /**
+     * constant velocity
+     */
+    LINEAR,
+    /**
+     * constant acceleration up to the velocity, constant deceleration at the
+     * end
+     */
+    TRAPEZOID,
+    /**
+     * smooth acceleration and deceleration without jumps in acceleration
+     * (cycloidal)
+     */
+    SCURVE
+  }
+
+  final double start;
+  final double end;
+  final Profile profile;
+
+  /**
+   * duration in seconds
+   */
+  double duration;
+
+  /**
+   * part of the duration used to accelerate (and to decelerate) in a TRAPEZOID
+   */
+  double ramp;
+
+  /**
+   * @param start
+   *          - start position
+   * @param end
+   *          - end position
+   * @param velocity
+   *          - max velocity, &lt;= 0 is no limit, which makes the move
+   *          immediate
+   * @param acceleration
+   *          - max acceleration, &lt;= 0 is no limit
+   * @param profile
+   *          - the velocity profile
+   */
+  public Trajectory(double start, double end, double velocity, double acceleration, Profile profile) {
+    this.start = start;
+    this.end = end;
+    this.profile = profile;
+    double distance = Math.abs(end - start);
+    duration = minDuration(distance, velocity, acceleration, profile);
+    ramp = 0;
+    if (profile == Profile.TRAPEZOID && acceleration > 0 && duration > 0) {
+      ramp = Math.min(velocity / acceleration / duration, 0.5);
+      if (distance < velocity * velocity / acceleration) {
+        // never reaches velocity - a triangle
+        ramp = 0.5;
+      }
+    }
+  }
+
+  /**
+   * @return the shortest duration of a move over distance
+   */
+  public static double minDuration(double distance, double velocity, double acceleration, Profile profile) {
+    if (velocity <= 0 || distance == 0) {
+      return 0;
+    }
+    switch (profile) {
+      case TRAPEZOID:
+        if (acceleration <= 0) {
+          return distance / velocity;
+        }
+        if (distance >= velocity * velocity / acceleration) {
+          return distance / velocity + velocity / acceleration;
+        }
+        return 2 * Math.sqrt(distance / acceleration);
+      case SCURVE:
+        // peak velocity is 2 d / t, peak acceleration 2 pi d / t^2
+        double t = 2 * distance / velocity;
+        if (acceleration > 0) {
+          t = Math.max(t, Math.sqrt(2 * Math.PI * distance / acceleration));
+        }
+        return t;
+      default:
+        return distance / velocity;
+    }
+  }
+
+  /**
+   * stretches the move to take longer - the shape of the profile is kept, so
+   * velocity and acceleration only get lower
+   * 
+   * @param seconds
+   *          - new duration, ignored if shorter than the current one
+   */
+  public void setDuration(double seconds) {
+    if (seconds > duration) {
+      duration = seconds;
+    }
+  }
+
+  public double getDuration() {
+    return duration;
+  }
+
+  public double getStart() {
+    return start;
+  }
+
+  public double getEnd() {
+    return end;
+  }
+
+  public Profile getProfile() {
+    return profile;
+  }
+
+  public boolean isDone(double t) {
+    return t >= duration;
+  }
+
+  /**
+   * @param t
+   *          - seconds since the start of the move
+   * @return position at time t
+   */
+  public double getPosition(double t) {
+    if (t <= 0) {
+      return start;
+    }
+    if (t >= duration) {
+      return end;
+    }
+    return start + (end - start) * fraction(t / duration);
+  }
+
+  /**
+   * @param t
+   *          - seconds since the start of the move
+   * @return velocity at time t
+   */
+  public double getVelocity(double t) {
+    if (t <= 0 || t >= duration) {
+      return 0;
+    }
+    double tau = t / duration;
+    double slope;
+    switch (profile) {
+      case TRAPEZOID:
+        if (ramp == 0) {
+          slope = 1;
+        } else {
+          double peak = 1 / (1 - ramp);
+          slope = (tau < ramp) ? peak * tau / ramp : (tau > 1 - ramp) ? peak * (1 - tau) / ramp : peak;
+        }
+        break;
+      case SCURVE:
+        slope = 1 - Math.cos(2 * Math.PI * tau);
+        break;
+      default:
+        slope = 1;
+    }
+    return (end - start) * slope / duration;
+  }
+
+  /**
+   * part of the distance covered at tau - the part of the duration
+   */
+  double fraction(double tau) {
+    switch (profile) {
+      case TRAPEZOID:
+        if (ramp == 0) {
+          return tau;
+        }
+        double peak = 1 / (1 - ramp);
+        if (tau < ramp) {
+          return 0.5 * peak * tau * tau / ramp;
+        } else if (tau <= 1 - ramp) {
+          return peak * (tau - ramp / 2);
+        }
+        double rest = 1 - tau;
+        return 1 - 0.5 * peak * rest * rest / ramp;
+      case SCURVE:
+        return tau - Math.sin(2 * Math.PI * tau) / (2 * Math.PI);
+      default:
+        return tau;
+    }
+  }
+
+  public String toString() {
+    return String.format("%s %.1f to %.1f in %.3f s", profile, start, end, duration);
+  }
+}
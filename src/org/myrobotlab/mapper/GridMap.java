@@ -0,0 +1,548 @@
+package org.myrobotlab.mapper;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.myrobotlab.logging.LoggerFactory;
+import org.slf4j.Logger;
+
+/**
+ * GridMap - an occupancy grid. Every cell holds the log odds of being
+ * occupied, 0 is unknown. The grid is made of square tiles of TILE x TILE
+ * cells which are allocated when a ray first reaches them, so the map grows in
+ * any direction as the robot explores.
+ *
+ * A scan is integrated in two passes on a pool of workers. First the rays are
+ * split between the workers and traced with Bresenham's algorithm - every
+ * cell a ray passes is stamped free with the scan number, the cell it ends in
+ * is stamped hit. Then the touched tiles are split between the workers and
+ * each cell is updated once - hit if any ray ended in it, otherwise free if
+ * any ray passed it. The stamps make the first pass safe without locks, all
+ * workers write the same values, and the second pass is a flat loop over
+ * primitive arrays.
+ *
+ * Tiles which changed are collected and can be taken as compressed
+ * TileUpdates - occupancy bytes of the tile, deflated.
+ *
+ */
+public class GridMap {
+
+  public final static Logger log = LoggerFactory.getLogger(GridMap.class);
+
+  public final static int TILE_BITS = 6;
+  public final static int TILE = 1 << TILE_BITS;
+  public final static int TILE_MASK = TILE - 1;
+  public final static int TILE_CELLS = TILE * TILE;
+
+  /**
+   * occupancy byte of cells which were never seen
+   */
+  public final static int UNKNOWN = 255;
+
+  /**
+   * min rays per worker - smaller scans are traced on the calling thread
+   */
+  final static int MIN_RAYS = 64;
+
+  static class Tile {
+    final int tx;
+    final int ty;
+    final float[] logOdds = new float[TILE_CELLS];
+    final int[] free = new int[TILE_CELLS];
+    final int[] hit = new int[TILE_CELLS];
+    // last scan which collected the tile for the update pass
+    int collected;
+    boolean dirty;
+
+    Tile(int tx, int ty) {
+      this.tx = tx;
+      this.ty = ty;
+    }
+  }
+
+  /**
+   * the occupancy of one tile - TILE x TILE bytes, row by row from the cell
+   * with the lowest x and y, 0 is free, 254 occupied, 255 unknown
+   */
+  public static class TileUpdate implements Serializable {
+    private static final long serialVersionUID = 1L;
+    /**
+     * tile coordinates - the first cell of the tile is tx * TILE, ty * TILE
+     */
+    public int tx;
+    public int ty;
+    /**
+     * meters per cell
+     */
+    public double resolution;
+    /**
+     * deflated occupancy bytes
+     */
+    public byte[] data;
+
+    public TileUpdate(int tx, int ty, double resolution, byte[] data) {
+      this.tx = tx;
+      this.ty = ty;
+      this.resolution = resolution;
+      this.data = data;
+    }
+
+    public byte[] decode() throws DataFormatException {
+      Inflater inflater = new Inflater();
+      try {
+        inflater.setInput(data);
+        byte[] cells = new byte[TILE_CELLS];
+        int n = 0;
+        while (n < cells.length && !inflater.finished()) {
+          n += inflater.inflate(cells, n, cells.length - n);
+        }
+        return cells;
+      } finally {
+        inflater.end();
+      }
+    }
+
+    @Override
+    public String toString() {
+      return String.format("tile %d,%d %d bytes", tx, ty, data.length);
+    }
+  }
+
+  /**
+   * per worker state of the trace pass
+   */
+  class Tracer {
+    final List<Tile> touched = new ArrayList<Tile>();
+    Tile last;
+    int stamp;
+
+    Tile tile(int cx, int cy) {
+      int tx = cx >> TILE_BITS;
+      int ty = cy >> TILE_BITS;
+      if (last != null && last.tx == tx && last.ty == ty) {
+        return last;
+      }
+      last = getTile(tx, ty);
+      // added each time a ray enters it, and by more than one worker - the
+      // duplicates are dropped when the lists are merged
+      touched.add(last);
+      return last;
+    }
+
+    void free(int cx, int cy) {
+      tile(cx, cy).free[((cy & TILE_MASK) << TILE_BITS) | (cx & TILE_MASK)] = stamp;
+    }
+
+    void hit(int cx, int cy) {
+      tile(cx, cy).hit[((cy & TILE_MASK) << TILE_BITS) | (cx & TILE_MASK)] = stamp;
+    }
+
+    /**
+     * Bresenham from cell x0,y0 to x1,y1 - all cells free but the last, which
+     * is a hit if the ray ended on an obstacle
+     */
+    void trace(int x0, int y0, int x1, int y1, boolean hit) {
+      int dx = Math.abs(x1 - x0);
+      int dy = -Math.abs(y1 - y0);
+      int sx = (x0 < x1) ? 1 : -1;
+      int sy = (y0 < y1) ? 1 : -1;
+      int err = dx + dy;
+      int x = x0;
+      int y = y0;
+      while (x != x1 || y != y1) {
+        free(x, y);
+        int e2 = 2 * err;
+        if (e2 >= dy) {
+          err += dy;
+          x += sx;
+        }
+        if (e2 <= dx) {
+          err += dx;
+          y += sy;
+        }
+      }
+      if (hit) {
+        hit(x1, y1);
+      } else {
+        free(x1, y1);
+      }
+    }
+  }
+
+  final double resolution;
+  final ConcurrentHashMap<Long, Tile> tiles = new ConcurrentHashMap<Long, Tile>();
+  final List<Tile> dirty = new ArrayList<Tile>();
+
+  // log odds of a hit (p 0.7) and of a pass (p 0.4), and the limits which
+  // keep cells able to change
+  float hitLogOdds = 0.85f;
+  float freeLogOdds = -0.4f;
+  float minLogOdds = -4f;
+  float maxLogOdds = 4f;
+
+  final int threads;
+  final ExecutorService workers;
+  final Tracer[] tracers;
+  int scan = 0;
+
+  // bounds in tiles
+  int minTx = Integer.MAX_VALUE;
+  int minTy = Integer.MAX_VALUE;
+  int maxTx = Integer.MIN_VALUE;
+  int maxTy = Integer.MIN_VALUE;
+
+  // stats
+  long scans = 0;
+  long rays = 0;
+  long nanos = 0;
+
+  final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+  final byte[] cells = new byte[TILE_CELLS];
+  byte[] compressed = new byte[TILE_CELLS + 64];
+
+  /**
+   * @param resolution
+   *          - meters per cell
+   * @param threads
+   *          - workers, 1 traces on the calling thread
+   */
+  public GridMap(double resolution, int threads) {
+    this.resolution = resolution;
+    this.threads = Math.max(1, threads);
+    tracers = new Tracer[this.threads];
+    for (int i = 0; i < tracers.length; ++i) {
+      tracers[i] = new Tracer();
+    }
+    if (this.threads > 1) {
+      workers = Executors.newFixedThreadPool(this.threads, new ThreadFactory() {
+        final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "gridmap-" + count.incrementAndGet());
+          t.setDaemon(true);
+          return t;
+        }
+      });
+    } else {
+      workers = null;
+    }
+  }
+
+  public void close() {
+    if (workers != null) {
+      workers.shutdownNow();
+    }
+  }
+
+  public double getResolution() {
+    return resolution;
+  }
+
+  Tile getTile(int tx, int ty) {
+    Long key = ((long) tx << 32) | (ty & 0xffffffffL);
+    Tile tile = tiles.get(key);
+    if (tile == null) {
+      Tile created = new Tile(tx, ty);
+      tile = tiles.putIfAbsent(key, created);
+      if (tile == null) {
+        tile = created;
+        synchronized (this) {
+          minTx = Math.min(minTx, tx);
+          minTy = Math.min(minTy, ty);
+          maxTx = Math.max(maxTx, tx);
+          maxTy = Math.max(maxTy, ty);
+        }
+      }
+    }
+    return tile;
+  }
+
+  int cell(double meters) {
+    return (int) Math.floor(meters / resolution);
+  }
+
+  /**
+   * integrates a scan - rays at angleMin, angleMin + angleIncrement ... from
+   * the sensor at x,y heading theta
+   *
+   * @param x
+   *          - meters
+   * @param y
+   *          - meters
+   * @param theta
+   *          - heading of the sensor in radians, counter clockwise from the x
+   *          axis
+   * @param angleMin
+   *          - angle of the first ray relative to theta
+   * @param angleIncrement
+   *          - angle between rays
+   * @param ranges
+   *          - meters, NaN or &gt;= maxRange for rays which hit nothing
+   * @param maxRange
+   *          - range of the sensor, rays which hit nothing clear this far
+   */
+  public void integrate(final double x, final double y, final double theta, final double angleMin, final double angleIncrement, final double[] ranges,
+      final double maxRange) {
+    long start = System.nanoTime();
+    // one scan at a time - the tracers are shared
+    synchronized (tracers) {
+      final int stamp = ++scan;
+      int n = ranges.length;
+      int chunks = (workers == null) ? 1 : Math.max(1, Math.min(threads, n / MIN_RAYS));
+      for (int i = 0; i < chunks; ++i) {
+        tracers[i].stamp = stamp;
+        tracers[i].last = null;
+        tracers[i].touched.clear();
+      }
+      if (chunks == 1) {
+        trace(tracers[0], x, y, theta, angleMin, angleIncrement, ranges, maxRange, 0, n);
+      } else {
+        final CountDownLatch traced = new CountDownLatch(chunks);
+        int per = (n + chunks - 1) / chunks;
+        for (int i = 0; i < chunks; ++i) {
+          final Tracer tracer = tracers[i];
+          final int from = i * per;
+          final int to = Math.min(n, from + per);
+          workers.execute(new Runnable() {
+            @Override
+            public void run() {
+              try {
+                trace(tracer, x, y, theta, angleMin, angleIncrement, ranges, maxRange, from, to);
+              } finally {
+                traced.countDown();
+              }
+            }
+          });
+        }
+        await(traced);
+      }
+
+      // merge the touched tiles - each once
+      final List<Tile> touched = new ArrayList<Tile>();
+      for (int i = 0; i < chunks; ++i) {
+        for (Tile tile : tracers[i].touched) {
+          if (tile.collected != stamp) {
+            tile.collected = stamp;
+            touched.add(tile);
+          }
+        }
+      }
+
+      int updaters = (workers == null) ? 1 : Math.min(threads, touched.size());
+      if (updaters <= 1) {
+        for (Tile tile : touched) {
+          update(tile, stamp);
+        }
+      } else {
+        final CountDownLatch updated = new CountDownLatch(updaters);
+        for (int i = 0; i < updaters; ++i) {
+          final int first = i;
+          final int step = updaters;
+          workers.execute(new Runnable() {
+            @Override
+            public void run() {
+              try {
+                for (int t = first; t < touched.size(); t += step) {
+                  update(touched.get(t), stamp);
+                }
+              } finally {
+                updated.countDown();
+              }
+            }
+          });
+        }
+        await(updated);
+      }
+    }
+    synchronized (this) {
+      ++scans;
+      rays += ranges.length;
+      nanos += System.nanoTime() - start;
+    }
+  }
+
+  void await(CountDownLatch latch) {
+    try {
+      latch.await();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("interrupted while integrating a scan");
+    }
+  }
+
+  void trace(Tracer tracer, double x, double y, double theta, double angleMin, double angleIncrement, double[] ranges, double maxRange, int from, int to) {
+    int x0 = cell(x);
+    int y0 = cell(y);
+    for (int i = from; i < to; ++i) {
+      double range = ranges[i];
+      boolean hit = range < maxRange;
+      if (!hit) {
+        // NaN too
+        range = maxRange;
+      }
+      if (range <= 0) {
+        continue;
+      }
+      double angle = theta + angleMin + i * angleIncrement;
+      int x1 = cell(x + range * Math.cos(angle));
+      int y1 = cell(y + range * Math.sin(angle));
+      tracer.trace(x0, y0, x1, y1, hit);
+    }
+  }
+
+  /**
+   * applies the stamps of a scan to the log odds of a tile
+   */
+  void update(Tile tile, int stamp) {
+    final float[] logOdds = tile.logOdds;
+    final int[] free = tile.free;
+    final int[] hit = tile.hit;
+    boolean changed = false;
+    for (int i = 0; i < TILE_CELLS; ++i) {
+      float delta = (hit[i] == stamp) ? hitLogOdds : ((free[i] == stamp) ? freeLogOdds : 0f);
+      if (delta != 0f) {
+        float v = Math.max(minLogOdds, Math.min(maxLogOdds, logOdds[i] + delta));
+        if (v != logOdds[i]) {
+          logOdds[i] = v;
+          changed = true;
+        }
+      }
+    }
+    if (changed) {
+      synchronized (dirty) {
+        if (!tile.dirty) {
+          tile.dirty = true;
+          dirty.add(tile);
+        }
+      }
+    }
+  }
+
+  /**
+   * @return the probability the cell at x,y is occupied - 0.5 if it is
+   *         unknown
+   */
+  public double getProbability(double x, double y) {
+    int cx = cell(x);
+    int cy = cell(y);
+    Tile tile = tiles.get(((long) (cx >> TILE_BITS) << 32) | ((cy >> TILE_BITS) & 0xffffffffL));
+    if (tile == null) {
+      return 0.5;
+    }
+    return probability(tile.logOdds[((cy & TILE_MASK) << TILE_BITS) | (cx & TILE_MASK)]);
+  }
+
+  static double probability(float logOdds) {
+    return 1.0 - 1.0 / (1.0 + Math.exp(logOdds));
+  }
+
+  /**
+   * @return the changed tiles since the last call, compressed
+   */
+  public List<TileUpdate> takeUpdates() {
+    List<Tile> changed;
+    synchronized (dirty) {
+      changed = new ArrayList<Tile>(dirty);
+      dirty.clear();
+      for (Tile tile : changed) {
+        tile.dirty = false;
+      }
+    }
+    List<TileUpdate> updates = new ArrayList<TileUpdate>(changed.size());
+    for (Tile tile : changed) {
+      updates.add(encode(tile));
+    }
+    return updates;
+  }
+
+  /**
+   * @return all tiles, compressed
+   */
+  public List<TileUpdate> getTiles() {
+    List<TileUpdate> updates = new ArrayList<TileUpdate>();
+    for (Tile tile : tiles.values()) {
+      updates.add(encode(tile));
+    }
+    return updates;
+  }
+
+  synchronized TileUpdate encode(Tile tile) {
+    float[] logOdds = tile.logOdds;
+    for (int i = 0; i < TILE_CELLS; ++i) {
+      // a read racing with an update pass gives an old or new value, both
+      // are valid
+      float l = logOdds[i];
+      cells[i] = (byte) ((l == 0f) ? UNKNOWN : (int) Math.round(probability(l) * 254));
+    }
+    deflater.reset();
+    deflater.setInput(cells);
+    deflater.finish();
+    int n = 0;
+    while (!deflater.finished()) {
+      if (n == compressed.length) {
+        compressed = Arrays.copyOf(compressed, compressed.length * 2);
+      }
+      n += deflater.deflate(compressed, n, compressed.length - n);
+    }
+    return new TileUpdate(tile.tx, tile.ty, resolution, Arrays.copyOf(compressed, n));
+  }
+
+  public int getTileCount() {
+    return tiles.size();
+  }
+
+  /**
+   * @return minX, minY, maxX, maxY of the allocated tiles in meters - null if
+   *         the map is empty
+   */
+  public synchronized double[] getBounds() {
+    if (tiles.isEmpty()) {
+      return null;
+    }
+    double size = TILE * resolution;
+    return new double[] { minTx * size, minTy * size, (maxTx + 1) * size, (maxTy + 1) * size };
+  }
+
+  public void clear() {
+    synchronized (tracers) {
+      tiles.clear();
+      synchronized (dirty) {
+        dirty.clear();
+      }
+      synchronized (this) {
+        minTx = minTy = Integer.MAX_VALUE;
+        maxTx = maxTy = Integer.MIN_VALUE;
+      }
+    }
+  }
+
+  /**
+   * @param hit
+   *          - probability of occupied when a ray ends in a cell
+   * @param free
+   *          - probability of occupied when a ray passes a cell
+   */
+  public void setSensorModel(double hit, double free) {
+    hitLogOdds = (float) Math.log(hit / (1 - hit));
+    freeLogOdds = (float) Math.log(free / (1 - free));
+  }
+
+  @Override
+  public synchronized String toString() {
+    return String.format("%d tiles %d scans %d rays - %.2f ms/scan %.0f rays/s", tiles.size(), scans, rays, (scans == 0) ? 0 : nanos / 1000000.0 / scans,
+        (nanos == 0) ? 0 : rays / (nanos / 1000000000.0));
+  }
+
+}
@@ -33,6 +33,7 @@ import javax.media.j3d.PickBounds;
 import javax.media.j3d.SceneGraphPath;
 import javax.media.j3d.Shape3D;
 import javax.media.j3d.Transform3D;
+import javax.vecmath.Matrix3d;
 import javax.vecmath.Point3d;
 import javax.vecmath.Vector3d;
 
@@ -319,6 +320,18 @@ public class SimpleAgent extends BaseObject {
     coord.set(t.x, t.y, t.z);
   }
 
+  /**
+   * Returns the heading of the agent - the rotation about the vertical axis.
+   * 
+   * @return the heading in radians, counter clockwise seen from above with
+   *         the x axis at 0.
+   */
+  public double getHeading() {
+    Matrix3d m = new Matrix3d();
+    rotation.get(m);
+    return Math.atan2(-m.m20, m.m00);
+  }
+
   /**
    * Returns the agent counter. Counter is incrementented at each simulation
    * step.
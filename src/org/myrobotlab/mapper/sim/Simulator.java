@@ -335,9 +335,8 @@ public class Simulator {
     lock();
     int nagents = agents.size();
 
-    // Print memory info (rarely)
+    // Print memory info (rarely) - the collector knows better when to run
     if (counter % 100000 == 0) {
-      Runtime.getRuntime().gc();
       System.out.println("Memory heap total: " + Runtime.getRuntime().totalMemory() / 1024 + "k  max: " + Runtime.getRuntime().maxMemory() / 1024 + "k  free: "
           + Runtime.getRuntime().freeMemory() / 1024 + "k");
     }
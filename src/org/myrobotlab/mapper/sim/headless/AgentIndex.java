@@ -0,0 +1,135 @@
+package org.myrobotlab.mapper.sim.headless;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A snapshot of the positions of the agents, indexed in a uniform grid. It is
+ * rebuilt once per phase of a step and only read while the agents are updated
+ * in parallel, so every agent sees the others where they were when the phase
+ * started - whatever the order the agents are updated in.
+ */
+class AgentIndex extends Grid {
+
+  double[] xs = new double[0];
+  double[] ys = new double[0];
+  double[] radii = new double[0];
+  int count = 0;
+
+  // agents of cell c are entries[starts[c]] to entries[starts[c + 1]]
+  final int[] starts;
+  int[] entries = new int[0];
+
+  AgentIndex(double minX, double minY, double maxX, double maxY, double cellSize) {
+    super(minX, minY, maxX, maxY, cellSize);
+    starts = new int[cols * rows + 1];
+  }
+
+  /**
+   * indexes the agents at their position, or where they want to move
+   */
+  void build(List<HeadlessAgent> agents, boolean proposed) {
+    int n = agents.size();
+    if (xs.length < n) {
+      xs = new double[n];
+      ys = new double[n];
+      radii = new double[n];
+    }
+    count = n;
+    for (int i = 0; i < n; ++i) {
+      HeadlessAgent a = agents.get(i);
+      xs[i] = (proposed) ? a.nextX : a.x;
+      ys[i] = (proposed) ? a.nextY : a.y;
+      radii[i] = a.radius;
+    }
+
+    // counting sort into the cells each agent overlaps - in agent order
+    Arrays.fill(starts, 0);
+    int total = 0;
+    for (int i = 0; i < n; ++i) {
+      int c0 = col(xs[i] - radii[i]);
+      int c1 = col(xs[i] + radii[i]);
+      int r0 = row(ys[i] - radii[i]);
+      int r1 = row(ys[i] + radii[i]);
+      for (int r = r0; r <= r1; ++r) {
+        for (int c = c0; c <= c1; ++c) {
+          ++starts[r * cols + c + 1];
+          ++total;
+        }
+      }
+    }
+    for (int c = 0; c < cols * rows; ++c) {
+      starts[c + 1] += starts[c];
+    }
+    if (entries.length < total) {
+      entries = new int[total + total / 2];
+    }
+    int[] fill = Arrays.copyOf(starts, starts.length - 1);
+    for (int i = 0; i < n; ++i) {
+      int c0 = col(xs[i] - radii[i]);
+      int c1 = col(xs[i] + radii[i]);
+      int r0 = row(ys[i] - radii[i]);
+      int r1 = row(ys[i] + radii[i]);
+      for (int r = r0; r <= r1; ++r) {
+        for (int c = c0; c <= c1; ++c) {
+          entries[fill[r * cols + c]++] = i;
+        }
+      }
+    }
+  }
+
+  @Override
+  double hitCell(int cell, double ox, double oy, double dx, double dy, double best, int skip) {
+    for (int e = starts[cell]; e < starts[cell + 1]; ++e) {
+      int j = entries[e];
+      if (j == skip) {
+        continue;
+      }
+      double fx = ox - xs[j];
+      double fy = oy - ys[j];
+      double b = fx * dx + fy * dy;
+      double c = fx * fx + fy * fy - radii[j] * radii[j];
+      double disc = b * b - c;
+      if (disc < 0) {
+        continue;
+      }
+      double t = -b - Math.sqrt(disc);
+      if (t >= 0 && t < best) {
+        best = t;
+      }
+    }
+    return best;
+  }
+
+  /**
+   * @return true if agent i overlaps any other agent
+   */
+  boolean overlaps(int i) {
+    double x = xs[i];
+    double y = ys[i];
+    double radius = radii[i];
+    int c0 = col(x - radius);
+    int c1 = col(x + radius);
+    int r0 = row(y - radius);
+    int r1 = row(y + radius);
+    for (int r = r0; r <= r1; ++r) {
+      for (int c = c0; c <= c1; ++c) {
+        int cell = r * cols + c;
+        for (int e = starts[cell]; e < starts[cell + 1]; ++e) {
+          int j = entries[e];
+          if (j == i) {
+            continue;
+          }
+          double dx = xs[j] - x;
+          double dy = ys[j] - y;
+          double d = radius + radii[j];
+          if (dx * dx + dy * dy < d * d) {
+            return true;
+          }
+        }
+      }
+    }
+    return false;
+  }
+
+}
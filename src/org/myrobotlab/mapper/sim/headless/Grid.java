@@ -0,0 +1,129 @@
+package org.myrobotlab.mapper.sim.headless;
+
+/**
+ * A uniform grid of square cells over the bounds of a simulation in the x,y
+ * plane. Rays are walked cell by cell (Amanatides and Woo) and only what is
+ * indexed in the cells a ray passes is tested - subclasses say what is in a
+ * cell.
+ */
+abstract class Grid {
+
+  final double minX;
+  final double minY;
+  final double maxX;
+  final double maxY;
+  final double cellSize;
+  final int cols;
+  final int rows;
+
+  Grid(double minX, double minY, double maxX, double maxY, double cellSize) {
+    if (maxX <= minX || maxY <= minY || cellSize <= 0) {
+      throw new IllegalArgumentException(String.format("bad grid %f,%f %f,%f cell %f", minX, minY, maxX, maxY, cellSize));
+    }
+    this.minX = minX;
+    this.minY = minY;
+    this.cellSize = cellSize;
+    cols = Math.max(1, (int) Math.ceil((maxX - minX) / cellSize));
+    rows = Math.max(1, (int) Math.ceil((maxY - minY) / cellSize));
+    this.maxX = minX + cols * cellSize;
+    this.maxY = minY + rows * cellSize;
+  }
+
+  /**
+   * @return column of x - clamped to the grid
+   */
+  int col(double x) {
+    int c = (int) Math.floor((x - minX) / cellSize);
+    return (c < 0) ? 0 : (c >= cols) ? cols - 1 : c;
+  }
+
+  /**
+   * @return row of y - clamped to the grid
+   */
+  int row(double y) {
+    int r = (int) Math.floor((y - minY) / cellSize);
+    return (r < 0) ? 0 : (r >= rows) ? rows - 1 : r;
+  }
+
+  /**
+   * tests what is in a cell against the ray ox,oy + t * dx,dy
+   *
+   * @return the nearest t of a hit if it is smaller than best, otherwise best
+   */
+  abstract double hitCell(int cell, double ox, double oy, double dx, double dy, double best, int skip);
+
+  /**
+   * casts a ray through the cells it passes
+   *
+   * @param dx
+   *          - unit direction
+   * @param dy
+   *          - unit direction
+   * @param maxRange
+   *          - returned if nothing is hit before
+   * @param skip
+   *          - passed to hitCell, the index of something the ray must not hit
+   * @return distance to the nearest hit
+   */
+  double cast(double ox, double oy, double dx, double dy, double maxRange, int skip) {
+    // clip the ray to the grid
+    double t0 = 0;
+    double t1 = maxRange;
+    if (dx == 0) {
+      if (ox < minX || ox > maxX) {
+        return maxRange;
+      }
+    } else {
+      double ta = (minX - ox) / dx;
+      double tb = (maxX - ox) / dx;
+      t0 = Math.max(t0, Math.min(ta, tb));
+      t1 = Math.min(t1, Math.max(ta, tb));
+    }
+    if (dy == 0) {
+      if (oy < minY || oy > maxY) {
+        return maxRange;
+      }
+    } else {
+      double ta = (minY - oy) / dy;
+      double tb = (maxY - oy) / dy;
+      t0 = Math.max(t0, Math.min(ta, tb));
+      t1 = Math.min(t1, Math.max(ta, tb));
+    }
+    if (t0 > t1) {
+      return maxRange;
+    }
+
+    int cx = col(ox + dx * t0);
+    int cy = row(oy + dy * t0);
+    int stepX = (dx > 0) ? 1 : -1;
+    int stepY = (dy > 0) ? 1 : -1;
+    double tMaxX = (dx > 0) ? (minX + (cx + 1) * cellSize - ox) / dx : (dx < 0) ? (minX + cx * cellSize - ox) / dx : Double.POSITIVE_INFINITY;
+    double tMaxY = (dy > 0) ? (minY + (cy + 1) * cellSize - oy) / dy : (dy < 0) ? (minY + cy * cellSize - oy) / dy : Double.POSITIVE_INFINITY;
+    double tDeltaX = (dx != 0) ? cellSize / Math.abs(dx) : Double.POSITIVE_INFINITY;
+    double tDeltaY = (dy != 0) ? cellSize / Math.abs(dy) : Double.POSITIVE_INFINITY;
+
+    double best = maxRange;
+    while (true) {
+      best = hitCell(cy * cols + cx, ox, oy, dx, dy, best, skip);
+      double exit = Math.min(tMaxX, tMaxY);
+      // a hit before the ray leaves the cell can't be beaten by a later cell
+      if (best <= exit || exit > t1) {
+        return best;
+      }
+      if (tMaxX < tMaxY) {
+        cx += stepX;
+        if (cx < 0 || cx >= cols) {
+          return best;
+        }
+        tMaxX += tDeltaX;
+      } else {
+        cy += stepY;
+        if (cy < 0 || cy >= rows) {
+          return best;
+        }
+        tMaxY += tDeltaY;
+      }
+    }
+  }
+
+}
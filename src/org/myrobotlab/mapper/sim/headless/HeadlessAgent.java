@@ -0,0 +1,236 @@
+package org.myrobotlab.mapper.sim.headless;
+
+import java.util.Random;
+
+/**
+ * HeadlessAgent - a disc shaped robot of a HeadlessSimulator, driven like the
+ * mapper.sim Agent by a translational and a rotational velocity, with an
+ * optional belt of range sensors like the RangeSensorBelt - sensor 0 looks
+ * ahead, the others follow counter clockwise and measure from the perimeter.
+ *
+ * Override initBehavior and performBehavior. performBehavior runs in parallel
+ * with the behaviors of the other agents - it may only change this agent, and
+ * should take its randomness from getRandom so runs can be repeated.
+ */
+public class HeadlessAgent {
+
+  final String name;
+  final double radius;
+
+  // start pose
+  double startX;
+  double startY;
+  double startTheta;
+
+  // pose - meters and radians counter clockwise from the x axis
+  double x;
+  double y;
+  double theta;
+
+  // where the agent moves this step
+  double nextX;
+  double nextY;
+  double nextTheta;
+
+  // m/s and rad/s
+  double translationalVelocity;
+  double rotationalVelocity;
+
+  // range sensor belt
+  double[] sensorAngles = new double[0];
+  double[] measurements = new double[0];
+  boolean[] hits = new boolean[0];
+  double maxRange = 0;
+
+  boolean collision;
+  double odometer;
+  double lifeTime;
+  int counter;
+
+  final Random random = new Random();
+
+  public HeadlessAgent(String name, double x, double y, double theta, double radius) {
+    this.name = name;
+    this.radius = radius;
+    setStartPosition(x, y, theta);
+    this.x = x;
+    this.y = y;
+    this.theta = theta;
+  }
+
+  /**
+   * adds a belt of sensors, evenly spaced around the agent
+   *
+   * @param count
+   *          - sensors
+   * @param maxRange
+   *          - meters from the perimeter
+   */
+  public void addRangeSensorBelt(int count, double maxRange) {
+    double[] angles = new double[count];
+    for (int i = 0; i < count; ++i) {
+      angles[i] = i * 2 * Math.PI / count;
+    }
+    addRangeSensorBelt(angles, maxRange);
+  }
+
+  /**
+   * @param angles
+   *          - radians of each sensor relative to the heading
+   */
+  public void addRangeSensorBelt(double[] angles, double maxRange) {
+    sensorAngles = angles.clone();
+    measurements = new double[angles.length];
+    hits = new boolean[angles.length];
+    this.maxRange = maxRange;
+    clearSensors();
+  }
+
+  void clearSensors() {
+    for (int i = 0; i < measurements.length; ++i) {
+      measurements[i] = Double.POSITIVE_INFINITY;
+      hits[i] = false;
+    }
+  }
+
+  /** called by the simulator on reset */
+  protected void initBehavior() {
+  }
+
+  /** called by the simulator on every step, after the sensors are updated */
+  protected void performBehavior() {
+  }
+
+  /** resets the agent to its start position - called by the simulator */
+  protected void reset(long seed) {
+    x = nextX = startX;
+    y = nextY = startY;
+    theta = nextTheta = startTheta;
+    translationalVelocity = 0;
+    rotationalVelocity = 0;
+    collision = false;
+    odometer = 0;
+    lifeTime = 0;
+    counter = 0;
+    random.setSeed(seed);
+    clearSensors();
+  }
+
+  /**
+   * the pose the agent moves to when the simulation is reset
+   */
+  public void setStartPosition(double x, double y, double theta) {
+    startX = x;
+    startY = y;
+    startTheta = theta;
+  }
+
+  public final void setTranslationalVelocity(double tv) {
+    translationalVelocity = tv;
+  }
+
+  public final void setRotationalVelocity(double rv) {
+    rotationalVelocity = rv;
+  }
+
+  public final double getTranslationalVelocity() {
+    return translationalVelocity;
+  }
+
+  public final double getRotationalVelocity() {
+    return rotationalVelocity;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public double getRadius() {
+    return radius;
+  }
+
+  public double getX() {
+    return x;
+  }
+
+  public double getY() {
+    return y;
+  }
+
+  public double getHeading() {
+    return theta;
+  }
+
+  public int getNumSensors() {
+    return sensorAngles.length;
+  }
+
+  public double getSensorAngle(int sensorNum) {
+    return sensorAngles[sensorNum];
+  }
+
+  /**
+   * @return meters from the perimeter, infinite if the sensor hit nothing
+   */
+  public double getMeasurement(int sensorNum) {
+    return measurements[sensorNum];
+  }
+
+  public boolean hasHit(int sensorNum) {
+    return hits[sensorNum];
+  }
+
+  public boolean oneHasHit() {
+    for (int i = 0; i < hits.length; ++i) {
+      if (hits[i]) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  public double getMaxRange() {
+    return maxRange;
+  }
+
+  /**
+   * @return true if the agent could not move on the last step
+   */
+  public boolean collisionDetected() {
+    return collision;
+  }
+
+  /**
+   * @return meters travelled since the last reset
+   */
+  public double getOdometer() {
+    return odometer;
+  }
+
+  /**
+   * @return virtual seconds since the last reset
+   */
+  public double getLifeTime() {
+    return lifeTime;
+  }
+
+  /**
+   * @return steps since the last reset
+   */
+  public int getCounter() {
+    return counter;
+  }
+
+  /**
+   * random numbers for the behavior - seeded by the simulator
+   */
+  public Random getRandom() {
+    return random;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%s %.3f,%.3f %.1f deg odometer %.2f%s", name, x, y, Math.toDegrees(theta), odometer, (collision) ? " collision" : "");
+  }
+
+}
@@ -0,0 +1,338 @@
+package org.myrobotlab.mapper.sim.headless;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.myrobotlab.logging.LoggerFactory;
+import org.slf4j.Logger;
+
+/**
+ * HeadlessSimulator - steps agents in a Space without a Java3D universe, as
+ * fast as it can, for batch runs and behavior regression tests.
+ *
+ * A step has two phases, each run in parallel over the agents:
+ * <ul>
+ * <li>sense and behave - the agents and their sensors are indexed where they
+ * are, every agent updates its range sensors against the walls and the other
+ * agents, runs its behavior and works out where it will move. A move into a
+ * wall is refused.</li>
+ * <li>collide - the agents are indexed where they want to move, and every
+ * agent which would overlap another stays where it is, the others move.</li>
+ * </ul>
+ * Agents only write their own state in a phase and read the others from the
+ * index, which is a snapshot taken before the phase, so a run depends on the
+ * seed and the time step only - not on the number of threads or how the
+ * agents were scheduled.
+ */
+public class HeadlessSimulator {
+
+  public final static Logger log = LoggerFactory.getLogger(HeadlessSimulator.class);
+
+  /**
+   * min agents per worker - fewer are updated on the calling thread
+   */
+  final static int MIN_AGENTS = 16;
+
+  final Space space;
+  final AgentIndex index;
+  final List<HeadlessAgent> agents = new ArrayList<HeadlessAgent>();
+
+  final int threads;
+  final ExecutorService workers;
+
+  long seed = 0;
+  // virtual seconds per step - 20 frames per second like the Simulator
+  double dt = 1.0 / 20;
+
+  long step = 0;
+  double time = 0;
+
+  // first exception thrown by a behavior in the current phase
+  volatile RuntimeException failure;
+
+  // stats
+  long agentSteps = 0;
+  long rays = 0;
+  long nanos = 0;
+
+  /**
+   * @param space
+   *          - the walls, agents are indexed in a grid of the same cells
+   * @param threads
+   *          - workers, 1 steps on the calling thread
+   */
+  public HeadlessSimulator(Space space, int threads) {
+    this.space = space;
+    index = new AgentIndex(space.minX, space.minY, space.maxX, space.maxY, space.cellSize);
+    this.threads = Math.max(1, threads);
+    if (this.threads > 1) {
+      workers = Executors.newFixedThreadPool(this.threads, new ThreadFactory() {
+        final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "headless-sim-" + count.incrementAndGet());
+          t.setDaemon(true);
+          return t;
+        }
+      });
+    } else {
+      workers = null;
+    }
+  }
+
+  public void close() {
+    if (workers != null) {
+      workers.shutdownNow();
+    }
+  }
+
+  public synchronized void add(HeadlessAgent agent) {
+    agents.add(agent);
+    agent.reset(agentSeed(agents.size() - 1));
+  }
+
+  public synchronized List<HeadlessAgent> getAgents() {
+    return Collections.unmodifiableList(new ArrayList<HeadlessAgent>(agents));
+  }
+
+  public Space getSpace() {
+    return space;
+  }
+
+  /**
+   * seeds the random numbers of the agents - applied on reset
+   */
+  public void setSeed(long seed) {
+    this.seed = seed;
+  }
+
+  /**
+   * @param dt
+   *          - virtual seconds per step
+   */
+  public void setTimeStep(double dt) {
+    this.dt = dt;
+  }
+
+  public double getTimeStep() {
+    return dt;
+  }
+
+  public long getStep() {
+    return step;
+  }
+
+  /**
+   * @return virtual seconds since the last reset
+   */
+  public double getTime() {
+    return time;
+  }
+
+  long agentSeed(int i) {
+    // spread the seeds of neighbouring agents
+    return seed ^ ((i + 1) * 0x9E3779B97F4A7C15L);
+  }
+
+  /**
+   * resets the agents to their start positions, reseeds them and initializes
+   * their behaviors
+   */
+  public synchronized void reset() {
+    step = 0;
+    time = 0;
+    for (int i = 0; i < agents.size(); ++i) {
+      HeadlessAgent agent = agents.get(i);
+      agent.reset(agentSeed(i));
+      agent.initBehavior();
+    }
+  }
+
+  /**
+   * runs a number of steps
+   */
+  public synchronized void run(int steps) {
+    for (int i = 0; i < steps; ++i) {
+      step();
+    }
+  }
+
+  /**
+   * runs until seconds of virtual time have passed
+   */
+  public synchronized void runFor(double seconds) {
+    run((int) Math.ceil(seconds / dt));
+  }
+
+  /**
+   * a single step of simulation
+   */
+  public synchronized void step() {
+    long start = System.nanoTime();
+    int n = agents.size();
+
+    index.build(agents, false);
+    forAll(new Phase() {
+      @Override
+      public void run(int i) {
+        sense(i);
+        behave(i);
+      }
+    });
+
+    index.build(agents, true);
+    forAll(new Phase() {
+      @Override
+      public void run(int i) {
+        move(i);
+      }
+    });
+
+    ++step;
+    time += dt;
+    agentSteps += n;
+    for (int i = 0; i < n; ++i) {
+      rays += agents.get(i).sensorAngles.length;
+    }
+    nanos += System.nanoTime() - start;
+  }
+
+  interface Phase {
+    void run(int i);
+  }
+
+  /**
+   * runs a phase for every agent - in chunks on the workers
+   */
+  void forAll(final Phase phase) {
+    final int n = agents.size();
+    int chunks = (workers == null) ? 1 : Math.max(1, Math.min(threads, n / MIN_AGENTS));
+    failure = null;
+    if (chunks == 1) {
+      for (int i = 0; i < n; ++i) {
+        phase.run(i);
+      }
+      return;
+    }
+    final CountDownLatch done = new CountDownLatch(chunks);
+    int per = (n + chunks - 1) / chunks;
+    for (int c = 0; c < chunks; ++c) {
+      final int from = c * per;
+      final int to = Math.min(n, from + per);
+      workers.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            for (int i = from; i < to; ++i) {
+              phase.run(i);
+            }
+          } catch (RuntimeException e) {
+            failure = e;
+          } finally {
+            done.countDown();
+          }
+        }
+      });
+    }
+    try {
+      done.await();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("interrupted while stepping");
+    }
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  void sense(int i) {
+    HeadlessAgent a = agents.get(i);
+    int sensors = a.sensorAngles.length;
+    double range = a.radius + a.maxRange;
+    for (int s = 0; s < sensors; ++s) {
+      double angle = a.theta + a.sensorAngles[s];
+      double dx = Math.cos(angle);
+      double dy = Math.sin(angle);
+      double d = space.cast(a.x, a.y, dx, dy, range, -1);
+      d = index.cast(a.x, a.y, dx, dy, d, i);
+      if (d < range) {
+        a.hits[s] = true;
+        a.measurements[s] = Math.max(0, d - a.radius);
+      } else {
+        a.hits[s] = false;
+        a.measurements[s] = Double.POSITIVE_INFINITY;
+      }
+    }
+  }
+
+  void behave(int i) {
+    HeadlessAgent a = agents.get(i);
+    a.performBehavior();
+
+    // integrate the velocities at the middle of the turn
+    double turn = a.rotationalVelocity * dt;
+    double heading = a.theta + turn / 2;
+    double distance = a.translationalVelocity * dt;
+    a.nextX = a.x + distance * Math.cos(heading);
+    a.nextY = a.y + distance * Math.sin(heading);
+    a.nextTheta = normalize(a.theta + turn);
+    a.collision = false;
+    if ((a.nextX != a.x || a.nextY != a.y) && space.overlaps(a.nextX, a.nextY, a.radius)) {
+      // blocked by a wall - it may still turn
+      a.nextX = a.x;
+      a.nextY = a.y;
+      a.collision = true;
+    }
+  }
+
+  void move(int i) {
+    HeadlessAgent a = agents.get(i);
+    if (index.overlaps(i)) {
+      a.collision = true;
+    } else if (!a.collision) {
+      double dx = a.nextX - a.x;
+      double dy = a.nextY - a.y;
+      a.odometer += Math.sqrt(dx * dx + dy * dy);
+      a.x = a.nextX;
+      a.y = a.nextY;
+    }
+    a.theta = a.nextTheta;
+    a.lifeTime += dt;
+    ++a.counter;
+  }
+
+  static double normalize(double angle) {
+    while (angle > Math.PI) {
+      angle -= 2 * Math.PI;
+    }
+    while (angle <= -Math.PI) {
+      angle += 2 * Math.PI;
+    }
+    return angle;
+  }
+
+  /**
+   * @return agent steps per second of wall clock time
+   */
+  public synchronized double getAgentStepsPerSecond() {
+    return (nanos == 0) ? 0 : agentSteps * 1e9 / nanos;
+  }
+
+  public synchronized void resetStats() {
+    agentSteps = rays = nanos = 0;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return String.format("%d agents step %d %.1f s virtual %d threads - %d agent steps %d rays %.0f agent steps/s %.0fx real time", agents.size(), step, time,
+        threads, agentSteps, rays, getAgentStepsPerSecond(), (nanos == 0 || agents.isEmpty()) ? 0 : agentSteps / (double) agents.size() * dt * 1e9 / nanos);
+  }
+
+}
@@ -0,0 +1,184 @@
+package org.myrobotlab.mapper.sim.headless;
+
+import java.util.Arrays;
+
+/**
+ * Space - the static geometry of a headless simulation. Walls are line
+ * segments in the x,y plane, indexed in a uniform grid so a ray only tests the
+ * walls of the cells it passes and a body only the walls of the cells it
+ * overlaps.
+ *
+ * Walls are added before the simulation starts, after that the space is only
+ * read and can be queried from any number of threads.
+ */
+public class Space extends Grid {
+
+  // segments x1,y1,x2,y2
+  double[] walls = new double[64];
+  int wallCount = 0;
+
+  // wall indexes of each cell
+  final int[][] cells;
+  final int[] cellCounts;
+
+  /**
+   * @param cellSize
+   *          - meters, about the size of the agents or the range of their
+   *          sensors
+   */
+  public Space(double minX, double minY, double maxX, double maxY, double cellSize) {
+    super(minX, minY, maxX, maxY, cellSize);
+    cells = new int[cols * rows][];
+    cellCounts = new int[cols * rows];
+  }
+
+  /**
+   * adds a wall from x1,y1 to x2,y2
+   */
+  public synchronized void addWall(double x1, double y1, double x2, double y2) {
+    if (wallCount * 4 + 4 > walls.length) {
+      walls = Arrays.copyOf(walls, walls.length * 2);
+    }
+    int index = wallCount++;
+    int w = index * 4;
+    walls[w] = x1;
+    walls[w + 1] = y1;
+    walls[w + 2] = x2;
+    walls[w + 3] = y2;
+
+    // every cell the bounding box of the segment overlaps
+    int c0 = col(Math.min(x1, x2));
+    int c1 = col(Math.max(x1, x2));
+    int r0 = row(Math.min(y1, y2));
+    int r1 = row(Math.max(y1, y2));
+    for (int r = r0; r <= r1; ++r) {
+      for (int c = c0; c <= c1; ++c) {
+        int cell = r * cols + c;
+        if (!crosses(index, minX + c * cellSize, minY + r * cellSize, cellSize)) {
+          continue;
+        }
+        int[] list = cells[cell];
+        if (list == null) {
+          list = cells[cell] = new int[4];
+        } else if (cellCounts[cell] == list.length) {
+          list = cells[cell] = Arrays.copyOf(list, list.length * 2);
+        }
+        list[cellCounts[cell]++] = index;
+      }
+    }
+  }
+
+  /**
+   * adds the four walls of an axis aligned box
+   */
+  public void addBox(double x1, double y1, double x2, double y2) {
+    addWall(x1, y1, x2, y1);
+    addWall(x2, y1, x2, y2);
+    addWall(x2, y2, x1, y2);
+    addWall(x1, y2, x1, y1);
+  }
+
+  /**
+   * walls the bounds of the space
+   */
+  public void addBounds() {
+    addBox(minX, minY, maxX, maxY);
+  }
+
+  public int getWallCount() {
+    return wallCount;
+  }
+
+  public double[] getBounds() {
+    return new double[] { minX, minY, maxX, maxY };
+  }
+
+  /**
+   * @return true if the wall crosses the square cell at x,y
+   */
+  boolean crosses(int index, double x, double y, double size) {
+    int w = index * 4;
+    // the segment against the cell grown a little, so walls on cell borders
+    // are in both cells
+    double e = size * 1e-6;
+    return distanceToSegment(x + size / 2, y + size / 2, w) <= size * 0.7072 + e;
+  }
+
+  double distanceToSegment(double px, double py, int w) {
+    double ax = walls[w];
+    double ay = walls[w + 1];
+    double ex = walls[w + 2] - ax;
+    double ey = walls[w + 3] - ay;
+    double len2 = ex * ex + ey * ey;
+    double u = (len2 == 0) ? 0 : ((px - ax) * ex + (py - ay) * ey) / len2;
+    u = (u < 0) ? 0 : (u > 1) ? 1 : u;
+    double qx = ax + u * ex - px;
+    double qy = ay + u * ey - py;
+    return Math.sqrt(qx * qx + qy * qy);
+  }
+
+  @Override
+  double hitCell(int cell, double ox, double oy, double dx, double dy, double best, int skip) {
+    int[] list = cells[cell];
+    int n = cellCounts[cell];
+    for (int i = 0; i < n; ++i) {
+      int w = list[i] * 4;
+      double ax = walls[w];
+      double ay = walls[w + 1];
+      double ex = walls[w + 2] - ax;
+      double ey = walls[w + 3] - ay;
+      double denom = dx * ey - dy * ex;
+      if (denom == 0) {
+        // parallel
+        continue;
+      }
+      double fx = ax - ox;
+      double fy = ay - oy;
+      double t = (fx * ey - fy * ex) / denom;
+      double u = (fx * dy - fy * dx) / denom;
+      if (t >= 0 && t < best && u >= 0 && u <= 1) {
+        best = t;
+      }
+    }
+    return best;
+  }
+
+  /**
+   * @param angle
+   *          - radians, counter clockwise from the x axis
+   * @return distance from x,y to the nearest wall in the direction of angle,
+   *         maxRange if there is none closer
+   */
+  public double raycast(double x, double y, double angle, double maxRange) {
+    return cast(x, y, Math.cos(angle), Math.sin(angle), maxRange, -1);
+  }
+
+  /**
+   * @return true if a disc of radius at x,y touches a wall
+   */
+  public boolean overlaps(double x, double y, double radius) {
+    int c0 = col(x - radius);
+    int c1 = col(x + radius);
+    int r0 = row(y - radius);
+    int r1 = row(y + radius);
+    for (int r = r0; r <= r1; ++r) {
+      for (int c = c0; c <= c1; ++c) {
+        int cell = r * cols + c;
+        int[] list = cells[cell];
+        int n = cellCounts[cell];
+        for (int i = 0; i < n; ++i) {
+          if (distanceToSegment(x, y, list[i] * 4) < radius) {
+            return true;
+          }
+        }
+      }
+    }
+    return false;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("space %.1f,%.1f to %.1f,%.1f %d x %d cells of %.2f m %d walls", minX, minY, maxX, maxY, cols, rows, cellSize, wallCount);
+  }
+
+}
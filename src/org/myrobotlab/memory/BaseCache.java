@@ -18,6 +18,7 @@ public abstract class BaseCache implements ManagedCache {
   private static final double DEFAULT_DOUBLE = 0.0d;
   private static final float DEFAULT_FLOAT = 0.0f;
   private static final int DEFAULT_INT = 0;
+  private static final long DEFAULT_LONG = 0l;
   private static final short DEFAULT_SHORT = 0;
 
   /**
@@ -115,7 +116,10 @@ public abstract class BaseCache implements ManagedCache {
     if (name == null || !contains(name)) {
       return DEFAULT_BOOL;
     }
-    Object value = getFromCache(name);
+    return toBool(getFromCache(name));
+  }
+
+  protected static boolean toBool(Object value) {
     if (value == null) {
       return DEFAULT_BOOL;
     }
@@ -151,7 +155,10 @@ public abstract class BaseCache implements ManagedCache {
     if (name == null || !contains(name)) {
       return DEFAULT_BYTE;
     }
-    Object value = getFromCache(name);
+    return toByte(getFromCache(name));
+  }
+
+  protected static byte toByte(Object value) {
     if (value == null) {
       return DEFAULT_BYTE;
     }
@@ -180,7 +187,10 @@ public abstract class BaseCache implements ManagedCache {
     if (name == null || !contains(name)) {
       return DEFAULT_DOUBLE;
     }
-    Object value = getFromCache(name);
+    return toDouble(getFromCache(name));
+  }
+
+  protected static double toDouble(Object value) {
     if (value == null) {
       return DEFAULT_DOUBLE;
     }
@@ -220,7 +230,10 @@ public abstract class BaseCache implements ManagedCache {
     if (name == null || !contains(name)) {
       return DEFAULT_FLOAT;
     }
-    Object value = getFromCache(name);
+    return toFloat(getFromCache(name));
+  }
+
+  protected static float toFloat(Object value) {
     if (value == null) {
       return DEFAULT_FLOAT;
     }
@@ -264,7 +277,10 @@ public abstract class BaseCache implements ManagedCache {
     if (name == null || !contains(name)) {
       return DEFAULT_INT;
     }
-    Object value = getFromCache(name);
+    return toInt(getFromCache(name));
+  }
+
+  protected static int toInt(Object value) {
     if (value == null) {
       return DEFAULT_INT;
     }
@@ -286,6 +302,45 @@ public abstract class BaseCache implements ManagedCache {
     return parseWithDefault((String) value, DEFAULT_INT);
   }
 
+  /*
+   * Get a long primitive value from the cache. Tests for: Long, Integer, Byte,
+   * Short, String (parseLong)
+   * 
+   * @return 0 if nothing is found or the cached value was not an integer value
+   */
+  public long getLong(String name) {
+    if (name == null || !contains(name)) {
+      return DEFAULT_LONG;
+    }
+    return toLong(getFromCache(name));
+  }
+
+  protected static long toLong(Object value) {
+    if (value == null) {
+      return DEFAULT_LONG;
+    }
+    if (value instanceof Long) {
+      long l = (Long) value;
+      return l;
+    }
+    if (value instanceof Integer) {
+      int i = (Integer) value;
+      return i;
+    }
+    if (value instanceof Byte) {
+      byte b = (Byte) value;
+      return b;
+    }
+    if (value instanceof Short) {
+      short s = (Short) value;
+      return s;
+    }
+    if (!(value instanceof String)) {
+      return DEFAULT_LONG;
+    }
+    return parseWithDefault((String) value, DEFAULT_LONG);
+  }
+
   /*
    * Get an short primitive value from the cache. Tests for: Short, Byte, String
    * (parseShort)
@@ -296,7 +351,10 @@ public abstract class BaseCache implements ManagedCache {
     if (name == null || !contains(name)) {
       return DEFAULT_SHORT;
     }
-    Object value = getFromCache(name);
+    return toShort(getFromCache(name));
+  }
+
+  protected static short toShort(Object value) {
     if (value == null) {
       return DEFAULT_SHORT;
     }
@@ -322,7 +380,7 @@ public abstract class BaseCache implements ManagedCache {
    *          return value if the string cannot be parsed into a boolean
    * @return
    */
-  private boolean parseWithDefault(String value, boolean defaultBool) {
+  private static boolean parseWithDefault(String value, boolean defaultBool) {
     return Boolean.parseBoolean(value);
   }
 
@@ -334,7 +392,7 @@ public abstract class BaseCache implements ManagedCache {
    *          return value if the string cannot be parsed into an byte
    * @return
    */
-  private byte parseWithDefault(String value, byte defaultByte) {
+  private static byte parseWithDefault(String value, byte defaultByte) {
     try {
       return Byte.parseByte(value);
     } catch (NumberFormatException e) {
@@ -350,7 +408,7 @@ public abstract class BaseCache implements ManagedCache {
    *          return value if the string cannot be parsed into an double
    * @return
    */
-  private double parseWithDefault(String value, double defaultDouble) {
+  private static double parseWithDefault(String value, double defaultDouble) {
     try {
       return Double.parseDouble(value);
     } catch (NumberFormatException e) {
@@ -366,7 +424,7 @@ public abstract class BaseCache implements ManagedCache {
    *          return value if the string cannot be parsed into an float
    * @return
    */
-  private float parseWithDefault(String value, float defaultFloat) {
+  private static float parseWithDefault(String value, float defaultFloat) {
     try {
       return Float.parseFloat(value);
     } catch (NumberFormatException e) {
@@ -382,7 +440,7 @@ public abstract class BaseCache implements ManagedCache {
    *          return value if the string cannot be parsed into an integer
    * @return
    */
-  private int parseWithDefault(String value, int defaultInt) {
+  private static int parseWithDefault(String value, int defaultInt) {
     try {
       return Integer.parseInt(value);
     } catch (NumberFormatException e) {
@@ -390,6 +448,22 @@ public abstract class BaseCache implements ManagedCache {
     return defaultInt;
   }
 
+  /**
+   * Try to parse a long.
+   * 
+   * @param value
+   * @param defaultLong
+   *          return value if the string cannot be parsed into a long
+   * @return
+   */
+  private static long parseWithDefault(String value, long defaultLong) {
+    try {
+      return Long.parseLong(value);
+    } catch (NumberFormatException e) {
+    }
+    return defaultLong;
+  }
+
   /**
    * Try to parse a short.
    * 
@@ -398,7 +472,7 @@ public abstract class BaseCache implements ManagedCache {
    *          return value if the string cannot be parsed into an short
    * @return
    */
-  private short parseWithDefault(String value, short defaultShort) {
+  private static short parseWithDefault(String value, short defaultShort) {
     try {
       return Short.parseShort(value);
     } catch (NumberFormatException e) {
@@ -0,0 +1,830 @@
+/**
+ * Size bounded cache with a time to live per item.
+ */
+package org.myrobotlab.memory;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A cache which keeps at most maximumSize items, and drops items once their
+ * time to live is up.
+ *
+ * When it is full the item to drop is picked like W-TinyLFU: new items go into
+ * a small LRU window, and when they drop out of it they only get into the main
+ * cache - a segmented LRU, probation and then protected once read again - if
+ * they have been used more often than the item they would push out. How often
+ * is counted in a count-min sketch which halves all its counts now and then,
+ * so items which stop being used fade. A burst of items used once can't flush
+ * the ones which are used all the time.
+ *
+ * Items with a time to live are kept in a hierarchical timing wheel - buckets
+ * of about a second, a minute, an hour and a day - so expiring costs what
+ * expires, not what is in the cache.
+ *
+ * Reads don't lock. They go into a small buffer, which is played into the
+ * policy when it is full and the policy lock is free - under contention some
+ * reads are lost, which makes eviction a little less exact and nothing else.
+ * Writes, expiry and eviction take the lock.
+ *
+ * Numbers and booleans can be put as primitives with putInt, putDouble ... and
+ * read back with getInt, getDouble ... without boxing.
+ *
+ * <pre>
+ * BoundedCache cache = CacheManager.getInstance().createCache("wiki", 1000, 3600000);
+ * EntityDocument doc = cache.get(title, loader);
+ * </pre>
+ *
+ */
+public class BoundedCache extends BaseCache {
+
+  /**
+   * computes a value which is not in the cache
+   */
+  public interface Loader<T> {
+    /**
+     * @return the value of name - null is returned but not cached
+     */
+    T load(String name) throws Exception;
+  }
+
+  public final static int DEFAULT_MAXIMUM_SIZE = 10000;
+
+  final static int READ_BUFFER = 64;
+
+  // value types
+  final static int OBJECT = 0;
+  final static int INT = 1;
+  final static int LONG = 2;
+  final static int FLOAT = 3;
+  final static int DOUBLE = 4;
+  final static int BOOL = 5;
+
+  // queues
+  final static int NONE = 0;
+  final static int WINDOW = 1;
+  final static int PROBATION = 2;
+  final static int PROTECTED = 3;
+
+  /**
+   * timing wheel buckets - of 2^30 ns (1.07 s), 2^36 (1.14 min), 2^42 (1.22
+   * h), 2^47 (1.63 days) and one for everything later
+   */
+  final static int[] BUCKETS = { 64, 64, 32, 4, 1 };
+  final static long[] SPANS = { 1L << 30, 1L << 36, 1L << 42, 1L << 47, 1L << 49, 1L << 49 };
+  final static int[] SHIFT = { 30, 36, 42, 47, 49 };
+
+  /**
+   * an item - a put replaces it, only the links change
+   */
+  static final class Entry {
+    final String key;
+    final int hash;
+    final Object value;
+    final long bits;
+    final int type;
+    /**
+     * System.nanoTime() it expires at, 0 never
+     */
+    final long expires;
+
+    // guarded by lock
+    Entry prev;
+    Entry next;
+    int queue = NONE;
+    boolean dead = false;
+    Entry timerPrev;
+    Entry timerNext;
+
+    Entry(String key, int hash, Object value, long bits, int type, long expires) {
+      this.key = key;
+      this.hash = hash;
+      this.value = value;
+      this.bits = bits;
+      this.type = type;
+      this.expires = expires;
+    }
+
+    /**
+     * @return the value - boxed if it was put as a primitive
+     */
+    Object getValue() {
+      switch (type) {
+        case INT:
+          return (int) bits;
+        case LONG:
+          return bits;
+        case FLOAT:
+          return Float.intBitsToFloat((int) bits);
+        case DOUBLE:
+          return Double.longBitsToDouble(bits);
+        case BOOL:
+          return bits != 0;
+        default:
+          return value;
+      }
+    }
+
+    boolean isExpired(long now) {
+      return expires != 0 && now - expires >= 0;
+    }
+  }
+
+  /**
+   * 4 bit counters, 16 to a long - an item is as frequent as the lowest of its
+   * 4 counters. The 4 are in the same block of 8 longs, one cache line, so
+   * counting costs one cache miss instead of 4.
+   */
+  static final class FrequencySketch {
+    final static long RESET_MASK = 0x7777777777777777L;
+    final static long ONE_MASK = 0x1111111111111111L;
+
+    final long[] table;
+    final int blockMask;
+    final int sampleSize;
+    int size = 0;
+
+    FrequencySketch(int maximumSize) {
+      int n = Math.max(16, maximumSize);
+      table = new long[Integer.highestOneBit(n - 1) << 1];
+      blockMask = (table.length >>> 3) - 1;
+      sampleSize = 10 * n;
+    }
+
+    int frequency(int hash) {
+      int block = (hash & blockMask) << 3;
+      int h = rehash(hash);
+      int frequency = Integer.MAX_VALUE;
+      for (int i = 0; i < 4; ++i) {
+        int c = h >>> (i << 3);
+        int count = (int) ((table[block + (c & 1) + (i << 1)] >>> (((c >>> 1) & 15) << 2)) & 0xfL);
+        frequency = Math.min(frequency, count);
+      }
+      return frequency;
+    }
+
+    void increment(int hash) {
+      int block = (hash & blockMask) << 3;
+      int h = rehash(hash);
+      boolean added = false;
+      for (int i = 0; i < 4; ++i) {
+        int c = h >>> (i << 3);
+        int slot = block + (c & 1) + (i << 1);
+        int offset = ((c >>> 1) & 15) << 2;
+        if (((table[slot] >>> offset) & 0xfL) != 0xfL) {
+          table[slot] += 1L << offset;
+          added = true;
+        }
+      }
+      if (added && ++size == sampleSize) {
+        reset();
+      }
+    }
+
+    /**
+     * halves all the counts
+     */
+    void reset() {
+      int odd = 0;
+      for (int i = 0; i < table.length; ++i) {
+        odd += Long.bitCount(table[i] & ONE_MASK);
+        table[i] = (table[i] >>> 1) & RESET_MASK;
+      }
+      size = (size >>> 1) - (odd >>> 2);
+    }
+
+    static int rehash(int x) {
+      x *= 0x31848bab;
+      x ^= x >>> 14;
+      return x;
+    }
+  }
+
+  private final ConcurrentHashMap<String, Entry> items = new ConcurrentHashMap<String, Entry>();
+  private final ConcurrentHashMap<String, FutureTask<Object>> loading = new ConcurrentHashMap<String, FutureTask<Object>>();
+  private final ReentrantLock lock = new ReentrantLock();
+
+  /**
+   * reads waiting to be recorded - lossy, slots written by several threads at
+   * once just lose a read
+   */
+  private final Entry[] reads = new Entry[READ_BUFFER];
+  private int readCount = 0;
+
+  private final int maximumSize;
+  private final long timeToLive;
+
+  // policy - guarded by lock
+  private final Entry window = sentinel();
+  private final Entry probation = sentinel();
+  private final Entry protectedQueue = sentinel();
+  private int windowSize = 0;
+  private int probationSize = 0;
+  private int protectedSize = 0;
+  private final int windowMax;
+  private final int protectedMax;
+  private final FrequencySketch sketch;
+
+  // timing wheel - guarded by lock
+  private final Entry[][] wheel;
+  private long nanos;
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder loads = new LongAdder();
+  private final LongAdder loadFailures = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+  private final LongAdder expirations = new LongAdder();
+
+  /**
+   * Constructor for CacheFactory - DEFAULT_MAXIMUM_SIZE items which don't time
+   * out.
+   */
+  public BoundedCache() {
+    this(DEFAULT_MAXIMUM_SIZE, 0);
+  }
+
+  public BoundedCache(int maximumSize) {
+    this(maximumSize, 0);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param maximumSize
+   *          the most items kept
+   * @param timeToLive
+   *          ms after a put an item expires, 0 never - put(name, value,
+   *          timeToLive) sets it per item
+   */
+  public BoundedCache(int maximumSize, long timeToLive) {
+    if (maximumSize < 1) {
+      throw new IllegalArgumentException("maximumSize must be at least 1");
+    }
+    this.maximumSize = maximumSize;
+    this.timeToLive = TimeUnit.MILLISECONDS.toNanos(Math.max(0, timeToLive));
+    windowMax = Math.max(1, maximumSize / 100);
+    protectedMax = (maximumSize - windowMax) * 4 / 5;
+    sketch = new FrequencySketch(maximumSize);
+    wheel = new Entry[BUCKETS.length][];
+    for (int i = 0; i < BUCKETS.length; ++i) {
+      wheel[i] = new Entry[BUCKETS[i]];
+      for (int j = 0; j < BUCKETS[i]; ++j) {
+        wheel[i][j] = sentinel();
+      }
+    }
+    nanos = System.nanoTime();
+  }
+
+  private static Entry sentinel() {
+    Entry sentinel = new Entry(null, 0, null, 0, OBJECT, 0);
+    sentinel.prev = sentinel.next = sentinel;
+    sentinel.timerPrev = sentinel.timerNext = sentinel;
+    return sentinel;
+  }
+
+  static int spread(int h) {
+    h ^= h >>> 17;
+    h *= 0xed5ad4bb;
+    h ^= h >>> 11;
+    h *= 0xac4c1b51;
+    h ^= h >>> 15;
+    return h;
+  }
+
+  @Override
+  protected void addToCache(String name, Object value) {
+    write(name, value, 0, OBJECT, timeToLive);
+  }
+
+  /**
+   * Add a value to the cache with its own time to live.
+   *
+   * @param timeToLive
+   *          ms until it expires, 0 never
+   */
+  public void put(String name, Object value, long timeToLive) {
+    write(name, value, 0, OBJECT, TimeUnit.MILLISECONDS.toNanos(Math.max(0, timeToLive)));
+  }
+
+  public void putBool(String name, boolean value) {
+    write(name, null, value ? 1 : 0, BOOL, timeToLive);
+  }
+
+  public void putDouble(String name, double value) {
+    write(name, null, Double.doubleToRawLongBits(value), DOUBLE, timeToLive);
+  }
+
+  public void putFloat(String name, float value) {
+    write(name, null, Float.floatToRawIntBits(value), FLOAT, timeToLive);
+  }
+
+  public void putInt(String name, int value) {
+    write(name, null, value, INT, timeToLive);
+  }
+
+  public void putLong(String name, long value) {
+    write(name, null, value, LONG, timeToLive);
+  }
+
+  private void write(String name, Object value, long bits, int type, long ttl) {
+    if (name == null || name.isEmpty()) {
+      return;
+    }
+    if (type == OBJECT && value == null) {
+      removeFromCache(name);
+      return;
+    }
+    long expires = 0;
+    if (ttl > 0) {
+      expires = System.nanoTime() + ttl;
+      if (expires == 0) {
+        expires = 1;
+      }
+    }
+    Entry e = new Entry(name, spread(name.hashCode()), value, bits, type, expires);
+    Entry old = items.put(name, e);
+    lock.lock();
+    try {
+      drainReads();
+      if (old != null) {
+        retire(old);
+      }
+      // a put of the same name which got the lock first has retired it already
+      if (!e.dead) {
+        link(window, e, WINDOW);
+        sketch.increment(e.hash);
+        if (e.expires != 0) {
+          schedule(e);
+        }
+      }
+      advance(System.nanoTime());
+      evict();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * the live entry of name - counts the hit or miss
+   */
+  Entry getEntry(String name) {
+    Entry e = (name == null) ? null : items.get(name);
+    if (e == null) {
+      misses.increment();
+      return null;
+    }
+    if (e.expires != 0 && e.isExpired(System.nanoTime())) {
+      misses.increment();
+      if (lock.tryLock()) {
+        try {
+          if (items.remove(name, e)) {
+            expirations.increment();
+          }
+          retire(e);
+        } finally {
+          lock.unlock();
+        }
+      }
+      return null;
+    }
+    hits.increment();
+    int i = readCount++ & (READ_BUFFER - 1);
+    reads[i] = e;
+    if (i == READ_BUFFER - 1 && lock.tryLock()) {
+      try {
+        drainReads();
+      } finally {
+        lock.unlock();
+      }
+    }
+    return e;
+  }
+
+  private void drainReads() {
+    for (int i = 0; i < READ_BUFFER; ++i) {
+      Entry e = reads[i];
+      if (e != null) {
+        reads[i] = null;
+        if (!e.dead) {
+          onAccess(e);
+        }
+      }
+    }
+  }
+
+  /**
+   * Get a value from the cache, or load it if it isn't. Only one thread loads
+   * a name at a time - the others wait for its value.
+   *
+   * @return the value, null if the loader returned null
+   * @throws Exception
+   *           what the loader threw
+   */
+  @SuppressWarnings("unchecked")
+  public <T> T get(final String name, final Loader<T> loader) throws Exception {
+    Entry e = getEntry(name);
+    if (e != null) {
+      return (T) e.getValue();
+    }
+    FutureTask<Object> task = new FutureTask<Object>(new Callable<Object>() {
+      @Override
+      public Object call() throws Exception {
+        return loader.load(name);
+      }
+    });
+    FutureTask<Object> running = loading.putIfAbsent(name, task);
+    if (running == null) {
+      running = task;
+      task.run();
+      try {
+        Object value = task.get();
+        loads.increment();
+        if (value != null) {
+          // in the cache before it isn't loading, so no one loads it twice
+          addToCache(name, value);
+        }
+      } catch (ExecutionException ex) {
+        loadFailures.increment();
+      } finally {
+        loading.remove(name, task);
+      }
+    }
+    try {
+      return (T) running.get();
+    } catch (ExecutionException ex) {
+      Throwable cause = ex.getCause();
+      if (cause instanceof Exception) {
+        throw (Exception) cause;
+      }
+      if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw ex;
+    }
+  }
+
+  /*
+   * contains is only asked before a getFromCache, so only its misses are
+   * counted
+   */
+  @Override
+  protected boolean contains(String name) {
+    Entry e = items.get(name);
+    if (e == null || e.isExpired(System.nanoTime())) {
+      misses.increment();
+      return false;
+    }
+    return true;
+  }
+
+  @Override
+  protected Object getFromCache(String name) {
+    Entry e = getEntry(name);
+    return (e == null) ? null : e.getValue();
+  }
+
+  @Override
+  public boolean getBool(String name) {
+    Entry e = getEntry(name);
+    if (e == null) {
+      return false;
+    }
+    if (e.type == BOOL || e.type == INT) {
+      return e.bits != 0;
+    }
+    return toBool(e.getValue());
+  }
+
+  @Override
+  public double getDouble(String name) {
+    Entry e = getEntry(name);
+    if (e == null) {
+      return 0.0d;
+    }
+    switch (e.type) {
+      case DOUBLE:
+        return Double.longBitsToDouble(e.bits);
+      case FLOAT:
+        return Float.intBitsToFloat((int) e.bits);
+      case INT:
+        return (int) e.bits;
+      default:
+        return toDouble(e.getValue());
+    }
+  }
+
+  @Override
+  public float getFloat(String name) {
+    Entry e = getEntry(name);
+    if (e == null) {
+      return 0.0f;
+    }
+    switch (e.type) {
+      case FLOAT:
+        return Float.intBitsToFloat((int) e.bits);
+      case INT:
+        return (int) e.bits;
+      default:
+        return toFloat(e.getValue());
+    }
+  }
+
+  @Override
+  public int getInt(String name) {
+    Entry e = getEntry(name);
+    if (e == null) {
+      return 0;
+    }
+    if (e.type == INT) {
+      return (int) e.bits;
+    }
+    return toInt(e.getValue());
+  }
+
+  @Override
+  public long getLong(String name) {
+    Entry e = getEntry(name);
+    if (e == null) {
+      return 0l;
+    }
+    if (e.type == LONG || e.type == INT) {
+      return e.bits;
+    }
+    return toLong(e.getValue());
+  }
+
+  @Override
+  protected void expireItem(String name) {
+    if (remove(name)) {
+      expirations.increment();
+    }
+  }
+
+  @Override
+  protected void removeFromCache(String name) {
+    remove(name);
+  }
+
+  private boolean remove(String name) {
+    if (name == null) {
+      return false;
+    }
+    Entry e = items.remove(name);
+    if (e == null) {
+      return false;
+    }
+    lock.lock();
+    try {
+      retire(e);
+    } finally {
+      lock.unlock();
+    }
+    return true;
+  }
+
+  @Override
+  protected void clearCache() {
+    lock.lock();
+    try {
+      items.clear();
+      for (Entry queue : new Entry[] { window, probation, protectedQueue }) {
+        while (queue.next != queue) {
+          retire(queue.next);
+        }
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * drops the expired items - CacheManager calls it now and then
+   */
+  @Override
+  protected void timeoutCache() {
+    timeout(System.nanoTime());
+  }
+
+  void timeout(long now) {
+    lock.lock();
+    try {
+      drainReads();
+      advance(now);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  // policy
+
+  private void link(Entry queue, Entry e, int type) {
+    // the head is the most recent, the tail the least
+    e.prev = queue;
+    e.next = queue.next;
+    queue.next.prev = e;
+    queue.next = e;
+    e.queue = type;
+    if (type == WINDOW) {
+      ++windowSize;
+    } else if (type == PROBATION) {
+      ++probationSize;
+    } else {
+      ++protectedSize;
+    }
+  }
+
+  private void unlink(Entry e) {
+    if (e.queue == NONE) {
+      return;
+    }
+    e.prev.next = e.next;
+    e.next.prev = e.prev;
+    e.prev = e.next = null;
+    if (e.queue == WINDOW) {
+      --windowSize;
+    } else if (e.queue == PROBATION) {
+      --probationSize;
+    } else {
+      --protectedSize;
+    }
+    e.queue = NONE;
+  }
+
+  /**
+   * takes the entry out of the policy and the timing wheel for good
+   */
+  private void retire(Entry e) {
+    unlink(e);
+    unschedule(e);
+    e.dead = true;
+  }
+
+  private void onAccess(Entry e) {
+    sketch.increment(e.hash);
+    if (e.queue == WINDOW) {
+      unlink(e);
+      link(window, e, WINDOW);
+    } else if (e.queue == PROBATION) {
+      unlink(e);
+      link(protectedQueue, e, PROTECTED);
+      while (protectedSize > protectedMax) {
+        Entry demoted = protectedQueue.prev;
+        unlink(demoted);
+        link(probation, demoted, PROBATION);
+      }
+    } else if (e.queue == PROTECTED) {
+      unlink(e);
+      link(protectedQueue, e, PROTECTED);
+    }
+  }
+
+  private void evict() {
+    while (windowSize > windowMax) {
+      // the oldest of the window tries to get into the main cache
+      Entry candidate = window.prev;
+      unlink(candidate);
+      link(probation, candidate, PROBATION);
+      if (windowSize + probationSize + protectedSize <= maximumSize) {
+        continue;
+      }
+      // against the least recent of the main cache
+      Entry victim = probation.prev;
+      if (victim == candidate) {
+        victim = protectedQueue.prev;
+      }
+      if (victim == protectedQueue || sketch.frequency(candidate.hash) <= sketch.frequency(victim.hash)) {
+        evict(candidate);
+      } else {
+        evict(victim);
+      }
+    }
+    while (windowSize + probationSize + protectedSize > maximumSize) {
+      Entry victim = (probationSize > 0) ? probation.prev : (protectedSize > 0) ? protectedQueue.prev : window.prev;
+      evict(victim);
+    }
+  }
+
+  private void evict(Entry e) {
+    retire(e);
+    if (items.remove(e.key, e)) {
+      evictions.increment();
+    }
+  }
+
+  // timing wheel
+
+  private void schedule(Entry e) {
+    Entry sentinel = findBucket(e.expires);
+    e.timerPrev = sentinel.timerPrev;
+    e.timerNext = sentinel;
+    sentinel.timerPrev.timerNext = e;
+    sentinel.timerPrev = e;
+  }
+
+  private void unschedule(Entry e) {
+    if (e.timerNext == null) {
+      return;
+    }
+    e.timerPrev.timerNext = e.timerNext;
+    e.timerNext.timerPrev = e.timerPrev;
+    e.timerPrev = e.timerNext = null;
+  }
+
+  private Entry findBucket(long time) {
+    long duration = time - nanos;
+    int last = wheel.length - 1;
+    for (int i = 0; i < last; ++i) {
+      if (duration < SPANS[i + 1]) {
+        long ticks = time >>> SHIFT[i];
+        return wheel[i][(int) ticks & (wheel[i].length - 1)];
+      }
+    }
+    return wheel[last][0];
+  }
+
+  /**
+   * turns the wheels to now - expires what is due, and moves what isn't yet
+   * to a finer wheel
+   */
+  private void advance(long now) {
+    long previous = nanos;
+    nanos = now;
+    for (int i = 0; i < SHIFT.length; ++i) {
+      long previousTicks = previous >>> SHIFT[i];
+      long ticks = now >>> SHIFT[i];
+      if (ticks - previousTicks <= 0) {
+        break;
+      }
+      expire(i, previousTicks, ticks - previousTicks);
+    }
+  }
+
+  private void expire(int index, long previousTicks, long delta) {
+    Entry[] buckets = wheel[index];
+    int mask = buckets.length - 1;
+    int steps = (int) Math.min(1 + delta, buckets.length);
+    int start = (int) previousTicks & mask;
+    for (int i = start; i < start + steps; ++i) {
+      Entry sentinel = buckets[i & mask];
+      Entry e = sentinel.timerNext;
+      sentinel.timerPrev = sentinel.timerNext = sentinel;
+      while (e != sentinel) {
+        Entry next = e.timerNext;
+        e.timerPrev = e.timerNext = null;
+        if (e.expires - nanos > 0) {
+          schedule(e);
+        } else {
+          retire(e);
+          if (items.remove(e.key, e)) {
+            expirations.increment();
+          }
+        }
+        e = next;
+      }
+    }
+  }
+
+  // statistics
+
+  public int size() {
+    return items.size();
+  }
+
+  public int getMaximumSize() {
+    return maximumSize;
+  }
+
+  /**
+   * @return hits / (hits + misses), 1 if there were none
+   */
+  public double getHitRate() {
+    long h = hits.sum();
+    long total = h + misses.sum();
+    return (total == 0) ? 1.0 : (double) h / total;
+  }
+
+  public Map<String, Long> getStats() {
+    Map<String, Long> stats = new LinkedHashMap<String, Long>();
+    stats.put("size", (long) items.size());
+    stats.put("hits", hits.sum());
+    stats.put("misses", misses.sum());
+    stats.put("loads", loads.sum());
+    stats.put("loadFailures", loadFailures.sum());
+    stats.put("evictions", evictions.sum());
+    stats.put("expirations", expirations.sum());
+    return stats;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%d/%d items hit rate %.3f %s", items.size(), maximumSize, getHitRate(), getStats());
+  }
+}
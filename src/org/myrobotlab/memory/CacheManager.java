@@ -5,6 +5,11 @@ package org.myrobotlab.memory;
 
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Manager that should be in charge of caches so that we have a way to clear
@@ -27,6 +32,15 @@ public class CacheManager {
    * Keep track of how often each cache is supposed to time out.
    */
   private final ConcurrentMap<String, Integer> cacheTimeouts;
+  /**
+   * The timeout() calls of each cache.
+   */
+  private final ConcurrentMap<String, ScheduledFuture<?>> timers;
+  /**
+   * Calls timeout() on the caches - started with the first cache that times
+   * out.
+   */
+  private ScheduledExecutorService scheduler;
 
   static {
     me = new CacheManager();
@@ -46,6 +60,7 @@ public class CacheManager {
     // start off with 10
     caches = new ConcurrentHashMap<String, ManagedCache>(10);
     cacheTimeouts = new ConcurrentHashMap<String, Integer>(10);
+    timers = new ConcurrentHashMap<String, ScheduledFuture<?>>(10);
   }
 
   /**
@@ -57,11 +72,70 @@ public class CacheManager {
    *          the cache to add
    * @param timeoutInterval
    *          the interval in ms of how long items in this cache should be kept
-   *          before releasing them
+   *          before releasing them - timeout() of the cache is called at this
+   *          interval, 0 never
    */
-  public void addCache(String name, ManagedCache cache, int timeoutInterval) {
+  public synchronized void addCache(String name, ManagedCache cache, int timeoutInterval) {
+    removeCache(name);
     caches.put(name, cache);
     cacheTimeouts.put(name, timeoutInterval);
+    if (timeoutInterval > 0) {
+      final ManagedCache managed = cache;
+      timers.put(name, getScheduler().scheduleWithFixedDelay(new Runnable() {
+        @Override
+        public void run() {
+          managed.timeout();
+        }
+      }, timeoutInterval, timeoutInterval, TimeUnit.MILLISECONDS));
+    }
+  }
+
+  /**
+   * Get the BoundedCache of this name - creating it if there is none.
+   * 
+   * @param name
+   *          the name used to reference the cache
+   * @param maximumSize
+   *          the most items it keeps
+   * @param timeToLive
+   *          ms after a put an item expires, 0 never
+   */
+  public synchronized BoundedCache createCache(String name, int maximumSize, long timeToLive) {
+    ManagedCache cache = caches.get(name);
+    if (cache instanceof BoundedCache) {
+      return (BoundedCache) cache;
+    }
+    BoundedCache bounded = new BoundedCache(maximumSize, timeToLive);
+    // the expired items are dropped as the wheel turns - once a second is
+    // often enough
+    addCache(name, bounded, (timeToLive > 0) ? 1000 : 0);
+    return bounded;
+  }
+
+  /**
+   * Stop managing a cache.
+   */
+  public synchronized ManagedCache removeCache(String name) {
+    ScheduledFuture<?> timer = timers.remove(name);
+    if (timer != null) {
+      timer.cancel(false);
+    }
+    cacheTimeouts.remove(name);
+    return caches.remove(name);
+  }
+
+  private ScheduledExecutorService getScheduler() {
+    if (scheduler == null) {
+      scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "cache-timeout");
+          t.setDaemon(true);
+          return t;
+        }
+      });
+    }
+    return scheduler;
   }
 
   /*
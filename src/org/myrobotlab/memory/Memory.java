@@ -1,13 +1,34 @@
 package org.myrobotlab.memory;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.SortedSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import org.myrobotlab.codec.CodecUtils;
 import org.myrobotlab.logging.LoggerFactory;
 import org.myrobotlab.logging.Logging;
+import org.myrobotlab.memory.Node.NodeContext;
 import org.slf4j.Logger;
 
+/**
+ * A tree of Nodes, and beside it an index of everything put through Memory by
+ * full path - "/k1/k2/k3" - so a get is one hash lookup instead of a walk down
+ * the tree, and a sorted set of the same paths so a subtree is a range of it.
+ * 
+ * Services can put and get from several threads. Puts are serialized, gets
+ * don't lock, and the data of a Node handed out by getNodes is not changed
+ * under the reader - the next put copies it.
+ * 
+ * Listeners get onPut for each put, and the changed nodes - one per node,
+ * however often it changed - in a batch from publishChanges.
+ */
 public class Memory {
 
   public final static Logger log = LoggerFactory.getLogger(Memory.class.getCanonicalName());
@@ -16,22 +37,74 @@ public class Memory {
 
   boolean autoBuildPaths = true;
 
-  // private ArrayList<MemoryChangeListener> listeners = new
-  // ArrayList<MemoryChangeListener>();
-  MemoryChangeListener listener = null;
+  /**
+   * full path to Node or value - one String per path, shared with paths and
+   * changes
+   */
+  transient final ConcurrentHashMap<String, Object> index = new ConcurrentHashMap<String, Object>();
+
+  /**
+   * the paths in order - the paths under /k1 are the ones from "/k1/" to
+   * "/k10" ('0' is the char after '/')
+   */
+  transient final ConcurrentSkipListSet<String> paths = new ConcurrentSkipListSet<String>();
+
+  /**
+   * nodes changed since the last publishChanges - by path
+   */
+  transient final LinkedHashMap<String, NodeContext> changes = new LinkedHashMap<String, NodeContext>();
+
+  transient final List<MemoryChangeListener> listeners = new CopyOnWriteArrayList<MemoryChangeListener>();
+
+  transient final Object lock = new Object();
 
   public void addMemoryChangeListener(MemoryChangeListener listener) {
-    if (this.listener == null) {
-      this.listener = listener;
-    } else {
-      log.error("too many listeners");
-      // bad form - shouldn't follow rxtx ;p
-    }
+    listeners.add(listener);
   }
 
-  // TODO - move these into Memory ???
+  public void removeMemoryChangeListener(MemoryChangeListener listener) {
+    listeners.remove(listener);
+  }
+
+  /**
+   * publishes every node as one batch - publishChanges sends only what changed
+   */
   public void crawlAndPublish() {
-    crawlAndPublish("", root);
+    List<NodeContext> all = new ArrayList<NodeContext>();
+    crawl("", root, all);
+    for (MemoryChangeListener listener : listeners) {
+      listener.onChanges(all);
+    }
+  }
+
+  private void crawl(String path, Node node, List<NodeContext> all) {
+    for (Map.Entry<String, Object> o : node.getNodes().entrySet()) {
+      Object value = o.getValue();
+      if (value.getClass() == Node.class) {
+        all.add(new NodeContext(path, (Node) value));
+        crawl(getPath(path, o.getKey()), (Node) value, all);
+      }
+    }
+  }
+
+  /**
+   * sends the nodes put or changed since the last call to the listeners
+   * 
+   * @return the number of nodes
+   */
+  public int publishChanges() {
+    List<NodeContext> batch;
+    synchronized (lock) {
+      if (changes.isEmpty()) {
+        return 0;
+      }
+      batch = new ArrayList<NodeContext>(changes.values());
+      changes.clear();
+    }
+    for (MemoryChangeListener listener : listeners) {
+      listener.onChanges(batch);
+    }
+    return batch.size();
   }
 
   // TODO - move these into Memory ???
@@ -45,9 +118,8 @@ public class Memory {
       if (value.getClass() == Node.class) {
         Node node = (Node) value;
 
-        String newPath = String.format("%s/%s", parentPath, node.getName());
-        if (listener != null) { // FIXME - don't publish root - design
-          // problem !
+        String newPath = parentPath + "/" + node.getName();
+        for (MemoryChangeListener listener : listeners) {
           listener.publish(parentPath, node);
         }
 
@@ -57,12 +129,102 @@ public class Memory {
   }
 
   public Object get(String path) {
-    if (path == null || path == "") // TODO - test for .getNode(null) !!!
-    {
+    if (path == null || path.isEmpty()) {
+      return root;
+    }
+    Object o = index.get(path);
+    if (o != null) {
+      return o;
+    }
+    String p = normalize(path);
+    if (p.isEmpty()) {
       return root;
-    } else {
-      // return root.getNode(path);
-      return root.get(path);
+    }
+    if (p != path) {
+      o = index.get(p);
+      if (o != null) {
+        return o;
+      }
+    }
+    // put into a node directly - not through memory
+    return root.get(p);
+  }
+
+  /**
+   * @return the paths under path, in order - a live view, it changes with the
+   *         memory
+   */
+  public SortedSet<String> getPaths(String path) {
+    String p = normalize(path);
+    if (p.isEmpty()) {
+      return Collections.unmodifiableSortedSet(paths);
+    }
+    return Collections.unmodifiableSortedSet(paths.subSet(p + "/", p + "0"));
+  }
+
+  public int size() {
+    return index.size();
+  }
+
+  /**
+   * @return the path with a leading / and without a trailing one - "" for the
+   *         root
+   */
+  static String normalize(String path) {
+    if (path == null) {
+      return "";
+    }
+    int end = path.length();
+    while (end > 0 && path.charAt(end - 1) == '/') {
+      --end;
+    }
+    if (end == 0) {
+      return "";
+    }
+    if (path.charAt(0) == '/') {
+      return (end == path.length()) ? path : path.substring(0, end);
+    }
+    return "/" + path.substring(0, end);
+  }
+
+  static String getParentPath(String path) {
+    int pos = path.lastIndexOf('/');
+    return (pos <= 0) ? "" : path.substring(0, pos);
+  }
+
+  static String getPath(String parentPath, String name) {
+    return parentPath + "/" + name;
+  }
+
+  /**
+   * adds the path of object and the paths of its children to the index
+   */
+  private void index(String path, Object object) {
+    index.put(path, object);
+    paths.add(path);
+    if (object instanceof Node) {
+      for (Map.Entry<String, Object> child : ((Node) object).getNodes().entrySet()) {
+        index(getPath(path, child.getKey()), child.getValue());
+      }
+    }
+  }
+
+  /**
+   * removes path and everything under it from the index
+   */
+  private void unindex(String path) {
+    index.remove(path);
+    paths.remove(path);
+    SortedSet<String> under = paths.subSet(path + "/", path + "0");
+    for (String p : under) {
+      index.remove(p);
+    }
+    under.clear();
+  }
+
+  private void changed(String parentPath, String path, Node node) {
+    if (!listeners.isEmpty()) {
+      changes.put(path, new NodeContext(parentPath, node));
     }
   }
 
@@ -78,7 +240,10 @@ public class Memory {
   public Object put(String parentPath, Node node) {
     // FIXME - A CLUE the root node name is null !
 
-    Object object = root.get(parentPath);
+    String parent = normalize(parentPath);
+    Object ret = null;
+    synchronized (lock) {
+      Object object = get(parent);
 
     /*
      * AUTOBUILD - WOULD BE NICE if (object == null && autoBuildPaths) { int
@@ -94,24 +259,30 @@ public class Memory {
      * }
      */
 
-    if (object == null) {
-      log.error("could not add node {} to path {}", node.getName(), parentPath);
-      return null;
-    }
+      if (object == null) {
+        log.error("could not add node {} to path {}", node.getName(), parentPath);
+        return null;
+      }
 
-    Class<?> c = object.getClass();
-    Object ret = null;
-    if (c == Node.class) {
-      Node parent = (Node) object;
-      ret = parent.getNodes().put(node.getName(), node);
-    } else if (c == HashMap.class) {
-      // it must be data right ?
-      HashMap<String, Object> data = (HashMap<String, Object>) object;
-      ret = data.put(node.getName(), node);
-    } else {
-      log.error("wtf ??? - something besides node or hashmap !!!");
-    }
-    if (listener != null) {
+      Class<?> c = object.getClass();
+      if (c == Node.class) {
+        ret = ((Node) object).put(node);
+      } else if (c == HashMap.class) {
+        // it must be data right ?
+        HashMap<String, Object> data = (HashMap<String, Object>) object;
+        ret = data.put(node.getName(), node);
+      } else {
+        log.error("wtf ??? - something besides node or hashmap !!!");
+        return null;
+      }
+      String path = getPath(parent, node.getName());
+      if (ret != null) {
+        unindex(path);
+      }
+      index(path, node);
+      changed(parent, path, node);
+    }
+    for (MemoryChangeListener listener : listeners) {
       listener.onPut(parentPath, node);
     }
     return ret;
@@ -149,14 +320,22 @@ public class Memory {
    */
 
   public Object put(String path, String key, Object value) {
-    Object o = root.get(path);
-    Class<?> c = o.getClass();
-    if (c == Node.class) {
+    String p = normalize(path);
+    synchronized (lock) {
+      Object o = get(p);
+      if (o == null || o.getClass() != Node.class) {
+        log.error("path {} is not to a Node", path);
+        return null;
+      }
       Node node = (Node) o;
-      return node.put(key, value);
-    } else {
-      log.error("path {} is not to a Node", path);
-      return null;
+      Object ret = node.put(key, value);
+      String valuePath = getPath(p, key);
+      if (ret != null) {
+        unindex(valuePath);
+      }
+      index(valuePath, value);
+      changed(p.isEmpty() ? null : getParentPath(p), p, node);
+      return ret;
     }
   }
 
@@ -166,17 +345,7 @@ public class Memory {
    * 
    */
   public Object putNode(String path, String nodeName) {
-    Object o = root.get(path);
-    Class<?> c = o.getClass();
-    if (c == Node.class) {
-      Node newNode = new Node(nodeName);
-      Node node = (Node) o;
-      return node.put(newNode);
-    } else {
-      log.error("path {} is not to a Node", path);
-      return null;
-    }
-
+    return put(path, nodeName, new Node(nodeName));
   }
 
   public String toJSON() {
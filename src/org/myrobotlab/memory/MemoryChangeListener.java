@@ -1,5 +1,9 @@
 package org.myrobotlab.memory;
 
+import java.util.List;
+
+import org.myrobotlab.memory.Node.NodeContext;
+
 public interface MemoryChangeListener {
 
   // public void onAdd(String parentPath, Node node);
@@ -7,4 +11,10 @@ public interface MemoryChangeListener {
 
   public void publish(String path, Node node);
 
+  /**
+   * the nodes put or changed since the last batch - each once, in the order
+   * they first changed
+   */
+  public void onChanges(List<NodeContext> changes);
+
 }
@@ -42,8 +42,14 @@ public class Node implements Serializable {
 
   public double timestamp = System.currentTimeMillis();
 
+  /**
+   * copy on write - getNodes hands out the map itself, and once it has been
+   * handed out the next put copies it instead of changing it under the reader
+   */
   private HashMap<String, Object> data = new HashMap<String, Object>();
 
+  private transient boolean shared = false;
+
   public static void main(String[] args) {
     try {
       LoggingFactory.init(Level.INFO);
@@ -92,11 +98,11 @@ public class Node implements Serializable {
    * @return - an object found at the given path
    */
   public Object get(String path) {
-    if (path == "") {
+    if (path.isEmpty()) {
       return this;
     }
-    if (path == "/") {
-      return this.data;
+    if (path.equals("/")) {
+      return getNodes();
     }
 
     int pos0 = path.indexOf('/');
@@ -112,17 +118,19 @@ public class Node implements Serializable {
         remaining = subpath;
       }
 
-      if (data.containsKey(subpath)) {
-        Object o = data.get(subpath);
-        Class<?> c = o.getClass();
-        if (c == Node.class) {
+      Object o = getData(subpath);
+      if (o != null) {
+        if (o.getClass() == Node.class) {
           return ((Node) o).get(remaining);
         } else {
           return o;
         }
       }
-    } else if (data.containsKey(path)) {
-      return data.get(path);
+    } else {
+      Object o = getData(path);
+      if (o != null) {
+        return o;
+      }
     }
 
     if (path.equals(name)) {
@@ -144,19 +152,32 @@ public class Node implements Serializable {
     return (Node) get(path);
   }
 
-  public HashMap<String, Object> getNodes() {
+  /**
+   * @return the data of the node - read only, it does not change when the
+   *         node does, so it can be iterated while other threads put
+   */
+  public synchronized HashMap<String, Object> getNodes() {
+    shared = true;
     return data;
   }
 
+  synchronized Object getData(String key) {
+    return data.get(key);
+  }
+
   public Node put(Node node) {
-    return (Node) data.put(node.getName(), node);
+    return (Node) put(node.getName(), node);
   }
 
-  public Object put(String key, Object value) {
+  public synchronized Object put(String key, Object value) {
+    if (shared) {
+      data = new HashMap<String, Object>(data);
+      shared = false;
+    }
     return data.put(key, value);
   }
 
-  public int size() {
+  public synchronized int size() {
     return data.size();
   }
 
@@ -0,0 +1,588 @@
+package org.myrobotlab.net;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.myrobotlab.framework.Message;
+import org.myrobotlab.logging.LoggerFactory;
+import org.myrobotlab.service.RemoteAdapter;
+import org.slf4j.Logger;
+
+/**
+ * FramedTransport - non blocking tcp transport for the RemoteAdapter.
+ *
+ * All connections of a RemoteAdapter are served by a single selector thread
+ * which accepts, reads and writes, instead of a reader thread per connection.
+ * Messages are sent as length prefixed frames encoded by a per-connection
+ * {@link MsgCodec}.
+ *
+ * Sending never waits on the network - the frame is appended to the send
+ * buffer of the connection and the selector thread writes everything which
+ * has accumulated with a single write. With a batch delay the first frame of
+ * an idle connection waits up to that long for more frames to join it (Nagle
+ * style) unless the buffer already holds batchSize bytes. A sender only waits
+ * if a peer stops reading and its buffer reaches maxPending.
+ *
+ * Both ends must use the framed transport - every connection starts with a
+ * hello of magic and version and a peer which does not send it is dropped.
+ *
+ */
+public class FramedTransport implements Runnable {
+
+	public final static Logger log = LoggerFactory.getLogger(FramedTransport.class);
+
+	public final static int MAGIC = 0x4d524c46; // "MRLF"
+	public final static int VERSION = 1;
+
+	final static int BUFFER_SIZE = 64 * 1024;
+
+	class FramedConnection {
+		final SocketChannel channel;
+		final MsgCodec codec = new MsgCodec();
+		final Connection data;
+		final URI protocolKey;
+		final URI uri;
+		final URI key;
+		SelectionKey selectionKey;
+
+		// read side - only used by the selector thread
+		ByteBuffer in = ByteBuffer.allocate(BUFFER_SIZE);
+		boolean helloReceived = false;
+
+		// write side - guarded by this
+		ByteBuffer out = ByteBuffer.allocate(BUFFER_SIZE);
+		long pendingSince = 0;
+		boolean queued = false;
+		boolean closed = false;
+
+		FramedConnection(SocketChannel channel, URI key) throws URISyntaxException {
+			this.channel = channel;
+			InetSocketAddress remote = (InetSocketAddress) channel.socket().getRemoteSocketAddress();
+			protocolKey = new URI(String.format("tcp://%s:%d", remote.getAddress().getHostAddress(), remote.getPort()));
+			uri = new URI(String.format("mrl://%s/%s", myService.getName(), protocolKey));
+			this.key = (key == null) ? protocolKey : key;
+			data = new Connection(myService.getName(), this.key);
+			data.state = Connection.CONNECTING;
+			data.prefix = myService.getPrefix(protocolKey);
+		}
+	}
+
+	final RemoteAdapter myService;
+
+	final ConcurrentHashMap<URI, FramedConnection> connections = new ConcurrentHashMap<URI, FramedConnection>();
+	final ConcurrentLinkedQueue<FramedConnection> registrations = new ConcurrentLinkedQueue<FramedConnection>();
+	final ConcurrentLinkedQueue<FramedConnection> flushQueue = new ConcurrentLinkedQueue<FramedConnection>();
+
+	Selector selector;
+	ServerSocketChannel server;
+	Integer serverPort;
+	Thread selectorThread;
+	volatile boolean isRunning = false;
+	volatile boolean acceptPending = false;
+
+	/**
+	 * how long the first frame of an idle connection waits for more frames
+	 * before it is written - 0 writes as soon as the selector thread gets to
+	 * it
+	 */
+	volatile int batchDelay = 0;
+
+	/**
+	 * pending bytes which are written without waiting for the batch delay
+	 */
+	volatile int batchSize = 16 * 1024;
+
+	/**
+	 * pending bytes of a connection after which senders wait for the peer
+	 */
+	volatile int maxPending = 8 * 1024 * 1024;
+
+	int connectTimeout = 5000;
+
+	// stats
+	final AtomicLong msgsSent = new AtomicLong();
+	final AtomicLong msgsReceived = new AtomicLong();
+	final AtomicLong bytesSent = new AtomicLong();
+	final AtomicLong bytesReceived = new AtomicLong();
+	final AtomicLong writes = new AtomicLong();
+
+	public FramedTransport(RemoteAdapter s) {
+		myService = s;
+	}
+
+	/**
+	 * starts listening for connections
+	 *
+	 * @param port
+	 *          - tcp port
+	 * @throws IOException
+	 *           - if the port can not be bound
+	 */
+	public synchronized void start(int port) throws IOException {
+		stopListening();
+		ensureRunning();
+		serverPort = port;
+		server = ServerSocketChannel.open();
+		server.socket().setReuseAddress(true);
+		server.socket().bind(new InetSocketAddress(port), 10);
+		server.configureBlocking(false);
+		// the server channel is registered by the selector thread
+		acceptPending = true;
+		selector.wakeup();
+		myService.info(String.format("FramedTransport listening on %s", server.socket().getLocalSocketAddress()));
+	}
+
+	public synchronized void stopListening() {
+		if (server != null) {
+			try {
+				server.close();
+			} catch (IOException e) {
+				// closing anyway
+			}
+			server = null;
+		}
+	}
+
+	/**
+	 * closes all connections and stops the selector thread
+	 */
+	public synchronized void stop() {
+		stopListening();
+		isRunning = false;
+		if (selector != null) {
+			selector.wakeup();
+		}
+		if (selectorThread != null) {
+			try {
+				selectorThread.join(1000);
+			} catch (InterruptedException e) {
+				// stopping anyway
+			}
+			selectorThread = null;
+		}
+	}
+
+	public boolean isReady() {
+		return server != null && server.isOpen();
+	}
+
+	synchronized void ensureRunning() throws IOException {
+		if (isRunning) {
+			return;
+		}
+		selector = Selector.open();
+		isRunning = true;
+		selectorThread = new Thread(this, String.format("%s.framed", myService.getName()));
+		selectorThread.setDaemon(true);
+		selectorThread.start();
+	}
+
+	/**
+	 * queues a message for a peer - connecting if there is no connection yet
+	 *
+	 * @param uri
+	 *          - tcp://host:port of the peer
+	 * @param msg
+	 *          - the message
+	 * @throws IOException
+	 *           - if the peer can not be reached or the message not encoded
+	 * @throws URISyntaxException
+	 *           - if the peer address does not make a valid key
+	 */
+	public void send(URI uri, Message msg) throws IOException, URISyntaxException {
+		FramedConnection c = connections.get(uri);
+		if (c == null || c.closed) {
+			c = connect(uri);
+		}
+
+		// router x-forwarded outbound proxy
+		String prefix = myService.getPrefix(c.protocolKey);
+		if (msg.name != null && msg.name.startsWith(prefix)) {
+			msg.name = msg.name.substring(prefix.length());
+		}
+
+		boolean wakeup = false;
+		synchronized (c) {
+			int length = c.codec.encode(msg);
+			long deadline = System.currentTimeMillis() + 10000;
+			while (!c.closed && c.out.position() > 0 && c.out.position() + length > maxPending) {
+				// the peer is not reading - wait for the selector to drain
+				long wait = deadline - System.currentTimeMillis();
+				if (wait <= 0) {
+					close(c, "peer stopped reading");
+					break;
+				}
+				try {
+					c.wait(wait);
+				} catch (InterruptedException e) {
+					throw new IOException("interrupted waiting to send");
+				}
+			}
+			if (c.closed) {
+				throw new IOException(String.format("%s is closed", c.key));
+			}
+			int before = c.out.position();
+			append(c, c.codec.getBuffer(), length);
+			if (c.pendingSince == 0) {
+				c.pendingSince = System.nanoTime();
+			}
+			if (!c.queued) {
+				c.queued = true;
+				flushQueue.add(c);
+				wakeup = true;
+			} else if (before < batchSize && c.out.position() >= batchSize) {
+				wakeup = true;
+			}
+			c.data.txSender = msg.sender;
+			c.data.txSendingMethod = msg.sendingMethod;
+			c.data.txName = msg.name;
+			c.data.txMethod = msg.method;
+			++c.data.tx;
+		}
+		msgsSent.incrementAndGet();
+		if (wakeup) {
+			selector.wakeup();
+		}
+	}
+
+	FramedConnection connect(URI uri) throws IOException, URISyntaxException {
+		ensureRunning();
+		SocketChannel channel = SocketChannel.open();
+		try {
+			channel.socket().connect(new InetSocketAddress(uri.getHost(), uri.getPort()), connectTimeout);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+		FramedConnection c = open(channel, uri);
+		myService.broadcastState();
+		return c;
+	}
+
+	FramedConnection open(SocketChannel channel, URI key) throws IOException, URISyntaxException {
+		channel.configureBlocking(false);
+		channel.socket().setTcpNoDelay(true);
+		FramedConnection c = new FramedConnection(channel, key);
+		synchronized (c) {
+			c.out.putInt(MAGIC);
+			c.out.putInt(VERSION);
+			c.pendingSince = System.nanoTime();
+			c.queued = true;
+		}
+		connections.put(c.key, c);
+		connections.put(c.protocolKey, c);
+		myService.connections.put(c.key, c.data);
+		registrations.add(c);
+		flushQueue.add(c);
+		selector.wakeup();
+		return c;
+	}
+
+	static void append(FramedConnection c, byte[] b, int length) {
+		if (c.out.remaining() < length) {
+			ByteBuffer n = ByteBuffer.allocate(Math.max(c.out.capacity() * 2, c.out.position() + length));
+			c.out.flip();
+			n.put(c.out);
+			c.out = n;
+		}
+		c.out.put(b, 0, length);
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (isRunning) {
+				processRegistrations();
+				long timeout = flushPending();
+				selector.select(timeout);
+				if (!isRunning) {
+					break;
+				}
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+				while (it.hasNext()) {
+					SelectionKey key = it.next();
+					it.remove();
+					if (!key.isValid()) {
+						continue;
+					}
+					if (key.isAcceptable()) {
+						accept((ServerSocketChannel) key.channel());
+						continue;
+					}
+					FramedConnection c = (FramedConnection) key.attachment();
+					try {
+						if (key.isReadable()) {
+							read(c);
+						}
+						if (key.isValid() && key.isWritable()) {
+							write(c);
+						}
+					} catch (Exception e) {
+						close(c, e.getMessage());
+					}
+				}
+			}
+		} catch (Exception e) {
+			log.error("framed transport selector threw", e);
+		}
+		isRunning = false;
+		for (FramedConnection c : connections.values()) {
+			close(c, "transport stopped");
+		}
+		try {
+			selector.close();
+		} catch (IOException e) {
+			// stopping anyway
+		}
+	}
+
+	void processRegistrations() throws IOException {
+		ServerSocketChannel s = server;
+		if (acceptPending && s != null) {
+			acceptPending = false;
+			s.register(selector, SelectionKey.OP_ACCEPT);
+		}
+		FramedConnection c;
+		while ((c = registrations.poll()) != null) {
+			if (!c.closed) {
+				c.selectionKey = c.channel.register(selector, SelectionKey.OP_READ, c);
+			}
+		}
+	}
+
+	/**
+	 * writes the connections whose batch is due
+	 *
+	 * @return ms until the next batch is due - 0 if none is waiting
+	 */
+	long flushPending() {
+		if (flushQueue.isEmpty()) {
+			return 0;
+		}
+		long now = System.nanoTime();
+		long delay = batchDelay * 1000000L;
+		long next = Long.MAX_VALUE;
+		List<FramedConnection> waiting = null;
+		FramedConnection c;
+		while ((c = flushQueue.poll()) != null) {
+			if (c.selectionKey == null && !c.closed) {
+				// opened after this pass registered new channels
+				if (waiting == null) {
+					waiting = new ArrayList<FramedConnection>();
+				}
+				waiting.add(c);
+				next = Math.min(next, 1000000L);
+				continue;
+			}
+			boolean due;
+			long age;
+			synchronized (c) {
+				age = now - c.pendingSince;
+				due = delay == 0 || c.out.position() >= batchSize || age >= delay;
+			}
+			if (due) {
+				try {
+					write(c);
+				} catch (Exception e) {
+					close(c, e.getMessage());
+				}
+			} else {
+				if (waiting == null) {
+					waiting = new ArrayList<FramedConnection>();
+				}
+				waiting.add(c);
+				next = Math.min(next, delay - age);
+			}
+		}
+		if (waiting == null) {
+			return 0;
+		}
+		flushQueue.addAll(waiting);
+		return Math.max(1, next / 1000000L);
+	}
+
+	void write(FramedConnection c) throws IOException {
+		synchronized (c) {
+			c.queued = false;
+			if (c.closed || c.selectionKey == null || c.out.position() == 0) {
+				return;
+			}
+			c.out.flip();
+			int n = c.channel.write(c.out);
+			c.out.compact();
+			bytesSent.addAndGet(n);
+			writes.incrementAndGet();
+			if (c.out.position() == 0) {
+				c.pendingSince = 0;
+				c.selectionKey.interestOps(SelectionKey.OP_READ);
+			} else {
+				// socket buffer is full - continue when it is writable
+				c.selectionKey.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+			}
+			c.notifyAll();
+		}
+	}
+
+	void accept(ServerSocketChannel s) {
+		try {
+			SocketChannel channel = s.accept();
+			if (channel == null) {
+				return;
+			}
+			FramedConnection c = open(channel, null);
+			log.info("{} accepted {}", myService.getName(), c.protocolKey);
+			myService.broadcastState();
+		} catch (Exception e) {
+			log.error("framed transport accept threw", e);
+		}
+	}
+
+	void read(FramedConnection c) throws IOException {
+		int n = c.channel.read(c.in);
+		if (n < 0) {
+			close(c, "closed by peer");
+			return;
+		}
+		bytesReceived.addAndGet(n);
+		c.in.flip();
+		int need = 0;
+		while (true) {
+			if (!c.helloReceived) {
+				if (c.in.remaining() < 8) {
+					break;
+				}
+				int magic = c.in.getInt();
+				int version = c.in.getInt();
+				if (magic != MAGIC) {
+					throw new IOException("peer is not using the framed transport");
+				}
+				if (version != VERSION) {
+					throw new IOException(String.format("peer framed transport version %d - expected %d", version, VERSION));
+				}
+				c.helloReceived = true;
+				c.data.state = Connection.CONNECTED;
+				continue;
+			}
+			if (c.in.remaining() < 4) {
+				break;
+			}
+			int length = c.in.getInt(c.in.position());
+			if (length < 0 || length > MsgCodec.MAX_FRAME) {
+				throw new IOException(String.format("invalid frame length %d", length));
+			}
+			if (c.in.remaining() < 4 + length) {
+				need = 4 + length;
+				break;
+			}
+			c.in.position(c.in.position() + 4);
+			ByteBuffer frame = c.in.slice();
+			frame.limit(length);
+			c.in.position(c.in.position() + length);
+			// a frame which can not be decoded leaves the intern tables
+			// out of step - the connection can not continue after it
+			Message msg = c.codec.decode(frame);
+			msgsReceived.incrementAndGet();
+			dispatch(c, msg);
+		}
+		c.in.compact();
+		if (need > c.in.capacity()) {
+			ByteBuffer bigger = ByteBuffer.allocate(need);
+			c.in.flip();
+			bigger.put(c.in);
+			c.in = bigger;
+		}
+	}
+
+	void dispatch(FramedConnection c, Message msg) {
+		++c.data.rx;
+		c.data.rxSender = msg.sender;
+		c.data.rxSendingMethod = msg.sendingMethod;
+		c.data.rxName = msg.name;
+		c.data.rxMethod = msg.method;
+		try {
+			myService.processRemote(c.uri, c.protocolKey, msg);
+		} catch (Exception e) {
+			log.error("{} could not process {}.{} from {}", myService.getName(), msg.name, msg.method, c.protocolKey, e);
+		}
+	}
+
+	void close(FramedConnection c, String reason) {
+		synchronized (c) {
+			if (c.closed) {
+				return;
+			}
+			c.closed = true;
+			c.notifyAll();
+		}
+		log.info("{} closing {} - {}", myService.getName(), c.protocolKey, reason);
+		if (c.selectionKey != null) {
+			c.selectionKey.cancel();
+		}
+		try {
+			c.channel.close();
+		} catch (IOException e) {
+			// closing anyway
+		}
+		connections.remove(c.key, c);
+		connections.remove(c.protocolKey, c);
+		c.data.state = Connection.DISCONNECTED;
+	}
+
+	public void setBatchDelay(int ms) {
+		batchDelay = ms;
+	}
+
+	public void setBatchSize(int bytes) {
+		batchSize = bytes;
+	}
+
+	public void setMaxPending(int bytes) {
+		maxPending = bytes;
+	}
+
+	public int getConnectionCount() {
+		// connections are mapped by both requested and protocol key
+		return new HashSet<FramedConnection>(connections.values()).size();
+	}
+
+	public long getMsgsSent() {
+		return msgsSent.get();
+	}
+
+	public long getMsgsReceived() {
+		return msgsReceived.get();
+	}
+
+	public long getBytesSent() {
+		return bytesSent.get();
+	}
+
+	public long getBytesReceived() {
+		return bytesReceived.get();
+	}
+
+	public long getWrites() {
+		return writes.get();
+	}
+
+	public String toString() {
+		long sent = msgsSent.get();
+		return String.format("msgs tx %d rx %d bytes tx %d rx %d %.1f bytes/msg %.1f msgs/write", sent, msgsReceived.get(), bytesSent.get(), bytesReceived.get(),
+				(sent == 0) ? 0.0 : (double) bytesSent.get() / sent, (writes.get() == 0) ? 0.0 : (double) sent / writes.get());
+	}
+
+}
@@ -0,0 +1,715 @@
+package org.myrobotlab.net;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.myrobotlab.framework.Message;
+
+/**
+ * MsgCodec - compact binary encoding of Messages for a single connection.
+ *
+ * Each frame is a 4 byte length followed by the encoded message. The header
+ * fields of a Message are written field by field, and service names, method
+ * names and other short strings are interned per connection - the first time
+ * a string is sent it is written in full and given an index, after that only
+ * the index is sent. Primitives, strings and primitive arrays in the data
+ * payload have their own encodings, anything else falls back to java
+ * serialization with class descriptors reduced to an interned class name.
+ *
+ * A codec keeps the intern tables of both directions, so it must only be used
+ * for one ordered stream - encode and decode are each expected to be called
+ * from one thread at a time. Both sides must run the same version of the
+ * classes they exchange, since class descriptors are not sent.
+ *
+ * A codec created without interning writes every string in full. Its frames
+ * do not depend on earlier frames, so they can be decoded by any codec in any
+ * order - this is what broadcast transports like mqtt need, where a frame is
+ * read by every subscriber and some of them may have missed the ones before.
+ *
+ */
+public class MsgCodec {
+
+	final static Charset UTF8 = Charset.forName("UTF-8");
+
+	// string codes - anything above REF is an index into the intern table
+	final static int STR_NULL = 0;
+	final static int STR_LITERAL = 1;
+	final static int STR_INTERN = 2;
+	final static int STR_REF = 3;
+
+	// value tags of the data payload
+	final static int NULL = 0;
+	final static int STRING = 1;
+	final static int TRUE = 2;
+	final static int FALSE = 3;
+	final static int INT = 4;
+	final static int LONG = 5;
+	final static int DOUBLE = 6;
+	final static int FLOAT = 7;
+	final static int BYTE = 8;
+	final static int SHORT = 9;
+	final static int BYTES = 10;
+	final static int INTS = 11;
+	final static int DOUBLES = 12;
+	final static int STRINGS = 13;
+	final static int OBJECT = 14;
+
+	/**
+	 * strings longer than this are sent in full every time - they are usually
+	 * data (text) rather than names
+	 */
+	public final static int MAX_INTERN_LENGTH = 64;
+
+	/**
+	 * max number of interned strings per direction - after that new strings
+	 * are sent as literals
+	 */
+	public final static int MAX_INTERN = 8192;
+
+	/**
+	 * max size of a single frame
+	 */
+	public final static int MAX_FRAME = 16 * 1024 * 1024;
+
+	final HashMap<String, Integer> txStrings = new HashMap<String, Integer>();
+	final ArrayList<String> rxStrings = new ArrayList<String>();
+
+	// frame being encoded
+	byte[] buf = new byte[1024];
+	int pos = 0;
+
+	// scratch buffer for serialized objects
+	final Output scratch = new Output();
+
+	final boolean interning;
+
+	public MsgCodec() {
+		this(true);
+	}
+
+	/**
+	 * @param interning
+	 *          - false to write every string in full, so frames can be
+	 *          decoded independently
+	 */
+	public MsgCodec(boolean interning) {
+		this.interning = interning;
+	}
+
+	/**
+	 * growable byte sink for the object streams
+	 */
+	static class Output extends OutputStream {
+		byte[] buf = new byte[256];
+		int count = 0;
+
+		@Override
+		public void write(int b) {
+			if (count == buf.length) {
+				grow(count + 1);
+			}
+			buf[count++] = (byte) b;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			if (count + len > buf.length) {
+				grow(count + len);
+			}
+			System.arraycopy(b, off, buf, count, len);
+			count += len;
+		}
+
+		void grow(int min) {
+			byte[] n = new byte[Math.max(min, buf.length * 2)];
+			System.arraycopy(buf, 0, n, 0, count);
+			buf = n;
+		}
+	}
+
+	/**
+	 * exposes the bytes of a frame being decoded as a stream
+	 */
+	static class Input extends InputStream {
+		final ByteBuffer in;
+
+		Input(ByteBuffer in) {
+			this.in = in;
+		}
+
+		@Override
+		public int read() {
+			return in.hasRemaining() ? in.get() & 0xff : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (!in.hasRemaining()) {
+				return -1;
+			}
+			int n = Math.min(len, in.remaining());
+			in.get(b, off, n);
+			return n;
+		}
+
+		@Override
+		public int available() {
+			return in.remaining();
+		}
+	}
+
+	/**
+	 * java serialization without the stream header, with class descriptors
+	 * written as interned class names
+	 */
+	class CompactObjectOutputStream extends ObjectOutputStream {
+
+		CompactObjectOutputStream(OutputStream out) throws IOException {
+			super(out);
+		}
+
+		@Override
+		protected void writeStreamHeader() {
+		}
+
+		@Override
+		protected void writeClassDescriptor(ObjectStreamClass desc) throws IOException {
+			Class<?> clazz = desc.forClass();
+			if (clazz.isPrimitive() || clazz.isArray() || clazz.isInterface() || desc.getSerialVersionUID() == 0) {
+				write(0);
+				super.writeClassDescriptor(desc);
+			} else {
+				write(1);
+				int code = intern(desc.getName());
+				writeVarInt(this, code);
+				if (code == STR_LITERAL || code == STR_INTERN) {
+					byte[] b = desc.getName().getBytes(UTF8);
+					writeVarInt(this, b.length);
+					write(b);
+				}
+			}
+		}
+	}
+
+	class CompactObjectInputStream extends ObjectInputStream {
+
+		CompactObjectInputStream(InputStream in) throws IOException {
+			super(in);
+		}
+
+		@Override
+		protected void readStreamHeader() {
+		}
+
+		@Override
+		protected ObjectStreamClass readClassDescriptor() throws IOException, ClassNotFoundException {
+			int type = read();
+			if (type == 0) {
+				return super.readClassDescriptor();
+			}
+			int code = readVarInt(this);
+			String name;
+			if (code == STR_LITERAL || code == STR_INTERN) {
+				byte[] b = new byte[readVarInt(this)];
+				readFully(b);
+				name = new String(b, UTF8);
+				if (code == STR_INTERN) {
+					rxStrings.add(name);
+				}
+			} else {
+				name = rxStrings.get(code - STR_REF);
+			}
+			return ObjectStreamClass.lookupAny(resolve(name));
+		}
+
+		@Override
+		protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+			try {
+				return super.resolveClass(desc);
+			} catch (ClassNotFoundException e) {
+				return resolve(desc.getName());
+			}
+		}
+
+		Class<?> resolve(String name) throws ClassNotFoundException {
+			ClassLoader cl = Thread.currentThread().getContextClassLoader();
+			if (cl == null) {
+				cl = MsgCodec.class.getClassLoader();
+			}
+			return Class.forName(name, false, cl);
+		}
+	}
+
+	/**
+	 * encodes a message as a length prefixed frame - the frame is valid in
+	 * {@link #getBuffer()} until the next call
+	 *
+	 * @param msg
+	 *          - the message
+	 * @return length of the frame including the 4 byte length
+	 * @throws IOException
+	 *           - if a data object can not be serialized
+	 */
+	public int encode(Message msg) throws IOException {
+		int interned = txStrings.size();
+		try {
+			return encodeFrame(msg);
+		} catch (IOException e) {
+			// the frame is not sent - forget what it interned or the
+			// tables of both sides would no longer match
+			if (txStrings.size() > interned) {
+				Iterator<Integer> it = txStrings.values().iterator();
+				while (it.hasNext()) {
+					if (it.next() >= interned) {
+						it.remove();
+					}
+				}
+			}
+			throw e;
+		}
+	}
+
+	int encodeFrame(Message msg) throws IOException {
+		pos = 4;
+		writeVarLong(msg.msgId);
+		writeString(msg.name);
+		writeString(msg.sender);
+		writeString(msg.sendingMethod);
+		writeString(msg.method);
+		writeString(msg.status);
+		writeString(msg.msgType);
+		writeString(msg.uri);
+		writeString(msg.apiKey);
+
+		if (msg.historyList == null) {
+			writeVarInt(0);
+		} else {
+			writeVarInt(msg.historyList.size() + 1);
+			for (String s : msg.historyList) {
+				writeString(s);
+			}
+		}
+
+		if (msg.security == null) {
+			writeVarInt(0);
+		} else {
+			writeVarInt(msg.security.size() + 1);
+			for (Map.Entry<String, String> entry : msg.security.entrySet()) {
+				writeString(entry.getKey());
+				writeString(entry.getValue());
+			}
+		}
+
+		if (msg.data == null) {
+			writeVarInt(0);
+		} else {
+			writeVarInt(msg.data.length + 1);
+			for (int i = 0; i < msg.data.length; ++i) {
+				writeValue(msg.data[i]);
+			}
+		}
+
+		int length = pos - 4;
+		if (length > MAX_FRAME) {
+			throw new IOException(String.format("message %s.%s is %d bytes - max frame is %d", msg.name, msg.method, length, MAX_FRAME));
+		}
+		buf[0] = (byte) (length >>> 24);
+		buf[1] = (byte) (length >>> 16);
+		buf[2] = (byte) (length >>> 8);
+		buf[3] = (byte) length;
+		return pos;
+	}
+
+	public byte[] getBuffer() {
+		return buf;
+	}
+
+	/**
+	 * decodes one frame
+	 *
+	 * @param in
+	 *          - the frame without its length prefix, positioned at the start
+	 *          and limited to the end of the frame
+	 * @return the message
+	 * @throws IOException
+	 *           - if the frame is malformed or an object can not be read
+	 */
+	public Message decode(ByteBuffer in) throws IOException {
+		Message msg = new Message();
+		msg.msgId = readVarLong(in);
+		msg.name = readString(in);
+		msg.sender = readString(in);
+		msg.sendingMethod = readString(in);
+		msg.method = readString(in);
+		msg.status = readString(in);
+		msg.msgType = readString(in);
+		msg.uri = readString(in);
+		msg.apiKey = readString(in);
+
+		int size = readVarInt(in);
+		if (size == 0) {
+			msg.historyList = null;
+		} else {
+			msg.historyList = new HashSet<String>();
+			for (int i = 0; i < size - 1; ++i) {
+				msg.historyList.add(readString(in));
+			}
+		}
+
+		size = readVarInt(in);
+		if (size > 0) {
+			msg.security = new HashMap<String, String>();
+			for (int i = 0; i < size - 1; ++i) {
+				msg.security.put(readString(in), readString(in));
+			}
+		}
+
+		size = readVarInt(in);
+		if (size > 0) {
+			msg.data = new Object[size - 1];
+			for (int i = 0; i < msg.data.length; ++i) {
+				msg.data[i] = readValue(in);
+			}
+		}
+		return msg;
+	}
+
+	/**
+	 * @return number of strings interned by the sending side
+	 */
+	public int getInternCount() {
+		return txStrings.size();
+	}
+
+	int intern(String s) {
+		if (!interning) {
+			return STR_LITERAL;
+		}
+		Integer index = txStrings.get(s);
+		if (index != null) {
+			return index + STR_REF;
+		}
+		if (s.length() > MAX_INTERN_LENGTH || txStrings.size() >= MAX_INTERN) {
+			return STR_LITERAL;
+		}
+		txStrings.put(s, txStrings.size());
+		return STR_INTERN;
+	}
+
+	void writeString(String s) {
+		if (s == null) {
+			writeVarInt(STR_NULL);
+			return;
+		}
+		int code = intern(s);
+		writeVarInt(code);
+		if (code == STR_LITERAL || code == STR_INTERN) {
+			writeUtf8(s);
+		}
+	}
+
+	void writeUtf8(String s) {
+		byte[] b = s.getBytes(UTF8);
+		writeVarInt(b.length);
+		ensure(b.length);
+		System.arraycopy(b, 0, buf, pos, b.length);
+		pos += b.length;
+	}
+
+	String readString(ByteBuffer in) throws IOException {
+		int code = readVarInt(in);
+		if (code == STR_NULL) {
+			return null;
+		}
+		if (code == STR_LITERAL || code == STR_INTERN) {
+			String s = readUtf8(in);
+			if (code == STR_INTERN) {
+				rxStrings.add(s);
+			}
+			return s;
+		}
+		int index = code - STR_REF;
+		if (index >= rxStrings.size()) {
+			throw new IOException(String.format("unknown string index %d", index));
+		}
+		return rxStrings.get(index);
+	}
+
+	String readUtf8(ByteBuffer in) throws IOException {
+		int length = readVarInt(in);
+		if (length > in.remaining()) {
+			throw new IOException(String.format("string length %d past end of frame", length));
+		}
+		if (!in.hasArray()) {
+			// direct or mapped - e.g. a FlightLog journal
+			byte[] b = new byte[length];
+			in.get(b);
+			return new String(b, UTF8);
+		}
+		String s = new String(in.array(), in.arrayOffset() + in.position(), length, UTF8);
+		in.position(in.position() + length);
+		return s;
+	}
+
+	void writeValue(Object o) throws IOException {
+		if (o == null) {
+			writeByte(NULL);
+		} else if (o instanceof String) {
+			writeByte(STRING);
+			writeString((String) o);
+		} else if (o instanceof Boolean) {
+			writeByte(((Boolean) o) ? TRUE : FALSE);
+		} else if (o instanceof Integer) {
+			writeByte(INT);
+			writeVarInt(zigzag((Integer) o));
+		} else if (o instanceof Long) {
+			writeByte(LONG);
+			writeVarLong(zigzag((Long) o));
+		} else if (o instanceof Double) {
+			writeByte(DOUBLE);
+			writeLong(Double.doubleToLongBits((Double) o));
+		} else if (o instanceof Float) {
+			writeByte(FLOAT);
+			writeInt(Float.floatToIntBits((Float) o));
+		} else if (o instanceof Byte) {
+			writeByte(BYTE);
+			writeByte((Byte) o);
+		} else if (o instanceof Short) {
+			writeByte(SHORT);
+			writeVarInt(zigzag((Short) o));
+		} else if (o instanceof byte[]) {
+			byte[] b = (byte[]) o;
+			writeByte(BYTES);
+			writeVarInt(b.length);
+			ensure(b.length);
+			System.arraycopy(b, 0, buf, pos, b.length);
+			pos += b.length;
+		} else if (o instanceof int[]) {
+			int[] a = (int[]) o;
+			writeByte(INTS);
+			writeVarInt(a.length);
+			for (int i = 0; i < a.length; ++i) {
+				writeVarInt(zigzag(a[i]));
+			}
+		} else if (o instanceof double[]) {
+			double[] a = (double[]) o;
+			writeByte(DOUBLES);
+			writeVarInt(a.length);
+			for (int i = 0; i < a.length; ++i) {
+				writeLong(Double.doubleToLongBits(a[i]));
+			}
+		} else if (o instanceof String[]) {
+			String[] a = (String[]) o;
+			writeByte(STRINGS);
+			writeVarInt(a.length);
+			for (int i = 0; i < a.length; ++i) {
+				writeString(a[i]);
+			}
+		} else {
+			// everything else - java serialization with compact class
+			// descriptors, sized so the reader never reads past it
+			scratch.count = 0;
+			ObjectOutputStream oos = new CompactObjectOutputStream(scratch);
+			oos.writeObject(o);
+			oos.flush();
+			writeByte(OBJECT);
+			writeVarInt(scratch.count);
+			ensure(scratch.count);
+			System.arraycopy(scratch.buf, 0, buf, pos, scratch.count);
+			pos += scratch.count;
+		}
+	}
+
+	Object readValue(ByteBuffer in) throws IOException {
+		int tag = in.get();
+		switch (tag) {
+			case NULL:
+				return null;
+			case STRING:
+				return readString(in);
+			case TRUE:
+				return Boolean.TRUE;
+			case FALSE:
+				return Boolean.FALSE;
+			case INT:
+				return unzigzag(readVarInt(in));
+			case LONG:
+				return unzigzag(readVarLong(in));
+			case DOUBLE:
+				return Double.longBitsToDouble(in.getLong());
+			case FLOAT:
+				return Float.intBitsToFloat(in.getInt());
+			case BYTE:
+				return in.get();
+			case SHORT:
+				return (short) unzigzag(readVarInt(in));
+			case BYTES: {
+				byte[] b = new byte[checkLength(in, readVarInt(in))];
+				in.get(b);
+				return b;
+			}
+			case INTS: {
+				int[] a = new int[checkLength(in, readVarInt(in))];
+				for (int i = 0; i < a.length; ++i) {
+					a[i] = unzigzag(readVarInt(in));
+				}
+				return a;
+			}
+			case DOUBLES: {
+				double[] a = new double[checkLength(in, readVarInt(in))];
+				for (int i = 0; i < a.length; ++i) {
+					a[i] = Double.longBitsToDouble(in.getLong());
+				}
+				return a;
+			}
+			case STRINGS: {
+				String[] a = new String[checkLength(in, readVarInt(in))];
+				for (int i = 0; i < a.length; ++i) {
+					a[i] = readString(in);
+				}
+				return a;
+			}
+			case OBJECT: {
+				int length = checkLength(in, readVarInt(in));
+				ByteBuffer slice = in.slice();
+				slice.limit(length);
+				in.position(in.position() + length);
+				ObjectInputStream ois = new CompactObjectInputStream(new Input(slice));
+				try {
+					return ois.readObject();
+				} catch (ClassNotFoundException e) {
+					throw new IOException(e);
+				}
+			}
+			default:
+				throw new IOException(String.format("unknown value tag %d", tag));
+		}
+	}
+
+	static int checkLength(ByteBuffer in, int length) throws IOException {
+		// every element takes at least one byte
+		if (length < 0 || length > in.remaining()) {
+			throw new IOException(String.format("length %d past end of frame", length));
+		}
+		return length;
+	}
+
+	static int zigzag(int n) {
+		return (n << 1) ^ (n >> 31);
+	}
+
+	static long zigzag(long n) {
+		return (n << 1) ^ (n >> 63);
+	}
+
+	static int unzigzag(int n) {
+		return (n >>> 1) ^ -(n & 1);
+	}
+
+	static long unzigzag(long n) {
+		return (n >>> 1) ^ -(n & 1);
+	}
+
+	void ensure(int n) {
+		if (pos + n > buf.length) {
+			byte[] b = new byte[Math.max(pos + n, buf.length * 2)];
+			System.arraycopy(buf, 0, b, 0, pos);
+			buf = b;
+		}
+	}
+
+	void writeByte(int b) {
+		ensure(1);
+		buf[pos++] = (byte) b;
+	}
+
+	void writeInt(int v) {
+		ensure(4);
+		buf[pos++] = (byte) (v >>> 24);
+		buf[pos++] = (byte) (v >>> 16);
+		buf[pos++] = (byte) (v >>> 8);
+		buf[pos++] = (byte) v;
+	}
+
+	void writeLong(long v) {
+		writeInt((int) (v >>> 32));
+		writeInt((int) v);
+	}
+
+	void writeVarInt(int v) {
+		ensure(5);
+		while ((v & ~0x7f) != 0) {
+			buf[pos++] = (byte) ((v & 0x7f) | 0x80);
+			v >>>= 7;
+		}
+		buf[pos++] = (byte) v;
+	}
+
+	void writeVarLong(long v) {
+		ensure(10);
+		while ((v & ~0x7fL) != 0) {
+			buf[pos++] = (byte) ((v & 0x7f) | 0x80);
+			v >>>= 7;
+		}
+		buf[pos++] = (byte) v;
+	}
+
+	static void writeVarInt(OutputStream out, int v) throws IOException {
+		while ((v & ~0x7f) != 0) {
+			out.write((v & 0x7f) | 0x80);
+			v >>>= 7;
+		}
+		out.write(v);
+	}
+
+	static int readVarInt(ByteBuffer in) throws IOException {
+		int v = 0;
+		for (int shift = 0; shift < 35; shift += 7) {
+			int b = in.get();
+			v |= (b & 0x7f) << shift;
+			if ((b & 0x80) == 0) {
+				return v;
+			}
+		}
+		throw new IOException("malformed varint");
+	}
+
+	static int readVarInt(InputStream in) throws IOException {
+		int v = 0;
+		for (int shift = 0; shift < 35; shift += 7) {
+			int b = in.read();
+			if (b < 0) {
+				throw new IOException("end of stream in varint");
+			}
+			v |= (b & 0x7f) << shift;
+			if ((b & 0x80) == 0) {
+				return v;
+			}
+		}
+		throw new IOException("malformed varint");
+	}
+
+	static long readVarLong(ByteBuffer in) throws IOException {
+		long v = 0;
+		for (int shift = 0; shift < 70; shift += 7) {
+			int b = in.get();
+			v |= (long) (b & 0x7f) << shift;
+			if ((b & 0x80) == 0) {
+				return v;
+			}
+		}
+		throw new IOException("malformed varlong");
+	}
+
+}
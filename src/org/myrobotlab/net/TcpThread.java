@@ -7,18 +7,13 @@ import java.io.ObjectOutputStream;
 import java.net.Socket;
 import java.net.URI;
 import java.net.UnknownHostException;
-import java.util.Iterator;
 
 import org.myrobotlab.codec.CodecUtils;
-import org.myrobotlab.framework.MRLListener;
 import org.myrobotlab.framework.Message;
-import org.myrobotlab.framework.ServiceEnvironment;
-import org.myrobotlab.framework.interfaces.ServiceInterface;
 import org.myrobotlab.logging.LoggerFactory;
 import org.myrobotlab.logging.Logging;
 import org.myrobotlab.service.RemoteAdapter;
 import org.myrobotlab.service.Runtime;
-import org.myrobotlab.service.interfaces.CommunicationInterface;
 import org.slf4j.Logger;
 
 public class TcpThread extends Thread {
@@ -114,166 +109,10 @@ public class TcpThread extends Thread {
 					uri = new URI(mrlURI);
 				}
 
-				/**
-				 * mrl works similar to - router x-forwarded in that it
-				 * re-writes names in order to provide an abstraction to a
-				 * remote system. This can prevent name collision and add
-				 * clarity to remote system names - msg sender / name re-write
-				 * are trivial - the danger &amp; difficulty comes when names are
-				 * embedded in the data payload - such as register, addListener
-				 * and other(?) methods - for example - service names as
-				 * parameters ! - which "should" only happen with incorrect user scripts..
-				 * because registration is where all info regarding foreign service names should
-				 * come from
-				 */
-				msg.sender = String.format("%s%s", myService.getPrefix(protocolKey), msg.sender);
-
-				// router x-forwarded inbound proxy begin
-				// router x-forwarded inbound proxy end
-
-				// FIXME - SCARY ! - anywhere address (name) info is in the data
-				// payload you will get errors & bugs :(
-				// getName() would need to be there of couse... I can't imagine
-				// how many other places ..
-				// Not the best implementation - an Instance would
-
-				// FIXME - HashSet of methods needed ?
-				// FIXME - if Encode.getMethodSignature("publishState",
-				// Service.class).equals(Encode.getMethodSignature(msg));
-				
-				if ("publishState".equals(msg.method)) { // this is to a specific service not runtime - msg.name != null
-					// FIXME - normalize
-					// router x-forwarded inbound proxy begin
-					Object[] msgData = msg.data;
-					ServiceInterface si = null;
-
-					if (msgData != null) {
-						if (msg.data.length == 0) {
-							log.error("*** a publishState was sent without a service - you probably want to send broadcastState ! {} {}**", msg.sender, msg.data.length);
-							return;
-						}
-
-						si = (ServiceInterface) msg.data[0];
-						si.setInstanceId(uri);
-						String xForwardDataName = String.format("%s%s", myService.getPrefix(protocolKey), si.getName());
-						si.setName(xForwardDataName);
-					}
-					// router x-forwarded inbound proxy end
-				}
-
-				if ("onState".equals(msg.method)) { // this is to a specific service not runtime - msg.name != null
-					// FIXME - normalize
-					// router x-forwarded inbound proxy begin
-					Object[] msgData = msg.data;
-					ServiceInterface si = null;
-
-					if (msgData != null) {
-						if (msg.data.length == 0) {
-							log.error("*** a publishState was sent without a service - you probably want to send broadcastState ! {} {}**", msg.sender, msg.data.length);
-							return;
-						}
-
-						si = (ServiceInterface) msg.data[0];
-						si.setInstanceId(uri);
-						String xForwardDataName = String.format("%s%s", myService.getPrefix(protocolKey), si.getName());
-						si.setName(xForwardDataName);
-					}
-					// router x-forwarded inbound proxy end
-				}
-
-				// establishing a callback route - src needs xforward modification
-				if ("addListener".equals(msg.method)) { // this is to a specific service not runtime - msg.name != null
-					MRLListener listener = (MRLListener) msg.data[0];
-					listener.callbackName = msg.sender;
-				}
-
-				// FIXME - THIS NEEDS TO BE NORMALIZED - WILL BE THE SAME IN
-				// Xmpp & WEBGUI & REMOTEADAPTER
-				// FIXME - normalize to single method - check for data
-				// type too ? !!!
-				if (msg.method.equals("onRegistered")) {
-					Object[] msgData = msg.data;
-					ServiceInterface si = null;
-
-					// ALLOWED TO BE NULL - establishes initial contact & a
-					// ServiceEnvironment
-					if (msgData != null) {
-						si = (ServiceInterface) msg.data[0];
-						si.setInstanceId(uri);
-						String xForwardDataName = String.format("%s%s", myService.getPrefix(protocolKey), si.getName());
-						si.setName(xForwardDataName);
-						myService.send(Runtime.getInstance().getName(), "register", si, uri); 
-					}
-
-				}
-				if (msg.method.equals("register")) {
-					// create the URI key for foreign service environment
-
-					// IMPORTANT - this is an optimization and probably
-					// should be in the Comm interface defintion
-					CommunicationInterface cm = myService.getComm();
-					cm.addRemote(uri, protocolKey);
-
-					// check if the URI is already defined - if not - we will
-					// send back the services which we want to export -
-					// Security will filter appropriately
-					ServiceEnvironment foreignEnvironment = Runtime.getEnvironment(uri);
-
-					// FIXME - normalize ...
-					Object[] msgData = msg.data;
-					ServiceInterface si = null;
-
-					// ALLOWED TO BE NULL - establishes initial contact & a
-					// ServiceEnvironment
-					if (msgData != null) {
-						si = (ServiceInterface) msg.data[0];
-						si.setInstanceId(uri);
-						String xForwardDataName = String.format("%s%s", myService.getPrefix(protocolKey), si.getName());
-						si.setName(xForwardDataName);
-
-					}
-
-					// invoke directly or send msg - we've gone both ways
-					// if invoke directly - security/control must be employed here
-					myService.send(Runtime.getInstance().getName(), "register", si, uri);
-
-					// if is a foreign process - send our registration
-					if (foreignEnvironment == null) {
-
-						// not defined we will send export
-						// TODO - Security filters - default export (include
-						// exclude) - mapset of name
-						ServiceEnvironment localProcess = Runtime.getLocalServicesForExport();
-
-						Iterator<String> it = localProcess.serviceDirectory.keySet().iterator();
-						String name;
-						ServiceInterface toRegister;
-						while (it.hasNext()) {
-							name = it.next();
-							toRegister = localProcess.serviceDirectory.get(name);
-
-							// the following will wrap a message within a
-							// message and send it remotely
-							// This Thread CANNOT Write on The
-							// ObjectOutputStream directly -
-							// IT SHOULD NEVER DO ANY METHOD WHICH CAN BLOCK
-							// !!!! - 3 days of bug chasing when
-							// it wrote to ObjectOutputStream and oos blocked
-							// when the buffer was full - causing deadlock
-							// putting it on the inbox will move it to a
-							// different thread
-							Message sendService = Message.createMessage(myService, null, "register", toRegister);
-							Message outbound = Message.createMessage(myService, myService.getName(), "sendRemote", new Object[] { protocolKey, sendService });
-							myService.getInbox().add(outbound);
-
-						}
-
-					}
-
-					// BEGIN ENCAPSULATION --- ENCODER END -------------
-				} else {
-					myService.getOutbox().add(msg);
-					++data.rx;
+				// x-forward and registration routing is shared with the framed
+				// transport
+				if (!myService.processRemote(uri, protocolKey, msg)) {
+					return;
 				}
 			} // while
 
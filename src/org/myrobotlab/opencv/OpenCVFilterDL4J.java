@@ -7,18 +7,28 @@ import static org.bytedeco.javacpp.opencv_imgproc.cvPutText;
 
 import java.io.IOException;
 import java.text.DecimalFormat;
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
 
 import org.bytedeco.javacpp.opencv_core.CvScalar;
 import org.bytedeco.javacpp.opencv_core.IplImage;
 import org.bytedeco.javacpp.opencv_imgproc.CvFont;
+import org.myrobotlab.deeplearning4j.InferenceEngine;
+import org.myrobotlab.deeplearning4j.InferenceResult;
 import org.myrobotlab.logging.LoggerFactory;
 import org.myrobotlab.service.Deeplearning4j;
 import org.myrobotlab.service.Runtime;
 import org.slf4j.Logger;
 
-public class OpenCVFilterDL4J extends OpenCVFilter implements Runnable {
+/**
+ * Classifies the video with the vgg16 model of the Deeplearning4j service.
+ * Frames are submitted to the inference engine of the service and the video
+ * thread continues, the last result is drawn on the frames until a newer one
+ * arrives. At most maxInFlight frames are being classified at a time, other
+ * frames are not submitted.
+ */
+public class OpenCVFilterDL4J extends OpenCVFilter implements InferenceEngine.Listener {
 
   private static final long serialVersionUID = 1L;
   public final static Logger log = LoggerFactory.getLogger(OpenCVFilterDL4J.class.getCanonicalName());
@@ -26,8 +36,13 @@ public class OpenCVFilterDL4J extends OpenCVFilter implements Runnable {
   private transient Deeplearning4j dl4j;
   private CvFont font = cvFont(CV_FONT_HERSHEY_PLAIN);
   
-  public Map<String, Double> lastResult = null; 
-  private IplImage lastImage = null;
+  public volatile Map<String, Double> lastResult = null; 
+  // frame index of lastResult
+  public volatile long lastResultFrame = -1;
+  public int maxInFlight = 2;
+  private transient AtomicInteger inFlight = new AtomicInteger();
+  private boolean modelLoaded = false;
+  private int frame;
   
   public OpenCVFilterDL4J() {
     super();
@@ -52,28 +67,45 @@ public class OpenCVFilterDL4J extends OpenCVFilter implements Runnable {
       
     }
     log.info("Done loading model..");
-    
-    // start classifier thread
-    
-    Thread classifier = new Thread(this, "DL4JClassifierThread");
-    classifier.start();
-    
-    
+    modelLoaded = true;
+  }
+
+  @Override
+  public IplImage preProcess(int frameIndex, IplImage frame, OpenCVData data) {
+    this.frame = frameIndex;
+    return super.preProcess(frameIndex, frame, data);
   }
   
   @Override
   public IplImage process(IplImage image, OpenCVData data) throws InterruptedException {
-    
+    // the image is copied on submit, the video thread goes on with it
+    if (modelLoaded && inFlight.get() < maxInFlight) {
+      inFlight.incrementAndGet();
+      // dropped or failed frames complete too
+      dl4j.classifyImageVGG16(name, frame, image, this).whenComplete(new BiConsumer<InferenceResult, Throwable>() {
+        @Override
+        public void accept(InferenceResult result, Throwable t) {
+          inFlight.decrementAndGet();
+        }
+      });
+    }
     if (lastResult != null) {
-      // the thread running will be updating lastResult for it as fast as it can.
       // log.info("Display result " );
       displayResult(image, lastResult);
     }
-    // ok now we just need to update the image that the current thread is processing (if the current thread is idle i guess?)
-    lastImage = image;
     return image;
   }
 
+  @Override
+  public void onResult(InferenceResult result) {
+    // results of older frames may arrive late - keep the newest
+    if (result.frameIndex >= lastResultFrame) {
+      lastResultFrame = result.frameIndex;
+      lastResult = result.predictions;
+      log.info(formatResultString(lastResult));
+    }
+  }
+
   public static String padRight(String s, int n) {
     return String.format("%1$-" + n + "s", s);  
   }
@@ -104,37 +136,4 @@ public class OpenCVFilterDL4J extends OpenCVFilter implements Runnable {
   public void imageChanged(IplImage image) {
     // TODO Auto-generated method stub
   }
-
-  @Override
-  public void run() {
-    
-    log.info("Starting the DL4J classifier thread...");
-    // in a loop, grab the current image and classify it and update the result.
-    while (true) {
-      // log.info("Running!!!");
-      // now we need to know which image we should classify
-      // there likely needs to be some synchronization on this too.. o/w the main thread will
-      // be updating it while it's being classified maybe?!
-      if (lastImage != null) {
-        try {
-          lastResult = dl4j.classifyImageVGG16(lastImage);
-          log.info(formatResultString(lastResult));
-        } catch (IOException e) {
-          // TODO Auto-generated catch block
-          log.warn("Exception classifying image!");
-          e.printStackTrace();
-        }
-      } else {
-        // log.info("No Image to classify...");
-      }
-      // TODO: see why there's a race condition. i seem to need a little delay here o/w the recognition never seems to start.
-      // maybe lastImage needs to be marked as volitite?
-      try {
-        Thread.sleep(1);
-      } catch (InterruptedException e) {
-        // TODO Auto-generated catch block
-        e.printStackTrace();
-      }
-    }
-  }
 }
@@ -0,0 +1,210 @@
+package org.myrobotlab.programab;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.myrobotlab.logging.LoggerFactory;
+import org.slf4j.Logger;
+
+/**
+ * AimlSnapshot - content hashes of the files of a bot's aiml directory. It is
+ * stored next to the compiled AIMLIF files, so at startup the AIMLIF files can
+ * be trusted when the aiml content has not changed - regardless of file
+ * modification times - and only the AIMLIF of changed files are removed.
+ *
+ * The snapshot file is binary and memory mapped when read.
+ *
+ * @author kwatters
+ *
+ */
+public class AimlSnapshot {
+
+  public final static Logger log = LoggerFactory.getLogger(AimlSnapshot.class);
+
+  public static final String FILENAME = "aiml.snapshot";
+
+  static final int MAGIC = 0x41494d4c; // "AIML"
+  static final int VERSION = 1;
+
+  static final long FNV_OFFSET = 0xcbf29ce484222325L;
+  static final long FNV_PRIME = 0x100000001b3L;
+
+  static final Charset UTF8 = Charset.forName("UTF-8");
+
+  /**
+   * file name to content hash - sorted so the directory hash does not depend
+   * on listing order
+   */
+  final TreeMap<String, Long> files = new TreeMap<String, Long>();
+
+  long hash = FNV_OFFSET;
+
+  /**
+   * hashes all .aiml files of a directory
+   *
+   * @param aimlDir
+   *          - the aiml directory of a bot
+   * @return the snapshot
+   * @throws IOException
+   *           - if a file can not be read
+   */
+  public static AimlSnapshot scan(File aimlDir) throws IOException {
+    AimlSnapshot snapshot = new AimlSnapshot();
+    File[] list = aimlDir.listFiles();
+    if (list != null) {
+      for (File f : list) {
+        if (f.isFile() && f.getName().endsWith(".aiml")) {
+          snapshot.files.put(f.getName(), hash(f));
+        }
+      }
+    }
+    snapshot.computeHash();
+    return snapshot;
+  }
+
+  /**
+   * reads a stored snapshot
+   *
+   * @param file
+   *          - the snapshot file
+   * @return the snapshot or null if it does not exist or is not valid
+   */
+  public static AimlSnapshot load(File file) {
+    if (!file.exists()) {
+      return null;
+    }
+    RandomAccessFile raf = null;
+    try {
+      raf = new RandomAccessFile(file, "r");
+      MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+      if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+        log.info("{} is not a valid snapshot", file);
+        return null;
+      }
+      AimlSnapshot snapshot = new AimlSnapshot();
+      long hash = buffer.getLong();
+      int count = buffer.getInt();
+      for (int i = 0; i < count; ++i) {
+        byte[] name = new byte[buffer.getShort() & 0xffff];
+        buffer.get(name);
+        snapshot.files.put(new String(name, UTF8), buffer.getLong());
+      }
+      snapshot.computeHash();
+      if (snapshot.hash != hash) {
+        log.info("{} is corrupt", file);
+        return null;
+      }
+      return snapshot;
+    } catch (Exception e) {
+      log.info("could not read snapshot {} - {}", file, e.getMessage());
+      return null;
+    } finally {
+      if (raf != null) {
+        try {
+          raf.close();
+        } catch (IOException e) {
+          // closing read-only file
+        }
+      }
+    }
+  }
+
+  public void save(File file) throws IOException {
+    // write then rename, so a partial snapshot is never read
+    File tmp = new File(file.getAbsolutePath() + ".tmp");
+    DataOutputStream out = new DataOutputStream(new FileOutputStream(tmp));
+    try {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeLong(hash);
+      out.writeInt(files.size());
+      for (Map.Entry<String, Long> entry : files.entrySet()) {
+        byte[] name = entry.getKey().getBytes(UTF8);
+        out.writeShort(name.length);
+        out.write(name);
+        out.writeLong(entry.getValue());
+      }
+    } finally {
+      out.close();
+    }
+    if (file.exists() && !file.delete()) {
+      throw new IOException(String.format("could not replace %s", file));
+    }
+    if (!tmp.renameTo(file)) {
+      throw new IOException(String.format("could not rename %s", tmp));
+    }
+  }
+
+  /**
+   * @param previous
+   *          - the stored snapshot
+   * @return names of the files which were added, changed or removed since the
+   *         previous snapshot
+   */
+  public List<String> getChanged(AimlSnapshot previous) {
+    List<String> changed = new ArrayList<String>();
+    for (Map.Entry<String, Long> entry : files.entrySet()) {
+      Long old = (previous == null) ? null : previous.files.get(entry.getKey());
+      if (old == null || old.longValue() != entry.getValue().longValue()) {
+        changed.add(entry.getKey());
+      }
+    }
+    if (previous != null) {
+      for (String name : previous.files.keySet()) {
+        if (!files.containsKey(name)) {
+          changed.add(name);
+        }
+      }
+    }
+    return changed;
+  }
+
+  public long getHash() {
+    return hash;
+  }
+
+  public int size() {
+    return files.size();
+  }
+
+  void computeHash() {
+    long h = FNV_OFFSET;
+    for (Map.Entry<String, Long> entry : files.entrySet()) {
+      h = (h ^ entry.getKey().hashCode()) * FNV_PRIME;
+      h = (h ^ entry.getValue()) * FNV_PRIME;
+    }
+    hash = h;
+  }
+
+  /**
+   * 64 bit FNV-1a hash of the content of a file
+   */
+  static long hash(File f) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(f, "r");
+    try {
+      long h = FNV_OFFSET;
+      long length = raf.length();
+      if (length == 0) {
+        return h;
+      }
+      MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+      while (buffer.hasRemaining()) {
+        h = (h ^ (buffer.get() & 0xff)) * FNV_PRIME;
+      }
+      return h;
+    } finally {
+      raf.close();
+    }
+  }
+
+}
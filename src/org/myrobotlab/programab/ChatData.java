@@ -19,9 +19,28 @@ public class ChatData {
   public boolean enableAutoConversation = false;
   // Number of milliseconds before the robot starts talking on its own.
   public int maxConversationDelay = 5000;
+  // predicates changed since they were last written
+  public transient volatile boolean dirty = false;
+  // last time the session was used - idle sessions are evicted
+  public transient volatile long lastAccess = System.currentTimeMillis();
+  // persisted and unloaded - a new ChatData is restored on the next request
+  public transient volatile boolean evicted = false;
+  // held while the chat is responding
+  public final transient Object lock = new Object();
+  transient SessionEngine.Strand strand = null;
+  // the engine the strand runs on - a restarted service has a new engine
+  transient SessionEngine strandEngine = null;
 
   public ChatData(Chat chat) {
     this.chat = chat;
   }
 
+  synchronized SessionEngine.Strand strand(SessionEngine engine) {
+    if (strand == null || strandEngine != engine) {
+      strand = engine.newStrand();
+      strandEngine = engine;
+    }
+    return strand;
+  }
+
 }
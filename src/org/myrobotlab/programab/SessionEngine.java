@@ -0,0 +1,214 @@
+package org.myrobotlab.programab;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.myrobotlab.logging.LoggerFactory;
+import org.slf4j.Logger;
+
+/**
+ * SessionEngine - runs chat work for many sessions on a shared pool of worker
+ * threads. Work for different sessions runs in parallel, while work for a
+ * single session is run in the order it was submitted and never concurrently,
+ * since a Chat is not thread safe.
+ *
+ * It also keeps the response latency metrics of all sessions.
+ *
+ * @author kwatters
+ *
+ */
+public class SessionEngine {
+
+  public final static Logger log = LoggerFactory.getLogger(SessionEngine.class);
+
+  /**
+   * Serial queue of work for one session. Only one runnable of a strand is on
+   * the pool at any time.
+   */
+  class Strand implements Runnable {
+    final ConcurrentLinkedQueue<Runnable> work = new ConcurrentLinkedQueue<Runnable>();
+    final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+    void submit(Runnable r) {
+      work.add(r);
+      schedule();
+    }
+
+    void schedule() {
+      if (!work.isEmpty() && scheduled.compareAndSet(false, true)) {
+        workers.execute(this);
+      }
+    }
+
+    @Override
+    public void run() {
+      try {
+        Runnable r = work.poll();
+        if (r != null) {
+          try {
+            r.run();
+          } catch (Exception e) {
+            log.error("session work threw", e);
+          } finally {
+            pending.decrementAndGet();
+          }
+        }
+      } finally {
+        scheduled.set(false);
+        // give other sessions a turn before processing our next
+        schedule();
+      }
+    }
+  }
+
+  final ExecutorService workers;
+
+  final AtomicInteger pending = new AtomicInteger();
+
+  // latency metrics - histogram buckets are powers of 2 ms
+  final AtomicLong responseCount = new AtomicLong();
+  final AtomicLong totalLatency = new AtomicLong();
+  final AtomicLong maxLatency = new AtomicLong();
+  final AtomicLong[] histogram = new AtomicLong[24];
+
+  public SessionEngine(final String name, int threads) {
+    for (int i = 0; i < histogram.length; ++i) {
+      histogram[i] = new AtomicLong();
+    }
+    workers = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+      final AtomicInteger count = new AtomicInteger();
+
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, String.format("%s.session.%d", name, count.incrementAndGet()));
+        t.setDaemon(true);
+        return t;
+      }
+    });
+  }
+
+  /**
+   * queue work for a session - it will run after all work previously submitted
+   * for the same session
+   *
+   * @param chatData
+   *          - the session
+   * @param r
+   *          - the work
+   */
+  public void submit(ChatData chatData, Runnable r) {
+    pending.incrementAndGet();
+    chatData.strand(this).submit(r);
+  }
+
+  Strand newStrand() {
+    return new Strand();
+  }
+
+  /**
+   * @return number of submitted but unfinished work items of all sessions
+   */
+  public int getPending() {
+    return pending.get();
+  }
+
+  /**
+   * waits until all submitted work is done
+   *
+   * @param timeoutMs
+   *          - max time to wait
+   * @return true if everything was processed
+   */
+  public boolean flush(long timeoutMs) {
+    long end = System.currentTimeMillis() + timeoutMs;
+    while (pending.get() > 0) {
+      if (System.currentTimeMillis() > end) {
+        return false;
+      }
+      try {
+        Thread.sleep(10);
+      } catch (InterruptedException e) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  public void shutdown() {
+    flush(5000);
+    workers.shutdown();
+    try {
+      workers.awaitTermination(1, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      // shutting down anyway
+    }
+  }
+
+  public void recordLatency(long latencyMs) {
+    responseCount.incrementAndGet();
+    totalLatency.addAndGet(latencyMs);
+    long max = maxLatency.get();
+    while (latencyMs > max && !maxLatency.compareAndSet(max, latencyMs)) {
+      max = maxLatency.get();
+    }
+    int bucket = 64 - Long.numberOfLeadingZeros(latencyMs);
+    histogram[Math.min(bucket, histogram.length - 1)].incrementAndGet();
+  }
+
+  public long getResponseCount() {
+    return responseCount.get();
+  }
+
+  public long getMaxLatency() {
+    return maxLatency.get();
+  }
+
+  public double getAverageLatency() {
+    long count = responseCount.get();
+    return (count == 0) ? 0 : (double) totalLatency.get() / count;
+  }
+
+  /**
+   * approximate latency percentile - the upper bound of the histogram bucket
+   * which contains the percentile
+   *
+   * @param percentile
+   *          - 0.0 to 1.0
+   * @return latency in ms
+   */
+  public long getLatencyPercentile(double percentile) {
+    long count = responseCount.get();
+    if (count == 0) {
+      return 0;
+    }
+    long target = (long) Math.ceil(count * percentile);
+    long seen = 0;
+    for (int i = 0; i < histogram.length; ++i) {
+      seen += histogram[i].get();
+      if (seen >= target) {
+        return (i == 0) ? 0 : (1L << i) - 1;
+      }
+    }
+    return maxLatency.get();
+  }
+
+  public void resetStats() {
+    responseCount.set(0);
+    totalLatency.set(0);
+    maxLatency.set(0);
+    for (int i = 0; i < histogram.length; ++i) {
+      histogram[i].set(0);
+    }
+  }
+
+  public String toString() {
+    return String.format("responses %d avg %.1f ms p50 %d ms p99 %d ms max %d ms pending %d", getResponseCount(), getAverageLatency(), getLatencyPercentile(0.5),
+        getLatencyPercentile(0.99), getMaxLatency(), getPending());
+  }
+}
@@ -9,12 +9,12 @@ package org.myrobotlab.service;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.myrobotlab.framework.Service;
 import org.myrobotlab.framework.ServiceType;
@@ -28,6 +28,7 @@ import org.myrobotlab.service.interfaces.I2CController;
 import org.myrobotlab.service.interfaces.MotorControl;
 import org.myrobotlab.service.interfaces.MotorController;
 import org.myrobotlab.service.interfaces.PinDefinition;
+import org.myrobotlab.service.interfaces.ServoBatchController;
 import org.myrobotlab.service.interfaces.ServoControl;
 import org.myrobotlab.service.interfaces.ServoController;
 import org.slf4j.Logger;
@@ -41,101 +42,212 @@ import org.slf4j.Logger;
  *         https://learn.adafruit.com/16-channel-pwm-servo-driver
  */
 
-public class Adafruit16CServoDriver extends Service implements I2CControl, ServoController, MotorController {
+public class Adafruit16CServoDriver extends Service implements I2CControl, ServoController, ServoBatchController, MotorController {
 
   /**
-   * SpeedControl, calculates the next position at regular intervals to make the
-   * servo move at the desired speed
+   * MotionEngine, one thread per board which moves all servos with a velocity.
+   * Every tick it interpolates the position of all moving servos, with an
+   * acceleration and deceleration ramp if an acceleration is set, and writes
+   * the channels which changed in as few auto-increment bursts as possible
    * 
    */
-  public class SpeedControl extends Thread {
+  public class MotionEngine extends Thread {
 
-    volatile ServoData servoData;
-    String name;
-    long now;
-    long lastExecution;
-    long deltaTime;
+    volatile boolean running = true;
 
-    public SpeedControl(String name) {
-      super(String.format("%s.SpeedControl", name));
-      servoData = servoMap.get(name);
-      servoData.isMoving = true;
+    public MotionEngine() {
+      super(String.format("%s.MotionEngine", Adafruit16CServoDriver.this.getName()));
+      setDaemon(true);
+    }
+
+    synchronized void wake() {
+      notifyAll();
+    }
+
+    synchronized void waitForMotion() throws InterruptedException {
+      while (running && !isMoving()) {
+        wait();
+      }
+    }
 
-      this.name = name;
+    boolean isMoving() {
+      for (ServoData servoData : servoMap.values()) {
+        if (servoData.isMoving) {
+          return true;
+        }
+      }
+      return false;
     }
 
     @Override
     public void run() {
-
-      log.info(String.format("Speed control started for %s", name));
-      servoData = servoMap.get(name);
-      log.debug(String.format("Moving from %s to %s at %s degrees/second", servoData.currentOutput, servoData.targetOutput, servoData.velocity));
-      publishServoEvent(servoData.servo,2, servoData.currentOutput);
+      log.info("motion engine started for {}", getName());
       try {
-        lastExecution = System.currentTimeMillis();
-        double _velocity;
-        if (servoData.acceleration == -1) {
-          _velocity = servoData.velocity;
-        } else {
-          _velocity = 0;
-        }
-        while (servoData.isMoving && servoData.isEnergized) {
-          now = System.currentTimeMillis();
-          deltaTime = now - lastExecution;
-          if (servoData.acceleration != -1) {
-            _velocity = _velocity + (servoData.acceleration * deltaTime * 0.001);
-            if (_velocity > servoData.velocity) {
-              _velocity = servoData.velocity;
-            }
+        long lastExecution = System.currentTimeMillis();
+        while (running) {
+          if (!isMoving()) {
+            waitForMotion();
+            lastExecution = System.currentTimeMillis() - motionTick;
           }
+          long now = System.currentTimeMillis();
+          double deltaTime = (now - lastExecution) * 0.001;
+          lastExecution = now;
 
-          if (servoData.currentOutput < servoData.targetOutput) { // Move
-            // in
-            // positive
-            // direction
-            servoData.currentOutput += (_velocity * deltaTime) * 0.001;
-            if (servoData.currentOutput >= servoData.targetOutput) {
-              servoData.currentOutput = servoData.targetOutput;
-              servoData.isMoving = false;
+          try {
+            synchronized (Adafruit16CServoDriver.this) {
+              for (ServoData servoData : servoMap.values()) {
+                if (servoData.isMoving) {
+                  step(servoData, deltaTime);
+                }
+              }
+              writeChanged();
             }
-          } else if (servoData.currentOutput > servoData.targetOutput) { // Move
-            // in
-            // negative
-            // direction
-            servoData.currentOutput -= (_velocity * deltaTime * 0.001);
-            if (servoData.currentOutput <= servoData.targetOutput) {
-              servoData.currentOutput = servoData.targetOutput;
-              servoData.isMoving = false;
+            for (ServoData servoData : arrived) {
+              publishServoEvent(servoData.servo, 1, servoData.currentOutput);
             }
-          } else {
-            // We have reached the position so shutdown the thread
-            servoData.isMoving = false;
-            log.debug("This line should not repeat");
+            arrived.clear();
+          } catch (Exception e) {
+            log.error("motion engine threw", e);
+          }
+
+          long sleep = motionTick - (System.currentTimeMillis() - now);
+          if (sleep > 0) {
+            Thread.sleep(sleep);
           }
-          int pulseWidthOff = SERVOMIN + (int) (servoData.currentOutput * (int) ((float) SERVOMAX - (float) SERVOMIN) / (float) (180));
-          setServo(servoData.pin, pulseWidthOff);
-          //publishServoEvent(servoData.servo,2, servoData.currentOutput);
-          // Sleep 100ms before sending next position
-          lastExecution = now;
-          log.info(String.format("Sent %s using a %s tick at velocity %s", servoData.currentOutput, deltaTime, _velocity));
-          Thread.sleep(50);
         }
-        publishServoEvent(servoData.servo,1,servoData.currentOutput);
-        log.info(String.format("publishServoEvent :  %s , event %s, currentOutput %s",servoData.servo.getName(),1,servoData.currentOutput));
-        log.info("Shuting down SpeedControl");
+      } catch (InterruptedException e) {
+        log.debug("shutting down motion engine");
+      }
+      for (ServoData servoData : servoMap.values()) {
+        servoData.isMoving = false;
+      }
+    }
 
-      } catch (Exception e) {
+    void step(ServoData servoData, double deltaTime) {
+      if (!servoData.isEnergized) {
         servoData.isMoving = false;
-        if (e instanceof InterruptedException) {
-          log.debug("Shuting down SpeedControl");
+        return;
+      }
+      double remaining = Math.abs(servoData.targetOutput - servoData.currentOutput);
+      double velocity = servoData.velocity;
+      if (servoData.acceleration > 0) {
+        // ramp up to velocity, and ramp down again when the remaining distance
+        // is what it takes to stop
+        double deltaVelocity = servoData.acceleration * deltaTime;
+        double stopping = (servoData.currentVelocity * servoData.currentVelocity) / (2 * servoData.acceleration);
+        if (stopping >= remaining) {
+          velocity = Math.max(servoData.currentVelocity - deltaVelocity, deltaVelocity);
         } else {
-          log.error("speed control threw", e);
+          velocity = Math.min(servoData.currentVelocity + deltaVelocity, servoData.velocity);
         }
       }
+      servoData.currentVelocity = velocity;
+      double step = velocity * deltaTime;
+      if (step >= remaining) {
+        servoData.currentOutput = servoData.targetOutput;
+        servoData.currentVelocity = 0;
+        servoData.isMoving = false;
+      } else if (servoData.currentOutput < servoData.targetOutput) {
+        servoData.currentOutput += step;
+      } else {
+        servoData.currentOutput -= step;
+      }
+      int pulseWidthOff = pulseWidth(servoData.currentOutput);
+      if (servoData.pin >= 0 && servoData.pin < channels && pulseWidthOff != pwmOff[servoData.pin]) {
+        pwmOff[servoData.pin] = pulseWidthOff;
+        changed[servoData.pin] = true;
+      }
+      if (!servoData.isMoving) {
+        arrived.add(servoData);
+      }
     }
 
+    public void stopEngine() {
+      running = false;
+      interrupt();
+    }
   }
-  
+
+  /**
+   * writes the changed channels - channels in between which did not change but
+   * have a known value are rewritten when that joins two bursts
+   */
+  synchronized void writeChanged() {
+    int pin = 0;
+    while (pin < channels) {
+      if (!changed[pin]) {
+        ++pin;
+        continue;
+      }
+      int first = pin;
+      int last = pin;
+      int next = pin + 1;
+      while (next < channels && next - first < maxBurstChannels && pwmOff[next] >= 0) {
+        if (changed[next]) {
+          last = next;
+        }
+        ++next;
+      }
+      writeChannels(first, last);
+      for (int i = first; i <= last; ++i) {
+        changed[i] = false;
+      }
+      pin = last + 1;
+    }
+  }
+
+  /**
+   * writes the target output of several servos in as few bursts as possible -
+   * used by the MotionScheduler
+   */
+  @Override
+  public synchronized void servoWriteBatch(List<ServoControl> servos) {
+    if (!pwmFreqSet) {
+      setPWMFreq(0, defaultPwmFreq);
+    }
+    for (ServoControl servo : servos) {
+      ServoData servoData = servoMap.get(servo.getName());
+      if (servoData == null || !servoData.isEnergized || servoData.pin < 0 || servoData.pin >= channels) {
+        continue;
+      }
+      // the scheduler moves it, not the motion engine
+      servoData.isMoving = false;
+      servoData.targetOutput = servo.getTargetOutput();
+      servoData.currentOutput = servoData.targetOutput;
+      int pulseWidthOff = pulseWidth(servoData.currentOutput);
+      if (pulseWidthOff != pwmOff[servoData.pin]) {
+        pwmOff[servoData.pin] = pulseWidthOff;
+        changed[servoData.pin] = true;
+      }
+    }
+    writeChanged();
+  }
+
+  /**
+   * writes the pwm of the channels first to last in one auto-increment burst
+   */
+  void writeChannels(int first, int last) {
+    if (controller == null) {
+      return;
+    }
+    byte[] buffer = new byte[1 + (last - first + 1) * 4];
+    buffer[0] = (byte) (PCA9685_LED0_ON_L + (first * 4));
+    int index = 1;
+    for (int pin = first; pin <= last; ++pin) {
+      int pulseWidthOff = pwmOff[pin];
+      buffer[index++] = 0;
+      buffer[index++] = 0;
+      buffer[index++] = (byte) (pulseWidthOff & 0xff);
+      buffer[index++] = (byte) (pulseWidthOff >> 8);
+    }
+    controller.i2cWrite(this, busAddress, i2cAddress, buffer, buffer.length);
+    ++burstCount;
+  }
+
+  static int pulseWidth(double output) {
+    return SERVOMIN + (int) (output * (int) ((float) SERVOMAX - (float) SERVOMIN) / (float) (180));
+  }
+
   public double publishServoEvent(ServoControl servo, Integer eventType, double currentOutput) {
     // TODO Auto-generated method stub
     ((ServoControl) servo).onServoEvent(eventType, currentOutput);
@@ -190,6 +302,10 @@ public class Adafruit16CServoDriver extends Service implements I2CControl, Servo
   public List<String> deviceBusList = Arrays.asList("0", "1", "2", "3", "4", "5", "6", "7");
   public String deviceBus = "1";
 
+  // deviceBus and deviceAddress as numbers - resolved once when they are set
+  int busAddress = 1;
+  int i2cAddress = 0x40;
+
   public transient final static Logger log = LoggerFactory.getLogger(Adafruit16CServoDriver.class.getCanonicalName());
 
   public static final int PCA9685_MODE1 = 0x00; // Mod
@@ -246,7 +362,7 @@ public class Adafruit16CServoDriver extends Service implements I2CControl, Servo
      */
     private static final long serialVersionUID = 1L;
     int pin;
-    SpeedControl speedcontrol;
+    double currentVelocity;
     double velocity = -1;
     double acceleration = -1;
     boolean isMoving = false;
@@ -256,7 +372,30 @@ public class Adafruit16CServoDriver extends Service implements I2CControl, Servo
     ServoControl servo;
   }
 
-  transient HashMap<String, ServoData> servoMap = new HashMap<String, ServoData>();
+  transient Map<String, ServoData> servoMap = new ConcurrentHashMap<String, ServoData>();
+
+  final static int channels = 16;
+
+  /**
+   * ms between two positions of the servos moving with a velocity
+   */
+  int motionTick = 20;
+
+  /**
+   * max channels written in one burst - the Arduino Wire library buffers 32
+   * bytes, a channel takes 4 bytes after the register byte
+   */
+  int maxBurstChannels = 7;
+
+  transient MotionEngine motionEngine;
+
+  /**
+   * last pulse width written to each channel, -1 if not known
+   */
+  transient int[] pwmOff = new int[channels];
+  transient boolean[] changed = new boolean[channels];
+  transient List<ServoData> arrived = new ArrayList<ServoData>();
+  transient long burstCount = 0;
 
   // Motor related constants
   public static final int MOTOR_FORWARD = 1;
@@ -284,6 +423,7 @@ public class Adafruit16CServoDriver extends Service implements I2CControl, Servo
 
   public Adafruit16CServoDriver(String n) {
     super(n);
+    Arrays.fill(pwmOff, -1);
     createPinList();
     refreshControllers();
     subscribe(Runtime.getInstance().getName(), "registered", this.getName(), "onRegistered");
@@ -310,8 +450,11 @@ public class Adafruit16CServoDriver extends Service implements I2CControl, Servo
 
     byte[] buffer = { (byte) (PCA9685_LED0_ON_L + (pin * 4)), (byte) (pulseWidthOn & 0xff), (byte) (pulseWidthOn >> 8), (byte) (pulseWidthOff & 0xff),
         (byte) (pulseWidthOff >> 8) };
-    log.info(String.format("Writing pin %s, pulesWidthOn %s, pulseWidthOff %s", pin, pulseWidthOn, pulseWidthOff));
-    controller.i2cWrite(this, Integer.parseInt(deviceBus), Integer.decode(deviceAddress), buffer, buffer.length);
+    log.debug(String.format("Writing pin %s, pulesWidthOn %s, pulseWidthOff %s", pin, pulseWidthOn, pulseWidthOff));
+    if (pin >= 0 && pin < channels) {
+      pwmOff[pin] = (pulseWidthOn == 0) ? pulseWidthOff : -1;
+    }
+    controller.i2cWrite(this, busAddress, i2cAddress, buffer, buffer.length);
   }
 
   /*
@@ -340,7 +483,7 @@ public class Adafruit16CServoDriver extends Service implements I2CControl, Servo
     log.info(String.format("PWMFreq %s hz, prescale_value calculated to %s", hz, prescale_value));
     // Set sleep mode before changing PWM freqency
     byte[] writeBuffer = { PCA9685_MODE1, PCA9685_SLEEP };
-    controller.i2cWrite(this, Integer.parseInt(deviceBus), Integer.decode(deviceAddress), writeBuffer, writeBuffer.length);
+    controller.i2cWrite(this, busAddress, i2cAddress, writeBuffer, writeBuffer.length);
 
     // Wait 1 millisecond until the oscillator has stabilized
     try {
@@ -352,13 +495,13 @@ public class Adafruit16CServoDriver extends Service implements I2CControl, Servo
 
     // Write the PWM frequency value
     byte[] buffer2 = { PCA9685_PRESCALE, (byte) prescale_value };
-    controller.i2cWrite(this, Integer.parseInt(deviceBus), Integer.decode(deviceAddress), buffer2, buffer2.length);
+    controller.i2cWrite(this, busAddress, i2cAddress, buffer2, buffer2.length);
 
     // Leave sleep mode, set autoincrement to be able to write several
     // bytes
     // in sequence
     byte[] buffer3 = { PCA9685_MODE1, PCA9685_AUTOINCREMENT };
-    controller.i2cWrite(this, Integer.parseInt(deviceBus), Integer.decode(deviceAddress), buffer3, buffer3.length);
+    controller.i2cWrite(this, busAddress, i2cAddress, buffer3, buffer3.length);
 
     // Wait 1 millisecond until the oscillator has stabilized
     try {
@@ -381,7 +524,7 @@ public class Adafruit16CServoDriver extends Service implements I2CControl, Servo
 
     byte[] buffer = { (byte) (PCA9685_ALL_LED_OFF_H), (byte) PCA9685_TURN_ALL_LED_OFF };
     log.info(String.format("Writing shutdown command to %s", this.getName()));
-    controller.i2cWrite(this, Integer.parseInt(deviceBus), Integer.decode(deviceAddress), buffer, buffer.length);
+    controller.i2cWrite(this, busAddress, i2cAddress, buffer, buffer.length);
   }
 
   void setServo(Integer pin, Integer pulseWidthOff) {
@@ -426,19 +569,21 @@ public class Adafruit16CServoDriver extends Service implements I2CControl, Servo
       // Move at max speed
       if (servoData.velocity == -1) {
         log.debug("Ada move at max speed");
+        servoData.isMoving = false;
         servoData.currentOutput = servo.getCurrentPosOutput();
         servoData.targetOutput = servo.getTargetOutput();
         log.debug(String.format("servoWrite %s deviceAddress %s targetOutput %f", servo.getName(), deviceAddress, servo.getTargetOutput()));
-        int pulseWidthOff = SERVOMIN + (int) (servo.getTargetOutput() * (int) ((float) SERVOMAX - (float) SERVOMIN) / (float) (180));
-        setServo(servo.getPin(), pulseWidthOff);
+        setServo(servo.getPin(), pulseWidth(servo.getTargetOutput()));
       } else {
         log.debug(String.format("Ada move at velocity %s degrees/s", servoData.velocity));
         servoData.targetOutput = servo.getTargetOutput();
-        // Start a thread to handle the speed for this servo
-        if (servoData.isMoving == false) {
-          servoData.speedcontrol = new SpeedControl(servo.getName());
-          servoData.speedcontrol.start();
+        // the motion engine of the board moves it
+        if (!servoData.isMoving) {
+          servoData.currentVelocity = 0;
+          servoData.isMoving = true;
+          publishServoEvent(servo, 2, servoData.currentOutput);
         }
+        startMotionEngine().wake();
       }
     }
   }
@@ -458,7 +603,10 @@ public class Adafruit16CServoDriver extends Service implements I2CControl, Servo
     log.debug(String.format("servoWriteMicroseconds %s deviceAddress x%02X pin %s pulse %d", servo.getName(), deviceAddress, pin, pulseWidthOff));
 
     byte[] buffer = { (byte) (PCA9685_LED0_OFF_L + (pin * 4)), (byte) (pulseWidthOff & 0xff), (byte) (pulseWidthOff >> 8) };
-    controller.i2cWrite(this, Integer.parseInt(deviceBus), Integer.decode(deviceAddress), buffer, buffer.length);
+    if (pin >= 0 && pin < channels) {
+      pwmOff[pin] = -1;
+    }
+    controller.i2cWrite(this, busAddress, i2cAddress, buffer, buffer.length);
   }
 
   public String publishAttachedDevice(String deviceName) {
@@ -482,11 +630,55 @@ public class Adafruit16CServoDriver extends Service implements I2CControl, Servo
   @Override
   public void servoDetachPin(ServoControl servo) {
     ServoData servoData = servoMap.get(servo.getName());
+    servoData.isMoving = false;
     setPWM(servoData.pin, 4096, 0);
     servoData.isEnergized = false;
 
   }
 
+  synchronized MotionEngine startMotionEngine() {
+    if (motionEngine == null) {
+      motionEngine = new MotionEngine();
+      motionEngine.start();
+    }
+    return motionEngine;
+  }
+
+  public void stopMotionEngine() {
+    MotionEngine engine;
+    synchronized (this) {
+      engine = motionEngine;
+      motionEngine = null;
+    }
+    if (engine != null) {
+      engine.stopEngine();
+    }
+  }
+
+  /**
+   * @param ms
+   *          - interval of the position updates of servos moving with a
+   *          velocity
+   */
+  public void setMotionTick(int ms) {
+    motionTick = ms;
+  }
+
+  /**
+   * @param channels
+   *          - max channels written in one i2c write
+   */
+  public void setMaxBurstChannels(int channels) {
+    maxBurstChannels = channels;
+  }
+
+  /**
+   * @return number of burst writes of the motion engine
+   */
+  public long getBurstCount() {
+    return burstCount;
+  }
+
   public void servoSetMaxVelocity(ServoControl servo) {
     log.warn("servoSetMaxVelocity not implemented in Adafruit16CServoDriver");
 
@@ -710,6 +902,7 @@ public class Adafruit16CServoDriver extends Service implements I2CControl, Servo
 
   @Override
   public void stopService() {
+    stopMotionEngine();
     if (!isAttached(controller)){
       detachI2CController(controller);
     }
@@ -723,6 +916,7 @@ public class Adafruit16CServoDriver extends Service implements I2CControl, Servo
       return;
     }
     this.deviceBus = deviceBus;
+    busAddress = Integer.parseInt(deviceBus);
     broadcastState();
   }
 
@@ -733,6 +927,7 @@ public class Adafruit16CServoDriver extends Service implements I2CControl, Servo
       return;
     }
     this.deviceAddress = deviceAddress;
+    i2cAddress = Integer.decode(deviceAddress);
     broadcastState();
   }
 
@@ -807,6 +1002,8 @@ public class Adafruit16CServoDriver extends Service implements I2CControl, Servo
 
     this.deviceBus = deviceBus;
     this.deviceAddress = deviceAddress;
+    busAddress = Integer.parseInt(deviceBus);
+    i2cAddress = Integer.decode(deviceAddress);
 
     attachI2CController(controller);
     isAttached = true;
@@ -30,6 +30,8 @@ import org.myrobotlab.framework.ServiceType;
 import org.myrobotlab.framework.interfaces.Attachable;
 import org.myrobotlab.framework.interfaces.NameProvider;
 import org.myrobotlab.i2c.I2CBus;
+import org.myrobotlab.i2c.I2CRequest;
+import org.myrobotlab.i2c.I2CTransactions;
 import org.myrobotlab.io.FileIO;
 import org.myrobotlab.io.Zip;
 import org.myrobotlab.logging.Level;
@@ -40,6 +42,7 @@ import org.myrobotlab.service.data.DeviceMapping;
 import org.myrobotlab.service.data.Pin;
 import org.myrobotlab.service.data.PinData;
 import org.myrobotlab.service.data.SerialRelayData;
+import org.myrobotlab.service.interfaces.I2CAsyncController;
 import org.myrobotlab.service.interfaces.I2CBusControl;
 import org.myrobotlab.service.interfaces.I2CBusController;
 import org.myrobotlab.service.interfaces.I2CControl;
@@ -63,7 +66,7 @@ import org.myrobotlab.service.interfaces.ServoController;
 import org.myrobotlab.service.interfaces.UltrasonicSensorControl;
 import org.myrobotlab.service.interfaces.UltrasonicSensorController;
 
-public class Arduino extends Service implements Microcontroller, PinArrayControl, I2CBusController, I2CController, SerialDataListener, ServoController, MotorController,
+public class Arduino extends Service implements Microcontroller, PinArrayControl, I2CBusController, I2CController, I2CAsyncController, SerialDataListener, ServoController, MotorController,
     NeoPixelController, UltrasonicSensorController, PortConnector, RecordControl, SerialRelayListener, PortListener, PortPublisher {
 
   private static final long serialVersionUID = 1L;
@@ -203,15 +206,17 @@ public class Arduino extends Service implements Microcontroller, PinArrayControl
 
   I2CBus i2cBus = null;
 
-  volatile byte[] i2cData = new byte[64];
-
   /**
-   * i2c This needs to be volatile because it will be updated in a different
-   * threads
+   * outstanding i2c reads - data returned by MrlComm completes the oldest
+   * request of its bus
    */
-  volatile boolean i2cDataReturned = false;
+  transient I2CTransactions i2cTransactions = new I2CTransactions();
 
-  volatile int i2cDataSize;
+  /**
+   * max ms a blocking i2c read waits for its data - requests older than this
+   * are dropped
+   */
+  int i2cTimeout = 1000;
 
   Map<String, I2CDeviceMap> i2cDevices = new ConcurrentHashMap<String, I2CDeviceMap>();
 
@@ -933,55 +938,49 @@ public class Arduino extends Service implements Microcontroller, PinArrayControl
   @Override
   // > i2cRead/deviceId/deviceAddress/size
   public int i2cRead(I2CControl control, int busAddress, int deviceAddress, byte[] buffer, int size) {
-    i2cDataReturned = false;
+    return i2cReadAsync(control, busAddress, deviceAddress, size).get(buffer, i2cTimeout);
+  }
+
+  @Override
+  public I2CRequest i2cReadAsync(I2CControl control, int busAddress, int deviceAddress, final int size) {
     // Get the device index to the MRL i2c bus
     String i2cBus = String.format("I2CBus%s", busAddress);
-    int deviceId = getDeviceId(i2cBus);
-    log.info(String.format("i2cRead requesting %s bytes", size));
-    msg.i2cRead(deviceId, deviceAddress, size);
-
-    int retry = 0;
-    int retryMax = 1000; // ( About 1000ms = s)
-    try {
-      /**
-       * We will wait up to retryMax times to get the i2c data back from
-       * MrlComm.c and wait 1 ms between each try. A blocking queue is not
-       * needed, as this is only a single data element - and blocking is not
-       * necessary.
-       */
-      while ((retry < retryMax) && (!i2cDataReturned)) {
-        sleep(1);
-        ++retry;
-      }
-    } catch (Exception e) {
-      Logging.logError(e);
-    }
-    if (i2cDataReturned) {
-      log.debug(String.format("i2cReturnData returned %s bytes to caller %s.", i2cDataSize, control.getName()));
-      for (int i = 0; i < i2cDataSize; i++) {
-        buffer[i] = i2cData[i];
-        log.debug(String.format("i2cReturnData returned ix %s value %s", i, buffer[i]));
+    final int deviceId = getDeviceId(i2cBus);
+    log.debug("i2cRead {} requesting {} bytes", control.getName(), size);
+    return i2cTransactions.submit(deviceId, deviceAddress, size, new I2CTransactions.Sender() {
+      @Override
+      public void send(I2CRequest request) {
+        msg.i2cRead(deviceId, request.getDeviceAddress(), size);
       }
-      return i2cDataSize;
-    }
-    // Time out, no data returned
-    return -1;
+    });
   }
 
   /**
    * This methods is called by the i2cBus object when data is returned from the
-   * i2cRead It populates the i2cData area and sets the i2cDataReturned flag to
-   * true so that the loop in i2cRead can return the data to the caller
+   * i2cRead without the bus it came from - it completes the oldest outstanding
+   * request
    * 
    */
   @Override
   public void i2cReturnData(int[] rawData) {
-    i2cDataSize = rawData.length;
-    for (int i = 0; i < i2cDataSize; i++) {
-      i2cData[i] = (byte) (rawData[i] & 0xff);
-    }
-    log.debug(String.format("i2cReturnData invoked. i2cDataSize = %s", i2cDataSize));
-    i2cDataReturned = true;
+    i2cTransactions.complete(rawData);
+  }
+
+  /**
+   * @return latency and throughput of the i2c requests
+   */
+  public String getI2cStats() {
+    return i2cTransactions.toString();
+  }
+
+  /**
+   * @param ms
+   *          - max ms a blocking i2c read waits, requests are assumed to be lost
+   *          after the same time
+   */
+  public void setI2cTimeout(int ms) {
+    i2cTimeout = ms;
+    i2cTransactions.setStaleTime(ms);
   }
 
   @Override
@@ -1002,48 +1001,25 @@ public class Arduino extends Service implements Microcontroller, PinArrayControl
   @Override
   // > i2cWriteRead/deviceId/deviceAddress/readSize/writeValue
   public int i2cWriteRead(I2CControl control, int busAddress, int deviceAddress, byte[] writeBuffer, int writeSize, byte[] readBuffer, int readSize) {
+    return i2cWriteReadAsync(control, busAddress, deviceAddress, writeBuffer, writeSize, readSize).get(readBuffer, i2cTimeout);
+  }
+
+  @Override
+  public I2CRequest i2cWriteReadAsync(I2CControl control, int busAddress, int deviceAddress, byte[] writeBuffer, int writeSize, final int readSize) {
     if (writeSize != 1) {
       i2cWrite(control, busAddress, deviceAddress, writeBuffer, writeSize);
-      return i2cRead(control, busAddress, deviceAddress, readBuffer, readSize);
-    } else {
-      i2cDataReturned = false;
-      // Get the device index to the MRL i2c bus
-      String i2cBus = String.format("I2CBus%s", busAddress);
-      int deviceId = getDeviceId(i2cBus);
-
-      int msgBuffer[] = new int[4];
-      msgBuffer[0] = deviceId;
-      msgBuffer[1] = deviceAddress;
-      msgBuffer[2] = readSize;
-      msgBuffer[3] = writeBuffer[0];
-      msg.i2cWriteRead(deviceId, deviceAddress, readSize, writeBuffer[0] & 0xFF);
-      int retry = 0;
-      int retryMax = 1000; // ( About 1000ms = s)
-      try {
-        /**
-         * We will wait up to retryMax times to get the i2c data back from
-         * MrlComm.c and wait 1 ms between each try. A blocking queue is not
-         * needed, as this is only a single data element - and blocking is not
-         * necessary.
-         */
-        while ((retry < retryMax) && (!i2cDataReturned)) {
-          sleep(1);
-          ++retry;
-        }
-      } catch (Exception e) {
-        Logging.logError(e);
-      }
-      if (i2cDataReturned) {
-        log.debug(String.format("i2cReturnData returned %s bytes to caller %s.", i2cDataSize, control.getName()));
-        for (int i = 0; i < i2cDataSize; i++) {
-          readBuffer[i] = i2cData[i];
-          log.debug(String.format("i2cReturnData returned ix %s value %s", i, readBuffer[i]));
-        }
-        return i2cDataSize;
-      }
-      // Time out, no data returned
-      return -1;
+      return i2cReadAsync(control, busAddress, deviceAddress, readSize);
     }
+    // Get the device index to the MRL i2c bus
+    String i2cBus = String.format("I2CBus%s", busAddress);
+    final int deviceId = getDeviceId(i2cBus);
+    final int writeValue = writeBuffer[0] & 0xFF;
+    return i2cTransactions.submit(deviceId, deviceAddress, readSize, new I2CTransactions.Sender() {
+      @Override
+      public void send(I2CRequest request) {
+        msg.i2cWriteRead(deviceId, request.getDeviceAddress(), readSize, writeValue);
+      }
+    });
   }
 
   @Override
@@ -1182,6 +1158,12 @@ public class Arduino extends Service implements Microcontroller, PinArrayControl
     for (int i = 0; i < data.size(); ++i) {
       buffer[i] = data.get(i);
     }
+    msg.neoPixelWriteMatrix(id, buffer);
+  }
+
+  @Override
+  // > neoPixelWriteMatrix/deviceId/[] buffer
+  public void neoPixelWriteMatrix(NeoPixel neopixel, int[] buffer) {
     msg.neoPixelWriteMatrix(getDeviceId(neopixel), buffer);
   }
 
@@ -1455,8 +1437,8 @@ public class Arduino extends Service implements Microcontroller, PinArrayControl
 
   // < publishI2cData/deviceId/[] data
   public void publishI2cData(Integer deviceId, int[] data) {
-    log.info("publishI2cData");
-    i2cReturnData(data);
+    log.debug("publishI2cData");
+    i2cTransactions.complete(deviceId, data);
   }
 
   // < publishMRLCommError/str errorMsg
@@ -1886,6 +1868,7 @@ public class Arduino extends Service implements Microcontroller, PinArrayControl
   @Override
   public void stopService() {
     detachI2CControls();
+    i2cTransactions.clear();
     super.stopService();
     // we give some time to inmoov service
     if (!usedByInmoov) {
@@ -2240,7 +2223,31 @@ public class Arduino extends Service implements Microcontroller, PinArrayControl
       Arduino arduino = (Arduino) Runtime.start("arduino", "Arduino");
       arduino.connect(port);
       arduino.setBoardMega();
-      
+
+      boolean i2cBenchmark = false;
+      if (i2cBenchmark) {
+        // latency of blocking reads and throughput of pipelined reads
+        Mpu6050 mpu = (Mpu6050) Runtime.start("mpu", "Mpu6050");
+        mpu.attach(arduino, "1", "0x68");
+        byte[] buffer = new byte[14];
+        int count = 1000;
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < count; ++i) {
+          arduino.i2cRead(mpu, 1, 0x68, buffer, buffer.length);
+        }
+        log.info("blocking {} reads in {} ms - {}", count, System.currentTimeMillis() - start, arduino.getI2cStats());
+        arduino.i2cTransactions.resetStats();
+        I2CRequest[] requests = new I2CRequest[count];
+        start = System.currentTimeMillis();
+        for (int i = 0; i < count; ++i) {
+          requests[i] = arduino.i2cReadAsync(mpu, 1, 0x68, buffer.length);
+        }
+        for (int i = 0; i < count; ++i) {
+          requests[i].get(buffer, 1000);
+        }
+        log.info("pipelined {} reads in {} ms - {}", count, System.currentTimeMillis() - start, arduino.getI2cStats());
+      }
+
       if (isDone){
         return;
       }
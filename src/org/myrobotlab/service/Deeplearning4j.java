@@ -11,7 +11,13 @@ import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.LinkedHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 
+import javax.imageio.ImageIO;
+
+import org.myrobotlab.deeplearning4j.InferenceEngine;
+import org.myrobotlab.deeplearning4j.InferenceResult;
 import org.myrobotlab.deeplearning4j.MRLLabelGenerator;
 import org.myrobotlab.framework.Service;
 import org.bytedeco.javacpp.opencv_core.IplImage;
@@ -102,7 +108,26 @@ public class Deeplearning4j extends Service {
   // pretrained from imagenet.
   
   private ComputationGraph vgg16 = null;
-  
+
+  // imagenet labels of the vgg16 output - loaded once
+  private static List<String> imageNetLabels = null;
+
+  // micro batching of classifications, one engine per network
+  transient private InferenceEngine vgg16Engine = null;
+  transient private InferenceEngine modelEngine = null;
+  // max images classified in one run of the network
+  public int maxBatchSize = 8;
+  // ms a batch waits for more images after the first one
+  public int maxWait = 10;
+  // threads converting images to network input
+  public int preprocessThreads = 2;
+  // publishes results of the engines
+  transient private final InferenceEngine.Listener publisher = new InferenceEngine.Listener() {
+    @Override
+    public void onResult(InferenceResult result) {
+      invoke("publishClassification", result);
+    }
+  };
   
   // constructor.
   public Deeplearning4j(String reservedKey) {
@@ -166,6 +191,7 @@ public class Deeplearning4j extends Service {
     scaler.fit(dataIter);
     // build the neural network (specify structure, etc..)
     network = createNetwork(numLabels);
+    resetModelEngine();
     // our preprocessor ... TODO: is this necessary here?
     dataIter.setPreProcessor(scaler);
     // TODO: learn more about what this does.
@@ -262,6 +288,138 @@ public class Deeplearning4j extends Service {
     networkLabels = StringUtils.split(FileIO.toString(new File(filename + ".labels")), "\\|");
     modelNumLabels = networkLabels.size();
     log.info("Network labels {} objects", modelNumLabels);
+    resetModelEngine();
+  }
+
+  private void resetModelEngine() {
+    if (modelEngine != null) {
+      modelEngine.stop();
+      modelEngine = null;
+    }
+  }
+
+  /**
+   * the inference engine of the trained or loaded model - created on first use
+   * @return the engine
+   */
+  public synchronized InferenceEngine getModelEngine() {
+    if (modelEngine == null && network != null) {
+      final MultiLayerNetwork net = network;
+      final List<String> labels = networkLabels;
+      modelEngine = new InferenceEngine(getName() + "-model", new InferenceEngine.Model() {
+        @Override
+        public INDArray output(INDArray batch) {
+          return net.output(batch, false);
+        }
+      }, new InferenceEngine.Decoder() {
+        @Override
+        public Map<String, Double> decode(INDArray output, int row) {
+          return decodePredictions(output, row, labels, labels.size());
+        }
+      }, new ImagePreProcessingScaler(0, 1), height, width, channels, preprocessThreads);
+      startEngine(modelEngine);
+    }
+    return modelEngine;
+  }
+
+  private void startEngine(InferenceEngine engine) {
+    engine.setMaxBatchSize(maxBatchSize);
+    engine.setMaxWait(maxWait);
+    engine.start();
+  }
+
+  /**
+   * sets how classifications are batched
+   * @param maxBatchSize max images classified in one run of the network
+   * @param maxWait ms a batch waits for more images after the first one
+   */
+  public void setBatching(int maxBatchSize, int maxWait) {
+    this.maxBatchSize = maxBatchSize;
+    this.maxWait = maxWait;
+    for (InferenceEngine engine : new InferenceEngine[] { vgg16Engine, modelEngine }) {
+      if (engine != null) {
+        engine.setMaxBatchSize(maxBatchSize);
+        engine.setMaxWait(maxWait);
+      }
+    }
+  }
+
+  public String getInferenceStats() {
+    StringBuilder sb = new StringBuilder();
+    for (InferenceEngine engine : new InferenceEngine[] { vgg16Engine, modelEngine }) {
+      if (engine != null) {
+        sb.append(engine).append("\n");
+      }
+    }
+    return sb.toString();
+  }
+
+  /**
+   * classifies an image with the trained or loaded model in the background,
+   * the result is published with publishClassification
+   * @param source who submitted the image
+   * @param frameIndex index of the image, returned with the result
+   * @param image the image - must not be modified afterwards
+   * @return completes with the result
+   */
+  public CompletableFuture<InferenceResult> classifyImage(String source, long frameIndex, BufferedImage image) {
+    return getModelEngine().submit(source, frameIndex, image, publisher);
+  }
+
+  /**
+   * the classification of an image submitted with classifyImage or
+   * classifyImageVGG16
+   * @param result labels and probabilities, the source and frame index
+   * @return the result
+   */
+  public InferenceResult publishClassification(InferenceResult result) {
+    return result;
+  }
+
+  /**
+   * classifies random images with the trained or loaded model at each batch
+   * size, as fast as they can be submitted
+   * @param images number of images per batch size
+   * @param batchSizes the max batch sizes to measure
+   * @return throughput and latency per batch size
+   * @throws InterruptedException if interrupted while waiting for results
+   */
+  public String benchmark(int images, int... batchSizes) throws InterruptedException {
+    InferenceEngine engine = getModelEngine();
+    BufferedImage[] inputs = new BufferedImage[16];
+    for (int i = 0; i < inputs.length; ++i) {
+      inputs[i] = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+      for (int y = 0; y < height; ++y) {
+        for (int x = 0; x < width; ++x) {
+          inputs[i].setRGB(x, y, rng.nextInt(0xffffff));
+        }
+      }
+    }
+    StringBuilder report = new StringBuilder();
+    int maxQueue = Math.max(64, images);
+    engine.setMaxQueue(maxQueue);
+    for (int batchSize : batchSizes) {
+      engine.setMaxBatchSize(batchSize);
+      engine.resetStats();
+      List<CompletableFuture<InferenceResult>> results = new ArrayList<CompletableFuture<InferenceResult>>();
+      long start = System.nanoTime();
+      for (int i = 0; i < images; ++i) {
+        results.add(engine.submit("benchmark", i, inputs[i % inputs.length], null));
+      }
+      for (CompletableFuture<InferenceResult> result : results) {
+        try {
+          result.get();
+        } catch (ExecutionException e) {
+          log.warn("benchmark classification failed", e);
+        }
+      }
+      double seconds = (System.nanoTime() - start) / 1000000000.0;
+      report.append(String.format("batch %d : %.1f images/s, latency avg %.1f ms - %s\n", batchSize, images / seconds, engine.getAverageLatency(), engine));
+    }
+    engine.setMaxBatchSize(maxBatchSize);
+    engine.setMaxQueue(64);
+    log.info("benchmark\n{}", report);
+    return report.toString();
   }
 
   public void evaluateModel(File file) throws IOException {
@@ -398,69 +556,107 @@ public class Deeplearning4j extends Service {
     ZooModel zooModel = new VGG16();
     vgg16 = (ComputationGraph) zooModel.initPretrained(PretrainedType.IMAGENET);
     // TODO: return true/false if the model was loaded properly/successfully.
+    if (vgg16Engine != null) {
+      vgg16Engine.stop();
+    }
+    final ComputationGraph graph = vgg16;
+    vgg16Engine = new InferenceEngine(getName() + "-vgg16", new InferenceEngine.Model() {
+      @Override
+      public INDArray output(INDArray batch) {
+        return graph.output(false, batch)[0];
+      }
+    }, new InferenceEngine.Decoder() {
+      @Override
+      public Map<String, Double> decode(INDArray output, int row) {
+        return decodeVGG16Predictions(output, row);
+      }
+    }, new VGG16ImagePreProcessor(), 224, 224, 3, preprocessThreads);
+    startEngine(vgg16Engine);
+  }
+
+  /**
+   * classifies an image with vgg16 in the background - the image is copied,
+   * the caller can reuse it. The result is published with
+   * publishClassification.
+   * @param source who submitted the image
+   * @param frameIndex index of the image, returned with the result
+   * @param iplImage the image
+   * @return completes with the result
+   */
+  public CompletableFuture<InferenceResult> classifyImageVGG16(String source, long frameIndex, IplImage iplImage) {
+    return vgg16Engine.submit(source, frameIndex, OpenCV.IplImageToBufferedImage(iplImage), publisher);
+  }
+
+  public CompletableFuture<InferenceResult> classifyImageVGG16(String source, long frameIndex, IplImage iplImage, InferenceEngine.Listener listener) {
+    return vgg16Engine.submit(source, frameIndex, OpenCV.IplImageToBufferedImage(iplImage), listener);
   }
 
-  
   public Map<String, Double> classifyImageVGG16(IplImage iplImage) throws IOException {
-    NativeImageLoader loader = new NativeImageLoader(224, 224, 3);
-    BufferedImage buffImg = OpenCV.IplImageToBufferedImage(iplImage);
-    INDArray image = loader.asMatrix(buffImg);
-    // TODO: we should consider the model as not only the model, but also the input transforms
-    // for that model.
-    DataNormalization scaler = new VGG16ImagePreProcessor();
-    scaler.transform(image);
-    INDArray[] output = vgg16.output(false,image);
-    // TODO: return a more native datastructure!
-    //String predictions = TrainedModels.VGG16.decodePredictions(output[0]);
-    // log.info("Image Predictions: {}", predictions);
-    return decodeVGG16Predictions(output[0]);
+    return waitFor(vgg16Engine.submit(getName(), 0, OpenCV.IplImageToBufferedImage(iplImage), null));
   }
   
   public Map<String, Double> classifyImageFileVGG16(String filename) throws IOException {
-    File file = new File(filename);
-    NativeImageLoader loader = new NativeImageLoader(224, 224, 3);
-    INDArray image = loader.asMatrix(file);
-    // TODO: we should consider the model as not only the model, but also the input transforms
-    // for that model.
-    DataNormalization scaler = new VGG16ImagePreProcessor();
-    scaler.transform(image);
-    INDArray[] output = vgg16.output(false,image);
-    // TODO: return a more native datastructure!
-    //String predictions = TrainedModels.VGG16.decodePredictions(output[0]);
-    //log.info("Image Predictions: {}", predictions);
-    return decodeVGG16Predictions(output[0]);
+    BufferedImage image = ImageIO.read(new File(filename));
+    if (image == null) {
+      throw new IOException("not an image " + filename);
+    }
+    return waitFor(vgg16Engine.submit(getName(), 0, image, null));
+  }
+
+  private Map<String, Double> waitFor(CompletableFuture<InferenceResult> result) throws IOException {
+    try {
+      return result.get().predictions;
+    } catch (InterruptedException e) {
+      throw new IOException("interrupted while classifying", e);
+    } catch (ExecutionException e) {
+      throw new IOException("classification failed", e.getCause());
+    }
   }
-  
   
   // adapted from dl4j TrainedModels.VGG16 class.
   public Map<String, Double> decodeVGG16Predictions(INDArray predictions) {
-    
+    return decodeVGG16Predictions(predictions, 0);
+  }
+
+  public Map<String, Double> decodeVGG16Predictions(INDArray predictions, int row) {
+    synchronized (Deeplearning4j.class) {
+      if (imageNetLabels == null) {
+        imageNetLabels = ImageNetLabels.getLabels();
+      }
+    }
+    return decodePredictions(predictions, row, imageNetLabels, 5);
+  }
+
+  /**
+   * the top labels of one row of the output of a network
+   * @param predictions output of the network, a row per image
+   * @param row the image
+   * @param labels the label of each output
+   * @param top how many labels to return
+   * @return labels and probabilities, highest first
+   */
+  public static Map<String, Double> decodePredictions(INDArray predictions, int row, List<String> labels, int top) {
     LinkedHashMap<String, Double> recognizedObjects = new LinkedHashMap<String, Double>(); 
-    ArrayList<String> labels;
-    String predictionDescription = "";
-    int[] top5 = new int[5];
-    float[] top5Prob = new float[5];
-    labels = ImageNetLabels.getLabels();
-    //brute force collect top 5
-    int i = 0;
-    for (int batch = 0; batch < predictions.size(0); batch++) {
-        if (predictions.size(0) > 1) {
-            predictionDescription += String.valueOf(batch);
-        }
-        predictionDescription += " :";
-        INDArray currentBatch = predictions.getRow(batch).dup();
-        while (i < 5) {
-            top5[i] = Nd4j.argMax(currentBatch, 1).getInt(0, 0);
-            top5Prob[i] = currentBatch.getFloat(batch, top5[i]);
-            // interesting, this cast looses precision.. float to double.
-            recognizedObjects.put(labels.get(top5[i]), (double)top5Prob[i]);
-            currentBatch.putScalar(0, top5[i], 0);
-            predictionDescription += "\n\t" + String.format("%3f", top5Prob[i] * 100) + "%, " + labels.get(top5[i]);
-            i++;
-        }
+    INDArray current = predictions.getRow(row).dup();
+    //brute force collect the top ones
+    for (int i = 0; i < top && i < labels.size(); ++i) {
+      int index = Nd4j.argMax(current, 1).getInt(0, 0);
+      // interesting, this cast looses precision.. float to double.
+      recognizedObjects.put(labels.get(index), (double) current.getFloat(0, index));
+      current.putScalar(0, index, 0);
     }
     return recognizedObjects;
   }
+
+  @Override
+  public void stopService() {
+    super.stopService();
+    for (InferenceEngine engine : new InferenceEngine[] { vgg16Engine, modelEngine }) {
+      if (engine != null) {
+        engine.stop();
+      }
+    }
+  }
   
   static public ServiceType getMetaData() {
     ServiceType meta = new ServiceType(Deeplearning4j.class.getCanonicalName());
@@ -510,6 +510,7 @@ public class DiyServo extends Service implements ServoControl, PinListener {
    * The most important method, that tells the servo what position it should
    * move to
    */
+  @Override
   public void moveTo(double pos) {
     synchronized (moveToBlocked) {
       moveToBlocked.notify(); // Will wake up MoveToBlocked.wait()
@@ -553,6 +554,12 @@ public class DiyServo extends Service implements ServoControl, PinListener {
 
   }
 
+  // a trajectory step is a regular move - the pid loop follows the target
+  @Override
+  public void stepTo(double pos) {
+    moveTo(pos);
+  }
+
   /*
    * basic move command of the servo - usually is 0 - 180 valid range but can be
    * adjusted and / or re-mapped with min / max and map commands
@@ -172,6 +172,15 @@ public class DocumentPipeline extends Service implements DocumentListener, Docum
     return true;
   }
 
+  @Override
+  public void stopService() {
+    // stops the stages so they can close their connections
+    if (workflowServer != null && workflowName != null) {
+      workflowServer.removeWorkflow(workflowName);
+    }
+    super.stopService();
+  }
+
   /**
    * This static method returns all the details of the class without it having
    * to be constructed. It has description, categories, dependencies, and peer
@@ -1,19 +1,23 @@
 package org.myrobotlab.service;
 
-import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
 
 import org.myrobotlab.framework.Service;
 import org.myrobotlab.framework.ServiceType;
+import org.myrobotlab.gps.NmeaParser;
+import org.myrobotlab.io.FileIO;
 import org.myrobotlab.logging.Level;
 import org.myrobotlab.logging.LoggerFactory;
 import org.myrobotlab.logging.Logging;
 import org.myrobotlab.logging.LoggingFactory;
+import org.myrobotlab.serial.PortQueue;
 import org.myrobotlab.service.interfaces.SerialDataListener;
 import org.myrobotlab.service.interfaces.SerialDevice;
 import org.slf4j.Logger;
@@ -37,8 +41,14 @@ import org.slf4j.Logger;
  * your robot is sending you it's current GPS coordinates, you can see if has
  * wandered into our out of a fenced area.
  *
+ * Sentences are parsed by a streaming NmeaParser into typed records which are
+ * published by publishGGA, publishRMC, publishVTG, publishGSA, publishGSV and
+ * publishZDA. The rate of each can be limited with setPublishRate - receivers
+ * often send more than a robot needs. The string based publishXXXData methods
+ * are still invoked for sentences which have listeners for them.
+ *
  */
-public class Gps extends Service implements SerialDataListener {
+public class Gps extends Service implements SerialDataListener, NmeaParser.Listener {
 
   /***********************************************************************************
    * This block of methods will be used to GeoFencing This code is based on the
@@ -155,12 +165,25 @@ public class Gps extends Service implements SerialDataListener {
 
   public static final String GEOID_SEPARATION_KEY = "GEOID_SEPARATION_KEY";
 
-  transient public ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+  transient NmeaParser parser = new NmeaParser(this);
+
+  /**
+   * sentences without a checksum are dropped - some receivers do not send one
+   */
+  boolean requireChecksum = true;
 
   String model;
 
   String messageString;
 
+  /**
+   * min ms between published records of each sentence type - 0 publishes
+   * every sentence
+   */
+  long[] publishIntervals = new long[NmeaParser.TYPES];
+
+  transient long[] lastPublished = new long[NmeaParser.TYPES];
+
   // peers
   transient public Serial serial;
 
@@ -195,72 +218,235 @@ public class Gps extends Service implements SerialDataListener {
 
   @Override
   public Integer onByte(Integer b) throws IOException {
+    parser.parse(b);
+    return b;
+  }
 
-    try {
-      // log.info("byteReceived Index = " + index + " actual data byte = "
-      // + String.format("%02x", b));
-      buffer.write(b);
-      // so a byte was appended
-      // now depending on what model it was and
-      // what stage of initialization we do that funky stuff
-      if (b == 0x0a) { // GPS strings end with /CR /LF = 0x0d 0x0a
-
-        // log.info("Buffer size = " + buffer.size() + " Buffer = " +
-        // buffer.toString());
-        buffer.flush(); // flush entire buffer so I can convert it to a
-        // byte array
-        // message = buffer.toByteArray();
-        messageString = new String(buffer.toByteArray(), ("UTF-8"));
-        // log.info("size of message = " + message.length);
-
-        if (messageString.contains("GGA")) {
-          log.info("GGA string detected");
-          invoke("publishGGAData");
-        } else if (messageString.contains("RMC")) {
-          log.info("RMC string detected");
-          invoke("publishRMCData");
-        } else if (messageString.contains("VTG")) {
-          log.info("VTG string detected");
-          invoke("publishVTGData");
-        } else if (messageString.contains("GSA")) {
-          log.info("GSA string detected");
-          invoke("publishGSAData");
-        } else if (messageString.contains("GSV")) {
-          log.info("GSV string detected");
-          invoke("publishGSVData");
-        } else if (messageString.contains("GLL")) {
-          log.info("GLL string detected");
-          invoke("publishGLLData");
-        } else if (messageString.contains("ZDA")) {
-          log.info("ZDA string detected");
-          invoke("publishZDAData");
-        } else if (messageString.contains("MSS")) {
-          log.info("MSS string detected");
-          invoke("publishMSSData");
-        } else if (messageString.contains("POLYN")) // San Jose
-        // navigation FV-M8
-        // specific?
-        {
-          log.info("POLYN string detected");
-          // invoke("publishPOLYNData");
-        } else if (messageString.contains("PMTK101")) {
-          log.info("Hot Restart string detected");
-          // invoke("publishMTKData");
-        } else if (messageString.contains("PMTK010, 001")) {
-          log.info("Startup string detected");
-          // invoke("publishMTKData");
-        } else {
-          log.info("unknown string detected");
+  /**
+   * parses a chunk of NMEA data - from a file, network or a serial port
+   * which reads blocks
+   *
+   * @param data
+   *          - bytes of NMEA sentences, sentences may span chunks
+   */
+  public void onBytes(byte[] data) {
+    parser.parse(data);
+  }
+
+  @Override
+  public void onSentence(NmeaParser parser, int type) {
+    if (publishIntervals[type] > 0) {
+      long now = System.currentTimeMillis();
+      if (now - lastPublished[type] < publishIntervals[type]) {
+        return;
+      }
+      lastPublished[type] = now;
+    }
+    switch (type) {
+      case NmeaParser.GGA:
+        if (hasListeners("publishGGA")) {
+          invoke("publishGGA", parser.gga.copy());
+        }
+        if (hasListeners("publishGPS")) {
+          invoke("publishGPS", toGpsData(parser));
+        }
+        publishTokens("publishGGAData");
+        break;
+      case NmeaParser.RMC:
+        if (hasListeners("publishRMC")) {
+          invoke("publishRMC", parser.rmc.copy());
+        }
+        publishTokens("publishRMCData");
+        break;
+      case NmeaParser.VTG:
+        if (hasListeners("publishVTG")) {
+          invoke("publishVTG", parser.vtg.copy());
         }
-        buffer.reset();
+        publishTokens("publishVTGData");
+        break;
+      case NmeaParser.GSA:
+        if (hasListeners("publishGSA")) {
+          invoke("publishGSA", parser.gsa.copy());
+        }
+        publishTokens("publishGSAData");
+        break;
+      case NmeaParser.GSV:
+        if (hasListeners("publishGSV")) {
+          invoke("publishGSV", parser.gsv.copy());
+        }
+        publishTokens("publishGSVData");
+        break;
+      case NmeaParser.ZDA:
+        if (hasListeners("publishZDA")) {
+          invoke("publishZDA", parser.zda.copy());
+        }
+        publishTokens("publishZDAData");
+        break;
+      case NmeaParser.GLL:
+        publishTokens("publishGLLData");
+        break;
+      case NmeaParser.MSS:
+        publishTokens("publishMSSData");
+        break;
+      default:
+        if (log.isDebugEnabled()) {
+          log.debug("unknown sentence {}", parser.getSentence());
+        }
+        break;
+    }
+  }
+
+  boolean hasListeners(String method) {
+    return getOutbox().notifyList.containsKey(method);
+  }
+
+  /**
+   * invokes a string based publishing method - only when something listens to
+   * it, it re-parses the sentence
+   */
+  void publishTokens(String method) {
+    if (hasListeners(method)) {
+      messageString = parser.getSentence();
+      invoke(method);
+    }
+  }
+
+  GpsData toGpsData(NmeaParser parser) {
+    GpsData gps = new GpsData();
+    gps.type = String.format("$%sGGA", parser.gga.talker);
+    gps.time = parser.getField(1);
+    if (!Double.isNaN(parser.gga.latitude)) {
+      gps.latitude = parser.gga.latitude;
+    }
+    if (!Double.isNaN(parser.gga.longitude)) {
+      gps.longitude = parser.gga.longitude;
+    }
+    // GGA field 11 is the separation, field 12 its unit (M)
+    gps.addInfo.put(GEOID_SEPARATION_KEY, parser.getField(11));
+    return gps;
+  }
+
+  public NmeaParser.Gga publishGGA(NmeaParser.Gga gga) {
+    return gga;
+  }
+
+  public NmeaParser.Rmc publishRMC(NmeaParser.Rmc rmc) {
+    return rmc;
+  }
+
+  public NmeaParser.Vtg publishVTG(NmeaParser.Vtg vtg) {
+    return vtg;
+  }
+
+  public NmeaParser.Gsa publishGSA(NmeaParser.Gsa gsa) {
+    return gsa;
+  }
+
+  public NmeaParser.Gsv publishGSV(NmeaParser.Gsv gsv) {
+    return gsv;
+  }
+
+  public NmeaParser.Zda publishZDA(NmeaParser.Zda zda) {
+    return zda;
+  }
+
+  /**
+   * limits how often records of a sentence type are published
+   *
+   * @param type
+   *          - GGA, RMC, VTG, GSA, GSV, ZDA, GLL or MSS
+   * @param hz
+   *          - max records per second, 0 for every sentence
+   */
+  public void setPublishRate(String type, double hz) {
+    for (int i = 1; i < NmeaParser.TYPES; ++i) {
+      if (NmeaParser.getTypeName(i).equalsIgnoreCase(type)) {
+        publishIntervals[i] = (hz <= 0) ? 0 : (long) (1000 / hz);
+        return;
       }
+    }
+    error("unknown sentence type %s", type);
+  }
 
-    } catch (Exception e) {
-      error(e.getMessage());
+  /**
+   * limits how often records of every sentence type are published
+   *
+   * @param hz
+   *          - max records per second, 0 for every sentence
+   */
+  public void setPublishRate(double hz) {
+    for (int i = 0; i < NmeaParser.TYPES; ++i) {
+      publishIntervals[i] = (hz <= 0) ? 0 : (long) (1000 / hz);
     }
+  }
 
-    return b;
+  /**
+   * @param b
+   *          - false to accept sentences without a checksum, sentences with a
+   *          wrong checksum are always dropped
+   */
+  public void setRequireChecksum(boolean b) {
+    requireChecksum = b;
+    parser.setRequireChecksum(b);
+    broadcastState();
+  }
+
+  public boolean getRequireChecksum() {
+    return requireChecksum;
+  }
+
+  public NmeaParser getParser() {
+    return parser;
+  }
 
+  public String getParserStats() {
+    return parser.toString();
+  }
+
+  /**
+   * measures sentences per second of a recorded NMEA log - through the parser
+   * alone, and replayed byte by byte through a PortQueue into onByte as if it
+   * came from the serial port, including publishing
+   *
+   * @param nmeaFile
+   *          - the log
+   * @param repeat
+   *          - times the log is parsed for the parser measurement
+   * @return the results
+   * @throws IOException
+   *           - if the log can not be read
+   * @throws InterruptedException
+   *           - if interrupted
+   */
+  public String benchmark(String nmeaFile, int repeat) throws IOException, InterruptedException {
+    byte[] data = FileIO.toByteArray(new File(nmeaFile));
+
+    NmeaParser bench = new NmeaParser();
+    long start = System.nanoTime();
+    for (int i = 0; i < repeat; ++i) {
+      bench.parse(data);
+    }
+    double parserSeconds = (System.nanoTime() - start) / 1000000000.0;
+
+    LinkedBlockingQueue<Integer> rx = new LinkedBlockingQueue<Integer>();
+    for (int i = 0; i < data.length; ++i) {
+      rx.add(data[i] & 0xff);
+    }
+    rx.add(-1);
+    PortQueue port = new PortQueue("replay", rx, new LinkedBlockingQueue<Integer>());
+    parser.resetStats();
+    start = System.nanoTime();
+    int b;
+    while ((b = port.read()) > -1) {
+      onByte(b);
+    }
+    double replaySeconds = (System.nanoTime() - start) / 1000000000.0;
+
+    String result = String.format("parser %.0f sentences/s %.1f MB/s (%d sentences, %d checksum errors) - PortQueue replay %.0f sentences/s (%s)",
+        bench.getSentences() / parserSeconds, data.length * (double) repeat / parserSeconds / 1000000, bench.getSentences(), bench.getChecksumErrors(),
+        parser.getSentences() / replaySeconds, parser);
+    info(result);
+    return result;
   }
 
   public double calculateDistance(double latitude1, double longitude1, double latitude2, double longitude2) {
@@ -477,7 +663,8 @@ public class Gps extends Service implements SerialDataListener {
       log.info("Geoid Separation: (Geoid-to-ellipsoid separation. Ellipsoid altitude = MSL Altitude + Geoid Separation.) " + tokens[11]);
       log.info("meters?: " + tokens[12]);
 
-      gps.addInfo.put(GEOID_SEPARATION_KEY, tokens[12]);
+      // field 12 is the unit of the separation
+      gps.addInfo.put(GEOID_SEPARATION_KEY, tokens[11]);
 
       log.info("Seconds since last update (likely blank): " + tokens[13]);
 
@@ -487,7 +674,7 @@ public class Gps extends Service implements SerialDataListener {
       } else {
         log.info("Checksum: " + tokens[14]);
       }
-      invoke("publishGPS", gps);
+      // publishGPS is invoked from the parsed GGA record
     } catch (Exception e) {
       Logging.logError(e);
     }
@@ -775,7 +962,6 @@ public class Gps extends Service implements SerialDataListener {
   }// end dataToString
 
   public void setBaud(int baudRate) throws IOException {
-    buffer.reset();
     if (baudRate == 9600) {
     } else if (baudRate == 19200) {
     } else if (baudRate == 38400) {
@@ -837,6 +1023,7 @@ public class Gps extends Service implements SerialDataListener {
   @Override
   public void startService() {
     super.startService();
+    parser.setRequireChecksum(requireChecksum);
     try {
       serial = (Serial) startPeer("serial", "Serial");
       serial.addByteListener(this);
@@ -3,8 +3,12 @@ package org.myrobotlab.service;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.Timer;
 import java.util.TimerTask;
 
@@ -15,6 +19,8 @@ import org.myrobotlab.framework.interfaces.ServiceInterface;
 import org.myrobotlab.io.FileIO;
 import org.myrobotlab.jme3.InMoov3DApp;
 import org.myrobotlab.kinematics.DHLinkType;
+import org.myrobotlab.kinematics.GesturePlayer;
+import org.myrobotlab.kinematics.GestureTimeline;
 import org.myrobotlab.kinematics.GravityCenter;
 import org.myrobotlab.logging.Level;
 import org.myrobotlab.logging.LoggerFactory;
@@ -112,6 +118,12 @@ public class InMoov extends Service {
   transient public Pid pid;
 
   boolean copyGesture = false;
+
+  /**
+   * gesture timelines by name - loaded from the json files of the gestures
+   * directory
+   */
+  transient Map<String, GestureTimeline> timelines = new HashMap<String, GestureTimeline>();
   public double openNiShouldersOffset = -50.0;
   public boolean openNiLeftShoulderInverted = true;
   public boolean openNiRightShoulderInverted = true;
@@ -1712,6 +1724,96 @@ public class InMoov extends Service {
     }
   }
 
+  /**
+   * converts the python gesture files of a directory to gesture timelines -
+   * one json file per gesture function next to the python file. Converted
+   * gestures are played by the GesturePlayer without the python interpreter.
+   * 
+   * @param directory
+   *          - the directory that contains the gesture python files.
+   * @return number of converted gestures
+   */
+  public int convertGestures(String directory) {
+    File dir = makeGesturesDirectory(directory);
+    int count = 0;
+    for (File f : dir.listFiles()) {
+      if (!f.getName().toLowerCase().endsWith(".py")) {
+        continue;
+      }
+      try {
+        for (GestureTimeline gesture : GestureTimeline.fromScript(FileIO.toString(f), getName())) {
+          gesture.save(new File(dir, gesture.name + ".json"));
+          timelines.put(gesture.name, gesture);
+          ++count;
+        }
+      } catch (IOException e) {
+        log.warn("could not convert gesture file {} -- {}", f.getAbsolutePath(), e);
+      }
+    }
+    info("converted %d gestures", count);
+    return count;
+  }
+
+  public void loadTimelines() {
+    loadTimelines(GESTURES_DIRECTORY);
+  }
+
+  /**
+   * loads the gesture timelines (.json) of a directory
+   * 
+   * @param directory
+   *          - the directory that contains the gesture timelines
+   */
+  public void loadTimelines(String directory) {
+    File dir = makeGesturesDirectory(directory);
+    for (File f : dir.listFiles()) {
+      if (f.getName().toLowerCase().endsWith(".json")) {
+        try {
+          GestureTimeline gesture = GestureTimeline.load(f);
+          timelines.put(gesture.name, gesture);
+        } catch (Exception e) {
+          log.warn("could not load gesture timeline {} -- {}", f.getAbsolutePath(), e);
+        }
+      }
+    }
+    log.info("{} gesture timelines loaded", timelines.size());
+  }
+
+  public CompletableFuture<Boolean> playGesture(String name) {
+    return playGesture(name, 0, 1.0, 0);
+  }
+
+  /**
+   * plays a gesture timeline
+   * 
+   * @param name
+   *          - name of the gesture
+   * @param layer
+   *          - gestures on higher layers are blended over lower ones, a gesture
+   *          on the same layer is replaced
+   * @param weight
+   *          - 0.0 - 1.0 how much the gesture moves the servos
+   * @param blend
+   *          - seconds to fade in and out
+   * @return completes with true when the gesture finished
+   */
+  public CompletableFuture<Boolean> playGesture(String name, int layer, double weight, double blend) {
+    GestureTimeline gesture = timelines.get(name);
+    if (gesture == null) {
+      error("unknown gesture %s", name);
+      return CompletableFuture.completedFuture(false);
+    }
+    return GesturePlayer.getInstance().play(gesture, getName(), layer, weight, blend);
+  }
+
+  public boolean stopGesture(String name) {
+    return GesturePlayer.getInstance().stop(name);
+  }
+
+  public List<String> getTimelineNames() {
+    return new ArrayList<String>(timelines.keySet());
+  }
+
   public void loadCalibration() {
     loadCalibration(CALIBRATION_FILE);
   }
@@ -31,6 +31,10 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.myrobotlab.framework.MRLListener;
 import org.myrobotlab.framework.Message;
@@ -63,6 +67,52 @@ import ch.qos.logback.core.status.Status;
 
 public class Log extends Service implements Appender<ILoggingEvent>, NameProvider, CommunicationInterface {
 
+	/**
+	 * publishes the appended events in batches - application threads only put
+	 * events in the ring, all formatting and delivery is done here
+	 */
+	public class LogPublisher extends Thread {
+
+		public LogPublisher() {
+			super(String.format("%s.publisher", getName()));
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			// NO LOGGING IN HERE - it would feed back into the ring
+			ArrayList<ILoggingEvent> batch = new ArrayList<ILoggingEvent>();
+			try {
+				while (publisher == this) {
+					ILoggingEvent event = ring.poll(batchMs, TimeUnit.MILLISECONDS);
+					if (event == null) {
+						if (dropped.get() != reportedDropped) {
+							publishBatch(batch);
+						}
+						continue;
+					}
+					batch.add(event);
+					long deadline = System.currentTimeMillis() + batchMs;
+					while (batch.size() < batchSize) {
+						long wait = deadline - System.currentTimeMillis();
+						if (wait <= 0) {
+							break;
+						}
+						event = ring.poll(wait, TimeUnit.MILLISECONDS);
+						if (event == null) {
+							break;
+						}
+						batch.add(event);
+					}
+					publishBatch(batch);
+					batch.clear();
+				}
+			} catch (InterruptedException e) {
+				// shutting down
+			}
+		}
+	}
+
 	private static final long serialVersionUID = 1L;
 
 	public final static Logger log = LoggerFactory.getLogger(Log.class);
@@ -75,6 +125,34 @@ public class Log extends Service implements Appender<ILoggingEvent>, NameProvide
 	boolean isLogging = false;
 	String logLevel = "info";
 
+	/**
+	 * max events in one publishLogEvents message
+	 */
+	int batchSize = 100;
+
+	/**
+	 * max ms an event waits before its batch is published
+	 */
+	int batchMs = 200;
+
+	/**
+	 * number of recent entries kept for clients which connect later
+	 */
+	int tailSize = 500;
+
+	/**
+	 * level filter of each subscriber - subscribers not in the map get all
+	 * events
+	 */
+	ConcurrentHashMap<String, String> subscriberLevels = new ConcurrentHashMap<String, String>();
+
+	transient ArrayBlockingQueue<ILoggingEvent> ring = new ArrayBlockingQueue<ILoggingEvent>(4096);
+	transient LinkedList<String> tail = new LinkedList<String>();
+	transient volatile LogPublisher publisher = null;
+	transient AtomicLong dropped = new AtomicLong();
+	transient AtomicLong published = new AtomicLong();
+	transient long reportedDropped = 0;
+
 	/*
 	 * TODO - allow options to record and playback message log - serialize to
 	 * disk etc
@@ -91,7 +169,7 @@ public class Log extends Service implements Appender<ILoggingEvent>, NameProvide
 	}
 
 	public void addListener(String topicMethod, String callbackName, String callbackMethod) {
-		if ("publishLogEvent".equals(topicMethod)) {
+		if ("publishLogEvent".equals(topicMethod) || "publishLogEvents".equals(topicMethod)) {
 			log.info("private subscription {} {} {}", topicMethod, callbackName, callbackMethod);
 			MRLListener listener = new MRLListener(topicMethod, callbackName, callbackMethod);
 			if (publishLogEventNotifyList.containsKey(listener.topicMethod.toString())) {
@@ -125,6 +203,54 @@ public class Log extends Service implements Appender<ILoggingEvent>, NameProvide
 		return entry;
 	}
 
+	public List<String> publishLogEvents(List<String> entries) {
+		return entries;
+	}
+
+	/**
+	 * recent log entries - returned to the caller instead of being published,
+	 * so a new client does not resend the history to every log subscriber
+	 * 
+	 * @return copy of the tail
+	 */
+	public List<String> getLogTail() {
+		synchronized (tail) {
+			return new ArrayList<String>(tail);
+		}
+	}
+
+	/**
+	 * only events of level or higher are sent to the subscriber
+	 * 
+	 * @param name
+	 *            - name of the subscribed service
+	 * @param level
+	 *            - debug, info, warn or error - null for all events
+	 */
+	public void setSubscriberLevel(String name, String level) {
+		if (level == null) {
+			subscriberLevels.remove(name);
+		} else {
+			subscriberLevels.put(name, level);
+		}
+	}
+
+	/**
+	 * @return number of events dropped because the ring was full
+	 */
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	public long getPublished() {
+		return published.get();
+	}
+
+	public void setBatch(int batchSize, int batchMs) {
+		this.batchSize = batchSize;
+		this.batchMs = batchMs;
+	}
+
 	public Message log(Message m) {
 		log.info("log message from " + m.sender + "." + m.data);
 		return m;
@@ -231,44 +357,112 @@ public class Log extends Service implements Appender<ILoggingEvent>, NameProvide
 
 	/**
 	 * Main interface through which slf4j sends logging.
-	 * This method in turn publishes the events to a MRL publishLogEvent topic.
+	 * The event is put in the ring and published by the LogPublisher - this
+	 * never blocks the logging thread. If the ring is full the event is dropped
+	 * and counted.
 	 */
 	@Override
 	public void doAppend(ILoggingEvent event) throws LogbackException {
-		// event.getFormattedMessage();
-		Message msg = Message.createMessage(this, null, "onLogEvent", new Object[] { String.format("[%s] %s", event.getThreadName(), event.toString()) });
-		msg.sendingMethod = "publishLogEvent";
-		msg.sender = getName();
-		Object[] param = new Object[] { msg };
+		if (Thread.currentThread() == publisher) {
+			// never feed back into ourselves
+			return;
+		}
+		// capture thread name, formatted message etc. before handing it over
+		event.prepareForDeferredProcessing();
+		if (!ring.offer(event)) {
+			dropped.incrementAndGet();
+		}
+	}
 
-		// Object[] param = new Object[] { String.format("[%s] %s",
-		// arg0.getThreadName(), arg0.toString()) };
+	/**
+	 * publishes a batch of events to the publishLogEvents and publishLogEvent
+	 * subscribers and adds it to the tail
+	 */
+	void publishBatch(List<ILoggingEvent> batch) {
+		ArrayList<String> entries = new ArrayList<String>(batch.size() + 1);
+		for (int i = 0; i < batch.size(); ++i) {
+			ILoggingEvent event = batch.get(i);
+			entries.add(String.format("[%s] %s", event.getThreadName(), event.toString()));
+		}
+		long d = dropped.get();
+		String dropReport = null;
+		if (d != reportedDropped) {
+			dropReport = String.format("[%s] WARN dropped %d log events (%d total)", getName(), d - reportedDropped, d);
+			reportedDropped = d;
+		}
+		published.addAndGet(batch.size());
 
-		if (publishLogEventNotifyList.size() != 0) {
-			// get the value for the source method
-			ArrayList<MRLListener> subList = publishLogEventNotifyList.get("publishLogEvent");
+		synchronized (tail) {
+			tail.addAll(entries);
+			if (dropReport != null) {
+				tail.add(dropReport);
+			}
+			while (tail.size() > tailSize) {
+				tail.removeFirst();
+			}
+		}
+
+		ArrayList<MRLListener> batchList = publishLogEventNotifyList.get("publishLogEvents");
+		if (batchList != null) {
+			for (int i = 0; i < batchList.size(); ++i) {
+				MRLListener listener = batchList.get(i);
+				ArrayList<String> filtered = filter(listener.callbackName, batch, entries);
+				if (dropReport != null) {
+					filtered.add(dropReport);
+				}
+				if (filtered.size() > 0) {
+					deliver(listener, "publishLogEvents", filtered);
+				}
+			}
+		}
+
+		ArrayList<MRLListener> subList = publishLogEventNotifyList.get("publishLogEvent");
+		if (subList != null) {
 			for (int i = 0; i < subList.size(); ++i) {
 				MRLListener listener = subList.get(i);
-
-				ServiceInterface si = Runtime.getService(listener.callbackName);
-				Class<?> c = si.getClass();
-				try {
-					Method meth = c.getMethod(listener.callbackMethod, new Class<?>[] { Message.class });
-					// TODO: what to do with this returned object?
-					// Object retobj = meth.invoke(si, param);
-					meth.invoke(si, param);
-				} catch (Exception e) {
-					// TODO Auto-generated catch block
-					e.printStackTrace();
+				ArrayList<String> filtered = filter(listener.callbackName, batch, entries);
+				for (int j = 0; j < filtered.size(); ++j) {
+					deliver(listener, "publishLogEvent", filtered.get(j));
 				}
-				// send(msg);
+			}
+		}
+	}
 
-				// must make new for internal queues
-				// otherwise you'll change the name on
-				// existing enqueued messages
-				// msg = new Message(msg);
+	ArrayList<String> filter(String subscriber, List<ILoggingEvent> batch, List<String> entries) {
+		String level = subscriberLevels.get(subscriber);
+		if (level == null) {
+			return new ArrayList<String>(entries);
+		}
+		ch.qos.logback.classic.Level threshold = ch.qos.logback.classic.Level.toLevel(level);
+		ArrayList<String> ret = new ArrayList<String>();
+		for (int i = 0; i < batch.size(); ++i) {
+			if (batch.get(i).getLevel().isGreaterOrEqual(threshold)) {
+				ret.add(entries.get(i));
 			}
 		}
+		return ret;
+	}
+
+	/**
+	 * out of band delivery - the framework queues would log and feed back into
+	 * the appender
+	 */
+	void deliver(MRLListener listener, String topicMethod, Object data) {
+		Message msg = Message.createMessage(this, null, topicMethod.replace("publish", "on"), new Object[] { data });
+		msg.sendingMethod = topicMethod;
+		msg.sender = getName();
+		ServiceInterface si = Runtime.getService(listener.callbackName);
+		if (si == null) {
+			return;
+		}
+		Class<?> c = si.getClass();
+		try {
+			Method meth = c.getMethod(listener.callbackMethod, new Class<?>[] { Message.class });
+			meth.invoke(si, new Object[] { msg });
+		} catch (Exception e) {
+			// TODO Auto-generated catch block
+			e.printStackTrace();
+		}
 	}
 
 	public void add(Message msg) throws InterruptedException {
@@ -306,6 +500,7 @@ public class Log extends Service implements Appender<ILoggingEvent>, NameProvide
 		}
 
 		if (!isLogging) {
+			startPublisher();
 			root.addAppender(this);
 		}
 
@@ -316,6 +511,7 @@ public class Log extends Service implements Appender<ILoggingEvent>, NameProvide
 		// LoggerContext lc = (LoggerContext) LoggerFactory.getILoggerFactory();
 		ch.qos.logback.classic.Logger root = (ch.qos.logback.classic.Logger) LoggerFactory.getLogger(Logger.ROOT_LOGGER_NAME);
 		root.setLevel(ch.qos.logback.classic.Level.INFO);
+		startPublisher();
 		root.addAppender(this);
 		isLogging = true;
 	}
@@ -324,6 +520,28 @@ public class Log extends Service implements Appender<ILoggingEvent>, NameProvide
 		ch.qos.logback.classic.Logger root = (ch.qos.logback.classic.Logger) LoggerFactory.getLogger(Logger.ROOT_LOGGER_NAME);
 		root.detachAppender(this);
 		isLogging = false;
+		stopPublisher();
+	}
+
+	synchronized void startPublisher() {
+		if (publisher == null) {
+			publisher = new LogPublisher();
+			publisher.start();
+		}
+	}
+
+	synchronized void stopPublisher() {
+		if (publisher != null) {
+			LogPublisher p = publisher;
+			publisher = null;
+			p.interrupt();
+		}
+	}
+
+	@Override
+	public void stopService() {
+		stopLogging();
+		super.stopService();
 	}
 
 	public static void main(String[] args) {
@@ -1,8 +1,17 @@
 package org.myrobotlab.service;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
 import java.sql.Timestamp;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import org.eclipse.paho.client.mqttv3.IMqttActionListener;
@@ -15,10 +24,18 @@ import org.eclipse.paho.client.mqttv3.MqttException;
 import org.eclipse.paho.client.mqttv3.MqttMessage;
 import org.eclipse.paho.client.mqttv3.MqttSecurityException;
 import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.myrobotlab.framework.MRLListener;
+import org.myrobotlab.framework.Message;
 import org.myrobotlab.framework.Service;
+import org.myrobotlab.framework.ServiceEnvironment;
 import org.myrobotlab.framework.ServiceType;
+import org.myrobotlab.framework.Status;
+import org.myrobotlab.framework.interfaces.ServiceInterface;
 import org.myrobotlab.logging.LoggerFactory;
 import org.myrobotlab.logging.LoggingFactory;
+import org.myrobotlab.net.Connection;
+import org.myrobotlab.net.MsgCodec;
+import org.myrobotlab.service.interfaces.Gateway;
 import org.slf4j.Logger;
 
 /**
@@ -35,10 +52,28 @@ import org.slf4j.Logger;
  * .paho.sample.mqttv3app/src/main/java/org/eclipse/paho/sample/mqttv3app/
  * SampleAsyncCallBack.java
  * 
+ * In gateway mode Mqtt carries framework messages between Runtimes through a
+ * broker, so many nodes can share services without point to point
+ * connections. Topics are laid out under gatewayTopic (myrobotlab) :
+ * 
+ * <pre>
+ * myrobotlab/register/{node}                  - services a node exports
+ * myrobotlab/{node}/in/{from}                 - messages to services of node
+ * myrobotlab/{node}/pub/{service}/{method}    - data published by a service
+ * </pre>
+ * 
+ * A node is a Runtime id. When a remote service gets a listener, its data is
+ * published once to its pub topic and the broker fans it out to every node
+ * which subscribed. Messages are MsgCodec frames without interning, several
+ * frames are batched into one mqtt message for batchDelay ms and topics can
+ * be coalesced to only send the latest frame. The QoS of publish topics
+ * (publishQos - 0) and of commands (commandQos - 1) can be set per method or
+ * per service and method with setTopicQos.
+ * 
  * @author kmcgerald
  *
  */
-public class Mqtt extends Service implements MqttCallback, IMqttActionListener {
+public class Mqtt extends Service implements MqttCallback, IMqttActionListener, Gateway {
 
   public static class MqttMsg {
     public byte[] payload;
@@ -54,9 +89,24 @@ public class Mqtt extends Service implements MqttCallback, IMqttActionListener {
     }
   }
 
+  /**
+   * frames waiting to be published on one topic
+   */
+  static class OutboundTopic {
+    int qos;
+    final ByteArrayOutputStream frames = new ByteArrayOutputStream();
+    int count = 0;
+  }
+
   public final static Logger log = LoggerFactory.getLogger(Mqtt.class);
   private static final long serialVersionUID = 1L;
 
+  /**
+   * callback method of the listeners the gateway adds to exported services -
+   * messages to it are published instead of invoked
+   */
+  final static String GATEWAY_METHOD = "publishGateway";
+
   boolean cleanSession = true; // Non durable subscriptions
   transient MqttAsyncClient client;
   String clientId = String.format("%s@%s", getName(), Runtime.getInstance().getId());
@@ -70,13 +120,73 @@ public class Mqtt extends Service implements MqttCallback, IMqttActionListener {
 
   String url = "tcp://iot.eclipse.org:1883";
 
+  // ms
+  int connectTimeout = 10000;
+
+  // gateway
+  boolean gateway = false;
+  String gatewayTopic = "myrobotlab";
+  String node = toTopicLevel(Runtime.getId());
+  /**
+   * ms frames are collected before they are published - 0 publishes every
+   * frame on its own
+   */
+  int batchDelay = 5;
+  /**
+   * max size of a batch - larger batches are published right away
+   */
+  int maxBatchSize = 64 * 1024;
+  int publishQos = 0;
+  int commandQos = 1;
+  /**
+   * QoS of "service/method" or "method" topics
+   */
+  HashMap<String, Integer> topicQos = new HashMap<String, Integer>();
+  /**
+   * "service/method" or "method" topics which only send their latest frame
+   */
+  HashSet<String> coalesced = new HashSet<String>();
+
+  HashMap<URI, Connection> connections = new HashMap<URI, Connection>();
+
+  transient MsgCodec txCodec = new MsgCodec(false);
+  transient MsgCodec rxCodec = new MsgCodec(false);
+  transient HashMap<String, OutboundTopic> outbound = new HashMap<String, OutboundTopic>();
+  transient boolean pending = false;
+  transient Thread flusher;
+  /**
+   * pub topic of a remote service to the local listeners of it
+   */
+  transient HashMap<String, List<MRLListener>> routes = new HashMap<String, List<MRLListener>>();
+  /**
+   * "service.method" of local services published to the broker
+   */
+  transient HashSet<String> exported = new HashSet<String>();
+  /**
+   * local services which were announced on the register topic
+   */
+  transient HashSet<String> announced = new HashSet<String>();
+
+  // stats
+  long framesOut = 0;
+  long framesIn = 0;
+  long publishes = 0;
+  long coalescedFrames = 0;
+  long failedFrames = 0;
+
   public Mqtt(String n) {
     super(n);
+    // only the latest state of a service matters
+    coalesced.add("publishState");
   }
 
-  public boolean connect(String url) throws MqttSecurityException, MqttException {
-
-    return connect(url, null, null);
+  @Override
+  public void connect(String url) {
+    try {
+      connect(url, null, null);
+    } catch (MqttException e) {
+      error("could not connect to %s - %s", url, e.getMessage());
+    }
   }
 
   public boolean connect(String url, String userName, char[] password) throws MqttSecurityException, MqttException {
@@ -94,22 +204,12 @@ public class Mqtt extends Service implements MqttCallback, IMqttActionListener {
       clientId = String.format("%s@%s", getName(), Runtime.getId());
       client = new MqttAsyncClient(url, clientId, persistence);
       client.setCallback(this);
-
-      client.connect(conOpt, "Connect sample context", this);
-      int i = 0;
-      while (!client.isConnected() || i < 10)
-      {
-        sleep(1);
-        i += 1;
-      }
-
-      if (!client.isConnected()) {
-        client.connect(conOpt, "Connect sample context", this);
-        isConnected = true;
-      } else {
-        isConnected = false;
-      }
     }
+    if (!client.isConnected()) {
+      IMqttToken token = client.connect(conOpt, "Connect sample context", this);
+      token.waitForCompletion(connectTimeout);
+    }
+    isConnected = client.isConnected();
     broadcastState();
     return isConnected;
   }
@@ -149,6 +249,7 @@ public class Mqtt extends Service implements MqttCallback, IMqttActionListener {
   }
 
   public void disconnect() throws MqttException {
+    stopGateway();
     client.disconnect();
   }
 
@@ -171,6 +272,14 @@ public class Mqtt extends Service implements MqttCallback, IMqttActionListener {
   public void messageArrived(String topic, MqttMessage message) throws MqttException {
     // Called when a message arrives from the server that matches any
     // subscription made by the client
+    if (gateway && topic.startsWith(gatewayTopic + "/")) {
+      try {
+        gatewayMessageArrived(topic, message.getPayload());
+      } catch (Exception e) {
+        log.error("could not process {}", topic, e);
+      }
+      return;
+    }
     String time = new Timestamp(System.currentTimeMillis()).toString();
     String messageStr = "onMqttMsg Time: " + time + "\tTopic: " + topic + "\tMessage: " + new String(message.getPayload()) + "\tQoS: " + message.getQos();
     log.info(messageStr);
@@ -270,6 +379,597 @@ public class Mqtt extends Service implements MqttCallback, IMqttActionListener {
     broadcastState();
   }
 
+  // gateway begin ---------------------------------------------
+
+  /**
+   * starts carrying framework messages over the broker - the exported local
+   * services are announced to the other nodes
+   */
+  public void startGateway() throws MqttException {
+    if (gateway) {
+      return;
+    }
+    if (client == null || !client.isConnected()) {
+      connect(url, null, null);
+    }
+    // wait for the subscriptions - replies to the announcement would be lost
+    // otherwise
+    client.subscribe(registerTopic("+"), commandQos).waitForCompletion(connectTimeout);
+    client.subscribe(inTopic(node, "+"), commandQos).waitForCompletion(connectTimeout);
+    gateway = true;
+
+    flusher = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        flushBatches();
+      }
+    }, String.format("%s-flusher", getName()));
+    flusher.setDaemon(true);
+    flusher.start();
+
+    ServiceEnvironment local = Runtime.getLocalServicesForExport();
+    for (ServiceInterface si : local.serviceDirectory.values()) {
+      announce(si);
+    }
+    broadcastState();
+  }
+
+  public void stopGateway() {
+    if (!gateway) {
+      return;
+    }
+    flush();
+    gateway = false;
+    if (flusher != null) {
+      flusher.interrupt();
+      flusher = null;
+    }
+
+    synchronized (exported) {
+      for (String key : exported) {
+        int pos = key.lastIndexOf('.');
+        ServiceInterface si = Runtime.getService(key.substring(0, pos));
+        if (si != null) {
+          si.removeListener(key.substring(pos + 1), getName(), GATEWAY_METHOD);
+        }
+      }
+      exported.clear();
+    }
+    announced.clear();
+
+    List<String> topics = new ArrayList<String>();
+    topics.add(registerTopic("+"));
+    topics.add(inTopic(node, "+"));
+    synchronized (routes) {
+      topics.addAll(routes.keySet());
+      routes.clear();
+    }
+    try {
+      if (client != null && client.isConnected()) {
+        client.unsubscribe(topics.toArray(new String[topics.size()]));
+      }
+    } catch (MqttException e) {
+      log.warn("could not unsubscribe gateway topics", e);
+    }
+    broadcastState();
+  }
+
+  public boolean isGateway() {
+    return gateway;
+  }
+
+  /**
+   * sets the QoS of a topic
+   * 
+   * @param topic
+   *          - "service/method" or "method" - e.g. "arduino/publishPin" or
+   *          "publishPin"
+   * @param qos
+   *          - 0, 1 or 2
+   */
+  public void setTopicQos(String topic, int qos) {
+    topicQos.put(topic, qos);
+  }
+
+  /**
+   * a coalesced topic only publishes the latest frame of a batch - for
+   * sensor data or state where only the current value matters
+   * 
+   * @param topic
+   *          - "service/method" or "method"
+   * @param coalesce
+   *          - true to coalesce
+   */
+  public void setCoalesce(String topic, boolean coalesce) {
+    if (coalesce) {
+      coalesced.add(topic);
+    } else {
+      coalesced.remove(topic);
+    }
+  }
+
+  /**
+   * @param ms
+   *          - how long frames are collected before they are published, 0
+   *          publishes every frame on its own
+   */
+  public void setBatchDelay(int ms) {
+    batchDelay = Math.max(0, ms);
+  }
+
+  public void setPublishQos(int qos) {
+    publishQos = qos;
+  }
+
+  public void setCommandQos(int qos) {
+    commandQos = qos;
+  }
+
+  public void setGatewayTopic(String topic) {
+    gatewayTopic = topic;
+  }
+
+  public String getGatewayStats() {
+    return String.format("node %s frames out %d in %d publishes %d coalesced %d failed %d - %.1f frames per publish", node, framesOut, framesIn, publishes,
+        coalescedFrames, failedFrames, (publishes == 0) ? 0 : (double) (framesOut - coalescedFrames - failedFrames) / publishes);
+  }
+
+  int getTopicQos(String service, String method, int def) {
+    Integer q = topicQos.get(String.format("%s/%s", service, method));
+    if (q == null) {
+      q = topicQos.get(method);
+    }
+    return (q == null) ? def : q;
+  }
+
+  boolean isCoalesced(String service, String method) {
+    return coalesced.contains(String.format("%s/%s", service, method)) || coalesced.contains(method);
+  }
+
+  String registerTopic(String node) {
+    return String.format("%s/register/%s", gatewayTopic, node);
+  }
+
+  String inTopic(String node, String from) {
+    return String.format("%s/%s/in/%s", gatewayTopic, node, from);
+  }
+
+  String pubTopic(String node, String service, String method) {
+    return String.format("%s/%s/pub/%s/%s", gatewayTopic, node, toTopicLevel(service), method);
+  }
+
+  /**
+   * messages to the gateway listener of exported services are published to
+   * the pub topic of the service, registrations of local services are
+   * announced - anything else is processed as usual
+   */
+  @Override
+  public void in(Message msg) {
+    if (gateway && GATEWAY_METHOD.equals(msg.method)) {
+      queue(pubTopic(node, msg.sender, msg.sendingMethod), getTopicQos(msg.sender, msg.sendingMethod, publishQos), isCoalesced(msg.sender, msg.sendingMethod), msg);
+      return;
+    }
+    if (gateway && "register".equals(msg.method) && msg.data != null && msg.data.length > 0 && msg.data[0] instanceof ServiceInterface) {
+      ServiceInterface si = (ServiceInterface) msg.data[0];
+      // remote services are registered by their own node
+      if (si.getInstanceId() == null) {
+        announce(si);
+      }
+      return;
+    }
+    super.in(msg);
+  }
+
+  void announce(ServiceInterface si) {
+    synchronized (announced) {
+      if (!announced.add(si.getName())) {
+        return;
+      }
+    }
+    queue(registerTopic(node), commandQos, false, Message.createMessage(this, null, "register", si));
+  }
+
+  void sendExports(String to) {
+    ServiceEnvironment local = Runtime.getLocalServicesForExport();
+    for (ServiceInterface si : local.serviceDirectory.values()) {
+      queue(inTopic(to, node), commandQos, false, Message.createMessage(this, null, "register", si));
+    }
+  }
+
+  /**
+   * publishes a local topic to the broker - once, however many nodes listen
+   * to it
+   */
+  void export(String service, String method) {
+    String key = String.format("%s.%s", service, method);
+    synchronized (exported) {
+      if (!exported.add(key)) {
+        return;
+      }
+    }
+    ServiceInterface si = Runtime.getService(service);
+    if (si == null || si.getInstanceId() != null) {
+      log.warn("{} is not a local service - can not export {}", service, method);
+      synchronized (exported) {
+        exported.remove(key);
+      }
+      return;
+    }
+    si.addListener(method, getName(), GATEWAY_METHOD);
+  }
+
+  void gatewayMessageArrived(String topic, byte[] payload) throws IOException, URISyntaxException {
+    String[] levels = topic.substring(gatewayTopic.length() + 1).split("/");
+    List<Message> msgs = decodePayload(rxCodec, payload);
+    framesIn += msgs.size();
+    if (levels.length == 2 && "register".equals(levels[0])) {
+      // our own announcements come back too
+      if (!node.equals(levels[1])) {
+        for (Message msg : msgs) {
+          processRemote(levels[1], msg);
+        }
+      }
+    } else if (levels.length == 3 && "in".equals(levels[1])) {
+      for (Message msg : msgs) {
+        processRemote(levels[2], msg);
+      }
+    } else if (levels.length == 4 && "pub".equals(levels[1])) {
+      deliver(topic, levels[0], msgs);
+    } else {
+      log.warn("unknown gateway topic {}", topic);
+    }
+  }
+
+  /**
+   * same re-writing of names as RemoteAdapter.processRemote - remote services
+   * are registered with the prefix of their node
+   */
+  void processRemote(String from, Message msg) throws URISyntaxException {
+    URI protocolKey = new URI(String.format("mqtt://%s", from));
+    URI uri = new URI(String.format("mrl://%s/%s", getName(), protocolKey));
+    String prefix = getPrefix(protocolKey);
+    msg.sender = String.format("%s%s", prefix, msg.sender);
+
+    if ("publishState".equals(msg.method) || "onState".equals(msg.method)) {
+      if (msg.data != null && msg.data.length > 0) {
+        ServiceInterface si = (ServiceInterface) msg.data[0];
+        si.setInstanceId(uri);
+        si.setName(String.format("%s%s", prefix, si.getName()));
+      }
+    }
+
+    if ("addListener".equals(msg.method)) {
+      // the topic is published to the broker - the listening node routes it
+      // to its own listeners
+      MRLListener listener = (MRLListener) msg.data[0];
+      export(msg.name, listener.topicMethod);
+      return;
+    }
+
+    if ("removeListener".equals(msg.method)) {
+      // other nodes may still be subscribed
+      return;
+    }
+
+    if ("register".equals(msg.method)) {
+      getComm().addRemote(uri, protocolKey);
+      ServiceEnvironment foreignEnvironment = Runtime.getEnvironment(uri);
+      addConnection(protocolKey);
+
+      ServiceInterface si = null;
+      if (msg.data != null && msg.data.length > 0) {
+        si = (ServiceInterface) msg.data[0];
+        si.setInstanceId(uri);
+        si.setName(String.format("%s%s", prefix, si.getName()));
+      }
+      send(Runtime.getInstance().getName(), "register", si, uri);
+
+      // a new node - send it our services
+      if (foreignEnvironment == null) {
+        sendExports(from);
+      }
+      return;
+    }
+
+    getOutbox().add(msg);
+  }
+
+  /**
+   * sends published data of a remote service to the local listeners of it
+   */
+  void deliver(String topic, String from, List<Message> msgs) throws URISyntaxException {
+    List<MRLListener> listeners;
+    synchronized (routes) {
+      List<MRLListener> route = routes.get(topic);
+      if (route == null) {
+        return;
+      }
+      listeners = new ArrayList<MRLListener>(route);
+    }
+    String prefix = getPrefix(new URI(String.format("mqtt://%s", from)));
+    for (Message msg : msgs) {
+      for (MRLListener listener : listeners) {
+        Message m = new Message();
+        m.sender = String.format("%s%s", prefix, msg.sender);
+        m.sendingMethod = msg.sendingMethod;
+        m.name = listener.callbackName;
+        m.method = listener.callbackMethod;
+        m.data = msg.data;
+        getOutbox().add(m);
+      }
+    }
+  }
+
+  void addConnection(URI protocolKey) {
+    synchronized (connections) {
+      if (connections.containsKey(protocolKey)) {
+        return;
+      }
+      Connection conn = new Connection(getName(), protocolKey);
+      conn.prefix = getPrefix(protocolKey);
+      conn.state = Connection.CONNECTED;
+      connections.put(protocolKey, conn);
+    }
+    broadcastState();
+  }
+
+  void addRoute(String topic, MRLListener listener) {
+    synchronized (routes) {
+      List<MRLListener> route = routes.get(topic);
+      if (route == null) {
+        route = new ArrayList<MRLListener>();
+        routes.put(topic, route);
+        try {
+          // the publisher decides the QoS
+          client.subscribe(topic, 1);
+        } catch (MqttException e) {
+          error("could not subscribe to %s - %s", topic, e.getMessage());
+        }
+      }
+      for (MRLListener l : route) {
+        if (l.equals(listener)) {
+          return;
+        }
+      }
+      route.add(listener);
+    }
+  }
+
+  void removeRoute(String topic, String callbackName, String callbackMethod) {
+    synchronized (routes) {
+      List<MRLListener> route = routes.get(topic);
+      if (route == null) {
+        return;
+      }
+      for (int i = route.size() - 1; i >= 0; --i) {
+        MRLListener l = route.get(i);
+        if (l.callbackName.equals(callbackName) && l.callbackMethod.equals(callbackMethod)) {
+          route.remove(i);
+        }
+      }
+      if (route.isEmpty()) {
+        routes.remove(topic);
+        try {
+          client.unsubscribe(topic);
+        } catch (MqttException e) {
+          log.warn("could not unsubscribe {}", topic, e);
+        }
+      }
+    }
+  }
+
+  /**
+   * adds a message to the batch of a topic
+   */
+  void queue(String topic, int qos, boolean coalesce, Message msg) {
+    synchronized (outbound) {
+      int length;
+      try {
+        length = txCodec.encode(msg);
+      } catch (IOException e) {
+        error("could not encode %s.%s - %s", msg.name, msg.method, e.getMessage());
+        return;
+      }
+      OutboundTopic out = outbound.get(topic);
+      if (out == null) {
+        out = new OutboundTopic();
+        outbound.put(topic, out);
+      }
+      out.qos = qos;
+      if (coalesce && out.count > 0) {
+        out.frames.reset();
+        coalescedFrames += out.count;
+        out.count = 0;
+      }
+      out.frames.write(txCodec.getBuffer(), 0, length);
+      ++out.count;
+      ++framesOut;
+      // published in order - client.publish does not block
+      if (batchDelay == 0 || out.frames.size() >= maxBatchSize) {
+        publishBatch(topic, out);
+      } else if (!pending) {
+        pending = true;
+        outbound.notifyAll();
+      }
+    }
+  }
+
+  /**
+   * publishes all batches
+   */
+  public void flush() {
+    synchronized (outbound) {
+      for (Map.Entry<String, OutboundTopic> entry : outbound.entrySet()) {
+        if (entry.getValue().count > 0) {
+          publishBatch(entry.getKey(), entry.getValue());
+        }
+      }
+      pending = false;
+    }
+  }
+
+  void flushBatches() {
+    try {
+      while (gateway) {
+        synchronized (outbound) {
+          while (gateway && !pending) {
+            outbound.wait();
+          }
+        }
+        Thread.sleep(batchDelay);
+        flush();
+      }
+    } catch (InterruptedException e) {
+      log.info("{} flusher stopped", getName());
+    }
+  }
+
+  // called with the outbound lock
+  void publishBatch(String topic, OutboundTopic out) {
+    int count = out.count;
+    byte[] payload = out.frames.toByteArray();
+    out.frames.reset();
+    out.count = 0;
+    if (client == null || !client.isConnected()) {
+      failedFrames += count;
+      return;
+    }
+    try {
+      MqttMessage message = new MqttMessage(payload);
+      message.setQos(out.qos);
+      client.publish(topic, message);
+      ++publishes;
+    } catch (MqttException e) {
+      // e.g. too many messages in flight
+      failedFrames += count;
+      log.warn("could not publish {} frames to {} - {}", count, topic, e.getMessage());
+    }
+  }
+
+  /**
+   * decodes the frames of a batch
+   * 
+   * @param codec
+   *          - a codec without interning
+   * @param payload
+   *          - length prefixed frames
+   * @return the messages
+   * @throws IOException
+   *           - if a frame is truncated or can not be decoded
+   */
+  static List<Message> decodePayload(MsgCodec codec, byte[] payload) throws IOException {
+    List<Message> msgs = new ArrayList<Message>();
+    ByteBuffer in = ByteBuffer.wrap(payload);
+    while (in.remaining() >= 4) {
+      int length = in.getInt();
+      if (length < 0 || length > in.remaining()) {
+        throw new IOException(String.format("truncated frame of %d bytes", length));
+      }
+      ByteBuffer frame = in.slice();
+      frame.limit(length);
+      msgs.add(codec.decode(frame));
+      in.position(in.position() + length);
+    }
+    return msgs;
+  }
+
+  /**
+   * replaces characters which are not allowed in a topic level
+   */
+  static String toTopicLevel(String s) {
+    return s.replace('/', '_').replace('+', '_').replace('#', '_');
+  }
+
+  @Override
+  public void addConnectionListener(String name) {
+    addListener("publishConnect", name, "onConnect");
+  }
+
+  @Override
+  public HashMap<URI, Connection> getClients() {
+    return connections;
+  }
+
+  @Override
+  public List<Connection> getConnections(URI clientKey) {
+    synchronized (connections) {
+      return new ArrayList<Connection>(connections.values());
+    }
+  }
+
+  /**
+   * services of other nodes are prefixed with the node - runtime.1508412345.4242.servo
+   */
+  @Override
+  public String getPrefix(URI protocolKey) {
+    return String.format("%s.", protocolKey.getAuthority());
+  }
+
+  @Override
+  public Connection publishConnect(Connection conn) {
+    return conn;
+  }
+
+  @Override
+  public void sendRemote(String key, Message msg) throws URISyntaxException {
+    sendRemote(new URI(key), msg);
+  }
+
+  /**
+   * sends a message to a service of another node - listeners are routed from
+   * the pub topic of the service, anything else is sent to the in topic of
+   * the node
+   */
+  @Override
+  public void sendRemote(URI protocolKey, Message msg) {
+    if (!gateway) {
+      error("gateway is not started - can not send %s.%s", msg.name, msg.method);
+      return;
+    }
+    String to = protocolKey.getAuthority();
+    String prefix = getPrefix(protocolKey);
+    if (msg.name != null && msg.name.startsWith(prefix)) {
+      msg.name = msg.name.substring(prefix.length());
+    }
+    if ("addListener".equals(msg.method) && msg.data != null && msg.data.length > 0) {
+      MRLListener listener = (MRLListener) msg.data[0];
+      addRoute(pubTopic(to, msg.name, listener.topicMethod), listener);
+    } else if ("removeListener".equals(msg.method) && msg.data != null && msg.data.length > 2) {
+      removeRoute(pubTopic(to, msg.name, (String) msg.data[0]), (String) msg.data[1], (String) msg.data[2]);
+    }
+    queue(inTopic(to, node), getTopicQos(msg.name, msg.method, commandQos), false, msg);
+  }
+
+  @Override
+  public String publishConnect() {
+    return url;
+  }
+
+  @Override
+  public String publishDisconnect() {
+    return url;
+  }
+
+  @Override
+  public Status publishError() {
+    return null;
+  }
+
+  // gateway end ---------------------------------------------
+
+  @Override
+  public void stopService() {
+    stopGateway();
+    try {
+      if (client != null && client.isConnected()) {
+        client.disconnect();
+      }
+    } catch (MqttException e) {
+      log.warn("could not disconnect", e);
+    }
+    super.stopService();
+  }
+
   String tokenToString(IMqttToken token) {
     // FIXME - just gson encode it..
     StringBuffer sb = new StringBuffer();
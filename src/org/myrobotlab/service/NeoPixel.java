@@ -29,10 +29,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
-import java.util.Map.Entry;
 import java.util.Set;
 
 import org.myrobotlab.framework.Service;
@@ -86,9 +83,100 @@ public class NeoPixel extends Service implements NeoPixelControl {
     }
   }
 
-  public HashMap<Integer, PixelColor> pixelMatrix = new HashMap<Integer, PixelColor>();
+  /**
+   * FrameSource, renders the frames of an animation played on the java side
+   */
+  public interface FrameSource {
+    /**
+     * @param pixels
+     *          - the pixels packed as 0xRRGGBB, index is address - 1. It holds
+     *          the previous frame when called.
+     * @param frame
+     *          - number of the frame
+     */
+    void render(int[] pixels, long frame);
+  }
+
+  /**
+   * FrameEngine, plays a FrameSource at a fixed frame rate. Frames which can
+   * not be made in time are skipped instead of slowing the animation down.
+   */
+  public class FrameEngine extends Thread {
+
+    final FrameSource source;
+    final long period;
+    volatile boolean running = true;
+
+    public FrameEngine(FrameSource source, int fps) {
+      super(String.format("%s.frames", NeoPixel.this.getName()));
+      setDaemon(true);
+      this.source = source;
+      period = 1000000000L / fps;
+    }
+
+    @Override
+    public void run() {
+      long frameNumber = 0;
+      long next = System.nanoTime();
+      try {
+        while (running) {
+          synchronized (NeoPixel.this) {
+            source.render(frame, frameNumber++);
+          }
+          writeMatrix();
+          next += period;
+          long wait = next - System.nanoTime();
+          if (wait > 0) {
+            Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+          } else if (-wait > period) {
+            // fell behind - skip the frames instead of catching up
+            framesSkipped += -wait / period;
+            next = System.nanoTime();
+          }
+        }
+      } catch (InterruptedException e) {
+        log.debug("shutting down frame engine");
+      }
+    }
+  }
+
+  /**
+   * the pixels packed as 0xRRGGBB - index is address - 1
+   */
+  transient int[] frame = new int[0];
+
+  /**
+   * the pixels as last written to the controller - -1 if not known
+   */
+  transient int[] written = new int[0];
+
+  /**
+   * max pixels in one neoPixelWriteMatrix message, 4 values each
+   */
+  static final int MAX_PIXELS_PER_MSG = 8;
+
+  transient int[] writeBuffer = new int[MAX_PIXELS_PER_MSG * 4];
+
+  /**
+   * the pixels for the gui's - only refreshed when the state is broadcast
+   */
   public List<PixelColor> savedPixelMatrix = new ArrayList<PixelColor>();
 
+  /**
+   * min ms between two broadcasts of the pixels
+   */
+  public int broadcastInterval = 500;
+
+  transient volatile boolean broadcastPending = false;
+
+  transient FrameEngine frameEngine;
+
+  // frames, messages and serial bytes written to the controller
+  transient long framesWritten = 0;
+  transient long messagesWritten = 0;
+  transient long bytesWritten = 0;
+  transient long framesSkipped = 0;
+
   public Integer numPixel = 0;
 
   /**
@@ -173,44 +261,37 @@ public class NeoPixel extends Service implements NeoPixelControl {
     return false;
   }
 
-  public void setPixel(int address, int red, int green, int blue) {
-    PixelColor pixel = new PixelColor(address, red, green, blue);
-    setPixel(pixel);
+  public synchronized void setPixel(int address, int red, int green, int blue) {
+    if (off)
+      return;
+    if (address < 1 || address > frame.length) {
+      log.info("Pixel address over the number of pixel");
+      return;
+    }
+    frame[address - 1] = ((red & 0xff) << 16) | ((green & 0xff) << 8) | (blue & 0xff);
   }
 
   public void setPixel(String address, String red, String green, String blue) {
-    PixelColor pixel = new PixelColor(Integer.parseInt(address), Integer.parseInt(red), Integer.parseInt(green), Integer.parseInt(blue));
-    setPixel(pixel);
+    setPixel(Integer.parseInt(address), Integer.parseInt(red), Integer.parseInt(green), Integer.parseInt(blue));
   }
 
   public void setPixel(PixelColor pixel) {
-    if (off)
-      return;
-    if (pixel.address <= getNumPixel()) {
-      PixelColor pix = pixelMatrix.get(pixel.address);
-      if (pix != null && !pix.isEqual(pixel)) {
-        pixel.changed = true;
-      } else {
-        pixel.changed = false;
-      }
-      pixelMatrix.put(pixel.address, pixel);
-    } else {
-      log.info("Pixel address over the number of pixel");
+    setPixel(pixel.address, pixel.red, pixel.green, pixel.blue);
+  }
+
+  public synchronized PixelColor getPixel(int address) {
+    if (address < 1 || address > frame.length) {
+      return null;
     }
+    int color = frame[address - 1];
+    return new PixelColor(address, (color >> 16) & 0xff, (color >> 8) & 0xff, color & 0xff);
   }
 
   public void sendPixel(PixelColor pixel) {
     if (off)
       return;
-    List<Integer> msg = new ArrayList<Integer>();
-    msg.add(pixel.address);
-    msg.add(pixel.red);
-    msg.add(pixel.green);
-    msg.add(pixel.blue);
     setPixel(pixel);
-    controller.neoPixelWriteMatrix(this, msg);
-    // savedPixelMatrix.clear();
-    // savedPixelMatrix.add(pixel);
+    writeMatrix();
   }
 
   public void sendPixel(int address, int red, int green, int blue) {
@@ -223,35 +304,204 @@ public class NeoPixel extends Service implements NeoPixelControl {
     sendPixel(pixel);
   }
 
-  public void writeMatrix() {
-    savedPixelMatrix.clear();
-    Set<Entry<Integer, PixelColor>> set = pixelMatrix.entrySet();
-    Iterator<Entry<Integer, PixelColor>> i = set.iterator();
-    List<Integer> msg = new ArrayList<Integer>();
-    while (i.hasNext()) {
-      Map.Entry<Integer, PixelColor> me = (Map.Entry<Integer, PixelColor>) i.next();
-      PixelColor pix = me.getValue();
-      // will only send if the pixel value have changed
-      if (pix.changed) {
-        msg.add(pix.address);
-        msg.add(pix.red);
-        msg.add(pix.green);
-        msg.add(pix.blue);
-        pix.changed = false;
-        me.setValue(pix);
+  /**
+   * writes the pixels which changed since the last write. Runs of changed
+   * pixels are packed into as few messages as possible - MrlComm addresses
+   * every pixel of a message, so unchanged pixels are never sent.
+   */
+  public synchronized void writeMatrix() {
+    if (off || !isAttached()) {
+      return;
+    }
+    int size = 0;
+    int changed = 0;
+    int address = 0;
+    while (address < frame.length) {
+      // skip to the next span of changed pixels
+      if (frame[address] == written[address]) {
+        ++address;
+        continue;
       }
-      savedPixelMatrix.add(me.getValue());
-      if (msg.size() > 32) {
-        if (!off && isAttached())
-          controller.neoPixelWriteMatrix(this, msg);
-        msg.clear();
+      while (address < frame.length && frame[address] != written[address]) {
+        int color = frame[address];
+        writeBuffer[size++] = address + 1;
+        writeBuffer[size++] = (color >> 16) & 0xff;
+        writeBuffer[size++] = (color >> 8) & 0xff;
+        writeBuffer[size++] = color & 0xff;
+        written[address] = color;
+        ++address;
+        ++changed;
+        if (size == writeBuffer.length) {
+          send(size);
+          size = 0;
+        }
       }
     }
-    if (!off && isAttached())
-      controller.neoPixelWriteMatrix(this, msg);
+    if (size > 0) {
+      send(size);
+    }
+    if (changed > 0) {
+      ++framesWritten;
+      broadcastPending = true;
+    }
+  }
+
+  void send(int size) {
+    controller.neoPixelWriteMatrix(this, (size == writeBuffer.length) ? writeBuffer : Arrays.copyOf(writeBuffer, size));
+    ++messagesWritten;
+    // magic, size, method, device id, array size + data
+    bytesWritten += 5 + size;
+  }
+
+  /**
+   * refreshes the pixels of the gui's if they changed - runs every
+   * broadcastInterval ms while attached
+   */
+  public void broadcastPixels() {
+    if (!broadcastPending) {
+      return;
+    }
+    broadcastPending = false;
+    List<PixelColor> pixels = new ArrayList<PixelColor>(frame.length);
+    synchronized (this) {
+      for (int i = 0; i < frame.length; ++i) {
+        PixelColor pixel = getPixel(i + 1);
+        pixel.changed = false;
+        pixels.add(pixel);
+      }
+    }
+    savedPixelMatrix = pixels;
     broadcastState();
   }
 
+  public void setBroadcastInterval(int ms) {
+    broadcastInterval = ms;
+    if (containsTask("broadcastPixels")) {
+      purgeTask("broadcastPixels");
+      addTask(broadcastInterval, "broadcastPixels");
+    }
+  }
+
+  /**
+   * plays an animation rendered on the java side
+   * 
+   * @param source
+   *          - renders the frames
+   * @param fps
+   *          - frames per second
+   */
+  public synchronized void startFrames(FrameSource source, int fps) {
+    stopFrames();
+    frameEngine = new FrameEngine(source, Math.max(fps, 1));
+    frameEngine.start();
+  }
+
+  public void stopFrames() {
+    FrameEngine engine;
+    synchronized (this) {
+      engine = frameEngine;
+      frameEngine = null;
+    }
+    if (engine != null) {
+      engine.running = false;
+      engine.interrupt();
+    }
+  }
+
+  /**
+   * plays one of the java side animations - "Color Wipe", "Larson Scanner" or
+   * "Rainbow Cycle"
+   */
+  public void playAnimation(String animation, int red, int green, int blue, int fps) {
+    int color = ((red & 0xff) << 16) | ((green & 0xff) << 8) | (blue & 0xff);
+    switch (animation) {
+    case "Color Wipe":
+      startFrames(colorWipe(color), fps);
+      break;
+    case "Larson Scanner":
+      startFrames(larsonScanner(color), fps);
+      break;
+    case "Rainbow Cycle":
+      startFrames(rainbowCycle(), fps);
+      break;
+    default:
+      error("unknown animation %s", animation);
+    }
+  }
+
+  static public FrameSource colorWipe(final int color) {
+    return new FrameSource() {
+      @Override
+      public void render(int[] pixels, long frame) {
+        int pos = (int) (frame % (2 * pixels.length));
+        if (pos < pixels.length) {
+          pixels[pos] = color;
+        } else {
+          pixels[pos - pixels.length] = 0;
+        }
+      }
+    };
+  }
+
+  static public FrameSource larsonScanner(final int color) {
+    return new FrameSource() {
+      @Override
+      public void render(int[] pixels, long frame) {
+        // the tail fades out behind the eye
+        for (int i = 0; i < pixels.length; ++i) {
+          pixels[i] = (pixels[i] >> 1) & 0x7f7f7f;
+        }
+        int period = Math.max(2 * (pixels.length - 1), 1);
+        int pos = (int) (frame % period);
+        if (pos >= pixels.length) {
+          pos = period - pos;
+        }
+        pixels[pos] = color;
+      }
+    };
+  }
+
+  static public FrameSource rainbowCycle() {
+    return new FrameSource() {
+      @Override
+      public void render(int[] pixels, long frame) {
+        for (int i = 0; i < pixels.length; ++i) {
+          pixels[i] = wheel((int) ((i * 256 / pixels.length + frame) & 0xff));
+        }
+      }
+    };
+  }
+
+  /**
+   * a color of the rainbow - r to g to b back to r
+   */
+  static int wheel(int pos) {
+    if (pos < 85) {
+      return ((255 - pos * 3) << 16) | ((pos * 3) << 8);
+    } else if (pos < 170) {
+      pos -= 85;
+      return ((255 - pos * 3) << 8) | (pos * 3);
+    }
+    pos -= 170;
+    return ((pos * 3) << 16) | (255 - pos * 3);
+  }
+
+  public long getFramesWritten() {
+    return framesWritten;
+  }
+
+  public long getMessagesWritten() {
+    return messagesWritten;
+  }
+
+  public long getBytesWritten() {
+    return bytesWritten;
+  }
+
+  public long getFramesSkipped() {
+    return framesSkipped;
+  }
+
   public Integer getPin() {
     return pin;
   }
@@ -261,9 +511,9 @@ public class NeoPixel extends Service implements NeoPixelControl {
   }
 
   public void turnOff() {
-    for (int i = 1; i <= numPixel; i++) {
-      PixelColor pixel = new PixelColor(i, 0, 0, 0);
-      setPixel(pixel);
+    stopFrames();
+    synchronized (this) {
+      Arrays.fill(frame, 0);
     }
     animationStop();
     writeMatrix();
@@ -315,12 +565,11 @@ public class NeoPixel extends Service implements NeoPixelControl {
     this.pin = pin;
     this.numPixel = numPixel;
 
-    // clear the old matrix
-    pixelMatrix.clear();
-    
-    // create a new matrix
-    for (int i = 1; i < numPixel + 1; i++) {
-      setPixel(new PixelColor(i, 0, 0, 0));
+    // create a new matrix - everything is written the first time
+    synchronized (this) {
+      frame = new int[numPixel];
+      written = new int[numPixel];
+      Arrays.fill(written, -1);
     }
 
     controller.neoPixelAttach(this, pin, numPixel);
@@ -331,11 +580,18 @@ public class NeoPixel extends Service implements NeoPixelControl {
     isAttached = true;
     // update gui with full pixels
     writeMatrix();
-    broadcastState();
+    broadcastPixels();
+    if (!containsTask("broadcastPixels")) {
+      addTask(broadcastInterval, "broadcastPixels");
+    }
   }
 
   @Override
   public void detach(NeoPixelController controller) {
+    stopFrames();
+    if (containsTask("broadcastPixels")) {
+      purgeTask("broadcastPixels");
+    }
     // let the controller you want to detach this device
     if (controller != null) {
       controller.detach(this);
@@ -376,6 +632,26 @@ public class NeoPixel extends Service implements NeoPixelControl {
       PixelColor pix = new NeoPixel.PixelColor(1, 255, 255, 0);
       //neopixel.setPixel(pix);
       neopixel.sendPixel(pix);
+
+      boolean benchmark = false;
+      if (benchmark) {
+        // serial bytes per frame of the java side animations
+        VirtualArduino virtual = (VirtualArduino) Runtime.start("virtual", "VirtualArduino");
+        virtual.connect("COM10");
+        Arduino varduino = (Arduino) Runtime.start("varduino", "Arduino");
+        varduino.connect("COM10");
+        NeoPixel ring = (NeoPixel) Runtime.start("ring", "NeoPixel");
+        ring.attach(varduino, 6, 16);
+        for (String animation : new String[] { "Color Wipe", "Larson Scanner", "Rainbow Cycle" }) {
+          long frames = ring.getFramesWritten();
+          long bytes = ring.getBytesWritten();
+          ring.playAnimation(animation, 255, 0, 0, 30);
+          sleep(5000);
+          ring.stopFrames();
+          frames = ring.getFramesWritten() - frames;
+          log.info("{} {} frames {} bytes per frame - {} skipped", animation, frames, (ring.getBytesWritten() - bytes) / Math.max(frames, 1), ring.getFramesSkipped());
+        }
+      }
       //neopixel.setAnimation(NEOPIXEL_ANIMATION_LARSON_SCANNER, 255, 0, 0, 1);
       //arduino.enableBoardStatus(true);
       //neopixel.setAnimation(NEOPIXEL_ANIMATION_LARSON_SCANNER, 0, 255, 0, 1);
@@ -487,6 +763,12 @@ public class NeoPixel extends Service implements NeoPixelControl {
     
   }
 
+  @Override
+  public void stopService() {
+    stopFrames();
+    super.stopService();
+  }
+
   @Override
   public boolean isAttached(String name) {
     return controller != null && name.equals(controller.getName());
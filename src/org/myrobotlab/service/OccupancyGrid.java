@@ -0,0 +1,299 @@
+package org.myrobotlab.service;
+
+import java.util.List;
+
+import javax.vecmath.Point3d;
+
+import org.myrobotlab.framework.Service;
+import org.myrobotlab.framework.ServiceType;
+import org.myrobotlab.logging.Level;
+import org.myrobotlab.logging.LoggerFactory;
+import org.myrobotlab.logging.LoggingFactory;
+import org.myrobotlab.mapper.GridMap;
+import org.myrobotlab.mapper.GridMap.TileUpdate;
+import org.myrobotlab.mapper.sim.RangeSensorBelt;
+import org.myrobotlab.mapper.sim.SimpleAgent;
+import org.myrobotlab.service.interfaces.RangeListener;
+import org.slf4j.Logger;
+
+/**
+ *
+ * OccupancyGrid - builds a map of the surroundings from range sensors. Scans
+ * from a lidar, single ranges from an UltrasonicSensor, points of a Pingdar
+ * sweep or the range sensor belt of a mapper.sim robot are integrated into an
+ * occupancy grid (GridMap) at the current pose of the robot. The grid grows as
+ * the robot explores.
+ *
+ * Instead of the whole map only the tiles which changed are published -
+ * compressed, every publishInterval ms - with publishTiles.
+ *
+ */
+public class OccupancyGrid extends Service implements RangeListener {
+
+  private static final long serialVersionUID = 1L;
+
+  public final static Logger log = LoggerFactory.getLogger(OccupancyGrid.class);
+
+  /**
+   * meters per cell
+   */
+  double resolution = 0.05;
+
+  int threads = Math.max(1, java.lang.Runtime.getRuntime().availableProcessors() - 1);
+
+  /**
+   * meters - rays which hit nothing clear the map this far
+   */
+  double maxRange = 4.0;
+
+  /**
+   * meters per unit of the ranges sensors publish - UltrasonicSensor and
+   * Pingdar publish cm
+   */
+  double rangeScale = 0.01;
+
+  /**
+   * degrees covered by a lidar scan, centered on the heading
+   */
+  double lidarSpread = 180;
+
+  // pose of the sensor - meters and radians
+  double x = 0;
+  double y = 0;
+  double theta = 0;
+
+  // ms
+  int publishInterval = 100;
+
+  transient GridMap map;
+
+  public OccupancyGrid(String n) {
+    super(n);
+  }
+
+  @Override
+  public void startService() {
+    super.startService();
+    if (map == null) {
+      map = new GridMap(resolution, threads);
+    }
+    addTask("publishUpdates", publishInterval, 0, "publishUpdates");
+  }
+
+  @Override
+  public void stopService() {
+    super.stopService();
+    purgeTask("publishUpdates");
+    if (map != null) {
+      map.close();
+    }
+  }
+
+  public void attach(UltrasonicSensor sensor) {
+    sensor.addRangeListener(this);
+  }
+
+  public void attach(Pingdar pingdar) {
+    pingdar.addListener("publishPingdar", getName(), "onPingdar");
+  }
+
+  public void attach(Lidar lidar) {
+    lidar.addListener("publishLidarData", getName(), "onLidarData");
+  }
+
+  /**
+   * sets where the sensor is
+   *
+   * @param x
+   *          - meters
+   * @param y
+   *          - meters
+   * @param theta
+   *          - heading in radians, counter clockwise from the x axis
+   */
+  public void setPose(double x, double y, double theta) {
+    this.x = x;
+    this.y = y;
+    this.theta = theta;
+  }
+
+  /**
+   * integrates a scan at the current pose
+   *
+   * @param angleMin
+   *          - radians of the first ray relative to the heading
+   * @param angleIncrement
+   *          - radians between rays
+   * @param ranges
+   *          - meters, NaN or &gt;= maxRange if a ray hit nothing
+   */
+  public void integrateScan(double angleMin, double angleIncrement, double[] ranges) {
+    map.integrate(x, y, theta, angleMin, angleIncrement, ranges, maxRange);
+  }
+
+  /**
+   * a single range straight ahead
+   */
+  @Override
+  public void onRange(Double range) {
+    map.integrate(x, y, theta, 0, 0, new double[] { range * rangeScale }, maxRange);
+  }
+
+  /**
+   * a range of a Pingdar sweep - the servo at 90 looks ahead
+   */
+  public void onPingdar(Pingdar.Point point) {
+    map.integrate(x, y, theta, Math.toRadians(point.theta - 90), 0, new double[] { point.r * rangeScale }, maxRange);
+  }
+
+  /**
+   * a lidar scan - lidarSpread degrees from right to left
+   */
+  public void onLidarData(int[] data) {
+    if (data == null || data.length < 2) {
+      return;
+    }
+    double[] ranges = new double[data.length];
+    for (int i = 0; i < data.length; ++i) {
+      // 0 is no return
+      ranges[i] = (data[i] == 0) ? Double.NaN : data[i] * rangeScale;
+    }
+    double spread = Math.toRadians(lidarSpread);
+    map.integrate(x, y, theta, -spread / 2, spread / (data.length - 1), ranges, maxRange);
+  }
+
+  /**
+   * integrates the range sensor belt of a simulated robot at the pose of the
+   * robot - the sim ground plane is x,z, map y is -z
+   */
+  public void integrate(SimpleAgent agent, RangeSensorBelt belt) {
+    Point3d coords = new Point3d();
+    agent.getCoords(coords);
+    setPose(coords.x, -coords.z, agent.getHeading());
+    int n = belt.getNumSensors();
+    for (int i = 0; i < n; ++i) {
+      // measurements are from the perimeter of the belt
+      double range = (belt.hasHit(i)) ? belt.getMeasurement(i) + agent.getRadius() : Double.NaN;
+      map.integrate(x, y, theta, belt.getSensorAngle(i), 0, new double[] { range }, Math.min(maxRange, belt.getMaxRange() + agent.getRadius()));
+    }
+  }
+
+  /**
+   * publishes the tiles which changed since the last call
+   */
+  public void publishUpdates() {
+    if (map == null) {
+      return;
+    }
+    List<TileUpdate> updates = map.takeUpdates();
+    if (!updates.isEmpty()) {
+      invoke("publishTiles", updates);
+    }
+  }
+
+  public List<TileUpdate> publishTiles(List<TileUpdate> tiles) {
+    return tiles;
+  }
+
+  /**
+   * @return all tiles - for a display which starts after the map
+   */
+  public List<TileUpdate> getTiles() {
+    return map.getTiles();
+  }
+
+  /**
+   * @return the probability a point is occupied, 0.5 if it is unknown
+   */
+  public double getProbability(double x, double y) {
+    return map.getProbability(x, y);
+  }
+
+  public double[] getBounds() {
+    return map.getBounds();
+  }
+
+  public GridMap getMap() {
+    return map;
+  }
+
+  public String getStats() {
+    return map.toString();
+  }
+
+  public void clear() {
+    map.clear();
+  }
+
+  /**
+   * changes the resolution - clears the map
+   *
+   * @param resolution
+   *          - meters per cell
+   */
+  public void setResolution(double resolution) {
+    this.resolution = resolution;
+    if (map != null) {
+      map.close();
+    }
+    map = new GridMap(resolution, threads);
+  }
+
+  public void setMaxRange(double meters) {
+    maxRange = meters;
+  }
+
+  public void setRangeScale(double metersPerUnit) {
+    rangeScale = metersPerUnit;
+  }
+
+  public void setLidarSpread(double degrees) {
+    lidarSpread = degrees;
+  }
+
+  public void setPublishInterval(int ms) {
+    publishInterval = ms;
+    if (isRunning()) {
+      purgeTask("publishUpdates");
+      addTask("publishUpdates", publishInterval, 0, "publishUpdates");
+    }
+  }
+
+  /**
+   * This static method returns all the details of the class without it having
+   * to be constructed. It has description, categories, dependencies, and peer
+   * definitions.
+   *
+   * @return ServiceType - returns all the data
+   *
+   */
+  static public ServiceType getMetaData() {
+
+    ServiceType meta = new ServiceType(OccupancyGrid.class.getCanonicalName());
+    meta.addDescription("builds an occupancy grid map from range sensors");
+    meta.addCategory("sensor", "simulator");
+    meta.addDependency("javax.vecmath", "1.5.1");
+    return meta;
+  }
+
+  public static void main(String[] args) {
+    try {
+      LoggingFactory.init(Level.INFO);
+
+      OccupancyGrid grid = (OccupancyGrid) Runtime.start("grid", "OccupancyGrid");
+
+      // a synthetic 360 degree scan of a 4 x 4 m room
+      double[] ranges = new double[360];
+      for (int i = 0; i < ranges.length; ++i) {
+        double a = Math.toRadians(i);
+        ranges[i] = Math.min(2 / Math.abs(Math.cos(a)), 2 / Math.abs(Math.sin(a)));
+      }
+      grid.integrateScan(0, Math.toRadians(1), ranges);
+      log.info("{}", grid.getStats());
+
+    } catch (Exception e) {
+      log.error("main threw", e);
+    }
+  }
+
+}
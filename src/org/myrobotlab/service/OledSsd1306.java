@@ -5,6 +5,8 @@ import static org.myrobotlab.service.data.OledSsd1306Data.SSD1306_128_32Data;
 import static org.myrobotlab.service.data.OledSsd1306Data.SSD1306_128_64Data;
 import static org.myrobotlab.service.data.OledSsd1306Data.SSD1306_96_16Data;
 
+import java.awt.Color;
+import java.awt.Graphics;
 import java.awt.image.BufferedImage;
 import java.awt.image.DataBufferByte;
 import java.util.ArrayList;
@@ -73,6 +75,10 @@ public class OledSsd1306 extends Service implements I2CControl {
   public List<String> deviceBusList = Arrays.asList("0", "1", "2", "3", "4", "5", "6", "7");
   public String deviceBus = "1";
 
+  // deviceBus and deviceAddress as numbers - resolved once when they are set
+  int busAddress = 1;
+  int i2cAddress = 0x3C;
+
   // Constants for the SSD1306
   public static short SSD1306_SETCONTRAST = 0x81;
   public static short SSD1306_DISPLAYALLON_RESUME = 0xA4;
@@ -138,6 +144,33 @@ public class OledSsd1306 extends Service implements I2CControl {
   public int SSD1306_LCDWIDTH = 128;
   public int SSD1306_LCDHEIGHT = 64;
   public int[] buffer;
+
+  /**
+   * the frame as it is on the display - null when not known, which makes the
+   * next flush send all of it
+   */
+  transient int[] sent;
+
+  /**
+   * copy of the buffer taken at the start of a flush, so drawing into the
+   * buffer can go on while the frame is sent
+   */
+  transient int[] front;
+
+  final transient Object flushLock = new Object();
+  transient byte[] commandBuffer = new byte[7];
+  transient byte[] dataBuffer = new byte[17];
+  transient BufferedImage imageBuffer;
+
+  /**
+   * max frames per second sent by the flush thread
+   */
+  int maxFps = 30;
+  transient FlushThread flushThread;
+
+  // bytes written to the bus and frames sent
+  transient long bytesSent = 0;
+  transient long framesSent = 0;
   // pin
   private int vccstate; // vccstate
                         // //
@@ -149,6 +182,38 @@ public class OledSsd1306 extends Service implements I2CControl {
 
   public boolean isAttached = false;
 
+  /**
+   * FlushThread, sends the changes of the buffer to the display at most maxFps
+   * times per second
+   */
+  public class FlushThread extends Thread {
+
+    volatile boolean running = true;
+
+    public FlushThread() {
+      super(String.format("%s.flush", OledSsd1306.this.getName()));
+      setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+      try {
+        while (running) {
+          long start = System.currentTimeMillis();
+          try {
+            flush();
+          } catch (Exception e) {
+            log.error("flush threw", e);
+          }
+          long sleep = 1000 / maxFps - (System.currentTimeMillis() - start);
+          Thread.sleep(Math.max(sleep, 1));
+        }
+      } catch (InterruptedException e) {
+        log.debug("shutting down flush thread");
+      }
+    }
+  }
+
   public static void main(String[] args) {
     LoggingFactory.getInstance().configure();
     LoggingFactory.getInstance().setLevel(Level.DEBUG);
@@ -156,6 +221,29 @@ public class OledSsd1306 extends Service implements I2CControl {
       OledSsd1306 oledSsd1306 = (OledSsd1306) Runtime.start("OledSsd1306", "OledSsd1306");
       Runtime.start("gui", "SwingGui");
 
+      boolean benchmark = false;
+      if (benchmark) {
+        // bytes on the bus per frame of a blinking eye - without a controller
+        // the frames are only counted
+        oledSsd1306.clearDisplay();
+        oledSsd1306.display();
+        long fullFrame = oledSsd1306.getBytesSent();
+        int frames = 100;
+        for (int i = 0; i < frames; ++i) {
+          oledSsd1306.clearRect(32, 8, 64, 48, false);
+          if (i % 10 == 9) {
+            // closed
+            oledSsd1306.clearRect(32, 30, 64, 4, true);
+          } else {
+            // open, with the pupil moving from side to side
+            oledSsd1306.clearRect(40, 12, 48, 40, true);
+            oledSsd1306.clearRect(52 + (i % 10) * 2, 24, 8, 16, false);
+          }
+          oledSsd1306.display();
+        }
+        log.info("full frame {} bytes, blinking eye {} bytes per frame", fullFrame, (oledSsd1306.getBytesSent() - fullFrame) / frames);
+      }
+
     } catch (Exception e) {
       Logging.logError(e);
     }
@@ -189,6 +277,7 @@ public class OledSsd1306 extends Service implements I2CControl {
       return;
     }
     this.deviceBus = deviceBus;
+    busAddress = Integer.parseInt(deviceBus);
     broadcastState();
   }
 
@@ -199,6 +288,7 @@ public class OledSsd1306 extends Service implements I2CControl {
       return;
     }
     this.deviceAddress = deviceAddress;
+    i2cAddress = Integer.decode(deviceAddress);
     broadcastState();
   }
 
@@ -225,6 +315,8 @@ public class OledSsd1306 extends Service implements I2CControl {
     } else {
       log.error(String.format("DisplayType %s not implemented.", displayType));
     }
+    // the display content is not known anymore
+    sent = null;
   }
 
   int getWidth() {
@@ -236,6 +328,13 @@ public class OledSsd1306 extends Service implements I2CControl {
   }
 
   public synchronized void setPixel(int x, int y, boolean on) {
+    plot(x, y, on);
+  }
+
+  void plot(int x, int y, boolean on) {
+    if (x < 0 || x >= SSD1306_LCDWIDTH || y < 0 || y >= SSD1306_LCDHEIGHT) {
+      return;
+    }
     final int pos = x + (y / 8) * SSD1306_LCDWIDTH;
     if (on) {
       this.buffer[pos] |= (1 << (y & 0x07));
@@ -244,7 +343,22 @@ public class OledSsd1306 extends Service implements I2CControl {
     }
   }
 
-  void drawBitmap(int x, int y, int[] bitmap, int w, int h, boolean on) {
+  /**
+   * sets or clears the bits of one byte of the buffer
+   */
+  void setBits(int x, int page, int bits, boolean on) {
+    if (x < 0 || x >= SSD1306_LCDWIDTH || page < 0 || page >= SSD1306_LCDHEIGHT / 8) {
+      return;
+    }
+    final int pos = x + page * SSD1306_LCDWIDTH;
+    if (on) {
+      buffer[pos] |= bits & 0xff;
+    } else {
+      buffer[pos] &= ~bits & 0xff;
+    }
+  }
+
+  synchronized void drawBitmap(int x, int y, int[] bitmap, int w, int h, boolean on) {
 
     int i, j, byteWidth = (w + 7) / 8;
     int aByte = 0;
@@ -258,9 +372,9 @@ public class OledSsd1306 extends Service implements I2CControl {
         }
 
         if ((aByte & 0x80) > 0) {
-          setPixel(x + i, y + j, on);
+          plot(x + i, y + j, on);
         } else {
-          setPixel(x + i, y + j, !on);
+          plot(x + i, y + j, !on);
         }
       }
     }
@@ -269,7 +383,8 @@ public class OledSsd1306 extends Service implements I2CControl {
   public synchronized void drawString(String string, int x, int y, boolean on) {
     int posX = x;
     int posY = y;
-    for (char c : string.toCharArray()) {
+    for (int i = 0; i < string.length(); ++i) {
+      char c = string.charAt(i);
       if (c == '\n') {
         posY += 8;
         posX = x;
@@ -288,9 +403,20 @@ public class OledSsd1306 extends Service implements I2CControl {
   }
 
   public synchronized void clearRect(int x, int y, int width, int height, boolean on) {
-    for (int posX = x; posX < x + width; ++posX) {
-      for (int posY = y; posY < y + height; ++posY) {
-        setPixel(posX, posY, on);
+    int x0 = Math.max(x, 0);
+    int x1 = Math.min(x + width, SSD1306_LCDWIDTH);
+    int y0 = Math.max(y, 0);
+    int y1 = Math.min(y + height, SSD1306_LCDHEIGHT);
+    if (x0 >= x1 || y0 >= y1) {
+      return;
+    }
+    // a page is 8 rows - one byte per column
+    for (int page = y0 >> 3; page <= (y1 - 1) >> 3; ++page) {
+      int top = Math.max(y0 - page * 8, 0);
+      int bottom = Math.min(y1 - page * 8, 8);
+      int bits = ((1 << bottom) - 1) & ~((1 << top) - 1);
+      for (int posX = x0; posX < x1; ++posX) {
+        setBits(posX, page, bits, on);
       }
     }
   }
@@ -300,14 +426,14 @@ public class OledSsd1306 extends Service implements I2CControl {
       c = '?';
     }
 
+    // a font column is one byte, which spans two pages unless y is on a page
+    int page = y >> 3;
+    int shift = y & 0x07;
     for (int i = 0; i < 5; ++i) {
-      int line = FONT[(c * 5) + i];
-
-      for (int j = 0; j < 8; ++j) {
-        if ((line & 0x01) > 0) {
-          setPixel(x + i, y + j, on);
-        }
-        line >>= 1;
+      int line = FONT[(c * 5) + i] & 0xff;
+      setBits(x + i, page, line << shift, on);
+      if (shift > 0) {
+        setBits(x + i, page + 1, line >> (8 - shift), on);
       }
     }
   }
@@ -322,19 +448,30 @@ public class OledSsd1306 extends Service implements I2CControl {
    *
    */
   public synchronized void drawImage(BufferedImage image, int x, int y) {
-    BufferedImage tmpImage = new BufferedImage(this.getWidth(), this.getHeight(), BufferedImage.TYPE_BYTE_BINARY);
-    tmpImage.getGraphics().drawImage(image, x, y, null);
-
-    int index = 0;
-    int pixelval;
-    final byte[] pixels = ((DataBufferByte) tmpImage.getRaster().getDataBuffer()).getData();
-    for (int posY = 0; posY < SSD1306_LCDHEIGHT; posY++) {
-      for (int posX = 0; posX < SSD1306_LCDWIDTH / 8; posX++) {
+    int width = this.getWidth();
+    int height = this.getHeight();
+    if (imageBuffer == null || imageBuffer.getWidth() != width || imageBuffer.getHeight() != height) {
+      imageBuffer = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_BINARY);
+    }
+    Graphics g = imageBuffer.getGraphics();
+    g.setColor(Color.BLACK);
+    g.fillRect(0, 0, width, height);
+    g.drawImage(image, x, y, null);
+    g.dispose();
+
+    // the image has a bit per pixel in rows, the buffer a byte per 8 rows
+    final byte[] pixels = ((DataBufferByte) imageBuffer.getRaster().getDataBuffer()).getData();
+    final int stride = (width + 7) / 8;
+    for (int page = 0; page < height / 8; page++) {
+      for (int posX = 0; posX < width; posX++) {
+        int bits = 0;
         for (int bit = 0; bit < 8; bit++) {
-          pixelval = (byte) ((pixels[index / 8] >> (8 - bit)) & 0x01);
-          setPixel(posX * 8 + bit, posY, pixelval > 0);
-          index++;
+          int row = page * 8 + bit;
+          if (((pixels[row * stride + posX / 8] >> (7 - (posX & 7))) & 0x01) > 0) {
+            bits |= 1 << bit;
+          }
         }
+        buffer[posX + page * width] = bits;
       }
     }
   }
@@ -418,7 +555,14 @@ public class OledSsd1306 extends Service implements I2CControl {
     // I2C
     byte control = 0x00; // Co = 0, D/C = 0
     byte buffer[] = { control, (byte) c };
-    controller.i2cWrite((I2CControl) this, Integer.parseInt(deviceBus), Integer.decode(deviceAddress), buffer, buffer.length);
+    write(buffer, buffer.length);
+  }
+
+  void write(byte[] data, int size) {
+    bytesSent += size;
+    if (controller != null) {
+      controller.i2cWrite((I2CControl) this, busAddress, i2cAddress, data, size);
+    }
   }
 
   // startscrollright
@@ -511,56 +655,181 @@ public class OledSsd1306 extends Service implements I2CControl {
   }
 
   public void display(int[] image) {
-    buffer = image.clone();
+    synchronized (this) {
+      if (image.length == buffer.length) {
+        System.arraycopy(image, 0, buffer, 0, buffer.length);
+      } else {
+        buffer = image.clone();
+      }
+    }
     display();
   }
 
   public void display() {
-    ssd1306_command(SSD1306_COLUMNADDR);
-    ssd1306_command(0); // Column start address (0 = reset)
-    ssd1306_command(SSD1306_LCDWIDTH - 1); // Column end address (127 = reset)
+    flush();
+  }
+
+  /**
+   * sends the part of the buffer which changed since the last flush. Every page
+   * with changes gets a window of the columns which changed in it, and
+   * consecutive pages share a window when that is fewer bytes on the bus.
+   * 
+   * @return number of bytes written
+   */
+  public int flush() {
+    synchronized (flushLock) {
+      synchronized (this) {
+        if (front == null || front.length != buffer.length) {
+          front = new int[buffer.length];
+        }
+        System.arraycopy(buffer, 0, front, 0, buffer.length);
+      }
+      final int width = SSD1306_LCDWIDTH;
+      final int pages = front.length / width;
+      int bytes = 0;
+      if (sent == null || sent.length != front.length) {
+        sent = new int[front.length];
+        bytes = sendWindow(0, width - 1, 0, pages - 1);
+      } else {
+        // pending window
+        int p0 = -1, p1 = -1, c0 = 0, c1 = 0;
+        int cost = 0;
+        for (int page = 0; page < pages; ++page) {
+          int first = -1, last = -1;
+          for (int x = 0, pos = page * width; x < width; ++x, ++pos) {
+            if (front[pos] != sent[pos]) {
+              if (first < 0) {
+                first = x;
+              }
+              last = x;
+            }
+          }
+          if (first < 0) {
+            continue;
+          }
+          if (p0 >= 0 && page == p1 + 1) {
+            int u0 = Math.min(c0, first);
+            int u1 = Math.max(c1, last);
+            int joined = windowCost((u1 - u0 + 1) * (page - p0 + 1));
+            int separate = cost + windowCost(last - first + 1);
+            if (joined <= separate) {
+              p1 = page;
+              c0 = u0;
+              c1 = u1;
+              cost = joined;
+              continue;
+            }
+          }
+          if (p0 >= 0) {
+            bytes += sendWindow(c0, c1, p0, p1);
+          }
+          p0 = p1 = page;
+          c0 = first;
+          c1 = last;
+          cost = windowCost(last - first + 1);
+        }
+        if (p0 >= 0) {
+          bytes += sendWindow(c0, c1, p0, p1);
+        }
+      }
+      if (bytes > 0) {
+        ++framesSent;
+      }
+      return bytes;
+    }
+  }
+
+  /**
+   * bytes on the bus to send n bytes of display data in one window
+   */
+  static int windowCost(int n) {
+    return 7 + n + (n + 15) / 16;
+  }
 
-    ssd1306_command(SSD1306_PAGEADDR);
-    ssd1306_command(0); // Page start address (0 = reset)
-    if (SSD1306_LCDHEIGHT == 64) {
-      ssd1306_command(7); // Page end address
+  /**
+   * sets the display window with COLUMNADDR and PAGEADDR and sends the window
+   * content - the display fills a window page by page
+   */
+  int sendWindow(int c0, int c1, int p0, int p1) {
+    commandBuffer[0] = 0x00; // Co = 0, D/C = 0 - a list of commands
+    commandBuffer[1] = (byte) SSD1306_COLUMNADDR;
+    commandBuffer[2] = (byte) c0;
+    commandBuffer[3] = (byte) c1;
+    commandBuffer[4] = (byte) SSD1306_PAGEADDR;
+    commandBuffer[5] = (byte) p0;
+    commandBuffer[6] = (byte) p1;
+    write(commandBuffer, commandBuffer.length);
+    int bytes = commandBuffer.length;
+
+    dataBuffer[0] = 0x40;
+    int size = 1;
+    for (int page = p0; page <= p1; ++page) {
+      for (int x = c0, pos = page * SSD1306_LCDWIDTH + c0; x <= c1; ++x, ++pos) {
+        dataBuffer[size++] = (byte) front[pos];
+        sent[pos] = front[pos];
+        if (size == dataBuffer.length) {
+          write(dataBuffer, size);
+          bytes += size;
+          size = 1;
+        }
+      }
     }
-    if (SSD1306_LCDHEIGHT == 32) {
-      ssd1306_command(3); // Page end address
+    if (size > 1) {
+      write(dataBuffer, size);
+      bytes += size;
+    }
+    return bytes;
+  }
+
+  /**
+   * starts a thread which sends the changes of the buffer, so drawing does not
+   * need to call display()
+   * 
+   * @param fps
+   *          - max frames per second
+   */
+  public synchronized void startFlush(int fps) {
+    maxFps = Math.max(fps, 1);
+    if (flushThread == null) {
+      flushThread = new FlushThread();
+      flushThread.start();
     }
-    if (SSD1306_LCDHEIGHT == 16) {
-      ssd1306_command(1); // Page end address
+  }
+
+  public synchronized void stopFlush() {
+    if (flushThread != null) {
+      flushThread.running = false;
+      flushThread.interrupt();
+      flushThread = null;
     }
+  }
 
-    // I2C
-    for (int i = 0; i < (SSD1306_LCDWIDTH * SSD1306_LCDHEIGHT / 8) - 1; i++) {
-      // send a bunch of data in one xmission
-      // Wire.beginTransmission(_i2caddr);
-      byte writeBuffer[] = new byte[17];
-      int writeBufferIx = 0;
-      writeBuffer[writeBufferIx] = 0x40;
-      for (int x = 0; x < 16; x++) {
-        writeBufferIx++;
-        writeBuffer[writeBufferIx] = (byte) buffer[i];
-        // WIRE_WRITE(buffer[i]);
-        i++;
-      }
-      i--;
-      // Wire.endTransmission();
-      controller.i2cWrite((I2CControl) this, Integer.parseInt(deviceBus), Integer.decode(deviceAddress), writeBuffer, writeBuffer.length);
+  /**
+   * sends the whole buffer with the next flush
+   */
+  public void refresh() {
+    synchronized (flushLock) {
+      sent = null;
     }
+  }
+
+  public long getBytesSent() {
+    return bytesSent;
+  }
 
+  public long getFramesSent() {
+    return framesSent;
   }
 
   // clear everything
-  void clearDisplay() {
+  synchronized void clearDisplay() {
     for (int i = 0; i < buffer.length; i++) {
       buffer[i] = 0;
     }
   }
 
   // fill everything
-  void fillDisplay() {
+  synchronized void fillDisplay() {
     for (int i = 0; i < buffer.length; i++) {
       buffer[i] = 0xff;
     }
@@ -895,6 +1164,8 @@ public class OledSsd1306 extends Service implements I2CControl {
 
     this.deviceBus = deviceBus;
     this.deviceAddress = deviceAddress;
+    busAddress = Integer.parseInt(deviceBus);
+    i2cAddress = Integer.decode(deviceAddress);
 
     attachI2CController(controller);
     isAttached = true;
@@ -949,6 +1220,7 @@ public class OledSsd1306 extends Service implements I2CControl {
   
   @Override
   public void stopService() {
+    stopFlush();
 
     if (isAttached(controller))
     {
@@ -5,11 +5,14 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -18,7 +21,6 @@ import org.alicebot.ab.AIMLSet;
 import org.alicebot.ab.Bot;
 import org.alicebot.ab.Category;
 import org.alicebot.ab.Chat;
-import org.alicebot.ab.Predicates;
 import org.myrobotlab.framework.Service;
 import org.myrobotlab.framework.ServiceType;
 import org.myrobotlab.framework.interfaces.Attachable;
@@ -26,8 +28,10 @@ import org.myrobotlab.framework.interfaces.ServiceInterface;
 import org.myrobotlab.io.FileIO;
 import org.myrobotlab.logging.LoggerFactory;
 import org.myrobotlab.logging.LoggingFactory;
+import org.myrobotlab.programab.AimlSnapshot;
 import org.myrobotlab.programab.ChatData;
 import org.myrobotlab.programab.OOBPayload;
+import org.myrobotlab.programab.SessionEngine;
 import org.myrobotlab.service.interfaces.TextListener;
 import org.myrobotlab.service.interfaces.TextPublisher;
 import org.slf4j.Logger;
@@ -51,6 +55,8 @@ public class ProgramAB extends Service implements TextListener, TextPublisher {
     transient public List<OOBPayload> payloads;
     // FIXME - timestamps are usually longs System.currentTimeMillis()
     public Date timestamp;
+    // ms it took to produce the response
+    public long latency;
 
     public Response(String session, String msg, List<OOBPayload> payloads, Date timestamp) {
       this.session = session;
@@ -79,7 +85,13 @@ public class ProgramAB extends Service implements TextListener, TextPublisher {
   // String currentSession = "default";
   // Session is a user and a bot. so the key to the session should be the
   // username, and the bot name.
-  transient HashMap<String, ChatData> sessions = new HashMap<String, ChatData>();
+  transient ConcurrentHashMap<String, ChatData> sessions = new ConcurrentHashMap<String, ChatData>();
+  // sessions which were idle and have been persisted and unloaded
+  transient Set<String> evictedSessions = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+  // processes responses of different sessions in parallel
+  transient volatile SessionEngine engine;
+  // aiml content which changed since the aimlif was written
+  transient AimlSnapshot pendingSnapshot = null;
   // TODO: better parsing than a regex...
   transient Pattern oobPattern = Pattern.compile("<oob>.*?</oob>", Pattern.CASE_INSENSITIVE | Pattern.DOTALL | Pattern.MULTILINE);
   transient Pattern mrlPattern = Pattern.compile("<mrl>.*?</mrl>", Pattern.CASE_INSENSITIVE | Pattern.DOTALL | Pattern.MULTILINE);
@@ -91,14 +103,21 @@ public class ProgramAB extends Service implements TextListener, TextPublisher {
   public boolean loading = false;
 
   static final long serialVersionUID = 1L;
-  static int savePredicatesInterval = 60 * 1000 * 5; // every 5 minutes
+  // only sessions with changed predicates are written
+  static int savePredicatesInterval = 30 * 1000; // every 30 seconds
+  static int evictIdleSessionsInterval = 60 * 1000;
   public String wasCleanyShutdowned;
+  // number of sessions which can respond at the same time
+  int sessionThreads = 4;
+  // ms a session can be idle before it is persisted and unloaded
+  public long sessionIdleTimeout = 30 * 60 * 1000;
 
   public ProgramAB(String name) {
     super(name);
     // Tell programAB to persist it's learned predicates about people
     // every 30 seconds.
     addTask("savePredicates", savePredicatesInterval, 0, "savePredicates");
+    addTask("evictIdleSessions", evictIdleSessionsInterval, 0, "evictIdleSessions");
     // TODO: Lazy load this!
     // look for local bots defined
     File programAbDir = new File(String.format("%s/bots", getPath()));
@@ -159,48 +178,89 @@ public class ProgramAB extends Service implements TextListener, TextPublisher {
     }
 
     log.info(folder.getAbsolutePath());
-    HashMap<String, Long> modifiedDates = new HashMap<String, Long>();
-    for (File f : folder.listFiles()) {
-      log.info(f.getAbsolutePath());
-      // TODO: better stripping of the file extension
-      String aiml = f.getName().replace(".aiml", "");
-      modifiedDates.put(aiml, f.lastModified());
-    }
-    log.info("AIMLIF FILES:");
     folderaimlIF = new File(aimlIFPath);
     if (!folderaimlIF.exists()) {
       // TODO: throw an exception warn / log ?
       log.info("aimlif directory missing,creating it. " + folderaimlIF.getAbsolutePath());
       folderaimlIF.mkdirs();
+      pendingSnapshot = scanAiml(folder);
       return;
     }
-    for (File f : folderaimlIF.listFiles()) {
-      log.info(f.getAbsolutePath());
-      // TODO: better stripping of the file extension
-      String aimlIF = f.getName().replace(".aiml.csv", "");
-      Long lastMod = modifiedDates.get(aimlIF);
-      if (lastMod != null) {
-        if (f.lastModified() < lastMod) {
-          // the AIMLIF file is newer than the AIML file.
-          // delete the AIMLIF file so ProgramAB recompiles it
-          // properly.
-          log.info("Deleteing AIMLIF file because the original AIML file was modified. {}", aimlIF);
-          f.delete();
-          // edit moz4r : we need to change the last modification date to aiml
-          // folder for recompilation
-          sleep(1000);
-          String fil = aimlPath + File.separator + "folder_updated";
-          File file = new File(fil);
-          file.delete();
-          try {
-            PrintWriter writer = new PrintWriter(fil, "UTF-8");
-            writer.println(lastMod.toString());
-            writer.close();
-          } catch (IOException e) {
-            // do something
-          }
-        }
+
+    // the aimlif files can be used as long as the aiml content
+    // did not change since the snapshot was taken
+    AimlSnapshot current = scanAiml(folder);
+    if (current == null) {
+      return;
+    }
+    File snapshotFile = new File(folderaimlIF, AimlSnapshot.FILENAME);
+    AimlSnapshot previous = AimlSnapshot.load(snapshotFile);
+    File[] aimlIFFiles = folderaimlIF.listFiles();
+    boolean hasAimlIF = false;
+    for (File f : aimlIFFiles) {
+      hasAimlIF |= f.getName().endsWith(".aiml.csv");
+    }
+
+    if (previous != null && hasAimlIF && previous.getHash() == current.getHash()) {
+      log.info("aiml snapshot of {} files is current - loading aimlif", current.size());
+      // program ab loads aimlif when its folder is newer, aiml files
+      // may have been touched without being changed
+      if (folderaimlIF.lastModified() <= folder.lastModified()) {
+        folderaimlIF.setLastModified(Math.max(System.currentTimeMillis(), folder.lastModified() + 1000));
       }
+      return;
+    }
+
+    // Program AB can only compile the whole aiml folder - any change is a
+    // full rebuild, the aimlif files are rewritten once the bot is loaded
+    log.info("{} aiml files changed - recompiling all aiml", (previous == null) ? current.size() : current.getChanged(previous).size());
+    for (File f : aimlIFFiles) {
+      // removed aiml must not survive in its aimlif file
+      if (f.getName().endsWith(".aiml.csv")) {
+        f.delete();
+      }
+    }
+    // edit moz4r : we need to change the last modification date to aiml
+    // folder for recompilation
+    String fil = aimlPath + File.separator + "folder_updated";
+    File file = new File(fil);
+    file.delete();
+    try {
+      PrintWriter writer = new PrintWriter(fil, "UTF-8");
+      writer.println(System.currentTimeMillis());
+      writer.close();
+    } catch (IOException e) {
+      // do something
+    }
+    // newer than the aimlif folder without sleeping for the file system
+    // time resolution
+    folder.setLastModified(Math.max(System.currentTimeMillis(), folderaimlIF.lastModified() + 1000));
+    pendingSnapshot = current;
+  }
+
+  private AimlSnapshot scanAiml(File folder) {
+    try {
+      return AimlSnapshot.scan(folder);
+    } catch (IOException e) {
+      log.error("could not scan {}", folder, e);
+      return null;
+    }
+  }
+
+  /**
+   * rewrites all aimlif files and the snapshot, so the next startup can load
+   * the aimlif files without checking them. This is a full, synchronous write
+   * - it walks the bot's brain, so it runs before the bot takes any session.
+   */
+  private void saveSnapshot(Bot bot, AimlSnapshot snapshot) {
+    try {
+      bot.writeAIMLIFFiles();
+      File folderaimlIF = new File(bot.aimlif_path);
+      snapshot.save(new File(folderaimlIF, AimlSnapshot.FILENAME));
+      folderaimlIF.setLastModified(Math.max(System.currentTimeMillis(), new File(bot.aiml_path).lastModified() + 1000));
+      log.info("saved aiml snapshot of {} files", snapshot.size());
+    } catch (Exception e) {
+      log.error("could not save aiml snapshot", e);
     }
   }
 
@@ -241,7 +301,80 @@ public class ProgramAB extends Service implements TextListener, TextPublisher {
   }
 
   public Response getResponse(String username, String text) {
-    log.info("Get Response for : user {} bot {} : {}", username, getCurrentBotName(), text);
+    return respond(username, getCurrentBotName(), text);
+  }
+
+  /**
+   * Queues the text for a response - sessions are processed in parallel, while
+   * the text of a single session is processed in order. The response is
+   * published through publishResponse and publishText.
+   * 
+   * @param username
+   *          - the user that is sending the query
+   * @param text
+   *          - the query string to the bot brain
+   */
+  public void getResponseAsync(final String username, final String text) {
+    final String botName = getCurrentBotName();
+    ChatData chatData = getChatData(username, botName);
+    SessionEngine engine = this.engine;
+    if (chatData == null || engine == null) {
+      // no core loaded or not started - responds (or errors) directly
+      respond(username, botName, text);
+      return;
+    }
+    // latency includes the wait in the session's queue
+    final long submitted = System.currentTimeMillis();
+    engine.submit(chatData, new Runnable() {
+      @Override
+      public void run() {
+        respond(username, botName, text, submitted);
+      }
+    });
+  }
+
+  /**
+   * the session of a user and bot - evicted sessions are restored and unknown
+   * sessions of the loaded bot are created, without changing the current user
+   * or bot
+   */
+  ChatData getChatData(String username, String botName) {
+    String sessionKey = resolveSessionKey(username, botName);
+    ChatData chatData = sessions.get(sessionKey);
+    if (chatData != null || bot == null) {
+      return chatData;
+    }
+    synchronized (sessions) {
+      chatData = sessions.get(sessionKey);
+      if (chatData != null) {
+        return chatData;
+      }
+      if (!botName.equalsIgnoreCase(bot.name)) {
+        error("bot %s is not loaded - start a session for it first", botName);
+        return null;
+      }
+      if (evictedSessions.remove(sessionKey)) {
+        log.info("restoring evicted session {}", sessionKey);
+      } else {
+        log.info("creating session {}", sessionKey);
+      }
+      chatData = createChatData(username, botName);
+      sessions.put(sessionKey, chatData);
+      return chatData;
+    }
+  }
+
+  Response respond(String username, String botName, String text) {
+    return respond(username, botName, text, System.currentTimeMillis());
+  }
+
+  /**
+   * @param start
+   *          - when the response was requested - the latency of the response is
+   *          measured from it
+   */
+  Response respond(String username, String botName, String text, long start) {
+    log.info("Get Response for : user {} bot {} : {}", username, botName, text);
 
     if (bot == null) {
       String error = "ERROR: Core not loaded, please load core before chatting.";
@@ -253,16 +386,34 @@ public class ProgramAB extends Service implements TextListener, TextPublisher {
       return new Response(username, "", null, new Date());
     }
 
-    String sessionKey = resolveSessionKey(username, getCurrentBotName());
-    if (!sessions.containsKey(sessionKey)) {
-      startSession(getPath(), username, getCurrentBotName());
+    ChatData chatData = null;
+    String res = null;
+    boolean responded = false;
+    while (!responded) {
+      chatData = getChatData(username, botName);
+      if (chatData == null) {
+        return new Response(username, String.format("ERROR: bot %s is not loaded", botName), null, new Date());
+      }
+      // only one response of a session at a time - a Chat is not thread safe
+      synchronized (chatData.lock) {
+        if (chatData.evicted) {
+          // evicted while we were waiting - get the restored session
+          continue;
+        }
+        // responding can set predicates - only sessions whose predicates
+        // changed are written
+        Map<String, String> predicates = new HashMap<String, String>(chatData.chat.predicates);
+        res = chatData.chat.multisentenceRespond(text);
+        responded = true;
+        // grab and update the time when this response came in.
+        chatData.lastResponseTime = new Date();
+        chatData.lastAccess = chatData.lastResponseTime.getTime();
+        if (!predicates.equals(chatData.chat.predicates)) {
+          chatData.dirty = true;
+        }
+      }
     }
 
-    ChatData chatData = sessions.get(sessionKey);
-    String res = getChat(username, getCurrentBotName()).multisentenceRespond(text);
-    // grab and update the time when this response came in.
-    chatData.lastResponseTime = new Date();
-
     // Check the AIML response to see if there is OOB (out of band data)
     // If so, publish that data independent of the text response.
     List<OOBPayload> payloads = null;
@@ -275,6 +426,11 @@ public class ProgramAB extends Service implements TextListener, TextPublisher {
     res = matcher.replaceAll("").trim();
 
     Response response = new Response(username, res, payloads, chatData.lastResponseTime);
+    response.latency = System.currentTimeMillis() - start;
+    SessionEngine engine = this.engine;
+    if (engine != null) {
+      engine.recordLatency(response.latency);
+    }
     // Now that we've said something, lets create a timer task to wait for N
     // seconds
     // and if nothing has been said.. try say something else.
@@ -316,13 +472,25 @@ public class ProgramAB extends Service implements TextListener, TextPublisher {
   }
 
   public Chat getChat(String userName, String botName) {
+    ChatData chatData = getSession(userName, botName);
+    if (chatData == null) {
+      return null;
+    } else {
+      return chatData.chat;
+    }
+  }
+
+  /**
+   * an existing or evicted session - unlike getChatData a session is not
+   * started if it does not exist
+   */
+  ChatData getSession(String userName, String botName) {
     String sessionKey = resolveSessionKey(userName, botName);
-    if (!sessions.containsKey(sessionKey)) {
+    if (!sessions.containsKey(sessionKey) && !evictedSessions.contains(sessionKey)) {
       error("%s session does not exist", sessionKey);
       return null;
-    } else {
-      return sessions.get(sessionKey).chat;
     }
+    return getChatData(userName, botName);
   }
 
   public void removePredicate(String userName, String predicateName) {
@@ -330,8 +498,14 @@ public class ProgramAB extends Service implements TextListener, TextPublisher {
   }
 
   public void removePredicate(String userName, String botName, String predicateName) {
-    Predicates preds = getChat(userName, botName).predicates;
-    preds.remove(predicateName);
+    ChatData chatData = getSession(userName, botName);
+    if (chatData == null) {
+      return;
+    }
+    synchronized (chatData.lock) {
+      chatData.chat.predicates.remove(predicateName);
+      chatData.dirty = true;
+    }
   }
 
   public void addToSet(String setName, String setValue) {
@@ -370,18 +544,28 @@ public class ProgramAB extends Service implements TextListener, TextPublisher {
   }
 
   public void setPredicate(String username, String predicateName, String predicateValue) {
-    Predicates preds = getChat(username, getCurrentBotName()).predicates;
-    preds.put(predicateName, predicateValue);
+    ChatData chatData = getSession(username, getCurrentBotName());
+    if (chatData == null) {
+      return;
+    }
+    synchronized (chatData.lock) {
+      chatData.chat.predicates.put(predicateName, predicateValue);
+      chatData.dirty = true;
+    }
   }
 
   public void unsetPredicate(String username, String predicateName) {
-    Predicates preds = getChat(username, getCurrentBotName()).predicates;
-    preds.remove(predicateName);
+    removePredicate(username, getCurrentBotName(), predicateName);
   }
 
   public String getPredicate(String username, String predicateName) {
-    Predicates preds = getChat(username, getCurrentBotName()).predicates;
-    return preds.get(predicateName);
+    ChatData chatData = getSession(username, getCurrentBotName());
+    if (chatData == null) {
+      return null;
+    }
+    synchronized (chatData.lock) {
+      return chatData.chat.predicates.get(predicateName);
+    }
   }
 
   /**
@@ -451,7 +635,9 @@ public class ProgramAB extends Service implements TextListener, TextPublisher {
     // this should actually call getResponse
     // on input, get the proper response
     // Response resp = getResponse(text);
-    getResponse(text);
+    // responses are processed by the session engine, so a slow match
+    // does not block the inbox
+    getResponseAsync(getCurrentUserName(), text);
     // push that to the next end point.
     // invoke("publishText", resp.msg);
   }
@@ -609,30 +795,100 @@ public class ProgramAB extends Service implements TextListener, TextPublisher {
   }
 
   /**
-   * Persist the predicates for all known sessions in the robot.
+   * Persist the predicates for all known sessions in the robot. Only sessions
+   * whose predicates changed since they were last written are saved.
    * 
    */
   public void savePredicates() throws IOException {
+    int count = 0;
     for (String session : sessions.keySet()) {
+      ChatData chatData = sessions.get(session);
+      if (chatData != null && chatData.dirty) {
+        savePredicates(session, chatData);
+        ++count;
+      }
+    }
+    log.info("Done saving predicates of {} sessions.", count);
+  }
 
-      // TODO: better parsing of this.
-      String[] parts = session.split("-");
-      String username = parts[0];
-      String botname = session.substring(username.length() + 1);
-
-      String sessionPredicateFilename = createSessionPredicateFilename(username, botname);
-      File sessionPredFile = new File(sessionPredicateFilename);
-      Chat chat = getChat(username, botname);
-      // overwrite the original file , this should always be a full set.
-      log.info("Writing predicate file for session {}", session);
-      FileWriter predWriter = new FileWriter(sessionPredFile, false);
-      for (String predicate : chat.predicates.keySet()) {
-        String value = chat.predicates.get(predicate);
+  private void savePredicates(String session, ChatData chatData) throws IOException {
+    // TODO: better parsing of this.
+    String[] parts = session.split("-");
+    String username = parts[0];
+    String botname = session.substring(username.length() + 1);
+
+    // copy under the session lock, write without it so the session
+    // can keep responding
+    Map<String, String> predicates;
+    synchronized (chatData.lock) {
+      predicates = new HashMap<String, String>(chatData.chat.predicates);
+      chatData.dirty = false;
+    }
+
+    String sessionPredicateFilename = createSessionPredicateFilename(username, botname);
+    File sessionPredFile = new File(sessionPredicateFilename);
+    // overwrite the original file , this should always be a full set.
+    log.info("Writing predicate file for session {}", session);
+    FileWriter predWriter = null;
+    try {
+      predWriter = new FileWriter(sessionPredFile, false);
+      for (String predicate : predicates.keySet()) {
+        String value = predicates.get(predicate);
         predWriter.write(predicate + ":" + value + "\n");
       }
-      predWriter.close();
+    } catch (IOException e) {
+      // try again next time
+      chatData.dirty = true;
+      throw e;
+    } finally {
+      if (predWriter != null) {
+        predWriter.close();
+      }
     }
-    log.info("Done saving predicates.");
+  }
+
+  /**
+   * Persists and unloads sessions which have not been used for
+   * sessionIdleTimeout ms. They are restored from their predicates file on
+   * their next request.
+   */
+  public void evictIdleSessions() {
+    long now = System.currentTimeMillis();
+    String current = resolveSessionKey(getCurrentUserName(), getCurrentBotName());
+    for (String session : sessions.keySet()) {
+      ChatData chatData = sessions.get(session);
+      if (chatData == null || session.equals(current) || now - chatData.lastAccess < sessionIdleTimeout) {
+        continue;
+      }
+      synchronized (chatData.lock) {
+        if (now - chatData.lastAccess < sessionIdleTimeout) {
+          continue;
+        }
+        try {
+          if (chatData.dirty) {
+            savePredicates(session, chatData);
+          }
+        } catch (IOException e) {
+          log.error("could not save session {} - not evicting", session, e);
+          continue;
+        }
+        evictedSessions.add(session);
+        sessions.remove(session);
+        chatData.evicted = true;
+      }
+      log.info("evicted idle session {}", session);
+    }
+  }
+
+  /**
+   * @return response latency metrics of all sessions
+   */
+  public String getResponseStats() {
+    SessionEngine engine = this.engine;
+    if (engine == null) {
+      return "not started";
+    }
+    return engine.toString();
   }
 
   public void setEnableAutoConversation(boolean enableAutoConversation) {
@@ -692,12 +948,31 @@ public class ProgramAB extends Service implements TextListener, TextPublisher {
     wasCleanyShutdowned = "nok";
 
     // TODO: manage the bots in a collective pool/hash map.
-    if (bot == null) {
-      bot = new Bot(botName, path);
-    } else if (!botName.equalsIgnoreCase(bot.name)) {
-      bot = new Bot(botName, path);
+    if (bot == null || !botName.equalsIgnoreCase(bot.name)) {
+      // the aimlif files are written before other threads can see the bot
+      Bot loaded = new Bot(botName, path);
+      if (pendingSnapshot != null) {
+        saveSnapshot(loaded, pendingSnapshot);
+        pendingSnapshot = null;
+      }
+      bot = loaded;
     }
 
+    sessions.put(resolveSessionKey(getCurrentUserName(), getCurrentBotName()), createChatData(userName, botName));
+    // this.currentBotName = botName;
+    // String userName = chat.predicates.get("name");
+    log.info("Started session for bot name:{} , username:{}", botName, userName);
+    // TODO: to make sure if the start session is updated, that the button
+    // updates in the gui ?
+    this.save();
+    loading = false;
+    broadcastState();
+  }
+
+  /**
+   * creates the chat of a session and loads its persisted predicates
+   */
+  private ChatData createChatData(String userName, String botName) {
     Chat chat = new Chat(bot);
 
     // for (Category c : bot.brain.getCategories()) {
@@ -710,7 +985,6 @@ public class ProgramAB extends Service implements TextListener, TextPublisher {
     String sessionPredicateFilename = createSessionPredicateFilename(userName, botName);
     chat.predicates.getPredicateDefaults(sessionPredicateFilename);
     //
-    sessions.put(resolveSessionKey(getCurrentUserName(), getCurrentBotName()), new ChatData(chat));
     // lets test if the robot knows the name of the person in the session
     String name = chat.predicates.get("name").trim();
     // TODO: this implies that the default value for "name" is default
@@ -722,14 +996,7 @@ public class ProgramAB extends Service implements TextListener, TextPublisher {
       // load those predicates
       chat.predicates.getPredicateDefaultsFromInputStream(FileIO.toInputStream(inputPredicateStream));
     }
-    // this.currentBotName = botName;
-    // String userName = chat.predicates.get("name");
-    log.info("Started session for bot name:{} , username:{}", botName, userName);
-    // TODO: to make sure if the start session is updated, that the button
-    // updates in the gui ?
-    this.save();
-    loading = false;
-    broadcastState();
+    return new ChatData(chat);
   }
 
   public void setPath(String path) {
@@ -854,8 +1121,21 @@ public class ProgramAB extends Service implements TextListener, TextPublisher {
     }
   }
 
+  @Override
+  public void startService() {
+    super.startService();
+    if (engine == null) {
+      engine = new SessionEngine(getName(), sessionThreads);
+    }
+  }
+
   @Override
   public void stopService() {
+    // let queued responses finish first
+    if (engine != null) {
+      engine.shutdown();
+      engine = null;
+    }
     try {
       savePredicates();
     } catch (IOException e) {
@@ -3,13 +3,16 @@ package org.myrobotlab.service;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.myrobotlab.framework.Message;
 import org.myrobotlab.framework.Platform;
@@ -28,6 +31,7 @@ import org.myrobotlab.logging.LoggingFactory;
 import org.myrobotlab.service.data.Script;
 import org.python.core.Py;
 import org.python.core.PyException;
+import org.python.core.PyFunction;
 import org.python.core.PyObject;
 import org.python.core.PyString;
 import org.python.core.PySystemState;
@@ -68,6 +72,16 @@ public class Python extends Service {
 					Message msg = inputQueue.take();
 
 					try {
+						// direct dispatch - if the target is a function defined
+						// in the script, call it with the converted parameters
+						// no source building or globals are needed
+						PyObject callback = getCallback(msg.method);
+						if (callback != null) {
+							callback.__call__(toPyArgs(msg.data));
+							callbackCount.incrementAndGet();
+							continue;
+						}
+
 						// FIXME - remove all msg_ .. its the old way .. :P
 
 						// serious bad bug in it which I think I fixed - the
@@ -84,12 +98,11 @@ public class Python extends Service {
 
 						PyObject compiledObject = null;
 
-						// TODO - getCompiledMethod(msg.method SHOULD BE
-						// getCompiledMethod(methodSignature
-						// without it - no overloading is possible
+						// compiled code is keyed by the full call signature
+						// since the parameter handles are part of the source
 
 						if (msg.data == null || msg.data.length == 0) {
-							compiledObject = getCompiledMethod(msg.method, String.format("%s()", msg.method), interp);
+							compiledObject = getCompiledMethod(String.format("%s()", msg.method), String.format("%s()", msg.method), interp);
 						} else {
 							StringBuffer methodWithParams = new StringBuffer();
 							methodWithParams.append(String.format("%s(", msg.method));
@@ -102,7 +115,7 @@ public class Python extends Service {
 								}
 							}
 							methodWithParams.append(")");
-							compiledObject = getCompiledMethod(msg.method, methodWithParams.toString(), interp);
+							compiledObject = getCompiledMethod(methodWithParams.toString(), methodWithParams.toString(), interp);
 						}
 						/*
 						 * if (compiledObject == null){ // NEVER NULL - object
@@ -118,6 +131,7 @@ public class Python extends Service {
 						// msgHandle));
 						// interp.set(msgHandle.toString(), msg);
 						interp.exec(compiledObject);
+						callbackCount.incrementAndGet();
 
 					} catch (Exception e) {
 						Logging.logError(e);
@@ -181,6 +195,9 @@ public class Python extends Service {
 
 			} finally {
 				executing = false;
+				// functions may have been (re)defined while callbacks were
+				// being dispatched
+				invalidateCallbacks();
 				invoke("finishedExecutingScript");
 			}
 
@@ -260,6 +277,17 @@ public class Python extends Service {
 	transient PythonInterpreter interp = null;
 	transient PIThread interpThread = null;
 
+	/**
+	 * script functions resolved for direct callback dispatch - keyed by method
+	 * name, cleared whenever script is executed
+	 */
+	transient ConcurrentHashMap<String, PyObject> callbacks = new ConcurrentHashMap<String, PyObject>();
+
+	/**
+	 * number of callbacks dispatched into the script
+	 */
+	transient final AtomicLong callbackCount = new AtomicLong();
+
 	int interpreterThreadCount = 0;
 
 	/**
@@ -424,6 +452,7 @@ public class Python extends Service {
 			createPythonInterpreter();
 		}
 
+		invalidateCallbacks();
 		try {
 			interpThread = new PIThread(String.format("%s.interpreter.%d", getName(), ++interpreterThreadCount), code);
 			interpThread.start();
@@ -463,12 +492,14 @@ public class Python extends Service {
 		if (interp == null) {
 			createPythonInterpreter();
 		}
+		invalidateCallbacks();
 		try {
 			if (!blocking) {
 				interpThread = new PIThread(String.format("%s.interpreter.%d", getName(), ++interpreterThreadCount), code);
 				interpThread.start();
 			} else {
 				interp.exec(code);
+				invalidateCallbacks();
 			}
 		} catch (PyException pe) {
 		  // something specific with a python error
@@ -485,6 +516,55 @@ public class Python extends Service {
 		return success;
 	}
 
+	/**
+	 * resolves a function defined in the script so a callback can be invoked
+	 * directly - returns null if the method is not a script function, in which
+	 * case the callback is compiled and executed as source
+	 * 
+	 * @param method
+	 *          - name of the script function
+	 * @return the function or null
+	 */
+	PyObject getCallback(String method) {
+		PyObject callback = callbacks.get(method);
+		if (callback != null) {
+			return callback;
+		}
+		PythonInterpreter pi = interp;
+		if (pi == null) {
+			return null;
+		}
+		PyObject o = pi.get(method);
+		if (o instanceof PyFunction) {
+			callbacks.put(method, o);
+			return o;
+		}
+		return null;
+	}
+
+	/**
+	 * clears the resolved callbacks - they are resolved again on the next
+	 * dispatch
+	 */
+	public void invalidateCallbacks() {
+		callbacks.clear();
+	}
+
+	static PyObject[] toPyArgs(Object[] data) {
+		if (data == null) {
+			return Py.EmptyObjects;
+		}
+		PyObject[] args = new PyObject[data.length];
+		for (int i = 0; i < data.length; ++i) {
+			args[i] = Py.java2py(data[i]);
+		}
+		return args;
+	}
+
+	public long getCallbackCount() {
+		return callbackCount.get();
+	}
+
 	public void execAndWait(String code) {
 		exec(code, true, true);
 	}
@@ -679,6 +759,7 @@ public class Python extends Service {
 			interp.cleanup();
 			interp = null;
 		}
+		invalidateCallbacks();
 
 		if (interpThread != null) {
 			interpThread.interrupt();
@@ -703,6 +784,42 @@ public class Python extends Service {
 		stop();// release the interpeter
 	}
 
+	/**
+	 * callback dispatch rate - clock pulses routed into a script handler. Run
+	 * it from a script or the shell, e.g.
+	 * Python.benchmarkCallbacks(100000, 60000)
+	 * 
+	 * @param count
+	 *            - number of pulses
+	 * @param timeoutMs
+	 *            - longest wait for the callbacks, callbacks which throw are
+	 *            never counted
+	 * @return callbacks per second
+	 */
+	public static long benchmarkCallbacks(int count, long timeoutMs) throws InterruptedException {
+		Python python = (Python) Runtime.start("python", "Python");
+		python.execAndWait("def onPulse(data):\n  pass\n");
+		Clock clock = (Clock) Runtime.start("clock", "Clock");
+		clock.addListener("pulse", python.getName(), "onPulse");
+		long first = python.getCallbackCount();
+		long start = System.currentTimeMillis();
+		for (int i = 0; i < count; ++i) {
+			clock.invoke("pulse", new Date());
+		}
+		long deadline = start + timeoutMs;
+		while (python.getCallbackCount() - first < count && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		long done = python.getCallbackCount() - first;
+		long delta = System.currentTimeMillis() - start;
+		if (done < count) {
+			log.warn("only {} of {} callbacks in {} ms", done, count, delta);
+		}
+		long rate = done * 1000L / Math.max(delta, 1);
+		log.info("{} callbacks in {} ms - {} callbacks/s", done, delta, rate);
+		return rate;
+	}
+
 	public static void main(String[] args) {		
 		LoggingFactory.init(Level.INFO);
 
@@ -37,6 +37,7 @@ import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 
 import org.atmosphere.wasync.Client;
@@ -47,8 +48,10 @@ import org.atmosphere.wasync.Event;
 import org.atmosphere.wasync.Function;
 import org.atmosphere.wasync.Request;
 import org.atmosphere.wasync.RequestBuilder;
+import org.myrobotlab.framework.MRLListener;
 import org.myrobotlab.framework.Message;
 import org.myrobotlab.framework.Service;
+import org.myrobotlab.framework.ServiceEnvironment;
 import org.myrobotlab.framework.ServiceType;
 import org.myrobotlab.framework.Status;
 import org.myrobotlab.framework.interfaces.ServiceInterface;
@@ -57,9 +60,11 @@ import org.myrobotlab.logging.LoggerFactory;
 import org.myrobotlab.logging.Logging;
 import org.myrobotlab.logging.LoggingFactory;
 import org.myrobotlab.net.Connection;
+import org.myrobotlab.net.FramedTransport;
 import org.myrobotlab.net.Scanner;
 import org.myrobotlab.net.TcpServer;
 import org.myrobotlab.net.UdpServer;
+import org.myrobotlab.service.interfaces.CommunicationInterface;
 import org.myrobotlab.service.interfaces.Gateway;
 import org.slf4j.Logger;
 
@@ -92,6 +97,17 @@ public class RemoteAdapter extends Service implements Gateway {
 	// udp) || websockets
 	transient TcpServer tcpServer = null;
 	transient UdpServer udpServer = null;
+	transient FramedTransport framedTransport = null;
+
+	/**
+	 * tcp with length prefixed binary frames on a single selector thread
+	 * instead of object streams and a thread per connection - both ends must
+	 * have it set
+	 */
+	boolean framed = false;
+
+	transient DatagramSocket udpSocket = null;
+	transient ByteArrayOutputStream udpBuffer = null;
 
 	private Integer udpPort;
 	private Integer tcpPort;
@@ -116,6 +132,7 @@ public class RemoteAdapter extends Service implements Gateway {
 		defaultPrefix = String.format("%s.", n);
 		tcpServer = new TcpServer(this);
 		udpServer = new UdpServer(this);
+		framedTransport = new FramedTransport(this);
 		// addLocalTask(5 * 1000, "broadcastHeartbeat");
 	}
 
@@ -227,9 +244,23 @@ public class RemoteAdapter extends Service implements Gateway {
 
 	@Override
 	public boolean isReady() {
+		if (framed) {
+			return framedTransport.isReady();
+		}
 		return tcpServer.isReady();
 	}
 
+	public boolean isFramed() {
+		return framed;
+	}
+
+	/**
+	 * @return message and byte counts of the framed transport
+	 */
+	public String getTransportStats() {
+		return framedTransport.toString();
+	}
+
 	public boolean isScanning() {
 		return isScanning;
 	}
@@ -259,6 +290,183 @@ public class RemoteAdapter extends Service implements Gateway {
 		return conn;
 	}
 
+	/**
+	 * routes a message received from a remote instance - names are re-written
+	 * with the prefix of the connection and registrations are answered with
+	 * the services we export. Used by both tcp transports.
+	 * 
+	 * @param uri
+	 *            - mrl://gateway/protocolKey of the connection
+	 * @param protocolKey
+	 *            - tcp://host:port of the peer
+	 * @param msg
+	 *            - the inbound message
+	 * @return false if the message was malformed
+	 */
+	public boolean processRemote(URI uri, URI protocolKey, Message msg) {
+		/**
+		 * mrl works similar to - router x-forwarded in that it
+		 * re-writes names in order to provide an abstraction to a
+		 * remote system. This can prevent name collision and add
+		 * clarity to remote system names - msg sender / name re-write
+		 * are trivial - the danger &amp; difficulty comes when names are
+		 * embedded in the data payload - such as register, addListener
+		 * and other(?) methods - for example - service names as
+		 * parameters ! - which "should" only happen with incorrect user scripts..
+		 * because registration is where all info regarding foreign service names should
+		 * come from
+		 */
+		msg.sender = String.format("%s%s", getPrefix(protocolKey), msg.sender);
+
+		// router x-forwarded inbound proxy begin
+		// router x-forwarded inbound proxy end
+
+		// FIXME - SCARY ! - anywhere address (name) info is in the data
+		// payload you will get errors & bugs :(
+		// getName() would need to be there of couse... I can't imagine
+		// how many other places ..
+		// Not the best implementation - an Instance would
+
+		// FIXME - HashSet of methods needed ?
+		// FIXME - if Encode.getMethodSignature("publishState",
+		// Service.class).equals(Encode.getMethodSignature(msg));
+		
+		if ("publishState".equals(msg.method)) { // this is to a specific service not runtime - msg.name != null
+			// FIXME - normalize
+			// router x-forwarded inbound proxy begin
+			Object[] msgData = msg.data;
+			ServiceInterface si = null;
+
+			if (msgData != null) {
+				if (msg.data.length == 0) {
+					log.error("*** a publishState was sent without a service - you probably want to send broadcastState ! {} {}**", msg.sender, msg.data.length);
+					return false;
+				}
+
+				si = (ServiceInterface) msg.data[0];
+				si.setInstanceId(uri);
+				String xForwardDataName = String.format("%s%s", getPrefix(protocolKey), si.getName());
+				si.setName(xForwardDataName);
+			}
+			// router x-forwarded inbound proxy end
+		}
+
+		if ("onState".equals(msg.method)) { // this is to a specific service not runtime - msg.name != null
+			// FIXME - normalize
+			// router x-forwarded inbound proxy begin
+			Object[] msgData = msg.data;
+			ServiceInterface si = null;
+
+			if (msgData != null) {
+				if (msg.data.length == 0) {
+					log.error("*** a publishState was sent without a service - you probably want to send broadcastState ! {} {}**", msg.sender, msg.data.length);
+					return false;
+				}
+
+				si = (ServiceInterface) msg.data[0];
+				si.setInstanceId(uri);
+				String xForwardDataName = String.format("%s%s", getPrefix(protocolKey), si.getName());
+				si.setName(xForwardDataName);
+			}
+			// router x-forwarded inbound proxy end
+		}
+
+		// establishing a callback route - src needs xforward modification
+		if ("addListener".equals(msg.method)) { // this is to a specific service not runtime - msg.name != null
+			MRLListener listener = (MRLListener) msg.data[0];
+			listener.callbackName = msg.sender;
+		}
+
+		// FIXME - THIS NEEDS TO BE NORMALIZED - WILL BE THE SAME IN
+		// Xmpp & WEBGUI & REMOTEADAPTER
+		// FIXME - normalize to single method - check for data
+		// type too ? !!!
+		if (msg.method.equals("onRegistered")) {
+			Object[] msgData = msg.data;
+			ServiceInterface si = null;
+
+			// ALLOWED TO BE NULL - establishes initial contact & a
+			// ServiceEnvironment
+			if (msgData != null) {
+				si = (ServiceInterface) msg.data[0];
+				si.setInstanceId(uri);
+				String xForwardDataName = String.format("%s%s", getPrefix(protocolKey), si.getName());
+				si.setName(xForwardDataName);
+				send(Runtime.getInstance().getName(), "register", si, uri); 
+			}
+
+		}
+		if (msg.method.equals("register")) {
+			// create the URI key for foreign service environment
+
+			// IMPORTANT - this is an optimization and probably
+			// should be in the Comm interface defintion
+			CommunicationInterface cm = getComm();
+			cm.addRemote(uri, protocolKey);
+
+			// check if the URI is already defined - if not - we will
+			// send back the services which we want to export -
+			// Security will filter appropriately
+			ServiceEnvironment foreignEnvironment = Runtime.getEnvironment(uri);
+
+			// FIXME - normalize ...
+			Object[] msgData = msg.data;
+			ServiceInterface si = null;
+
+			// ALLOWED TO BE NULL - establishes initial contact & a
+			// ServiceEnvironment
+			if (msgData != null) {
+				si = (ServiceInterface) msg.data[0];
+				si.setInstanceId(uri);
+				String xForwardDataName = String.format("%s%s", getPrefix(protocolKey), si.getName());
+				si.setName(xForwardDataName);
+
+			}
+
+			// invoke directly or send msg - we've gone both ways
+			// if invoke directly - security/control must be employed here
+			send(Runtime.getInstance().getName(), "register", si, uri);
+
+			// if is a foreign process - send our registration
+			if (foreignEnvironment == null) {
+
+				// not defined we will send export
+				// TODO - Security filters - default export (include
+				// exclude) - mapset of name
+				ServiceEnvironment localProcess = Runtime.getLocalServicesForExport();
+
+				Iterator<String> it = localProcess.serviceDirectory.keySet().iterator();
+				String name;
+				ServiceInterface toRegister;
+				while (it.hasNext()) {
+					name = it.next();
+					toRegister = localProcess.serviceDirectory.get(name);
+
+					// the following will wrap a message within a
+					// message and send it remotely
+					// This Thread CANNOT Write on The
+					// ObjectOutputStream directly -
+					// IT SHOULD NEVER DO ANY METHOD WHICH CAN BLOCK
+					// !!!! - 3 days of bug chasing when
+					// it wrote to ObjectOutputStream and oos blocked
+					// when the buffer was full - causing deadlock
+					// putting it on the inbox will move it to a
+					// different thread
+					Message sendService = Message.createMessage(this, null, "register", toRegister);
+					Message outbound = Message.createMessage(this, getName(), "sendRemote", new Object[] { protocolKey, sendService });
+					getInbox().add(outbound);
+
+				}
+
+			}
+
+			// BEGIN ENCAPSULATION --- ENCODER END -------------
+		} else {
+			getOutbox().add(msg);
+		}
+		return true;
+	}
+
 	public void scan() {
 		if (scanner != null) {
 			stopScanning();
@@ -303,27 +511,34 @@ public class RemoteAdapter extends Service implements Gateway {
 	}
 
 	public void sendRemoteTCP(URI uri, Message msg) {
+		if (framed) {
+			try {
+				framedTransport.send(uri, msg);
+			} catch (Exception e) {
+				error("could not send %s.%s to %s - %s", msg.name, msg.method, uri, e.getMessage());
+			}
+			return;
+		}
 		tcpServer.sendTcp(uri, msg);
 	}
 
 	public void sendRemoteUdp(URI uri, Message msg) {
 		try {
 
-			// FIXME - could use some optimization e.g. .reset()
-			DatagramSocket s = new DatagramSocket();
-			ByteArrayOutputStream b_out = new ByteArrayOutputStream();
-			ObjectOutputStream o_out = new ObjectOutputStream(b_out);
+			// each datagram is read with its own ObjectInputStream, so it needs
+			// its own stream header - but the socket and buffer are reused
+			if (udpSocket == null) {
+				udpSocket = new DatagramSocket();
+				udpBuffer = new ByteArrayOutputStream(1024);
+			}
+			udpBuffer.reset();
+			ObjectOutputStream o_out = new ObjectOutputStream(udpBuffer);
 			o_out.writeObject(msg);
 			o_out.flush();
-			b_out.flush();
-			byte[] b = b_out.toByteArray();
+			byte[] b = udpBuffer.toByteArray();
 			InetAddress hostAddress = InetAddress.getByName(uri.getHost());
 			DatagramPacket dgram = new DatagramPacket(b, b.length, hostAddress, uri.getPort());
-			s.send(dgram);
-			// dgram.se
-			// TODO - send the damn packet???
-			// close the datagram to avoid resource leaks
-			s.close();
+			udpSocket.send(dgram);
 		} catch (Exception e) {
 			Logging.logError(e);
 		}
@@ -335,6 +550,31 @@ public class RemoteAdapter extends Service implements Gateway {
 		return prefix;
 	}
 
+	/**
+	 * switches tcp to the framed transport - must be set before listening or
+	 * connecting, and the remote instance must use it too
+	 * 
+	 * @param b
+	 *            - true for framed
+	 */
+	public void setFramed(boolean b) {
+		framed = b;
+	}
+
+	/**
+	 * Nagle style batching of the framed transport - messages wait up to delay
+	 * ms for others to be written with them, unless size bytes are pending
+	 * 
+	 * @param delay
+	 *            - ms, 0 writes as soon as possible
+	 * @param size
+	 *            - bytes
+	 */
+	public void setBatching(int delay, int size) {
+		framedTransport.setBatchDelay(delay);
+		framedTransport.setBatchSize(size);
+	}
+
 	public void setPrefix(String source, String prefix) {
 		prefixMap.put(source, prefix);
 	}
@@ -355,7 +595,16 @@ public class RemoteAdapter extends Service implements Gateway {
 		udpPort = tcpPort = port;
 
 		udpServer.start(port);
-		tcpServer.start(port);
+		if (framed) {
+			try {
+				framedTransport.start(port);
+			} catch (IOException e) {
+				error("could not listen on %d - %s", port, e.getMessage());
+				return;
+			}
+		} else {
+			tcpServer.start(port);
+		}
 
 		isListening = true;
 		broadcastState();
@@ -364,6 +613,7 @@ public class RemoteAdapter extends Service implements Gateway {
 	public void stopListening() {
 		udpServer.stop();
 		tcpServer.stop();
+		framedTransport.stopListening();
 		isListening = false;
 		broadcastState();
 	}
@@ -381,6 +631,11 @@ public class RemoteAdapter extends Service implements Gateway {
 	public void stopService() {
 		super.stopService();
 		stopListening();
+		framedTransport.stop();
+		if (udpSocket != null) {
+			udpSocket.close();
+			udpSocket = null;
+		}
 	}
 
 	public void startService() {
@@ -2499,7 +2499,7 @@ public class Runtime extends Service implements MessageListener, RepoInstallList
   }
 
   public static void enableFileMsgs(Boolean b) {
-    FileMsgScanner.enableFileMsgs(b, id);
+    FileMsgScanner.enableFileMsgs(b, id, runtime);
   }
   /*
    * FIXME - did not work ... public static boolean isDaemon() { return
@@ -34,6 +34,8 @@ import java.util.Map;
 import java.util.Set;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
 import org.myrobotlab.framework.MethodEntry;
 import org.myrobotlab.framework.Service;
@@ -41,6 +43,7 @@ import org.myrobotlab.framework.ServiceType;
 import org.myrobotlab.framework.interfaces.Attachable;
 import org.myrobotlab.framework.interfaces.NameProvider;
 import org.myrobotlab.framework.interfaces.ServiceInterface;
+import org.myrobotlab.kinematics.MotionScheduler;
 import org.myrobotlab.logging.LoggerFactory;
 import org.myrobotlab.logging.Logging;
 import org.myrobotlab.math.Mapper;
@@ -75,56 +78,6 @@ import org.myrobotlab.logging.LoggingFactory;
 
 public class Servo extends Service implements ServoControl {
 
-  /**
-   * Sweeper - TODO - should be implemented in the arduino code for smoother
-   * function
-   * 
-   * 
-   */
-  public class Sweeper extends Thread {
-
-    public Sweeper(String name) {
-      super(String.format("%s.sweeper", name));
-    }
-
-    /**
-     * Sweeping works on input, a thread is used as the "controller" (this is
-     * input) and input sweeps back and forth - the servo parameters know what
-     * to do for output
-     */
-
-    @Override
-    public void run() {
-
-      double sweepMin = 0.0;
-      double sweepMax = 0.0;
-      // start in the middle
-      double sweepPos = mapper.getMinX() + (mapper.getMaxX() - mapper.getMinX()) / 2;
-      isSweeping = true;
-
-      try {
-        while (isSweeping) {
-
-          // set our range to be inside 'real' min & max input
-          sweepMin = mapper.getMinX() + 1;
-          sweepMax = mapper.getMaxX() - 1;
-
-          // if pos is too small or too big flip direction
-          if (sweepPos >= sweepMax || sweepPos <= sweepMin) {
-            sweepStep = sweepStep * -1;
-          }
-
-          sweepPos += sweepStep;
-          moveTo(sweepPos);
-          Thread.sleep(sweepDelay);
-        }
-      } catch (Exception e) {
-        isSweeping = false;
-      }
-    }
-
-  }
-
   private static final long serialVersionUID = 1L;
   public final static Logger log = LoggerFactory.getLogger(Servo.class);
 
@@ -224,8 +177,6 @@ public class Servo extends Service implements ServoControl {
   // TODO - computer implemented speed control (non-sweep)
   boolean speedControlOnUC = false;
 
-  transient Thread sweeper = null;
-
   /**
    * feedback of both incremental position and stops. would allow blocking
    * moveTo if desired
@@ -485,6 +436,10 @@ public class Servo extends Service implements ServoControl {
     synchronized (moveToBlocked) {
       moveToBlocked.notify(); // Will wake up MoveToBlocked.wait()
     }
+    // a direct move ends a scheduled one
+    if (MotionScheduler.getInstance().stop(this)) {
+      isSweeping = false;
+    }
     if (controller == null) {
       error(String.format("%s's controller is not set", getName()));
       return;
@@ -533,18 +488,76 @@ public class Servo extends Service implements ServoControl {
     if (velocity < 0) {
       log.info("No effect on moveToBlocking if velocity == -1");
     }
-    if (!isEventsEnabled) {
-      this.addServoEventListener(this);
+    try {
+      return moveToAsync(pos).get(30, TimeUnit.SECONDS);// 30s timeout security delay
+    } catch (Exception e) {
+      log.info("servo {} moveToBlocking did not complete - {}", getName(), e.getMessage());
+      return false;
+    }
+  }
+
+  /**
+   * moves along a trajectory with the velocity and acceleration of the servo,
+   * without blocking
+   * 
+   * @param pos
+   *          - position to move to
+   * @return completes with true when the servo arrived, false if it got a new
+   *         move or was stopped before
+   */
+  public CompletableFuture<Boolean> moveToAsync(double pos) {
+    return MotionScheduler.getInstance().moveTo(this, pos);
+  }
+
+  @Override
+  public void stepTo(double pos) {
+    if (prepareStep(pos)) {
+      controller.servoMoveTo(this);
+    }
+  }
+
+  /**
+   * sets the target of a step of a trajectory without writing it - the
+   * MotionScheduler writes the steps of all servos of a controller together
+   * 
+   * @param pos
+   *          - position to move to
+   * @return true if the step should be written to the controller
+   */
+  public boolean prepareStep(double pos) {
+    if (controller == null) {
+      return false;
+    }
+    if (pos < mapper.getMinX()) {
+      pos = mapper.getMinX();
+    }
+    if (pos > mapper.getMaxX()) {
+      pos = mapper.getMaxX();
     }
     targetPos = pos;
-    this.moveTo(pos);
-    // breakMoveToBlocking=false;
-    waitTargetPos();
+    if (!isEnabled()) {
+      enable();
+    }
+    targetOutput = mapper.calcOutput(targetPos);
+    lastActivityTime = System.currentTimeMillis();
+    if (autoDisableTimer != null) {
+      autoDisableTimer.cancel();
+      autoDisableTimer = null;
+    }
     return true;
   }
 
   @Override
   public void waitTargetPos() {
+    CompletableFuture<Boolean> move = MotionScheduler.getInstance().getFuture(this);
+    if (move != null) {
+      try {
+        move.get(30, TimeUnit.SECONDS);
+      } catch (Exception e) {
+        log.info("servo {} waitTargetPos did not complete - {}", getName(), e.getMessage());
+      }
+      return;
+    }
     {
       if (isMoving() || Math.round(lastPos) != Math.round(targetPos)) {
         if (velocity > 0) {
@@ -653,6 +666,24 @@ public class Servo extends Service implements ServoControl {
    */
   @Deprecated
   public void setSpeed(double speed) {
+    double vel = speedToVelocity(speed);
+    // set velocity to 0.0 if the speed = 1.0.. This skips the velocity
+    // calculation logic.
+    if (speed >= 1.0) {
+      vel = maxVelocity;
+    }
+    setVelocity((int) vel);
+  }
+
+  /**
+   * maps the old 0.0 - 1.0 speed values to a velocity
+   * 
+   * @param speed
+   *          - 0.0 - 1.0
+   * @return degrees per second - for speeds of 1.0 or more this is the
+   *         velocity of 1.0, callers use the max velocity instead
+   */
+  public static double speedToVelocity(double speed) {
 
     // KWATTERS: The realtionship between the old set speed value and actual
     // angular velocity was exponential.
@@ -682,13 +713,7 @@ public class Servo extends Service implements ServoControl {
     double slope = 3.25;
     double intercept = 1;
 
-    double vel = Math.exp(slope * speed + intercept);
-    // set velocity to 0.0 if the speed = 1.0.. This skips the velocity
-    // calculation logic.
-    if (speed >= 1.0) {
-      vel = maxVelocity;
-    }
-    setVelocity((int) vel);
+    return Math.exp(slope * Math.min(speed, 1.0) + intercept);
   }
 
   // choose to handle sweep on arduino or in MRL on host computer thread.
@@ -708,8 +733,10 @@ public class Servo extends Service implements ServoControl {
   @Override
   public void stop() {
     isSweeping = false;
-    sweeper = null;
-    controller.servoSweepStop(this);
+    MotionScheduler.getInstance().stop(this);
+    if (controller != null) {
+      controller.servoSweepStop(this);
+    }
     broadcastState();
   }
 
@@ -745,12 +772,8 @@ public class Servo extends Service implements ServoControl {
       // step
       // implemented
     } else {
-      if (isSweeping) {
-        stop();
-      }
-
-      sweeper = new Sweeper(getName());
-      sweeper.start();
+      // swept by the motion scheduler - step degrees every delay ms
+      MotionScheduler.getInstance().sweep(this, mapper.getMinX() + 1, mapper.getMaxX() - 1, step * 1000.0 / Math.max(delay, 1));
     }
 
     isSweeping = true;
@@ -1,7 +1,6 @@
 package org.myrobotlab.service;
 
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 
@@ -13,6 +12,7 @@ import org.apache.solr.common.SolrDocument;
 import org.apache.solr.common.SolrInputDocument;
 import org.myrobotlab.document.Document;
 import org.myrobotlab.document.ProcessingStatus;
+import org.myrobotlab.document.solr.SolrIndexer;
 import org.myrobotlab.framework.Service;
 import org.myrobotlab.framework.ServiceType;
 import org.myrobotlab.logging.Level;
@@ -45,8 +45,30 @@ public class Solr extends Service implements DocumentListener {
 
   transient private HttpSolrServer solrServer;
 
+  /**
+   * batches added documents and sends them in the background
+   */
+  transient private SolrIndexer indexer;
+
   public boolean commitOnFlush = true;
 
+  public int batchSize = 100;
+
+  /**
+   * ms a partial batch waits before it is sent
+   */
+  public int maxLatency = 1000;
+
+  /**
+   * concurrent requests to solr
+   */
+  public int maxInFlight = 4;
+
+  /**
+   * documents buffered or in flight before adding blocks
+   */
+  public int maxPending = 1000;
+
   /*
    * Static list of third party dependencies for this service. The list will be
    * consumed by Ivy to download and manage the appropriate resources
@@ -98,16 +120,18 @@ public class Solr extends Service implements DocumentListener {
     super(n);
   }
 
+  /**
+   * Add a solr document to the index. The document is sent in the background
+   * with the next batch, commit sends all pending documents first.
+   * 
+   * @param doc
+   *          the solr input doc to add to solr.
+   */
   public void addDocument(SolrInputDocument doc) {
     try {
-
-      solrServer.add(doc);
-    } catch (SolrServerException e) {
-      // TODO : retry?
-      log.warn("An exception occurred when trying to add document to the index.", e);
-    } catch (IOException e) {
-      // TODO : maybe retry?
-      log.warn("A network exception occurred when trying to add document to the index.", e);
+      indexer.add(doc);
+    } catch (InterruptedException e) {
+      log.warn("Interrupted while adding document to the index.");
     }
   }
 
@@ -117,19 +141,36 @@ public class Solr extends Service implements DocumentListener {
    */
   public void addDocuments(Collection<SolrInputDocument> docs) {
     try {
-      solrServer.add(docs);
-    } catch (SolrServerException e) {
-      log.warn("An exception occurred when trying to add documents to the index.", e);
-    } catch (IOException e) {
-      log.warn("A network exception occurred when trying to add documents to the index.", e);
+      indexer.add(docs);
+    } catch (InterruptedException e) {
+      log.warn("Interrupted while adding documents to the index.");
+    }
+  }
+
+  /**
+   * Send all pending documents and wait until solr accepted or rejected them.
+   */
+  public void flush() {
+    try {
+      indexer.flush();
+    } catch (InterruptedException e) {
+      log.warn("Interrupted while flushing documents to the index.");
     }
   }
 
+  /**
+   * @return counts of documents added, sent, failed and pending
+   */
+  public String getIndexStats() {
+    return (indexer == null) ? null : indexer.toString();
+  }
+
   /**
    * Commit the solr index and make documents that have been submitted become
    * searchable.
    */
   public void commit() {
+    flush();
     try {
       solrServer.commit();
     } catch (SolrServerException e) {
@@ -140,6 +181,8 @@ public class Solr extends Service implements DocumentListener {
   }
 
   public void deleteDocument(String docId) {
+    // an earlier add of the document must not overtake the delete
+    flush();
     try {
       solrServer.deleteById(docId);
     } catch (Exception e) {
@@ -239,29 +282,63 @@ public class Solr extends Service implements DocumentListener {
     // if someone switches the url, we want to re-create the solr server.
     // this breaks the bean pattern a bit..
     if (solrServer != null) {
-      solrServer = new HttpSolrServer(solrUrl);
+      indexer.close();
+      createSolrServer();
+    }
+  }
+
+  private void createSolrServer() {
+    solrServer = new HttpSolrServer(solrUrl);
+    indexer = new SolrIndexer(solrServer);
+    indexer.setBatchSize(batchSize);
+    indexer.setMaxLatency(maxLatency);
+    indexer.setMaxInFlight(maxInFlight);
+    indexer.setMaxPending(maxPending);
+  }
+
+  public void setBatching(int batchSize, int maxLatency, int maxInFlight) {
+    this.batchSize = batchSize;
+    this.maxLatency = maxLatency;
+    this.maxInFlight = maxInFlight;
+    if (indexer != null) {
+      indexer.setBatchSize(batchSize);
+      indexer.setMaxLatency(maxLatency);
+      indexer.setMaxInFlight(maxInFlight);
+    }
+  }
+
+  public void setMaxPending(int maxPending) {
+    this.maxPending = maxPending;
+    if (indexer != null) {
+      indexer.setMaxPending(maxPending);
     }
   }
 
   @Override
   public void startService() {
     super.startService();
-    solrServer = new HttpSolrServer(solrUrl);
+    createSolrServer();
+  }
+
+  @Override
+  public void stopService() {
+    if (indexer != null) {
+      indexer.close();
+    }
+    super.stopService();
   }
 
   @Override
   public ProcessingStatus onDocuments(List<Document> docs) {
     // Convert the input document to a solr input docs and send it!
-    ArrayList<SolrInputDocument> docsToSend = new ArrayList<SolrInputDocument>();
-    for (Document d : docs) {
-      docsToSend.add(convertDocument(d));
-    }
     try {
-      solrServer.add(docsToSend);
+      for (Document d : docs) {
+        // blocks while the indexer is full
+        indexer.add(convertDocument(d));
+      }
       return ProcessingStatus.OK;
-    } catch (SolrServerException | IOException e) {
-      // TODO Auto-generated catch block
-      e.printStackTrace();
+    } catch (InterruptedException e) {
+      log.warn("Interrupted while adding documents to the index.");
       return ProcessingStatus.DROP;
     }
   }
@@ -278,21 +355,25 @@ public class Solr extends Service implements DocumentListener {
   }
 
   public ProcessingStatus onDocument(Document doc) {
-    // always be batching when sending docs.
-    ArrayList<Document> docs = new ArrayList<Document>();
-    docs.add(doc);
-    return onDocuments(docs);
+    // the indexer does the batching.
+    try {
+      indexer.add(convertDocument(doc));
+      return ProcessingStatus.OK;
+    } catch (InterruptedException e) {
+      log.warn("Interrupted while adding document to the index.");
+      return ProcessingStatus.DROP;
+    }
   }
 
   @Override
   public boolean onFlush() {
-    // NoOp currently, but at some point if we change how this service batches
-    // it's
-    // add messages to solr, we could revisit this.
+    // send what the indexer still buffers
     // or maybe issue a commit here? I hate committing the index so frequently,
     // but maybe it's ok.
     if (commitOnFlush) {
       commit();
+    } else {
+      flush();
     }
     return false;
   }
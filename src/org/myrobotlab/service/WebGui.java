@@ -48,6 +48,7 @@ import org.myrobotlab.framework.Message;
 import org.myrobotlab.framework.Service;
 import org.myrobotlab.framework.ServiceEnvironment;
 import org.myrobotlab.framework.ServiceType;
+import org.myrobotlab.framework.StatePublisher;
 import org.myrobotlab.framework.Status;
 import org.myrobotlab.framework.interfaces.ServiceInterface;
 import org.myrobotlab.io.FileIO;
@@ -585,6 +586,8 @@ public class WebGui extends Service implements AuthorizationProvider, Gateway, H
 
       if (!r.isSuspended()) {
         r.suspend();
+        // a new browser has no state to patch
+        StatePublisher.getInstance().resync(null, getName());
       }
       response.addHeader("Content-Type", CodecUtils.MIME_TYPE_JSON);
 
@@ -701,11 +704,20 @@ public class WebGui extends Service implements AuthorizationProvider, Gateway, H
     }
   }
 
+  /**
+   * batched form of onLogEvent - a whole batch of log entries is encoded and
+   * broadcast once. Same rules - NO LOGGING in here !
+   */
+  public void onLogEvents(Message msg) {
+    onLogEvent(msg);
+  }
+
   public void onRegistered(ServiceInterface si) {
     // new service
     // subscribe to the status events
     subscribe(si.getName(), "publishStatus");
-    subscribe(si.getName(), "publishState");
+    // only the changes of the state - mrl.js patches its copy
+    subscribe(si.getName(), StatePublisher.PATCH_TOPIC);
 
     // for distributed Runtimes
     if (si.isRuntime()) {
@@ -9,6 +9,8 @@ import org.myrobotlab.logging.Level;
 import org.myrobotlab.logging.LoggerFactory;
 import org.myrobotlab.logging.Logging;
 import org.myrobotlab.logging.LoggingFactory;
+import org.myrobotlab.memory.BoundedCache;
+import org.myrobotlab.memory.CacheManager;
 import org.slf4j.Logger;
 import org.wikidata.wdtk.datamodel.interfaces.EntityDocument;
 import org.wikidata.wdtk.datamodel.interfaces.GlobeCoordinatesValue;
@@ -34,6 +36,18 @@ public class WikiDataFetcher extends Service {
   static String language = "en";
   static String website = "enwiki";
 
+  static final BoundedCache.Loader<EntityDocument> fetcher = new BoundedCache.Loader<EntityDocument>() {
+    @Override
+    public EntityDocument load(String key) throws Exception {
+      WikibaseDataFetcher wbdf = WikibaseDataFetcher.getWikidataDataFetcher();
+      int pos = key.indexOf(':');
+      if (pos == -1) {
+        return wbdf.getEntityDocument(key);
+      }
+      return wbdf.getEntityDocumentByTitle(key.substring(0, pos), key.substring(pos + 1));
+    }
+  };
+
   public static void main(String[] args) {
     LoggingFactory.init(Level.INFO);
 
@@ -79,9 +93,8 @@ public class WikiDataFetcher extends Service {
   }
 
   private static EntityDocument getWiki(String query) throws MediaWikiApiErrorException {
-    WikibaseDataFetcher wbdf = WikibaseDataFetcher.getWikidataDataFetcher();
     query = upperCaseAllFirst(query);
-    EntityDocument wiki = wbdf.getEntityDocumentByTitle(website, query);
+    EntityDocument wiki = fetch(website + ":" + query);
     if (wiki == null) {
       System.out.println("ERROR ! Can't get the document : " + query);
     }
@@ -89,8 +102,7 @@ public class WikiDataFetcher extends Service {
   }
 
   private static EntityDocument getWikiById(String query) throws MediaWikiApiErrorException {
-    WikibaseDataFetcher wbdf = WikibaseDataFetcher.getWikidataDataFetcher();
-    EntityDocument wiki = wbdf.getEntityDocument(upperCaseAllFirst(query));
+    EntityDocument wiki = fetch(upperCaseAllFirst(query));
     // System.out.println( (String) wiki.getEntityId().getId());
     if (wiki == null) {
       System.out.println("ERROR ! Can't get the document : " + query);
@@ -98,6 +110,25 @@ public class WikiDataFetcher extends Service {
     return wiki;
   }
 
+  /**
+   * gets the document from the documents fetched in the last hour, or from
+   * wikidata
+   * 
+   * @param key
+   *          site:title or an id - ids have no ':'
+   */
+  private static EntityDocument fetch(String key) throws MediaWikiApiErrorException {
+    BoundedCache documents = CacheManager.getInstance().createCache("WikiDataFetcher", 1000, 3600000);
+    try {
+      return documents.get(key, fetcher);
+    } catch (MediaWikiApiErrorException | RuntimeException e) {
+      throw e;
+    } catch (Exception e) {
+      // the loader only throws the above
+      throw new IllegalStateException(e);
+    }
+  }
+
   // TODO Add comments to build the javadoc
   public String getDescription(String query) throws MediaWikiApiErrorException {
     EntityDocument document = getWiki(query);
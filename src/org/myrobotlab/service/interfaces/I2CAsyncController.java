@@ -0,0 +1,46 @@
+package org.myrobotlab.service.interfaces;
+
+import org.myrobotlab.i2c.I2CRequest;
+
+/**
+ * Non blocking variant of the i2c reads of I2CController. Requests are
+ * pipelined on the bus, so a device can have several reads in flight when it
+ * samples at a high rate.
+ */
+public interface I2CAsyncController extends I2CController {
+
+  /**
+   * starts reading bytes from an i2c device
+   *
+   * @param control
+   *          the device
+   * @param busAddress
+   *          bus address
+   * @param deviceAddress
+   *          device address
+   * @param size
+   *          number of bytes to be read
+   * @return the request - wait on it or set a listener on it for the data
+   */
+  I2CRequest i2cReadAsync(I2CControl control, int busAddress, int deviceAddress, int size);
+
+  /**
+   * writes bytes and starts reading the answer of an i2c device
+   *
+   * @param control
+   *          the device
+   * @param busAddress
+   *          bus address
+   * @param deviceAddress
+   *          device address
+   * @param writeBuffer
+   *          buffer of data to be written to the i2c device in one go
+   * @param writeSize
+   *          number of bytes to be written from buffer
+   * @param readSize
+   *          number of bytes to be read
+   * @return the request - wait on it or set a listener on it for the data
+   */
+  I2CRequest i2cWriteReadAsync(I2CControl control, int busAddress, int deviceAddress, byte[] writeBuffer, int writeSize, int readSize);
+
+}
@@ -34,6 +34,11 @@ public interface NeoPixelController extends Attachable {
   
   public void neoPixelAttach(NeoPixel neopixel, int pin, int numberOfPixels);
   public void neoPixelWriteMatrix(NeoPixel neopixel, List<Integer> msg);
+  /**
+   * @param neopixel the neopixel
+   * @param buffer address, red, green, blue of each pixel to write
+   */
+  public void neoPixelWriteMatrix(NeoPixel neopixel, int[] buffer);
   public void neoPixelSetAnimation(NeoPixel neopixel, int animation, int red, int green, int blue, int speed);
   
 }
@@ -0,0 +1,20 @@
+package org.myrobotlab.service.interfaces;
+
+import java.util.List;
+
+/**
+ * A servo controller which can write the positions of several servos at once,
+ * e.g. as one burst on a bus. Used by the MotionScheduler to write all servos
+ * of a controller which moved in a tick.
+ */
+public interface ServoBatchController extends ServoController {
+
+  /**
+   * moves all the servos to their target output at once
+   * 
+   * @param servos
+   *          the servos
+   */
+  void servoWriteBatch(List<ServoControl> servos);
+
+}
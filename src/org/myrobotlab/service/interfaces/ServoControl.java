@@ -306,6 +306,16 @@ public interface ServoControl extends AbsolutePositionControl, Attachable, Messa
    */
   boolean moveToBlocking(double pos);
 
+  /**
+   * moves to a position of a trajectory - called by the MotionScheduler every
+   * tick of a move, so it should be light - no events and no broadcast of the
+   * state
+   * 
+   * @param pos
+   *          - position to move to
+   */
+  void stepTo(double pos);
+
   /**
    * Sometime we need to override autoDisable :
    * servoGui slider / tracking / gestures  that leave your arms in the air ...
@@ -40,6 +40,11 @@ angular.module('mrlapp.mrl', []).provider('mrl', [function() {
     var connectedCallbacks = [];
     var deferred = null;
     var msgInterfaces = {};
+    // last state of each service - patched by onStatePatch
+    var states = {};
+    // version of each state, and the services a full state was requested of
+    var stateVersions = {};
+    var stateRequests = {};
     // https://github.com/Atmosphere/atmosphere/wiki/jQuery.atmosphere.js-atmosphere.js-API
     // See the following link for all websocket configuration 
     // https://raw.githubusercontent.com/Atmosphere/atmosphere-javascript/master/modules/javascript/src/main/webapp/javascript/atmosphere.js
@@ -218,6 +223,41 @@ angular.module('mrlapp.mrl', []).provider('mrl', [function() {
             break;
         }
     }
+    // applies a StatePatch (json patch operations) to the copy of the
+    // service state and returns the patched state - null if the copy
+    // is missing or a version was missed, then a full state is requested
+    this.applyStatePatch = function(name, patch) {
+        var state = states[name];
+        if (!patch.full && (!state || patch.version != stateVersions[name] + 1)) {
+            if (!stateRequests[name]) {
+                stateRequests[name] = true;
+                _self.sendTo(name, "requestFullState", _self.gateway.name);
+            }
+            return null;
+        }
+        delete stateRequests[name];
+        for (var i = 0; i < patch.ops.length; i++) {
+            var op = patch.ops[i];
+            if (op.path == '') {
+                state = op.value;
+                continue;
+            }
+            var tokens = op.path.substring(1).split('/');
+            var parent = state;
+            for (var j = 0; j < tokens.length - 1; j++) {
+                parent = parent[tokens[j].replace(/~1/g, '/').replace(/~0/g, '~')];
+            }
+            var key = tokens[tokens.length - 1].replace(/~1/g, '/').replace(/~0/g, '~');
+            if (op.op == 'remove') {
+                delete parent[key];
+            } else {
+                parent[key] = op.value;
+            }
+        }
+        states[name] = state;
+        stateVersions[name] = patch.version;
+        return state;
+    }
     // onMessage gets all messaging from the Nettophere server
     // all asynchronous callbacks will be routhed here.  All
     // messages will be in a Message strucutre except for the 
@@ -231,6 +271,17 @@ angular.module('mrlapp.mrl', []).provider('mrl', [function() {
             var msg;
             try {
                 msg = jQuery.parseJSON(body);
+                // state changes are delivered as full states
+                if (msg.method == 'onStatePatch') {
+                    var state = _self.applyStatePatch(msg.sender, msg.data[0]);
+                    if (state == null) {
+                        return;
+                    }
+                    msg.method = 'onState';
+                    msg.data = [state];
+                } else if (msg.method == 'onState') {
+                    states[msg.sender] = msg.data[0];
+                }
                 // THE CENTER OF ALL CALLBACKS
                 // process name callbacks - most common
                 // console.log('nameCallbackMap');
@@ -619,7 +670,7 @@ angular.module('mrlapp.mrl', []).provider('mrl', [function() {
                                 // expected 'framework' level subscriptions - we should at a minimum
                                 // be interested in state and status changes of the services
                                 _self.sendTo(_self.gateway.name, "subscribe", name, 'publishStatus');
-                                _self.sendTo(_self.gateway.name, "subscribe", name, 'publishState');
+                                _self.sendTo(_self.gateway.name, "subscribe", name, 'publishStatePatch');
                                 _self.sendTo(_self.gateway.name, "subscribe", name, 'getMethodMap');
                                 _self.sendTo(name, "broadcastState");
                                 // below we subscribe to the Angular callbacks - where anything sent
@@ -40,18 +40,14 @@ angular.module('mrlapp.service.LogGui', [])
             _self.updateState(msg.data[0]);
             $scope.$apply();
             break;
+        case 'onLogEvents':
+        case 'onLogTail':
+            // a batch of entries
+            _self.append(msg.data[0].join('\n'));
+            $scope.$apply();
+            break;
         case 'onLogEvent':
-            $scope.log += '\n' + msg.data[0];
-            // TODO: test this.
-            var maxLength = 50000;
-            var length = $scope.log.length;
-            if (length > maxLength) {
-            	// avoid if newline is the first char.. 
-            	var nextLine = $scope.log.indexOf("\n",1);
-            	if (nextLine != -1) {
-            		$scope.log = $scope.log.substring(nextLine, length);
-            	} 
-            }
+            _self.append(msg.data[0]);
             $scope.$apply();
             break;
         default:
@@ -61,6 +57,24 @@ angular.module('mrlapp.service.LogGui', [])
     }
     ;
 
+    this.append = function(entries) {
+        if (entries.length == 0) {
+            return;
+        }
+        $scope.log += '\n' + entries;
+        // TODO: test this.
+        var maxLength = 50000;
+        var length = $scope.log.length;
+        if (length > maxLength) {
+        	// avoid if newline is the first char.. 
+        	var nextLine = $scope.log.indexOf("\n", length - maxLength);
+        	if (nextLine != -1) {
+        		$scope.log = $scope.log.substring(nextLine, length);
+        	} 
+        }
+    }
+    ;
+
     $scope.clear = function() {
         $scope.log = '';
         $scope.apply();
@@ -76,8 +90,11 @@ angular.module('mrlapp.service.LogGui', [])
     }
     ;
     
-    msg.subscribe('publishLogEvent')
+    msg.subscribe('publishLogEvents');
+    msg.subscribe('getLogTail');
     //mrl.subscribe($scope.service.name, 'pulse');
     msg.subscribe(this);
+    // recent history
+    msg.send('getLogTail');
 }
 ]);
@@ -0,0 +1,117 @@
+package org.myrobotlab.chess;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.Test;
+
+public class SearchTest {
+
+  /* counts the legal move sequences - and checks the key on the way */
+  static long perft(Board board, int depth) {
+    assertEquals(board.computeKey(), board.getKey());
+    if (depth == 0)
+      return 1;
+    long n = 0;
+    List<HMove> moves = board.gen();
+    for (HMove m : moves) {
+      long key = board.getKey();
+      if (!board.makeMove(m))
+        continue;
+      n += perft(board, depth - 1);
+      board.takeBack();
+      assertEquals(key, board.getKey());
+    }
+    return n;
+  }
+
+  @Test
+  public void testZobrist() {
+    Board board = new Board();
+    assertEquals(8902, perft(board, 3));
+    board.setFen(SearchBenchmark.POSITIONS[1]);
+    assertEquals(2039, perft(board, 2));
+    board.setFen(SearchBenchmark.POSITIONS[2]);
+    assertEquals(2812, perft(board, 3));
+
+    // the same position by other moves has the same key
+    Board a = new Board();
+    Board b = new Board();
+    play(a, "g1f3", "g8f6", "b1c3");
+    play(b, "b1c3", "g8f6", "g1f3");
+    assertEquals(a.getKey(), b.getKey());
+    play(a, "b8c6");
+    assertFalse(a.getKey() == b.getKey());
+  }
+
+  static void play(Board board, String... moves) {
+    for (String move : moves) {
+      int from = (move.charAt(0) - 'a') + 8 * ('8' - move.charAt(1));
+      int to = (move.charAt(2) - 'a') + 8 * ('8' - move.charAt(3));
+      boolean made = false;
+      for (HMove m : board.gen()) {
+        if (m.getFrom() == from && m.getTo() == to) {
+          made = board.makeMove(m);
+          break;
+        }
+      }
+      assertTrue(move, made);
+    }
+  }
+
+  @Test
+  public void testCopy() {
+    Board board = new Board();
+    play(board, "e2e4", "e7e5");
+    Board copy = new Board(board);
+    assertEquals(board.getKey(), copy.getKey());
+    // taking back on the copy leaves the board alone
+    copy.takeBack();
+    copy.takeBack();
+    assertEquals(new Board().getKey(), copy.getKey());
+    assertEquals(board.computeKey(), board.getKey());
+    board.takeBack();
+    board.takeBack();
+    assertEquals(copy.toString(), board.toString());
+  }
+
+  @Test
+  public void testTable() {
+    TranspositionTable tt = new TranspositionTable(1024);
+    HMove m = new HMove(52, 36, 0, 16, 'P');
+    tt.store(123456789L, 7, TranspositionTable.LOWER, -321, m);
+    long entry = tt.probe(123456789L);
+    assertEquals(7, TranspositionTable.getDepth(entry));
+    assertEquals(TranspositionTable.LOWER, TranspositionTable.getFlag(entry));
+    assertEquals(-321, TranspositionTable.getScore(entry));
+    assertTrue(TranspositionTable.isMove(entry, m));
+    // same slot, other position
+    assertEquals(0, tt.probe(123456789L + 1024));
+  }
+
+  @Test
+  public void testMate() {
+    for (int threads = 1; threads <= 2; ++threads) {
+      Search search = new Search();
+      search.setThreads(threads);
+      search.setMaxDepth(5);
+      // back rank mate
+      search.board.setFen("6k1/5ppp/8/8/8/8/5PPP/3R2K1 w - - 0 1");
+      search.think();
+      assertEquals("Rd1-d8", search.getBest().toString());
+      assertTrue(search.getNodes() > 0);
+    }
+  }
+
+  @Test
+  public void testBenchmark() {
+    // a shallow run over all the positions
+    long[] one = SearchBenchmark.run(4, 1, false);
+    long[] two = SearchBenchmark.run(4, 2, false);
+    assertTrue(one[0] > 0);
+    assertTrue(two[0] > 0);
+  }
+}
@@ -0,0 +1,140 @@
+package org.myrobotlab.codec;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.myrobotlab.framework.Message;
+
+public class FlightRecorderTest {
+
+  File dir;
+
+  @Before
+  public void setUp() {
+    dir = new File(System.getProperty("java.io.tmpdir"), "flight-" + System.nanoTime());
+  }
+
+  @After
+  public void tearDown() {
+    File[] files = dir.listFiles();
+    if (files != null) {
+      for (File f : files) {
+        f.delete();
+      }
+    }
+    dir.delete();
+  }
+
+  static Message msg(String sender, String name, String method, Object... data) {
+    Message msg = new Message();
+    msg.sender = sender;
+    msg.name = name;
+    msg.sendingMethod = "send";
+    msg.method = method;
+    msg.data = data;
+    return msg;
+  }
+
+  FlightLog record(int count) throws Exception {
+    FlightRecorder recorder = new FlightRecorder(dir, "test");
+    // small segments - so they rotate
+    recorder.setSegmentSize(16 * 1024);
+    recorder.start(null);
+    for (int i = 0; i < count; ++i) {
+      String servo = (i % 10 == 0) ? "neck" : "jaw";
+      recorder.write(msg("python", servo, "moveTo", (double) i));
+    }
+    recorder.stop();
+    recorder.sync();
+    return new FlightLog(dir, "test");
+  }
+
+  @Test
+  public void testReadAll() throws Exception {
+    FlightLog log = record(2000);
+    assertEquals(2000, log.getCount());
+    assertTrue(log.getSegmentCount() > 1);
+    assertEquals(Arrays.asList("jaw", "neck", "python"), new ArrayList<String>(log.getServices()));
+
+    FlightLog.Cursor cursor = log.read();
+    long last = 0;
+    for (int i = 0; i < 2000; ++i) {
+      FlightLog.Entry e = cursor.next();
+      assertTrue(e.time > last);
+      last = e.time;
+      assertEquals("moveTo", e.msg.method);
+      assertEquals((double) i, e.msg.data[0]);
+    }
+    assertNull(cursor.next());
+    assertEquals(log.getEndTime(), last);
+  }
+
+  @Test
+  public void testReadRange() throws Exception {
+    FlightLog log = record(2000);
+    List<Long> times = new ArrayList<Long>();
+    FlightLog.Cursor cursor = log.read();
+    FlightLog.Entry e;
+    while ((e = cursor.next()) != null) {
+      times.add(e.time);
+    }
+
+    // a service
+    cursor = log.read(0, Long.MAX_VALUE, Arrays.asList("neck"));
+    int count = 0;
+    while ((e = cursor.next()) != null) {
+      assertEquals("neck", e.msg.name);
+      ++count;
+    }
+    assertEquals(200, count);
+
+    // a time range
+    cursor = log.read(times.get(700), times.get(1299), null);
+    for (int i = 700; i < 1300; ++i) {
+      assertEquals((double) i, cursor.next().msg.data[0]);
+    }
+    assertNull(cursor.next());
+  }
+
+  @Test
+  public void testUnindexedSegment() throws Exception {
+    FlightRecorder recorder = new FlightRecorder(dir, "test");
+    recorder.start(null);
+    for (int i = 0; i < 300; ++i) {
+      recorder.write(msg("python", "jaw", "moveTo", i));
+    }
+    // still recording - read without an index
+    FlightLog log = new FlightLog(dir, "test");
+    assertEquals(300, log.getCount());
+    recorder.stop();
+    recorder.sync();
+  }
+
+  @Test
+  public void testReplay() throws Exception {
+    FlightLog log = record(500);
+    final List<Message> replayed = new ArrayList<Message>();
+    FlightReplay replay = new FlightReplay(log);
+    replay.setTarget(new FlightReplay.Target() {
+      @Override
+      public void inject(Message msg) {
+        replayed.add(msg);
+      }
+    });
+    replay.setSpeed(0);
+    replay.setServices(Arrays.asList("neck"));
+    assertEquals(50, replay.replay());
+    assertEquals(50, replayed.size());
+    assertEquals(490.0, replayed.get(49).data[0]);
+  }
+
+}
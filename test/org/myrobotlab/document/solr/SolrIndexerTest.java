@@ -0,0 +1,156 @@
+package org.myrobotlab.document.solr;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.solr.client.solrj.SolrRequest;
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.response.UpdateResponse;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.SolrException.ErrorCode;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.util.NamedList;
+import org.junit.Test;
+
+public class SolrIndexerTest {
+
+  /**
+   * counts added documents, fails the first requests and rejects documents
+   * with a "bad" field
+   */
+  static class TestSolrServer extends SolrServer {
+    private static final long serialVersionUID = 1L;
+    final AtomicInteger failures = new AtomicInteger();
+    final AtomicInteger docs = new AtomicInteger();
+    final AtomicInteger inFlight = new AtomicInteger();
+    final AtomicInteger maxInFlight = new AtomicInteger();
+    final List<Integer> batches = new ArrayList<Integer>();
+    long delay = 0;
+
+    @Override
+    public UpdateResponse add(Collection<SolrInputDocument> batch) throws SolrServerException, IOException {
+      int n = inFlight.incrementAndGet();
+      try {
+        synchronized (this) {
+          maxInFlight.set(Math.max(maxInFlight.get(), n));
+        }
+        if (delay > 0) {
+          Thread.sleep(delay);
+        }
+        if (failures.getAndDecrement() > 0) {
+          throw new IOException("connection refused");
+        }
+        for (SolrInputDocument doc : batch) {
+          if (doc.getFieldValue("bad") != null) {
+            throw new SolrException(ErrorCode.BAD_REQUEST, "bad document");
+          }
+        }
+        docs.addAndGet(batch.size());
+        synchronized (batches) {
+          batches.add(batch.size());
+        }
+        return new UpdateResponse();
+      } catch (InterruptedException e) {
+        throw new IOException(e);
+      } finally {
+        inFlight.decrementAndGet();
+      }
+    }
+
+    @Override
+    public NamedList<Object> request(SolrRequest request) throws SolrServerException, IOException {
+      return null;
+    }
+
+    @Override
+    public void shutdown() {
+    }
+  }
+
+  static SolrInputDocument doc(int id) {
+    SolrInputDocument doc = new SolrInputDocument();
+    doc.setField("id", "doc" + id);
+    return doc;
+  }
+
+  @Test
+  public void testBatching() throws Exception {
+    TestSolrServer server = new TestSolrServer();
+    SolrIndexer indexer = new SolrIndexer(server);
+    indexer.setBatchSize(10);
+    indexer.setMaxLatency(60000);
+    for (int i = 0; i < 25; ++i) {
+      indexer.add(doc(i));
+    }
+    indexer.flush();
+    assertEquals(25, server.docs.get());
+    assertEquals(3, server.batches.size());
+    assertEquals(25, indexer.getSent());
+    assertEquals(0, indexer.getPending());
+    indexer.close();
+  }
+
+  @Test
+  public void testMaxLatency() throws Exception {
+    TestSolrServer server = new TestSolrServer();
+    SolrIndexer indexer = new SolrIndexer(server);
+    indexer.setMaxLatency(50);
+    indexer.add(doc(1));
+    long start = System.currentTimeMillis();
+    while (server.docs.get() == 0 && System.currentTimeMillis() - start < 5000) {
+      Thread.sleep(10);
+    }
+    assertEquals(1, server.docs.get());
+    indexer.close();
+  }
+
+  @Test
+  public void testRetryAndAccounting() throws Exception {
+    TestSolrServer server = new TestSolrServer();
+    server.failures.set(2);
+    SolrIndexer indexer = new SolrIndexer(server);
+    indexer.setBatchSize(5);
+    indexer.setMaxInFlight(1);
+    indexer.setRetries(3, 1, 10);
+    for (int i = 0; i < 10; ++i) {
+      indexer.add(doc(i));
+    }
+    // rejected by solr - not retried
+    SolrInputDocument bad = doc(10);
+    bad.setField("bad", "true");
+    indexer.add(bad);
+    indexer.flush();
+    assertEquals(10, indexer.getSent());
+    assertEquals(1, indexer.getFailed());
+    assertEquals(2, indexer.getRetries());
+    assertEquals(11, indexer.getAdded());
+    indexer.close();
+  }
+
+  @Test
+  public void testBackPressure() throws Exception {
+    TestSolrServer server = new TestSolrServer();
+    server.delay = 20;
+    SolrIndexer indexer = new SolrIndexer(server);
+    indexer.setBatchSize(10);
+    indexer.setMaxInFlight(2);
+    indexer.setMaxPending(30);
+    for (int i = 0; i < 200; ++i) {
+      indexer.add(doc(i));
+      assertTrue(indexer.getPending() <= 30);
+    }
+    indexer.flush();
+    assertEquals(200, server.docs.get());
+    assertTrue(server.maxInFlight.get() <= 2);
+    assertTrue(server.maxInFlight.get() > 1);
+    indexer.close();
+  }
+
+}
@@ -0,0 +1,201 @@
+package org.myrobotlab.framework;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.myrobotlab.framework.interfaces.MessageSender;
+
+public class FileMsgScannerTest {
+
+  File dir;
+
+  final LinkedBlockingQueue<Message> sent = new LinkedBlockingQueue<Message>();
+
+  final MessageSender sender = new MessageSender() {
+
+    @Override
+    public String getName() {
+      return "test";
+    }
+
+    @Override
+    public void send(String name, String method) {
+    }
+
+    @Override
+    public void send(String name, String method, Object... data) {
+    }
+
+    @Override
+    public void send(Message msg) {
+      sent.add(msg);
+    }
+
+    @Override
+    public Object sendBlocking(String name, String method) {
+      return null;
+    }
+
+    @Override
+    public Object sendBlocking(String name, String method, Object... data) {
+      return null;
+    }
+
+    @Override
+    public Object sendBlocking(String name, Integer timeout, String method, Object... data) {
+      return null;
+    }
+
+    @Override
+    public Object sendBlocking(Message msg, Integer timeout) {
+      return null;
+    }
+  };
+
+  @Before
+  public void setUp() {
+    dir = new File(System.getProperty("java.io.tmpdir"), "msgs-" + System.nanoTime());
+    dir.mkdirs();
+  }
+
+  @After
+  public void tearDown() {
+    for (File f : dir.listFiles()) {
+      f.delete();
+    }
+    dir.delete();
+  }
+
+  /**
+   * writes a file the way it should be - under another name, then renamed
+   */
+  File drop(String name, String content) throws Exception {
+    File part = new File(dir, name + ".part");
+    FileOutputStream out = new FileOutputStream(part);
+    out.write(content.getBytes("UTF-8"));
+    out.close();
+    File json = new File(dir, name);
+    assertTrue(part.renameTo(json));
+    return json;
+  }
+
+  static String json(String name, String method, int i) {
+    return String.format("{\"name\":\"%s\",\"method\":\"%s\",\"data\":[%d]}", name, method, i);
+  }
+
+  @Test
+  public void testParse() throws Exception {
+    // one message, pretty printed
+    File single = drop("a.1.json", "{\n  \"name\": \"servo\",\n  \"method\": \"moveTo\",\n  \"data\": [ 10 ]\n}\n");
+    List<Message> msgs = FileMsgScanner.parse(single);
+    assertEquals(1, msgs.size());
+    assertEquals("servo", msgs.get(0).name);
+
+    // json lines
+    StringBuilder lines = new StringBuilder();
+    for (int i = 0; i < 100; ++i) {
+      lines.append(json("servo", "moveTo", i)).append("\n");
+    }
+    msgs = FileMsgScanner.parse(drop("a.2.json", lines.toString()));
+    assertEquals(100, msgs.size());
+    assertEquals("moveTo", msgs.get(99).method);
+  }
+
+  @Test
+  public void testIngestInOrder() throws Exception {
+    FileMsgScanner scanner = new FileMsgScanner(dir, "a", sender);
+    List<File> files = new ArrayList<File>();
+    for (int f = 0; f < 20; ++f) {
+      StringBuilder lines = new StringBuilder();
+      for (int i = 0; i < 50; ++i) {
+        lines.append(json((i % 2 == 0) ? "left" : "right", "moveTo", f * 50 + i)).append("\n");
+      }
+      files.add(drop(String.format("a.%03d.json", f), lines.toString()));
+    }
+    drop("b.1.json", json("other", "moveTo", 0));
+    // a file which is not a message - but was just written
+    drop("a.999.json", "{ \"name\": ");
+
+    scanner.ingest(scanner.scan());
+    assertEquals(1000, sent.size());
+    int left = -2;
+    int right = -1;
+    for (Message msg : sent) {
+      int i = ((Number) msg.data[0]).intValue();
+      if ("left".equals(msg.name)) {
+        assertEquals(left + 2, i);
+        left = i;
+      } else {
+        assertEquals(right + 2, i);
+        right = i;
+      }
+    }
+    for (File f : files) {
+      assertFalse(f.exists());
+    }
+    // not ours
+    assertTrue(new File(dir, "b.1.json").exists());
+    // retried until it settles
+    assertEquals(1, scanner.pending.size());
+    scanner.close();
+    scanner.parsers.shutdownNow();
+  }
+
+  @Test
+  public void testHoldsOrder() throws Exception {
+    FileMsgScanner scanner = new FileMsgScanner(dir, "a", sender);
+    drop("a.1.json", json("servo", "moveTo", 1));
+    // still being written
+    File partial = drop("a.2.json", "{ \"name\": ");
+    drop("a.3.json", json("servo", "moveTo", 3));
+
+    scanner.ingest(scanner.scan());
+    assertEquals(1, sent.size());
+    assertEquals(2, scanner.pending.size());
+    assertTrue(new File(dir, "a.3.json").exists());
+
+    // dropped later but sorts first - waits for the files held back
+    drop("a.0.json", json("servo", "moveTo", 4));
+    partial.delete();
+    drop("a.2.json", json("servo", "moveTo", 2));
+    scanner.ingest(scanner.scan());
+    assertEquals(4, sent.size());
+    int expected = 1;
+    for (Message msg : sent) {
+      assertEquals(expected++, ((Number) msg.data[0]).intValue());
+    }
+    assertTrue(scanner.pending.isEmpty());
+    scanner.close();
+    scanner.parsers.shutdownNow();
+  }
+
+  @Test
+  public void testWatch() throws Exception {
+    FileMsgScanner scanner = new FileMsgScanner(dir, "a", sender);
+    scanner.start();
+    try {
+      // before and after it started
+      drop("a.1.json", json("servo", "moveTo", 1));
+      assertEquals(1, ((Number) sent.poll(10, TimeUnit.SECONDS).data[0]).intValue());
+      drop("a.2.json", json("servo", "moveTo", 2) + "\n" + json("servo", "moveTo", 3));
+      assertEquals(2, ((Number) sent.poll(10, TimeUnit.SECONDS).data[0]).intValue());
+      assertEquals(3, ((Number) sent.poll(10, TimeUnit.SECONDS).data[0]).intValue());
+    } finally {
+      scanner.scanning = false;
+      scanner.interrupt();
+      scanner.join();
+    }
+  }
+
+}
@@ -0,0 +1,69 @@
+package org.myrobotlab.framework;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+import org.myrobotlab.codec.CodecUtils;
+
+import com.google.gson.JsonElement;
+
+public class StatePatchTest {
+
+  static class Servo {
+    String name = "i01.head.neck";
+    double pos = 90;
+    double velocity = -1;
+    boolean isSweeping = false;
+    List<Integer> pins = new ArrayList<Integer>();
+    Map<String, String> controllers = new HashMap<String, String>();
+    String lastError;
+  }
+
+  @Test
+  public void testDiffAndApply() {
+    Servo servo = new Servo();
+    servo.pins.add(3);
+    servo.controllers.put("i01.left", "Arduino");
+    JsonElement before = CodecUtils.toJsonTree(servo);
+
+    servo.pos = 120.5;
+    servo.pins.add(4);
+    servo.controllers.put("i01/right", "Arduino");
+    servo.lastError = "stalled";
+    JsonElement after = CodecUtils.toJsonTree(servo);
+
+    StatePatch patch = StatePatch.diff("neck", 2, before, after);
+    assertEquals(4, patch.ops.size());
+    assertTrue(patch.toString().contains("replace /pos 120.5"));
+    // keys with a / are escaped
+    assertTrue(patch.toString().contains("add /controllers/i01~1right"));
+
+    JsonElement patched = patch.apply(CodecUtils.toJsonTree(CodecUtils.fromJson(before.toString(), Servo.class)));
+    assertEquals(after, patched);
+
+    // and back
+    StatePatch back = StatePatch.diff("neck", 3, after, before);
+    assertEquals(before, back.apply(patched));
+
+    // nothing changed
+    assertTrue(StatePatch.diff("neck", 4, after, CodecUtils.toJsonTree(servo)).isEmpty());
+  }
+
+  @Test
+  public void testFull() {
+    Servo servo = new Servo();
+    JsonElement state = CodecUtils.toJsonTree(servo);
+    StatePatch full = StatePatch.full("neck", 1, state);
+    assertTrue(full.full);
+    assertEquals(1, full.ops.size());
+    assertEquals("", full.ops.get(0).path);
+    assertEquals(state, full.apply(null));
+  }
+
+}
@@ -0,0 +1,87 @@
+package org.myrobotlab.genetic;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+
+public class ParallelGeneticAlgorithmTest {
+
+  // the number of bits set
+  static final ParallelGeneticAlgorithm.Fitness ONES = new ParallelGeneticAlgorithm.Fitness() {
+    @Override
+    public double fitness(ParallelGeneticAlgorithm.Genome genome) {
+      int ones = 0;
+      for (int i = 0; i < genome.size(); ++i) {
+        if (genome.get(i)) {
+          ++ones;
+        }
+      }
+      return ones;
+    }
+  };
+
+  @Test
+  public void testEvolves() {
+    ParallelGeneticAlgorithm ga = new ParallelGeneticAlgorithm(ONES, 100, 100, 0.7, 0.01);
+    ga.setSeed(1);
+    ga.doGeneration(1);
+    double first = ga.getBestFitness();
+    ParallelGeneticAlgorithm.Genome best = ga.doGeneration(200);
+    assertTrue(ga.getBestFitness() > first + 20);
+    assertEquals(ga.getBestFitness(), ONES.fitness(best), 0);
+    assertEquals(100, best.toString().length());
+
+    ga.setSeed(1);
+    ga.setTournamentSize(3);
+    ga.doGeneration(200);
+    assertTrue(ga.getBestFitness() > first + 20);
+  }
+
+  @Test
+  public void testRepeatable() {
+    ParallelGeneticAlgorithm one = new ParallelGeneticAlgorithm(ONES, 101, 130, 0.7, 0.01);
+    one.setPool(new ForkJoinPool(1));
+    one.setSeed(42);
+    ParallelGeneticAlgorithm four = new ParallelGeneticAlgorithm(ONES, 101, 130, 0.7, 0.01);
+    four.setPool(new ForkJoinPool(4));
+    four.setSeed(42);
+    assertEquals(one.doGeneration(30).toString(), four.doGeneration(30).toString());
+  }
+
+  @Test
+  public void testCrossover() {
+    ParallelGeneticAlgorithm ga = new ParallelGeneticAlgorithm(ONES, 3, 150, 1, 0);
+    long[] src = new long[] { 0, 0, 0, -1, -1, -1 };
+    long[] dst = new long[3];
+    for (int cut = 1; cut < 150; ++cut) {
+      ga.crossover(src, 0, 3, dst, 0, cut);
+      ParallelGeneticAlgorithm.Genome child = new ParallelGeneticAlgorithm.Genome(dst, 0, 150);
+      for (int i = 0; i < 150; ++i) {
+        assertEquals(i >= cut, child.get(i));
+      }
+    }
+    assertEquals(0x5, new ParallelGeneticAlgorithm.Genome(new long[] { 0x5L << 60 }, 0, 64).getBits(60, 13));
+  }
+
+  @Test
+  public void testAlias() {
+    ParallelGeneticAlgorithm ga = new ParallelGeneticAlgorithm(ONES, 5, 8, 1, 0);
+    double[] fitness = new double[] { 1, 0, 2, 3, 4 };
+    System.arraycopy(fitness, 0, ga.scores, 0, 5);
+    ga.buildAlias();
+    int[] picked = new int[5];
+    SplittableRandom random = new SplittableRandom(7);
+    for (int i = 0; i < 100000; ++i) {
+      ++picked[ga.select(random)];
+    }
+    assertEquals(0, picked[1]);
+    for (int i = 0; i < 5; ++i) {
+      assertEquals(fitness[i] / 10, picked[i] / 100000.0, 0.01);
+    }
+  }
+
+}
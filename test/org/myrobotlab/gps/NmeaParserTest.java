@@ -0,0 +1,117 @@
+package org.myrobotlab.gps;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class NmeaParserTest {
+
+  final static String GGA = "$GPGGA,123519,4807.038,N,01131.000,E,1,08,0.9,545.4,M,46.9,M,,*47\r\n";
+  final static String RMC = "$GPRMC,123519,A,4807.038,N,01131.000,E,022.4,084.4,230394,003.1,W*6A\r\n";
+  final static String GSV = "$GPGSV,2,1,08,01,40,083,46,02,17,308,41,12,07,344,39,14,22,228,45*75\r\n";
+  final static String VTG = "$GPVTG,054.7,T,034.4,M,005.5,N,010.2,K*48\r\n";
+  final static String GSA = "$GPGSA,A,3,04,05,,09,12,,,24,,,,,2.5,1.3,2.1*39\r\n";
+  final static String ZDA = "$GPZDA,201530.00,04,07,2002,00,00*60\r\n";
+  final static String MSS = "$GPMSS,55,27,318.0,100,1*57\r\n";
+
+  static class Collector implements NmeaParser.Listener {
+    List<Integer> types = new ArrayList<Integer>();
+
+    @Override
+    public void onSentence(NmeaParser parser, int type) {
+      types.add(type);
+    }
+  }
+
+  @Test
+  public void testDecode() {
+    Collector collector = new Collector();
+    NmeaParser parser = new NmeaParser(collector);
+    parser.parse((GGA + RMC + GSV + VTG + GSA + ZDA).getBytes());
+
+    assertEquals(6, collector.types.size());
+    assertEquals(NmeaParser.GGA, (int) collector.types.get(0));
+    assertEquals(NmeaParser.ZDA, (int) collector.types.get(5));
+
+    assertEquals("GP", parser.gga.talker);
+    assertEquals(12 * 3600 + 35 * 60 + 19, parser.gga.time, 0.001);
+    assertEquals(48.1173, parser.gga.latitude, 0.0001);
+    assertEquals(11.516667, parser.gga.longitude, 0.0001);
+    assertEquals(1, parser.gga.quality);
+    assertEquals(8, parser.gga.satellites);
+    assertEquals(545.4, parser.gga.altitude, 0.001);
+    assertTrue(Double.isNaN(parser.gga.dgpsAge));
+
+    assertTrue(parser.rmc.valid);
+    assertEquals(22.4, parser.rmc.speedKnots, 0.001);
+    assertEquals(230394, parser.rmc.date);
+    assertEquals(-3.1, parser.rmc.magneticVariation, 0.001);
+
+    assertEquals(4, parser.gsv.count);
+    assertEquals(14, parser.gsv.prn[3]);
+    assertEquals(228, parser.gsv.azimuth[3]);
+    assertEquals(45, parser.gsv.snr[3]);
+
+    assertEquals(10.2, parser.vtg.speedKmh, 0.001);
+
+    assertEquals(3, parser.gsa.fix);
+    assertEquals(5, parser.gsa.count);
+    assertEquals(24, parser.gsa.prns[4]);
+    assertEquals(2.1, parser.gsa.vdop, 0.001);
+
+    assertEquals(2002, parser.zda.year);
+    assertEquals(7, parser.zda.month);
+  }
+
+  @Test
+  public void testChunks() {
+    Collector collector = new Collector();
+    NmeaParser parser = new NmeaParser(collector);
+    // noise before the first sentence and sentences split across chunks
+    byte[] data = ("garbage" + GGA + RMC + GGA).getBytes();
+    for (int i = 0; i < data.length; i += 7) {
+      parser.parse(data, i, Math.min(7, data.length - i));
+    }
+    assertEquals(3, collector.types.size());
+    assertEquals(2, parser.getCount(NmeaParser.GGA));
+    assertEquals(1, parser.getCount(NmeaParser.RMC));
+    assertEquals("$GPGGA,123519,4807.038,N,01131.000,E,1,08,0.9,545.4,M,46.9,M,,*47", parser.getSentence());
+    assertEquals("4807.038", parser.getField(2));
+    // geoid separation and its unit
+    assertEquals("46.9", parser.getField(11));
+    assertEquals("M", parser.getField(12));
+  }
+
+  @Test
+  public void testChecksum() {
+    Collector collector = new Collector();
+    NmeaParser parser = new NmeaParser(collector);
+    // altitude changed - checksum no longer matches
+    parser.parse(GGA.replace("545.4", "545.5").getBytes());
+    // no checksum
+    parser.parse("$GPVTG,054.7,T,034.4,M,005.5,N,010.2,K\r\n".getBytes());
+    // cut off by the next sentence
+    parser.parse("$GPGGA,123519,4807.0".getBytes());
+    parser.parse(VTG.getBytes());
+    assertEquals(1, collector.types.size());
+    assertEquals(2, parser.getChecksumErrors());
+
+    parser.setRequireChecksum(false);
+    parser.parse("$GPVTG,054.7,T,034.4,M,005.5,N,010.2,K\r\n".getBytes());
+    assertEquals(2, collector.types.size());
+  }
+
+  @Test
+  public void testMss() {
+    Collector collector = new Collector();
+    NmeaParser parser = new NmeaParser(collector);
+    parser.parse(MSS.getBytes());
+    assertEquals(NmeaParser.MSS, (int) collector.types.get(0));
+    assertEquals("318.0", parser.getTokens()[3]);
+  }
+
+}
@@ -0,0 +1,59 @@
+package org.myrobotlab.i2c;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class I2CTransactionsTest {
+
+  static class NullSender implements I2CTransactions.Sender {
+    @Override
+    public void send(I2CRequest request) {
+    }
+  }
+
+  @Test
+  public void testInOrder() {
+    I2CTransactions transactions = new I2CTransactions();
+    I2CRequest a = transactions.submit(1, 0x40, 2, new NullSender());
+    I2CRequest b = transactions.submit(1, 0x41, 1, new NullSender());
+    transactions.complete(1, new int[] { 1, 2 });
+    transactions.complete(1, new int[] { 3 });
+    byte[] buffer = new byte[2];
+    assertEquals(2, a.get(buffer, 10));
+    assertEquals(2, buffer[1]);
+    assertEquals(1, b.get(buffer, 10));
+    assertEquals(3, buffer[0]);
+    assertEquals(0, transactions.getPending());
+  }
+
+  @Test
+  public void testWrongSize() {
+    I2CTransactions transactions = new I2CTransactions();
+    I2CRequest a = transactions.submit(1, 0x40, 2, new NullSender());
+    transactions.complete(1, new int[] { 1, 2, 3 });
+    assertEquals(-1, a.get(new byte[2], 10));
+    assertTrue(a.isTimedOut());
+    assertNull(a.getData());
+    assertEquals(0, transactions.getPending());
+    assertEquals(1, transactions.getLost());
+  }
+
+  @Test
+  public void testStale() throws InterruptedException {
+    I2CTransactions transactions = new I2CTransactions();
+    transactions.setStaleTime(20);
+    I2CRequest lost = transactions.submit(1, 0x40, 1, new NullSender());
+    Thread.sleep(50);
+    I2CRequest b = transactions.submit(1, 0x41, 1, new NullSender());
+    // the data of b must not go to the lost request
+    transactions.complete(1, new int[] { 7 });
+    assertEquals(-1, lost.get(new byte[1], 10));
+    byte[] buffer = new byte[1];
+    assertEquals(1, b.get(buffer, 10));
+    assertEquals(7, buffer[0]);
+  }
+
+}
@@ -0,0 +1,60 @@
+package org.myrobotlab.kinematics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.List;
+
+import org.junit.Test;
+import org.myrobotlab.kinematics.GestureTimeline.Key;
+import org.myrobotlab.kinematics.GestureTimeline.Track;
+
+public class GestureTimelineTest {
+
+  @Test
+  public void testFromScript() {
+    String script = "i01.setHeadSpeed(1.0, 1.0)\n" + "def wave():\n" + "  i01.setHeadVelocity(30, 20)\n" + "  i01.moveHead(80, 100)\n"
+        + "  i01.mouth.speak(\"hello, there\")\n" + "  sleep(1.5)\n" + "  i01.moveHand(\"left\", 10, None, 30)\n" + "  i01.head.jaw.moveTo(25)\n" + "  sleep(0.5)\n"
+        + "def nod():\n" + "  i01.moveHeadBlocking(60, 90)\n" + "  i01.moveHead(90, 90)\n";
+    List<GestureTimeline> gestures = GestureTimeline.fromScript(script, "i01");
+    assertEquals(2, gestures.size());
+
+    GestureTimeline wave = gestures.get(0);
+    assertEquals("wave", wave.name);
+    assertEquals(2.0, wave.length, 0.0001);
+    assertEquals(5, wave.getKeyCount());
+    assertEquals(1, wave.cues.size());
+    assertEquals("hello, there", wave.cues.get(0).text);
+    assertEquals("speak", wave.cues.get(0).method);
+
+    // setHeadVelocity is rothead, neck - moveHead is neck, rothead
+    Key neck = wave.getTrack("head.neck").keys.get(0);
+    assertEquals(80, neck.pos, 0.0001);
+    assertEquals(20, neck.velocity, 0.0001);
+    assertEquals(30, wave.getTrack("head.rothead").keys.get(0).velocity, 0.0001);
+
+    Key thumb = wave.getTrack("leftHand.thumb").keys.get(0);
+    assertEquals(1.5, thumb.time, 0.0001);
+    assertEquals(-1, thumb.velocity, 0.0001);
+    Track index = null;
+    for (Track track : wave.tracks) {
+      if (track.servo.equals("leftHand.index")) {
+        index = track;
+      }
+    }
+    assertNull(index);
+    assertEquals(30, wave.getTrack("leftHand.majeure").keys.get(0).pos, 0.0001);
+    assertEquals(25, wave.getTrack("head.jaw").keys.get(0).pos, 0.0001);
+  }
+
+  @Test
+  public void testParseArgs() {
+    List<Object> args = GestureTimeline.ScriptConverter.parseArgs(" 'left', 1.5,None , \"a, b\"");
+    assertEquals(4, args.size());
+    assertEquals("left", args.get(0));
+    assertEquals(1.5, (Double) args.get(1), 0.0001);
+    assertNull(args.get(2));
+    assertEquals("a, b", args.get(3));
+  }
+
+}
@@ -0,0 +1,63 @@
+package org.myrobotlab.kinematics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.myrobotlab.kinematics.Trajectory.Profile;
+
+public class TrajectoryTest {
+
+  @Test
+  public void testTrapezoid() {
+    // reaches 60 deg/s after 0.5 s, so 90 degrees take 1.5 + 0.5 s
+    Trajectory t = new Trajectory(0, 90, 60, 120, Profile.TRAPEZOID);
+    assertEquals(2.0, t.getDuration(), 0.0001);
+    assertEquals(0, t.getPosition(0), 0.0001);
+    assertEquals(90, t.getPosition(2.0), 0.0001);
+    assertEquals(45, t.getPosition(1.0), 0.0001);
+    // end of the acceleration: 0.5 * a * t^2
+    assertEquals(15, t.getPosition(0.5), 0.0001);
+    assertEquals(60, t.getVelocity(1.0), 0.0001);
+  }
+
+  @Test
+  public void testTriangle() {
+    // too short to reach the velocity
+    Trajectory t = new Trajectory(10, 0, 100, 10, Profile.TRAPEZOID);
+    assertEquals(2.0, t.getDuration(), 0.0001);
+    assertEquals(5, t.getPosition(1.0), 0.0001);
+  }
+
+  @Test
+  public void testLimits() {
+    for (Profile profile : Profile.values()) {
+      Trajectory t = new Trajectory(20, 160, 45, 90, profile);
+      double last = 20;
+      for (double s = 0; s <= t.getDuration(); s += 0.01) {
+        double pos = t.getPosition(s);
+        assertTrue(profile + " not monotonic", pos >= last - 0.0001);
+        assertTrue(profile + " too fast", Math.abs(t.getVelocity(s)) <= 45.0001);
+        last = pos;
+      }
+      assertEquals(160, t.getPosition(t.getDuration()), 0.0001);
+    }
+  }
+
+  @Test
+  public void testSynchronized() {
+    Trajectory a = new Trajectory(0, 90, 30, -1, Profile.SCURVE);
+    Trajectory b = new Trajectory(0, 10, 30, -1, Profile.SCURVE);
+    b.setDuration(a.getDuration());
+    assertEquals(a.getDuration(), b.getDuration(), 0.0001);
+    assertEquals(5, b.getPosition(b.getDuration() / 2), 0.0001);
+    assertEquals(10, b.getPosition(b.getDuration()), 0.0001);
+  }
+
+  @Test
+  public void testNoVelocity() {
+    Trajectory t = new Trajectory(0, 90, -1, -1, Profile.TRAPEZOID);
+    assertEquals(0, t.getDuration(), 0.0001);
+    assertEquals(90, t.getPosition(0.001), 0.0001);
+  }
+}
@@ -0,0 +1,110 @@
+package org.myrobotlab.mapper;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.Test;
+import org.myrobotlab.mapper.GridMap.TileUpdate;
+
+public class GridMapTest {
+
+  // walls in the middle of cells
+  final static double WALL = 2.025;
+
+  /**
+   * a 360 ray scan from x,y in a square room from -WALL,-WALL to WALL,WALL
+   */
+  static double[] roomScan(double x, double y, int rays) {
+    double[] ranges = new double[rays];
+    for (int i = 0; i < rays; ++i) {
+      double a = 2 * Math.PI * i / rays;
+      double c = Math.cos(a);
+      double s = Math.sin(a);
+      double tx = (c > 0) ? (WALL - x) / c : (c < 0) ? (-WALL - x) / c : Double.MAX_VALUE;
+      double ty = (s > 0) ? (WALL - y) / s : (s < 0) ? (-WALL - y) / s : Double.MAX_VALUE;
+      ranges[i] = Math.min(tx, ty);
+    }
+    return ranges;
+  }
+
+  @Test
+  public void testRoom() {
+    GridMap map = new GridMap(0.05, 4);
+    try {
+      for (int i = 0; i < 5; ++i) {
+        double x = -0.5 + i * 0.25;
+        map.integrate(x, 0, 0, 0, 2 * Math.PI / 720, roomScan(x, 0, 720), 5);
+      }
+      // walls
+      assertTrue(map.getProbability(WALL, 0.3) > 0.9);
+      assertTrue(map.getProbability(-WALL, -1.0) > 0.9);
+      assertTrue(map.getProbability(0.7, WALL) > 0.9);
+      // inside
+      assertTrue(map.getProbability(0.5, 0.5) < 0.2);
+      assertTrue(map.getProbability(-1.2, -1.5) < 0.2);
+      assertTrue(map.getProbability(WALL - 0.05, 0.3) < 0.2);
+      // outside - never seen
+      assertEquals(0.5, map.getProbability(3, 3), 0.0);
+      // grown in every direction from the origin
+      double[] bounds = map.getBounds();
+      assertTrue(bounds[0] < -2 && bounds[1] < -2 && bounds[2] > 2 && bounds[3] > 2);
+    } finally {
+      map.close();
+    }
+  }
+
+  @Test
+  public void testParallelMatchesSerial() throws Exception {
+    GridMap serial = new GridMap(0.05, 1);
+    GridMap parallel = new GridMap(0.05, 4);
+    try {
+      double[] ranges = roomScan(0.3, -0.4, 1024);
+      // some rays without a return
+      for (int i = 0; i < ranges.length; i += 17) {
+        ranges[i] = Double.NaN;
+      }
+      for (int i = 0; i < 3; ++i) {
+        serial.integrate(0.3, -0.4, 0.1, 0, 2 * Math.PI / 1024, ranges, 2.5);
+        parallel.integrate(0.3, -0.4, 0.1, 0, 2 * Math.PI / 1024, ranges, 2.5);
+      }
+      List<TileUpdate> a = serial.getTiles();
+      assertEquals(a.size(), parallel.getTileCount());
+      for (TileUpdate t : a) {
+        TileUpdate u = parallel.encode(parallel.getTile(t.tx, t.ty));
+        assertArrayEquals(t.decode(), u.decode());
+      }
+    } finally {
+      serial.close();
+      parallel.close();
+    }
+  }
+
+  @Test
+  public void testDirtyTiles() throws Exception {
+    GridMap map = new GridMap(0.05, 1);
+    // one ray along x, 1 m - touches one tile of 3.2 m
+    map.integrate(0.01, 0.01, 0, 0, 0, new double[] { 1.0 }, 4);
+    List<TileUpdate> updates = map.takeUpdates();
+    assertEquals(1, updates.size());
+    assertTrue(map.takeUpdates().isEmpty());
+
+    TileUpdate tile = updates.get(0);
+    byte[] cells = tile.decode();
+    assertEquals(GridMap.TILE_CELLS, cells.length);
+    // compressed - mostly unknown
+    assertTrue(tile.data.length < 200);
+    // cell 0,0 free, cell 20,0 hit, cell 0,1 unknown
+    assertTrue((cells[0] & 0xff) < 127);
+    assertTrue((cells[20] & 0xff) > 127 && (cells[20] & 0xff) != GridMap.UNKNOWN);
+    assertEquals(GridMap.UNKNOWN, cells[GridMap.TILE] & 0xff);
+
+    // a ray back along -x enters a new tile
+    map.integrate(0.01, 0.01, Math.PI, 0, 0, new double[] { 1.0 }, 4);
+    assertEquals(2, map.takeUpdates().size());
+    assertEquals(2, map.getTileCount());
+  }
+
+}
@@ -0,0 +1,124 @@
+package org.myrobotlab.mapper.sim.headless;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.Test;
+
+public class HeadlessSimulatorTest {
+
+  /**
+   * wanders and turns away from what its front sensors see
+   */
+  static class Wanderer extends HeadlessAgent {
+
+    Wanderer(String name, double x, double y, double theta) {
+      super(name, x, y, theta, 0.1);
+      addRangeSensorBelt(8, 0.5);
+    }
+
+    @Override
+    protected void performBehavior() {
+      if (collisionDetected() || (hasHit(0) && getMeasurement(0) < 0.2)) {
+        setTranslationalVelocity(0);
+        setRotationalVelocity((getRandom().nextBoolean()) ? 2 : -2);
+      } else {
+        setTranslationalVelocity(0.5);
+        setRotationalVelocity(getRandom().nextGaussian() * 0.5);
+      }
+    }
+  }
+
+  static Space room() {
+    Space space = new Space(-5, -5, 5, 5, 0.5);
+    space.addBounds();
+    space.addBox(-1, -1, 1, 1);
+    return space;
+  }
+
+  static HeadlessSimulator swarm(int threads, int count) {
+    HeadlessSimulator sim = new HeadlessSimulator(room(), threads);
+    sim.setSeed(42);
+    for (int i = 0; i < count; ++i) {
+      // a ring around the box in the middle
+      double a = 2 * Math.PI * i / count;
+      sim.add(new Wanderer("w" + i, 3 * Math.cos(a), 3 * Math.sin(a), a));
+    }
+    sim.reset();
+    return sim;
+  }
+
+  @Test
+  public void testRaycast() {
+    Space space = room();
+    assertEquals(1.0, space.raycast(-2, 0, 0, 10), 1e-9);
+    assertEquals(3.0, space.raycast(2, 0, 0, 10), 1e-9);
+    assertEquals(3.5, space.raycast(0, 1.5, Math.PI / 2, 10), 1e-9);
+    assertEquals(0.5, space.raycast(0, 1.5, -Math.PI / 2, 10), 1e-9);
+    // out of range
+    assertEquals(0.5, space.raycast(2, 0, 0, 0.5), 1e-9);
+    assertTrue(space.overlaps(0.95, 1.05, 0.1));
+    assertFalse(space.overlaps(2, 2, 0.1));
+  }
+
+  @Test
+  public void testSensors() {
+    HeadlessSimulator sim = new HeadlessSimulator(room(), 1);
+    HeadlessAgent a = new HeadlessAgent("a", -3, 0, 0, 0.1);
+    a.addRangeSensorBelt(4, 3);
+    HeadlessAgent b = new HeadlessAgent("b", -3, 2, 0, 0.2);
+    sim.add(a);
+    sim.add(b);
+    sim.step();
+    // box ahead, agent b to the left, outer wall behind, nothing in range to
+    // the right
+    assertEquals(1.9, a.getMeasurement(0), 1e-9);
+    assertEquals(1.7, a.getMeasurement(1), 1e-9);
+    assertEquals(1.9, a.getMeasurement(2), 1e-9);
+    assertFalse(a.hasHit(3));
+    sim.close();
+  }
+
+  @Test
+  public void testDeterministic() {
+    HeadlessSimulator serial = swarm(1, 64);
+    HeadlessSimulator parallel = swarm(4, 64);
+    serial.run(500);
+    parallel.run(500);
+    List<HeadlessAgent> s = serial.getAgents();
+    List<HeadlessAgent> p = parallel.getAgents();
+    double moved = 0;
+    for (int i = 0; i < s.size(); ++i) {
+      assertEquals(s.get(i).getX(), p.get(i).getX(), 0);
+      assertEquals(s.get(i).getY(), p.get(i).getY(), 0);
+      assertEquals(s.get(i).getHeading(), p.get(i).getHeading(), 0);
+      moved += s.get(i).getOdometer();
+    }
+    assertTrue(moved > 0);
+
+    // the same again after a reset
+    double x = s.get(7).getX();
+    serial.reset();
+    serial.run(500);
+    assertEquals(x, s.get(7).getX(), 0);
+    serial.close();
+    parallel.close();
+  }
+
+  @Test
+  public void testWallsHold() {
+    HeadlessSimulator sim = swarm(2, 64);
+    for (int step = 0; step < 50; ++step) {
+      sim.run(20);
+      for (HeadlessAgent a : sim.getAgents()) {
+        assertTrue(a.toString(), Math.abs(a.getX()) < 5 && Math.abs(a.getY()) < 5);
+        assertFalse(a.toString(), Math.abs(a.getX()) < 1 && Math.abs(a.getY()) < 1);
+      }
+    }
+    sim.close();
+  }
+
+}
@@ -0,0 +1,159 @@
+package org.myrobotlab.memory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class BoundedCacheTest {
+
+  @Test
+  public void testBound() {
+    BoundedCache cache = new BoundedCache(100);
+    for (int i = 0; i < 1000; ++i) {
+      cache.put("k" + i, i);
+    }
+    assertEquals(100, cache.size());
+    assertEquals(900, (long) cache.getStats().get("evictions"));
+  }
+
+  @Test
+  public void testFrequency() {
+    BoundedCache cache = new BoundedCache(100);
+    for (int i = 0; i < 50; ++i) {
+      cache.put("hot" + i, "hot");
+    }
+    for (int j = 0; j < 10; ++j) {
+      for (int i = 0; i < 50; ++i) {
+        cache.get("hot" + i, String.class);
+      }
+    }
+    // a scan of items used once doesn't push out the ones used often
+    for (int i = 0; i < 10000; ++i) {
+      cache.put("cold" + i, "cold");
+    }
+    int hot = 0;
+    for (int i = 0; i < 50; ++i) {
+      if (cache.get("hot" + i, String.class) != null) {
+        ++hot;
+      }
+    }
+    assertTrue("" + hot, hot >= 45);
+  }
+
+  @Test
+  public void testPrimitives() {
+    BoundedCache cache = new BoundedCache(10);
+    cache.putInt("i", 7);
+    cache.putLong("l", 1L << 40);
+    cache.putDouble("d", 0.5);
+    cache.putFloat("f", 1.5f);
+    cache.putBool("b", true);
+    cache.put("s", "12");
+    assertEquals(7, cache.getInt("i"));
+    assertEquals(7, cache.getLong("i"));
+    assertEquals(7.0, cache.getDouble("i"), 0);
+    assertEquals(1L << 40, cache.getLong("l"));
+    assertEquals(0.5, cache.getDouble("d"), 0);
+    assertEquals(1.5, cache.getDouble("f"), 0);
+    assertEquals(1.5f, cache.getFloat("f"), 0);
+    assertTrue(cache.getBool("b"));
+    assertEquals(12, cache.getInt("s"));
+    assertEquals(Integer.valueOf(7), cache.get("i", Integer.class));
+    assertEquals(0, cache.getInt("none"));
+    assertEquals(0, (int) cache.get("none", Integer.class));
+  }
+
+  @Test
+  public void testTimeToLive() throws Exception {
+    BoundedCache cache = new BoundedCache(100, 50);
+    cache.put("a", "a");
+    cache.put("b", "b", 0);
+    assertEquals("a", cache.get("a", String.class));
+    Thread.sleep(100);
+    assertNull(cache.get("a", String.class));
+    assertEquals("b", cache.get("b", String.class));
+
+    // minutes ahead the wheel expires what is due, and keeps the rest
+    long now = System.nanoTime();
+    cache.put("c", "c", 90000);
+    cache.put("d", "d", 300000);
+    cache.timeout(now + TimeUnit.SECONDS.toNanos(60));
+    assertEquals(3, cache.size());
+    cache.timeout(now + TimeUnit.SECONDS.toNanos(100));
+    assertEquals(2, cache.size());
+    cache.timeout(now + TimeUnit.SECONDS.toNanos(400));
+    assertEquals(1, cache.size());
+    assertEquals("b", cache.get("b", String.class));
+  }
+
+  @Test
+  public void testLoader() throws Exception {
+    final BoundedCache cache = new BoundedCache(10);
+    final AtomicInteger loads = new AtomicInteger();
+    final CountDownLatch start = new CountDownLatch(1);
+    final BoundedCache.Loader<String> loader = new BoundedCache.Loader<String>() {
+      @Override
+      public String load(String name) throws Exception {
+        loads.incrementAndGet();
+        Thread.sleep(50);
+        return name.toUpperCase();
+      }
+    };
+    Thread[] threads = new Thread[4];
+    final String[] results = new String[threads.length];
+    for (int i = 0; i < threads.length; ++i) {
+      final int n = i;
+      threads[i] = new Thread() {
+        @Override
+        public void run() {
+          try {
+            start.await();
+            results[n] = cache.get("abc", loader);
+          } catch (Exception e) {
+          }
+        }
+      };
+      threads[i].start();
+    }
+    start.countDown();
+    for (Thread t : threads) {
+      t.join();
+    }
+    assertEquals(1, loads.get());
+    for (String result : results) {
+      assertEquals("ABC", result);
+    }
+
+    try {
+      cache.get("bad", new BoundedCache.Loader<String>() {
+        @Override
+        public String load(String name) throws Exception {
+          throw new IOException(name);
+        }
+      });
+      assertTrue(false);
+    } catch (IOException e) {
+      assertEquals("bad", e.getMessage());
+    }
+    assertEquals(1, (long) cache.getStats().get("loadFailures"));
+    assertEquals(1, cache.size());
+  }
+
+  @Test
+  public void testManager() {
+    CacheManager manager = CacheManager.getInstance();
+    BoundedCache cache = manager.createCache("test", 10, 1000);
+    assertSame(cache, manager.createCache("test", 20, 0));
+    assertSame(cache, manager.getCache("test"));
+    assertSame(cache, manager.removeCache("test"));
+    assertNull(manager.getCache("test"));
+  }
+}
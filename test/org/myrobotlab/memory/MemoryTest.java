@@ -0,0 +1,135 @@
+package org.myrobotlab.memory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import org.junit.Test;
+import org.myrobotlab.memory.Node.NodeContext;
+
+public class MemoryTest {
+
+  static class Listener implements MemoryChangeListener {
+    int puts = 0;
+    List<NodeContext> changes = new ArrayList<NodeContext>();
+
+    @Override
+    public void onPut(String parentPath, Node node) {
+      ++puts;
+    }
+
+    @Override
+    public void publish(String path, Node node) {
+    }
+
+    @Override
+    public void onChanges(List<NodeContext> changes) {
+      this.changes.addAll(changes);
+    }
+  }
+
+  @Test
+  public void testPutGet() {
+    Memory memory = new Memory();
+    memory.put("", new Node("k1"));
+    memory.put("/k1", new Node("k2"));
+    memory.putNode("/k1/k2", "k3");
+    memory.put("/k1/k2", "k5", 5);
+    assertEquals(5, memory.get("/k1/k2/k5"));
+    assertEquals("k3", memory.getNode("k1/k2/k3/").getName());
+    assertSame(memory.getRoot(), memory.get("/"));
+    assertEquals(Arrays.asList("/k1/k2", "/k1/k2/k3", "/k1/k2/k5"), new ArrayList<String>(memory.getPaths("/k1")));
+    assertEquals(4, memory.size());
+
+    // put into a node directly - found by walking the tree
+    memory.getNode("/k1/k2/k3").put("k6", "v6");
+    assertEquals("v6", memory.get("/k1/k2/k3/k6"));
+
+    // replacing a node drops what was under it
+    memory.put("", new Node("k1"));
+    assertNull(memory.get("/k1/k2/k5"));
+    assertEquals(0, memory.getPaths("/k1").size());
+
+    // a node with children is indexed with them
+    Node k7 = new Node("k7");
+    k7.put("k8", 8);
+    memory.put("/k1", k7);
+    assertEquals(8, memory.get("/k1/k7/k8"));
+  }
+
+  @Test
+  public void testSnapshot() {
+    Memory memory = new Memory();
+    memory.put("", new Node("k1"));
+    memory.put("/k1", "a", 1);
+    HashMap<String, Object> data = memory.getNode("/k1").getNodes();
+    memory.put("/k1", "b", 2);
+    assertEquals(1, data.size());
+    assertEquals(2, memory.getNode("/k1").getNodes().size());
+  }
+
+  @Test
+  public void testChanges() {
+    Memory memory = new Memory();
+    Listener listener = new Listener();
+    memory.addMemoryChangeListener(listener);
+    memory.put("", new Node("k1"));
+    memory.put("/k1", new Node("k2"));
+    for (int i = 0; i < 10; ++i) {
+      memory.put("/k1/k2", "v", i);
+    }
+    assertEquals(2, listener.puts);
+    assertEquals(0, listener.changes.size());
+    // k1, and k2 once
+    assertEquals(2, memory.publishChanges());
+    assertEquals("k2", listener.changes.get(1).node.getName());
+    assertEquals("/k1", listener.changes.get(1).parentPath);
+    assertEquals(0, memory.publishChanges());
+
+    listener.changes.clear();
+    memory.crawlAndPublish();
+    assertEquals(2, listener.changes.size());
+  }
+
+  @Test
+  public void testConcurrent() throws Exception {
+    final Memory memory = new Memory();
+    final int writers = 4;
+    final int puts = 2000;
+    for (int i = 0; i < writers; ++i) {
+      memory.put("", new Node("n" + i));
+    }
+    Thread[] threads = new Thread[writers];
+    for (int i = 0; i < writers; ++i) {
+      final String path = "/n" + i;
+      threads[i] = new Thread() {
+        @Override
+        public void run() {
+          for (int j = 0; j < puts; ++j) {
+            memory.put(path, "k" + j, j);
+          }
+        }
+      };
+      threads[i].start();
+    }
+    // reads while they write
+    boolean done = false;
+    while (!done) {
+      done = true;
+      for (int i = 0; i < writers; ++i) {
+        done &= !threads[i].isAlive();
+        for (Object value : memory.getNode("/n" + i).getNodes().values()) {
+          assertTrue(value instanceof Integer);
+        }
+      }
+    }
+    assertEquals(writers * (puts + 1), memory.size());
+    assertEquals(puts - 1, memory.get("/n3/k" + (puts - 1)));
+  }
+}
@@ -0,0 +1,112 @@
+package org.myrobotlab.net;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+import org.myrobotlab.framework.Message;
+
+public class MsgCodecTest {
+
+  static class Point implements Serializable {
+    private static final long serialVersionUID = 1L;
+    int x;
+    String label;
+
+    Point(int x, String label) {
+      this.x = x;
+      this.label = label;
+    }
+  }
+
+  static Message roundTrip(MsgCodec tx, MsgCodec rx, Message msg) throws IOException {
+    int length = tx.encode(msg);
+    ByteBuffer frame = ByteBuffer.wrap(tx.getBuffer(), 0, length);
+    assertEquals(length - 4, frame.getInt());
+    return rx.decode(frame.slice());
+  }
+
+  static Message msg(String method, Object... data) {
+    Message msg = new Message();
+    msg.name = "servo01";
+    msg.sender = "arduino";
+    msg.sendingMethod = "publishPin";
+    msg.method = method;
+    msg.data = data;
+    return msg;
+  }
+
+  @Test
+  public void testPrimitives() throws IOException {
+    MsgCodec tx = new MsgCodec();
+    MsgCodec rx = new MsgCodec();
+    Message in = msg("moveTo", 90.5, -3, 1L << 40, true, "text", null, new byte[] { 1, 2 }, new int[] { -1, 300 }, new String[] { "a", null });
+    Message out = roundTrip(tx, rx, in);
+    assertEquals(in.msgId, out.msgId);
+    assertEquals("servo01", out.name);
+    assertEquals("arduino", out.sender);
+    assertEquals("publishPin", out.sendingMethod);
+    assertEquals("moveTo", out.method);
+    assertNull(out.status);
+    assertEquals(90.5, (Double) out.data[0], 0.0);
+    assertEquals(-3, out.data[1]);
+    assertEquals(1L << 40, out.data[2]);
+    assertEquals(true, out.data[3]);
+    assertEquals("text", out.data[4]);
+    assertNull(out.data[5]);
+    assertArrayEquals(new byte[] { 1, 2 }, (byte[]) out.data[6]);
+    assertArrayEquals(new int[] { -1, 300 }, (int[]) out.data[7]);
+    assertArrayEquals(new String[] { "a", null }, (String[]) out.data[8]);
+  }
+
+  @Test
+  public void testInterning() throws IOException {
+    MsgCodec tx = new MsgCodec();
+    MsgCodec rx = new MsgCodec();
+    int first = tx.encode(msg("moveTo", 10.0));
+    rx.decode(ByteBuffer.wrap(tx.getBuffer(), 4, first - 4).slice());
+    int second = tx.encode(msg("moveTo", 10.0));
+    rx.decode(ByteBuffer.wrap(tx.getBuffer(), 4, second - 4).slice());
+    // names are sent once, after that only their index
+    assertTrue(second < first / 2);
+    Message out = roundTrip(tx, rx, msg("moveTo", 10.0));
+    assertEquals("moveTo", out.method);
+    assertEquals("servo01", out.name);
+  }
+
+  @Test
+  public void testObjects() throws IOException {
+    MsgCodec tx = new MsgCodec();
+    MsgCodec rx = new MsgCodec();
+    Message out = roundTrip(tx, rx, msg("onPoint", new Point(7, "first")));
+    Point p = (Point) out.data[0];
+    assertEquals(7, p.x);
+    assertEquals("first", p.label);
+    // class name is interned too
+    out = roundTrip(tx, rx, msg("onPoint", new Point(8, "second"), "after"));
+    p = (Point) out.data[0];
+    assertEquals(8, p.x);
+    assertEquals("after", out.data[1]);
+  }
+
+  @Test
+  public void testFailedEncodeKeepsTables() throws IOException {
+    MsgCodec tx = new MsgCodec();
+    MsgCodec rx = new MsgCodec();
+    try {
+      tx.encode(msg("notSent", new Object()));
+    } catch (IOException e) {
+      // not serializable
+    }
+    Message out = roundTrip(tx, rx, msg("notSent", "ok"));
+    assertEquals("notSent", out.method);
+    assertEquals("ok", out.data[0]);
+  }
+
+}
@@ -0,0 +1,81 @@
+package org.myrobotlab.programab;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+public class SessionEngineTest {
+
+  @Test
+  public void testSessionOrder() {
+    SessionEngine engine = new SessionEngine("test", 4);
+    ChatData a = new ChatData(null);
+    ChatData b = new ChatData(null);
+    final List<Integer> orderA = Collections.synchronizedList(new ArrayList<Integer>());
+    final List<Integer> orderB = Collections.synchronizedList(new ArrayList<Integer>());
+    for (int i = 0; i < 100; ++i) {
+      final int n = i;
+      engine.submit(a, new Runnable() {
+        @Override
+        public void run() {
+          orderA.add(n);
+        }
+      });
+      engine.submit(b, new Runnable() {
+        @Override
+        public void run() {
+          orderB.add(n);
+        }
+      });
+    }
+    assertTrue(engine.flush(5000));
+    assertEquals(100, orderA.size());
+    assertEquals(100, orderB.size());
+    for (int i = 0; i < 100; ++i) {
+      assertEquals(i, orderA.get(i).intValue());
+      assertEquals(i, orderB.get(i).intValue());
+    }
+    engine.shutdown();
+  }
+
+  @Test
+  public void testRestartedEngine() {
+    ChatData a = new ChatData(null);
+    final List<Integer> done = Collections.synchronizedList(new ArrayList<Integer>());
+    Runnable r = new Runnable() {
+      @Override
+      public void run() {
+        done.add(1);
+      }
+    };
+    SessionEngine engine = new SessionEngine("test", 1);
+    engine.submit(a, r);
+    engine.shutdown();
+    // the session must not keep the strand of the stopped engine
+    engine = new SessionEngine("test", 1);
+    engine.submit(a, r);
+    assertTrue(engine.flush(5000));
+    assertEquals(2, done.size());
+    engine.shutdown();
+  }
+
+  @Test
+  public void testLatencyStats() {
+    SessionEngine engine = new SessionEngine("test", 1);
+    for (int i = 0; i < 99; ++i) {
+      engine.recordLatency(3);
+    }
+    engine.recordLatency(100);
+    assertEquals(100, engine.getResponseCount());
+    assertEquals(100, engine.getMaxLatency());
+    assertEquals(3, engine.getLatencyPercentile(0.5));
+    assertEquals(127, engine.getLatencyPercentile(1.0));
+    engine.shutdown();
+  }
+
+}
@@ -1,10 +1,19 @@
 package org.myrobotlab.service;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+
 import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
+import org.myrobotlab.framework.Message;
+import org.myrobotlab.net.MsgCodec;
 
 public class MqttTest {
 
@@ -24,6 +33,61 @@ public class MqttTest {
   public void tearDown() throws Exception {
   }
 
+  static byte[] batch(MsgCodec codec, Message... msgs) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    for (Message msg : msgs) {
+      int length = codec.encode(msg);
+      out.write(codec.getBuffer(), 0, length);
+    }
+    return out.toByteArray();
+  }
+
+  static Message msg(String sender, String method, Object... data) {
+    Message msg = new Message();
+    msg.name = "mqtt";
+    msg.sender = sender;
+    msg.sendingMethod = method;
+    msg.method = "publishGateway";
+    msg.data = data;
+    return msg;
+  }
+
+  @Test
+  public final void testDecodePayload() throws IOException {
+    MsgCodec tx = new MsgCodec(false);
+    byte[] first = batch(tx, msg("arduino", "publishPin", 3, 512), msg("arduino", "publishPin", 4, 1023));
+    byte[] second = batch(tx, msg("arduino", "publishPin", 3, 600), msg("servo", "publishServoEvent", 90.5));
+
+    // subscribers may miss batches - frames must decode on their own
+    MsgCodec rx = new MsgCodec(false);
+    List<Message> msgs = Mqtt.decodePayload(rx, second);
+    assertEquals(2, msgs.size());
+    assertEquals("arduino", msgs.get(0).sender);
+    assertEquals("publishPin", msgs.get(0).sendingMethod);
+    assertEquals(600, msgs.get(0).data[1]);
+    assertEquals("servo", msgs.get(1).sender);
+    assertEquals(90.5, msgs.get(1).data[0]);
+
+    msgs = Mqtt.decodePayload(rx, first);
+    assertEquals(2, msgs.size());
+    assertEquals(4, msgs.get(1).data[0]);
+    assertEquals(0, tx.getInternCount());
+
+    byte[] truncated = new byte[first.length - 3];
+    System.arraycopy(first, 0, truncated, 0, truncated.length);
+    try {
+      Mqtt.decodePayload(rx, truncated);
+      fail("truncated batch decoded");
+    } catch (IOException e) {
+    }
+  }
+
+  @Test
+  public final void testTopicLevel() {
+    assertEquals("runtime.1508412345.4242", Mqtt.toTopicLevel("runtime.1508412345.4242"));
+    assertEquals("a_b_c_d", Mqtt.toTopicLevel("a/b+c#d"));
+  }
+
   @Test
   public final void testGetCategories() {
     // fail("Not yet implemented");
@@ -39,7 +39,7 @@ public class NeoPixelTest {
   @Test
   public void testSetPixelIntIntIntInt() {
     neopixel.setPixel(2, 255, 0, 0);
-    assertTrue(neopixel.pixelMatrix.get(2).isEqual(new NeoPixel.PixelColor(2, 255, 0, 0)));
+    assertTrue(neopixel.getPixel(2).isEqual(new NeoPixel.PixelColor(2, 255, 0, 0)));
   }
 
   /**
@@ -48,7 +48,7 @@ public class NeoPixelTest {
   @Test
   public void testSendPixelIntIntIntInt() {
     neopixel.sendPixel(2, 0, 255, 0);
-    assertTrue(neopixel.pixelMatrix.get(2).isEqual(new NeoPixel.PixelColor(2, 0, 255, 0)));
+    assertTrue(neopixel.getPixel(2).isEqual(new NeoPixel.PixelColor(2, 0, 255, 0)));
   }
 
   /**
@@ -65,7 +65,7 @@ public class NeoPixelTest {
   @Test
   public void testTurnOff() {
     neopixel.turnOff();
-    assertTrue(neopixel.pixelMatrix.get(2).isEqual(new NeoPixel.PixelColor(2, 0, 0, 0)));
+    assertTrue(neopixel.getPixel(2).isEqual(new NeoPixel.PixelColor(2, 0, 0, 0)));
     neopixel.turnOn();
   }
 